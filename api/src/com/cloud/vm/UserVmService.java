@@ -25,7 +25,9 @@ import org.apache.cloudstack.api.command.admin.vm.ExpungeVMCmd;
 import org.apache.cloudstack.api.command.admin.vm.RecoverVMCmd;
 import org.apache.cloudstack.api.command.user.vm.AddNicToVMCmd;
 import org.apache.cloudstack.api.command.user.vm.DeployVMCmd;
+import org.apache.cloudstack.api.command.user.vm.DeployVMsCmd;
 import org.apache.cloudstack.api.command.user.vm.DestroyVMCmd;
+import org.apache.cloudstack.api.command.user.vm.ListVMMetricsCmd;
 import org.apache.cloudstack.api.command.user.vm.RebootVMCmd;
 import org.apache.cloudstack.api.command.user.vm.RemoveNicFromVMCmd;
 import org.apache.cloudstack.api.command.user.vm.ResetVMPasswordCmd;
@@ -55,6 +57,7 @@ import com.cloud.storage.StoragePool;
 import com.cloud.template.VirtualMachineTemplate;
 import com.cloud.user.Account;
 import com.cloud.uservm.UserVm;
+import com.cloud.utils.Pair;
 import com.cloud.utils.exception.ExecutionException;
 
 public interface UserVmService {
@@ -362,6 +365,26 @@ public interface UserVmService {
      */
     UserVm startVirtualMachine(DeployVMCmd cmd) throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException;
 
+    /**
+     * Creates a batch of virtual machines sharing one set of deployment parameters and, unless told otherwise, starts
+     * them in parallel jobs.
+     *
+     * @param cmd
+     *            the command specifying the number of vms and their parameters
+     * @return the created vms
+     * @throws InsufficientCapacityException
+     *             if there is insufficient capacity to deploy the VMs.
+     * @throws ResourceAllocationException
+     *             if the batch would exceed the owner's resource limits.
+     */
+    List<UserVm> deployVirtualMachines(DeployVMsCmd cmd) throws InsufficientCapacityException, ResourceUnavailableException, ConcurrentOperationException,
+        ResourceAllocationException;
+
+    /**
+     * @return the stats samples kept in memory for the vm, by metric name, as (time in ms, value) pairs
+     */
+    Map<String, List<Pair<Long, Double>>> listVirtualMachineMetrics(ListVMMetricsCmd cmd);
+
     /**
      * Creates a vm group.
      *
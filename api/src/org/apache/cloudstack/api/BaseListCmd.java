@@ -55,6 +55,15 @@ public abstract class BaseListCmd extends BaseCmd {
         return page;
     }
 
+    /**
+     * List commands that support keyset paging declare the startafter parameter and override this.
+     *
+     * @return the uuid of the last entry of the previous page, or null when paging by offset
+     */
+    public String getStartAfter() {
+        return null;
+    }
+
     public Integer getPageSize() {
         if (pageSize != null && s_maxPageSize.longValue() != s_pageSizeUnlimited && pageSize.longValue() > s_maxPageSize.longValue()) {
             throw new InvalidParameterValueException("Page size can't exceed max allowed page size value: " + s_maxPageSize.longValue());
@@ -126,7 +135,11 @@ public abstract class BaseListCmd extends BaseCmd {
             pageSize = Long.valueOf((String)pageSizeObj);
         }
 
-        if (params.get(ApiConstants.PAGE) == null &&
+        if (getStartAfter() != null) {
+            if (params.get(ApiConstants.PAGE) != null) {
+                throw new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"page\" parameter can't be specified together with \"startafter\"");
+            }
+        } else if (params.get(ApiConstants.PAGE) == null &&
                 pageSize != null &&
                 !pageSize.equals(BaseListCmd.s_pageSizeUnlimited)) {
             final ServerApiException ex = new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"page\" parameter is required when \"pagesize\" is specified");
@@ -27,6 +27,7 @@ import org.apache.cloudstack.api.ApiConstants.HostDetails;
 import org.apache.cloudstack.api.ApiConstants.VMDetails;
 import org.apache.cloudstack.api.ResponseObject.ResponseView;
 import org.apache.cloudstack.api.command.user.job.QueryAsyncJobResultCmd;
+import org.apache.cloudstack.api.command.user.job.QueryAsyncJobResultsCmd;
 import org.apache.cloudstack.api.response.AccountResponse;
 import org.apache.cloudstack.api.response.ApplicationLoadBalancerResponse;
 import org.apache.cloudstack.api.response.AsyncJobResponse;
@@ -311,6 +312,8 @@ public interface ResponseGenerator {
 
     AsyncJobResponse queryJobResult(QueryAsyncJobResultCmd cmd);
 
+    ListResponse<AsyncJobResponse> queryJobResults(QueryAsyncJobResultsCmd cmd);
+
     NetworkOfferingResponse createNetworkOfferingResponse(NetworkOffering offering);
 
     NetworkResponse createNetworkResponse(ResponseView view, Network network);
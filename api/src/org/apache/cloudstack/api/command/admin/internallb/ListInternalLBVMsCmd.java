@@ -73,6 +73,9 @@ public class ListInternalLBVMsCmd extends BaseListProjectAndAccountResourcesCmd
     @Parameter(name = ApiConstants.FOR_VPC, type = CommandType.BOOLEAN, description = "if true is passed for this parameter, list only VPC Internal LB VMs")
     private Boolean forVpc;
 
+    @Parameter(name = ApiConstants.START_AFTER, type = CommandType.STRING, description = "the ID of the last Internal LB VM of the previous page. Returns the next page of Internal LB VMs, in id order, without the total count", since = "4.5.0")
+    private String startAfter;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -117,6 +120,11 @@ public class ListInternalLBVMsCmd extends BaseListProjectAndAccountResourcesCmd
         return Role.INTERNAL_LB_VM.toString();
     }
 
+    @Override
+    public String getStartAfter() {
+        return startAfter;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
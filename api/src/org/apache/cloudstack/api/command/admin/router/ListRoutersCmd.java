@@ -80,6 +80,9 @@ public class ListRoutersCmd extends BaseListProjectAndAccountResourcesCmd {
     @Parameter(name = ApiConstants.VERSION, type = CommandType.STRING, description = "list virtual router elements by version")
     private String version;
 
+    @Parameter(name = ApiConstants.START_AFTER, type = CommandType.STRING, description = "the ID of the last router of the previous page. Returns the next page of routers, in id order, without the total count", since = "4.5.0")
+    private String startAfter;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -132,6 +135,11 @@ public class ListRoutersCmd extends BaseListProjectAndAccountResourcesCmd {
         return Role.VIRTUAL_ROUTER.toString();
     }
 
+    @Override
+    public String getStartAfter() {
+        return startAfter;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
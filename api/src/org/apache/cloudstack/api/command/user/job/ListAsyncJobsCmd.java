@@ -37,6 +37,9 @@ public class ListAsyncJobsCmd extends BaseListAccountResourcesCmd {
     @Parameter(name = ApiConstants.START_DATE, type = CommandType.TZDATE, description = "the start date of the async job")
     private Date startDate;
 
+    @Parameter(name = ApiConstants.START_AFTER, type = CommandType.STRING, description = "the ID of the last async job of the previous page. Returns the next page of async jobs, in id order, without the total count", since = "4.5.0")
+    private String startAfter;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -45,6 +48,11 @@ public class ListAsyncJobsCmd extends BaseListAccountResourcesCmd {
         return startDate;
     }
 
+    @Override
+    public String getStartAfter() {
+        return startAfter;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
@@ -40,6 +40,13 @@ public class QueryAsyncJobResultCmd extends BaseCmd {
     @Parameter(name = ApiConstants.JOB_ID, type = CommandType.UUID, entityType = AsyncJobResponse.class, required = true, description = "the ID of the asychronous job")
     private Long id;
 
+    @Parameter(name = ApiConstants.TIMEOUT,
+               type = CommandType.INTEGER,
+               description = "if the job is still pending, the number of seconds to wait for it to complete before returning, "
+                   + "at most job.query.max.wait.seconds",
+               since = "4.5.0")
+    private Integer timeout;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -48,6 +55,10 @@ public class QueryAsyncJobResultCmd extends BaseCmd {
         return id;
     }
 
+    public Integer getTimeout() {
+        return timeout;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
@@ -0,0 +1,90 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.command.user.job;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.api.APICommand;
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.Parameter;
+import org.apache.cloudstack.api.response.AsyncJobResponse;
+import org.apache.cloudstack.api.response.ListResponse;
+
+import com.cloud.user.Account;
+
+@APICommand(name = "queryAsyncJobResults", description = "Retrieves the current status of several asynchronous jobs.", responseObject = AsyncJobResponse.class,
+        requestHasSensitiveInfo = false, responseHasSensitiveInfo = false, since = "4.5.0")
+public class QueryAsyncJobResultsCmd extends BaseCmd {
+    public static final Logger s_logger = Logger.getLogger(QueryAsyncJobResultsCmd.class.getName());
+
+    private static final String s_name = "queryasyncjobresultsresponse";
+
+    /////////////////////////////////////////////////////
+    //////////////// API parameters /////////////////////
+    /////////////////////////////////////////////////////
+
+    @Parameter(name = ApiConstants.IDS,
+               type = CommandType.LIST,
+               collectionType = CommandType.UUID,
+               entityType = AsyncJobResponse.class,
+               required = true,
+               description = "the IDs of the asychronous jobs, at most job.query.max.ids")
+    private List<Long> ids;
+
+    @Parameter(name = ApiConstants.TIMEOUT,
+               type = CommandType.INTEGER,
+               description = "if some of the jobs are still pending, the number of seconds to wait for all of them to complete before returning, "
+                   + "at most job.query.max.wait.seconds",
+               since = "4.5.0")
+    private Integer timeout;
+
+    /////////////////////////////////////////////////////
+    /////////////////// Accessors ///////////////////////
+    /////////////////////////////////////////////////////
+
+    public List<Long> getIds() {
+        return ids;
+    }
+
+    public Integer getTimeout() {
+        return timeout;
+    }
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+
+    @Override
+    public long getEntityOwnerId() {
+        return Account.ACCOUNT_ID_SYSTEM;
+    }
+
+    @Override
+    public void execute() {
+        ListResponse<AsyncJobResponse> response = _responseGenerator.queryJobResults(this);
+        response.setResponseName(getCommandName());
+        this.setResponseObject(response);
+    }
+}
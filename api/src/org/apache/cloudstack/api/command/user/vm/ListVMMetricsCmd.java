@@ -0,0 +1,110 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.command.user.vm;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.acl.SecurityChecker.AccessType;
+import org.apache.cloudstack.api.ACL;
+import org.apache.cloudstack.api.APICommand;
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.Parameter;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.api.response.UserVmResponse;
+import org.apache.cloudstack.api.response.VmMetricResponse;
+
+import com.cloud.user.Account;
+import com.cloud.uservm.UserVm;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine;
+
+@APICommand(name = "listVirtualMachineMetrics", responseObject = VmMetricResponse.class, description = "Lists the recent stats samples of a virtual machine",
+        entityType = {VirtualMachine.class}, since = "4.5.0", requestHasSensitiveInfo = false, responseHasSensitiveInfo = false)
+public class ListVMMetricsCmd extends BaseCmd {
+    public static final Logger s_logger = Logger.getLogger(ListVMMetricsCmd.class.getName());
+    private static final String s_name = "listvirtualmachinemetricsresponse";
+
+    /////////////////////////////////////////////////////
+    //////////////// API parameters /////////////////////
+    /////////////////////////////////////////////////////
+
+    @ACL(accessType = AccessType.OperateEntry)
+    @Parameter(name = ApiConstants.ID, type = CommandType.UUID, entityType = UserVmResponse.class, required = true, description = "the ID of the virtual machine")
+    private Long id;
+
+    @Parameter(name = ApiConstants.NAME, type = CommandType.STRING, description = "the metric to list, e.g. cpuused or networkkbsread; all metrics if not specified")
+    private String name;
+
+    @Parameter(name = ApiConstants.START_DATE, type = CommandType.DATE, description = "list only the samples taken at or after this date; use format \"yyyy-MM-dd'T'HH:mm:ssZ\"")
+    private Date startDate;
+
+    /////////////////////////////////////////////////////
+    /////////////////// Accessors ///////////////////////
+    /////////////////////////////////////////////////////
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public void execute() {
+        Map<String, List<Pair<Long, Double>>> metrics = _userVmService.listVirtualMachineMetrics(this);
+        List<VmMetricResponse> responses = new ArrayList<VmMetricResponse>();
+        for (Map.Entry<String, List<Pair<Long, Double>>> metric : metrics.entrySet()) {
+            for (Pair<Long, Double> sample : metric.getValue()) {
+                responses.add(new VmMetricResponse(metric.getKey(), new Date(sample.first()), sample.second()));
+            }
+        }
+        ListResponse<VmMetricResponse> response = new ListResponse<VmMetricResponse>();
+        response.setResponses(responses);
+        response.setResponseName(getCommandName());
+        setResponseObject(response);
+    }
+
+    @Override
+    public long getEntityOwnerId() {
+        UserVm userVm = _entityMgr.findById(UserVm.class, getId());
+        if (userVm != null) {
+            return userVm.getAccountId();
+        }
+
+        return Account.ACCOUNT_ID_SYSTEM; // no account info given, parent this command to SYSTEM so ERROR events are tracked
+    }
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+}
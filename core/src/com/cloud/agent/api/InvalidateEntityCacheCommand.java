@@ -0,0 +1,51 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+import java.util.List;
+
+/*
+ * Sent to the MS peers once a transaction that updated or removed entities held in a
+ * DAO cache has committed, so that the peers drop their own copies instead of serving
+ * stale rows.  One command carries all the changed ids of an entity type, no ids means
+ * the whole type is dropped.
+ */
+public class InvalidateEntityCacheCommand extends Command {
+    String entityType;
+    List<String> ids;
+
+    protected InvalidateEntityCacheCommand() {
+    }
+
+    public InvalidateEntityCacheCommand(String entityType, List<String> ids) {
+        this.entityType = entityType;
+        this.ids = ids;
+    }
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
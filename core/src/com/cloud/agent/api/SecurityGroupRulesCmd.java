@@ -81,6 +81,14 @@ public class SecurityGroupRulesCmd extends Command {
     IpPortAndProto[] ingressRuleSet;
     IpPortAndProto[] egressRuleSet;
     private List<String> secIps;
+    /*
+     * For a delta update: the signature of the ruleset the changes apply to, and
+     * the cidrs to remove from it. The ingress and egress rule sets then only hold
+     * the cidrs to add.
+     */
+    String baseSignature;
+    IpPortAndProto[] revokedIngressRuleSet;
+    IpPortAndProto[] revokedEgressRuleSet;
 
     public SecurityGroupRulesCmd() {
         super();
@@ -156,23 +164,34 @@ public class SecurityGroupRulesCmd extends Command {
 
     public String stringifyRules() {
         StringBuilder ruleBuilder = new StringBuilder();
-        for (SecurityGroupRulesCmd.IpPortAndProto ipPandP : getIngressRuleSet()) {
-            ruleBuilder.append("I:").append(ipPandP.getProto()).append(":").append(ipPandP.getStartPort()).append(":").append(ipPandP.getEndPort()).append(":");
-            for (String cidr : ipPandP.getAllowedCidrs()) {
-                ruleBuilder.append(cidr).append(",");
-            }
-            ruleBuilder.append("NEXT");
-            ruleBuilder.append(" ");
+        stringifyRules(ruleBuilder, "I:", getIngressRuleSet());
+        stringifyRules(ruleBuilder, "E:", getEgressRuleSet());
+        return ruleBuilder.toString();
+    }
+
+    /*
+     * Same format as stringifyRules, for the cidrs removed by a delta update
+     */
+    public String stringifyRevokedRules() {
+        StringBuilder ruleBuilder = new StringBuilder();
+        if (revokedIngressRuleSet != null) {
+            stringifyRules(ruleBuilder, "I:", revokedIngressRuleSet);
         }
-        for (SecurityGroupRulesCmd.IpPortAndProto ipPandP : getEgressRuleSet()) {
-            ruleBuilder.append("E:").append(ipPandP.getProto()).append(":").append(ipPandP.getStartPort()).append(":").append(ipPandP.getEndPort()).append(":");
+        if (revokedEgressRuleSet != null) {
+            stringifyRules(ruleBuilder, "E:", revokedEgressRuleSet);
+        }
+        return ruleBuilder.toString();
+    }
+
+    private static void stringifyRules(StringBuilder ruleBuilder, String type, IpPortAndProto[] rules) {
+        for (SecurityGroupRulesCmd.IpPortAndProto ipPandP : rules) {
+            ruleBuilder.append(type).append(ipPandP.getProto()).append(":").append(ipPandP.getStartPort()).append(":").append(ipPandP.getEndPort()).append(":");
             for (String cidr : ipPandP.getAllowedCidrs()) {
                 ruleBuilder.append(cidr).append(",");
             }
             ruleBuilder.append("NEXT");
             ruleBuilder.append(" ");
         }
-        return ruleBuilder.toString();
     }
 
     //convert cidrs in the form "a.b.c.d/e" to "hexvalue of 32bit ip/e"
@@ -259,6 +278,33 @@ public class SecurityGroupRulesCmd extends Command {
         return signature;
     }
 
+    /**
+     * Turns this command into a delta update of the ruleset with the given signature:
+     * the ingress and egress rule sets are added to it and the revoked ones removed.
+     * The signature of this command stays the one of the resulting ruleset.
+     */
+    public void setDelta(String baseSignature, IpPortAndProto[] revokedIngressRuleSet, IpPortAndProto[] revokedEgressRuleSet) {
+        this.baseSignature = baseSignature;
+        this.revokedIngressRuleSet = revokedIngressRuleSet;
+        this.revokedEgressRuleSet = revokedEgressRuleSet;
+    }
+
+    public boolean isDelta() {
+        return baseSignature != null;
+    }
+
+    public String getBaseSignature() {
+        return baseSignature;
+    }
+
+    public IpPortAndProto[] getRevokedIngressRuleSet() {
+        return revokedIngressRuleSet;
+    }
+
+    public IpPortAndProto[] getRevokedEgressRuleSet() {
+        return revokedEgressRuleSet;
+    }
+
     public String getGuestMac() {
         return guestMac;
     }
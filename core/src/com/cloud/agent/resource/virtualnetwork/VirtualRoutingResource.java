@@ -137,6 +137,9 @@ public class VirtualRoutingResource {
 
     private String _cfgVersion = "1.0";
 
+    // commands with at least this many scripts to run are sent to the router as one config file
+    private int _batchThreshold;
+
     public VirtualRoutingResource(VirtualRouterDeployer deployer) {
         this._vrDeployer = deployer;
     }
@@ -295,17 +298,117 @@ public class VirtualRoutingResource {
         }
     }
 
+    /*
+     * Applies the config items in order, returning the result of each of them. Items not
+     * applied because an earlier one failed with stopOnError set are left null.
+     */
+    private ExecutionResult[] applyConfigToVR(NetworkElementCommand cmd, List<ConfigItem> cfg, boolean stopOnError) {
+        ExecutionResult[] results = new ExecutionResult[cfg.size()];
+        int scripts = 0;
+        for (ConfigItem c : cfg) {
+            if (!c.isFile()) {
+                scripts++;
+            }
+        }
+        boolean batch = _batchThreshold > 0 && scripts >= _batchThreshold;
+
+        int i = 0;
+        while (i < cfg.size()) {
+            ConfigItem c = cfg.get(i);
+            if (!batch || c.isFile()) {
+                results[i] = applyConfigToVR(cmd, c);
+                if (stopOnError && !results[i].isSuccess()) {
+                    break;
+                }
+                i++;
+                continue;
+            }
+
+            // run the following scripts on the router in one go
+            int end = i;
+            while (end < cfg.size() && !cfg.get(end).isFile()) {
+                end++;
+            }
+            boolean success = applyConfigToVRInBatch(cmd, cfg.subList(i, end), results, i, stopOnError);
+            if (stopOnError && !success) {
+                break;
+            }
+            i = end;
+        }
+        return results;
+    }
+
+    private boolean applyConfigToVRInBatch(NetworkElementCommand cmd, List<ConfigItem> cfg, ExecutionResult[] results, int offset, boolean stopOnError) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#Apache CloudStack Virtual Router Config File\n");
+        sb.append("<version>\n" + _cfgVersion + "\n</version>\n");
+        for (ConfigItem c : cfg) {
+            appendConfigItem(sb, c);
+        }
+        String cfgFilePath = "/var/cache/cloud/";
+        String cfgFileName = "VR-" + UUID.randomUUID().toString() + ".cfg";
+        ExecutionResult result = _vrDeployer.createFileInVR(cmd.getRouterAccessIp(), cfgFilePath, cfgFileName, sb.toString());
+        if (result.isSuccess()) {
+            int timeout = cfg.size() * 3;
+            if (timeout < 120) {
+                timeout = 120;
+            }
+            // -r makes vr_cfg.sh report the exit code of every script and go on after a failure
+            String args = "-c " + cfgFilePath + cfgFileName + (stopOnError ? "" : " -r");
+            result = _vrDeployer.executeInVR(cmd.getRouterAccessIp(), VRScripts.VR_CFG, args, timeout);
+        }
+
+        Map<Integer, Integer> exitCodes = new HashMap<>();
+        if (!stopOnError && result.isSuccess() && result.getDetails() != null) {
+            for (String line : result.getDetails().split("\n")) {
+                String[] tokens = line.trim().split(":");
+                if (tokens.length == 3 && tokens[0].equals("result")) {
+                    exitCodes.put(NumbersUtil.parseInt(tokens[1], -1), NumbersUtil.parseInt(tokens[2], -1));
+                }
+            }
+        }
+
+        boolean success = true;
+        for (int i = 0; i < cfg.size(); i++) {
+            Integer exitCode = exitCodes.get(i);
+            if (exitCode == null) {
+                // no report from the router (or an older vr_cfg.sh), the batch as a whole tells
+                results[offset + i] = new ExecutionResult(result.isSuccess(), result.getDetails());
+            } else if (exitCode == 0) {
+                results[offset + i] = new ExecutionResult(true, null);
+            } else {
+                results[offset + i] = new ExecutionResult(false, "VR config: execution failed with exit code " + exitCode + ": \"" + cfg.get(i).getScript() + " " +
+                        cfg.get(i).getArgs() + "\", check /var/log/cloud.log in VR for details");
+            }
+            success = success && results[offset + i].isSuccess();
+        }
+        return success;
+    }
+
+    private void appendConfigItem(StringBuilder sb, ConfigItem c) {
+        if (c.isFile()) {
+            sb.append("<file>\n");
+            sb.append(c.getFilePath() + c.getFileName() + "\n");
+            sb.append(c.getFileContents() + "\n");
+            sb.append("</file>\n");
+        } else {
+            sb.append("<script>\n");
+            sb.append("/opt/cloud/bin/" + c.getScript() + " " + c.getArgs() + "\n");
+            sb.append("</script>\n");
+        }
+    }
+
     private Answer applyConfig(NetworkElementCommand cmd, List<ConfigItem> cfg) {
         int answersCount = cmd.getAnswersCount();
 
         // Use the last answer as final answer
         if (answersCount == 1) {
             ExecutionResult result = new ExecutionResult(true, "No configure to be applied");
-            for (ConfigItem c : cfg) {
-                result = applyConfigToVR(cmd, c);
-                if (!result.isSuccess()) {
+            for (ExecutionResult r : applyConfigToVR(cmd, cfg, true)) {
+                if (r == null) {
                     break;
                 }
+                result = r;
             }
             return new Answer(cmd, result.isSuccess(), result.getDetails());
         }
@@ -314,8 +417,9 @@ public class VirtualRoutingResource {
         String[] resultsString = new String[answersCount];
         boolean finalResult = true;
         int i = 0, j;
+        ExecutionResult[] cfgResults = applyConfigToVR(cmd, cfg, false);
         for (ConfigItem c : cfg) {
-            results[i] = applyConfigToVR(cmd, c);
+            results[i] = cfgResults[i];
             if (c.getInfo() != null) {
                 if (results[i].isSuccess()) {
                     results[i].setDetails(c.getInfo() + " - success: " + results[i].getDetails());
@@ -989,6 +1093,9 @@ public class VirtualRoutingResource {
         value = (String)params.get("ssh.port");
         _port = NumbersUtil.parseInt(value, 3922);
 
+        value = (String)params.get("router.config.batch.threshold");
+        _batchThreshold = NumbersUtil.parseInt(value, 10);
+
         if (_vrDeployer == null) {
             throw new ConfigurationException("Unable to find the resource for VirtualRouterDeployer!");
         }
@@ -1151,16 +1258,7 @@ public class VirtualRoutingResource {
                     }
 
                     for (ConfigItem c : cfg) {
-                        if (c.isFile()) {
-                            sb.append("<file>\n");
-                            sb.append(c.getFilePath() + c.getFileName() + "\n");
-                            sb.append(c.getFileContents() + "\n");
-                            sb.append("</file>\n");
-                        } else {
-                            sb.append("<script>\n");
-                            sb.append("/opt/cloud/bin/" + c.getScript() + " " + c.getArgs() + "\n");
-                            sb.append("</script>\n");
-                        }
+                        appendConfigItem(sb, c);
                     }
                 }
                 String cfgFilePath = "/var/cache/cloud/";
@@ -19,13 +19,16 @@ package com.cloud.agent.transport;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -109,6 +112,9 @@ public class Request {
     protected long _agentId;
     protected Command[] _cmds;
     protected String _content;
+    // encoded (and possibly compressed) content, kept so that resends and forwards don't serialize again
+    private ByteBuffer _payload;
+    private int _payloadLength;
     protected String _agentName;
 
     protected Request() {
@@ -274,7 +280,6 @@ public class Request {
     }
 
     public static ByteBuffer doDecompress(ByteBuffer buffer, int length) {
-        byte[] byteArrayIn = new byte[1024];
         ByteArrayInputStream byteIn;
         if (buffer.hasArray()) {
             byteIn = new ByteArrayInputStream(buffer.array(), buffer.position() + buffer.arrayOffset(), buffer.remaining());
@@ -283,33 +288,40 @@ public class Request {
             buffer.get(array);
             byteIn = new ByteArrayInputStream(array);
         }
+        // The uncompressed length is known from the header, so inflate straight into the result.
         ByteBuffer retBuff = ByteBuffer.allocate(length);
+        byte[] out = retBuff.array();
+        int pos = 0;
         int len = 0;
         try {
-            GZIPInputStream in = new GZIPInputStream(byteIn);
-            while ((len = in.read(byteArrayIn)) > 0) {
-                retBuff.put(byteArrayIn, 0, len);
+            GZIPInputStream in = new GZIPInputStream(byteIn, 8192);
+            while (pos < length && (len = in.read(out, pos, length - pos)) > 0) {
+                pos += len;
             }
             in.close();
         } catch (IOException e) {
             s_logger.error("Fail to decompress the request!", e);
         }
-        retBuff.flip();
+        retBuff.limit(pos);
         return retBuff;
     }
 
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
         ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
-        byte[] array;
-        if (buffer.hasArray()) {
-            array = buffer.array();
-        } else {
-            array = new byte[buffer.capacity()];
-            buffer.get(array);
-        }
         try {
-            GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
+            // Favour speed over ratio, the payloads are mostly repetitive json anyway.
+            GZIPOutputStream out = new GZIPOutputStream(byteOut, 8192) {
+                {
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                byte[] array = new byte[buffer.remaining()];
+                buffer.get(array);
+                out.write(array);
+            }
             out.finish();
             out.close();
         } catch (IOException e) {
@@ -318,22 +330,43 @@ public class Request {
         return ByteBuffer.wrap(byteOut.toByteArray());
     }
 
+    /**
+     * Writes the commands as json straight into a byte buffer instead of
+     * building the json string first and then encoding it.
+     */
+    protected ByteBuffer serializeContent() {
+        ExposedByteArrayOutputStream byteOut = new ExposedByteArrayOutputStream(1024);
+        try {
+            Writer writer = new OutputStreamWriter(byteOut);
+            s_gson.toJson(_cmds, _cmds.getClass(), writer);
+            writer.flush();
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize " + getType() + _seq, e);
+        }
+        return byteOut.toByteBuffer();
+    }
+
     public ByteBuffer[] toBytes() {
         final ByteBuffer[] buffers = new ByteBuffer[2];
-        ByteBuffer tmp;
 
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
-        }
-        tmp = ByteBuffer.wrap(_content.getBytes());
-        int capacity = tmp.capacity();
-        /* Check if we need to compress the data */
-        if (capacity >= 8192) {
-            tmp = doCompress(tmp, capacity);
-            _flags |= FLAG_COMPRESSED;
+        if (_payload == null) {
+            ByteBuffer tmp;
+            if (_content == null) {
+                tmp = serializeContent();
+            } else {
+                tmp = ByteBuffer.wrap(_content.getBytes());
+            }
+            int capacity = tmp.remaining();
+            /* Check if we need to compress the data */
+            if (capacity >= 8192) {
+                tmp = doCompress(tmp, capacity);
+                _flags |= FLAG_COMPRESSED;
+            }
+            _payloadLength = capacity;
+            _payload = tmp;
         }
-        buffers[1] = tmp;
-        buffers[0] = serializeHeader(capacity);
+        buffers[1] = _payload.duplicate();
+        buffers[0] = serializeHeader(_payloadLength);
 
         return buffers;
     }
@@ -574,6 +607,19 @@ public class Request {
         return (bytes[3] & FLAG_CONTROL) > 0;
     }
 
+    /**
+     * Lets the serialized content be wrapped without the copy made by toByteArray().
+     */
+    protected static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        public ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        public ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
     public static class NwGroupsCommandTypeAdaptor implements JsonDeserializer<Pair<Long, Long>>, JsonSerializer<Pair<Long, Long>> {
 
         public NwGroupsCommandTypeAdaptor() {
@@ -74,6 +74,8 @@ import java.util.List;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -1091,5 +1093,67 @@ public class VirtualRoutingResourceTest implements VirtualRouterDeployer {
                 "\n");
     }
 
-}
+    @Test
+    public void testBatchedConfig() throws ConfigurationException {
+        final List<String> files = new ArrayList<>();
+        final List<String> scripts = new ArrayList<>();
+        VirtualRoutingResource resource = new VirtualRoutingResource(new VirtualRouterDeployer() {
+            @Override
+            public ExecutionResult executeInVR(String routerIp, String script, String args) {
+                return executeInVR(routerIp, script, args, 60);
+            }
+
+            @Override
+            public ExecutionResult executeInVR(String routerIp, String script, String args, int timeout) {
+                scripts.add(script + " " + args);
+                // the second rule fails
+                StringBuilder report = new StringBuilder();
+                for (int i = 0; i < 12; i++) {
+                    report.append("result:" + i + ":" + (i == 1 ? 1 : 0) + "\n");
+                }
+                return new ExecutionResult(true, report.toString());
+            }
+
+            @Override
+            public ExecutionResult createFileInVR(String routerIp, String path, String filename, String content) {
+                files.add(content);
+                return new ExecutionResult(true, null);
+            }
+
+            @Override
+            public ExecutionResult prepareCommand(NetworkElementCommand cmd) {
+                cmd.setRouterAccessIp(ROUTERIP);
+                return new ExecutionResult(true, null);
+            }
+
+            @Override
+            public ExecutionResult cleanupCommand(NetworkElementCommand cmd) {
+                return new ExecutionResult(true, null);
+            }
+        });
+        resource.configure("VRResource", new HashMap<String, Object>());
 
+        List<PortForwardingRuleTO> pfRules = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            pfRules.add(new PortForwardingRuleTO(i, "64.1.1." + i, 22, 22, "10.10.1." + i, 22, 22, "TCP", false, false));
+        }
+        SetPortForwardingRulesCommand cmd = new SetPortForwardingRulesCommand(pfRules);
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, ROUTERNAME);
+
+        Answer answer = resource.executeRequest(cmd);
+        assertEquals(1, files.size());
+        assertEquals(12, files.get(0).split("<script>").length - 1);
+        assertEquals(1, scripts.size());
+        assertTrue(scripts.get(0).startsWith(VRScripts.VR_CFG + " -c /var/cache/cloud/VR-"));
+        assertTrue(scripts.get(0).endsWith(".cfg -r"));
+
+        assertTrue(answer instanceof GroupAnswer);
+        assertFalse(answer.getResult());
+        String[] results = ((GroupAnswer)answer).getResults();
+        assertEquals(12, results.length);
+        assertNull(results[0]);
+        assertTrue(results[1].contains("failed with exit code 1"));
+        assertNull(results[2]);
+    }
+
+}
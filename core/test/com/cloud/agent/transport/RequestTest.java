@@ -17,6 +17,7 @@
 package com.cloud.agent.transport;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
@@ -207,6 +208,45 @@ public class RequestTest extends TestCase {
         }
     }
 
+    public void testSerDeserCompressed() {
+        s_logger.info("Testing serializing and deserializing of a request large enough to be compressed");
+        SecStorageFirewallCfgCommand cmd = new SecStorageFirewallCfgCommand();
+        for (int i = 0; i < 1000; i++) {
+            cmd.addPortConfig("10.1." + (i / 250) + "." + (i % 250), Integer.toString(i), true, "eth" + (i % 4));
+        }
+        Request sreq = new Request(2, 3, new Command[] {cmd}, true, true);
+        sreq.setSequence(892403719);
+
+        byte[] bytes = sreq.getBytes();
+        Request creq = null;
+        try {
+            creq = Request.parse(bytes);
+        } catch (ClassNotFoundException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        } catch (UnsupportedVersionException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        }
+
+        assertNotNull("Couldn't get the request back", creq);
+        compareRequest(creq, sreq);
+        assertEquals(1000, ((SecStorageFirewallCfgCommand)creq.getCommand()).getPortConfigs().size());
+    }
+
+    public void testEncodedContentIsReused() {
+        SecStorageFirewallCfgCommand cmd = new SecStorageFirewallCfgCommand();
+        for (int i = 0; i < 1000; i++) {
+            cmd.addPortConfig("10.1." + (i / 250) + "." + (i % 250), Integer.toString(i), true, "eth" + (i % 4));
+        }
+        Request sreq = new Request(2, 3, new Command[] {cmd}, true, true);
+
+        ByteBuffer[] first = sreq.toBytes();
+        byte[] firstBytes = sreq.getBytes();
+        ByteBuffer[] second = sreq.toBytes();
+
+        assertSame(first[1].array(), second[1].array());
+        assertTrue(Arrays.equals(firstBytes, sreq.getBytes()));
+    }
+
     public void testLogging() {
         s_logger.info("Testing Logging");
         GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
@@ -67,6 +67,15 @@ public interface CapacityManager {
     boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOverprovisioningFactor, float memoryOvercommitRatio,
         boolean considerReservedCapacity);
 
+    /**
+     * Same as {@link #checkIfHostHasCapacity(long, Integer, long, boolean, float, float, boolean)}, for callers that
+     * already loaded the host's CPU and memory capacity entries, e.g. for a whole cluster at once.
+     * @param capacityCpu CPU capacity entry of the host, may be null
+     * @param capacityMem memory capacity entry of the host, may be null
+     */
+    boolean checkIfHostHasCapacity(long hostId, CapacityVO capacityCpu, CapacityVO capacityMem, Integer cpu, long ram, boolean checkFromReservedCapacity,
+        float cpuOverprovisioningFactor, float memoryOvercommitRatio, boolean considerReservedCapacity);
+
     void updateCapacityForHost(Host host);
 
     /**
@@ -92,6 +101,11 @@ public interface CapacityManager {
      */
     boolean checkIfHostHasCpuCapability(long hostId, Integer cpuNum, Integer cpuSpeed);
 
+    /**
+     * Same as {@link #checkIfHostHasCpuCapability(long, Integer, Integer)} for an already loaded host
+     */
+    boolean checkIfHostHasCpuCapability(Host host, Integer cpuNum, Integer cpuSpeed);
+
     /**
      * Check if cluster will cross threshold if the cpu/memory requested are accomodated
      * @param clusterId the clusterId to check
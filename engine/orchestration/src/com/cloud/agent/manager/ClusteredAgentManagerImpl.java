@@ -32,6 +32,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
@@ -60,6 +61,7 @@ import com.cloud.agent.api.CancelCommand;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.InvalidateEntityCacheCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.ScheduleHostScanTaskCommand;
 import com.cloud.agent.api.TransferAgentCommand;
@@ -87,6 +89,8 @@ import com.cloud.resource.ServerResource;
 import com.cloud.serializer.GsonHelper;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.EntityCacheListener;
+import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.QueryBuilder;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
@@ -123,6 +127,25 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     @Inject
     ConfigDepot _configDepot;
 
+    // cluster broadcasts look up the peers in the DB, keep them off the committing thread
+    private final ExecutorService _cacheInvalidationExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("Cluster-CacheInvalidation"));
+
+    private final EntityCacheListener _cacheInvalidator = new EntityCacheListener() {
+        @Override
+        public void onInvalidate(final Map<String, List<String>> idsByEntityType) {
+            try {
+                _cacheInvalidationExecutor.execute(new ManagedContextRunnable() {
+                    @Override
+                    protected void runInContext() {
+                        notifyNodesInClusterToInvalidateCache(idsByEntityType);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                s_logger.debug("Not notifying MS peers of cache invalidations while shutting down");
+            }
+        }
+    };
+
     protected ClusteredAgentManagerImpl() {
         super();
     }
@@ -150,6 +173,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         _clusterMgr.registerDispatcher(new ClusterDispatcher());
 
         _gson = GsonHelper.getGson();
+        GenericDaoBase.registerCacheListener(_cacheInvalidator);
 
         return super.configure(name, xmlParams);
     }
@@ -388,6 +412,19 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         _clusterMgr.broadcast(0, _gson.toJson(cmds));
     }
 
+    // notifies MS peers to drop entities from their DAO caches after a transaction here updated or removed them
+    public void notifyNodesInClusterToInvalidateCache(Map<String, List<String>> idsByEntityType) {
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Notifying other MS nodes to invalidate cached " + idsByEntityType);
+        }
+        Command[] cmds = new Command[idsByEntityType.size()];
+        int i = 0;
+        for (Map.Entry<String, List<String>> entry : idsByEntityType.entrySet()) {
+            cmds[i++] = new InvalidateEntityCacheCommand(entry.getKey(), entry.getValue());
+        }
+        _clusterMgr.broadcast(0, _gson.toJson(cmds));
+    }
+
     protected static void logT(byte[] bytes, final String msg) {
         s_logger.trace("Seq " + Request.getAgentId(bytes) + "-" + Request.getSequence(bytes) + ": MgmtId " + Request.getManagementServerId(bytes) + ": " +
             (Request.isRequest(bytes) ? "Req: " : "Resp: ") + msg);
@@ -567,6 +604,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             }
         }
         _timer.cancel();
+        GenericDaoBase.unregisterCacheListener(_cacheInvalidator);
+        _cacheInvalidationExecutor.shutdown();
 
         // cancel all transfer tasks
         s_transferExecutor.shutdownNow();
@@ -1314,6 +1353,20 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 ScheduleHostScanTaskCommand cmd = (ScheduleHostScanTaskCommand)cmds[0];
                 String response = handleScheduleHostScanTaskCommand(cmd);
                 return response;
+            } else if (cmds.length > 0 && cmds[0] instanceof InvalidateEntityCacheCommand) {
+                for (Command command : cmds) {
+                    InvalidateEntityCacheCommand cmd = (InvalidateEntityCacheCommand)command;
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Intercepting command to invalidate cached " + cmd.getEntityType() + " " + cmd.getIds());
+                    }
+                    if (cmd.getIds().isEmpty()) {
+                        GenericDaoBase.evictAllFromCache(cmd.getEntityType());
+                    }
+                    for (String id : cmd.getIds()) {
+                        GenericDaoBase.evictFromCache(cmd.getEntityType(), id);
+                    }
+                }
+                return null;
             }
 
             try {
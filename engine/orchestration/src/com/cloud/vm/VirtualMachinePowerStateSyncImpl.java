@@ -18,8 +18,10 @@ package com.cloud.vm;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -43,6 +45,18 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
     protected final ConfigKey<Integer> PingInterval = new ConfigKey<Integer>(Integer.class, "ping.interval", "Advanced", "60",
             "Interval to send application level pings to make sure the connection is still working", false);
 
+    // every n-th ping report of a host is applied in full, the ones in between only for the vms whose state changed
+    private static final int FULL_SYNC_INTERVAL = 10;
+
+    // same as VMInstanceDaoImpl, after that many identical reports the DB is no longer updated
+    private static final int MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT = 3;
+
+    // last ping report of each host, vm instance name to vm id and the pings since the last full sync
+    private final ConcurrentHashMap<Long, HostReport> _hostReports = new ConcurrentHashMap<Long, HostReport>();
+
+    // last reported power state of each vm, as applied to the DB
+    private final ConcurrentHashMap<Long, ReportedState> _vmReports = new ConcurrentHashMap<Long, ReportedState>();
+
     public VirtualMachinePowerStateSyncImpl() {
     }
 
@@ -50,6 +64,19 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
     public void resetHostSyncState(long hostId) {
         s_logger.info("Reset VM power state sync for host: " + hostId);
         _instanceDao.resetHostPowerStateTracking(hostId);
+        _hostReports.remove(hostId);
+        Iterator<ReportedState> it = _vmReports.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().hostId == hostId) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void resetVmSyncState(long vmId) {
+        _instanceDao.resetVmPowerStateTracking(vmId);
+        _vmReports.remove(vmId);
     }
 
     @Override
@@ -58,7 +85,7 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             s_logger.debug("Process host VM state report from ping process. host: " + hostId);
 
         Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        processReport(hostId, translatedInfo, true);
     }
 
     @Override
@@ -66,21 +93,51 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         if (s_logger.isDebugEnabled())
             s_logger.debug("Process host VM state report from ping process. host: " + hostId);
 
-        Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        // the agents send their full vm list on every ping, reuse the vm ids resolved from the
+        // previous report and only look up the names that are new
+        HostReport previous = _hostReports.get(hostId);
+        boolean fullSync = previous == null || previous.pingsSinceFullSync + 1 >= FULL_SYNC_INTERVAL;
+        HostReport current = new HostReport();
+        current.pingsSinceFullSync = fullSync ? 0 : previous.pingsSinceFullSync + 1;
+        Map<Long, VirtualMachine.PowerState> translatedInfo = new HashMap<Long, VirtualMachine.PowerState>();
+        if (report != null) {
+            for (Map.Entry<String, HostVmStateReportEntry> entry : report.entrySet()) {
+                Long vmId = fullSync ? null : previous.vmIds.get(entry.getKey());
+                if (vmId == null) {
+                    VMInstanceVO vm = findVM(entry.getKey());
+                    if (vm == null) {
+                        s_logger.info("Unable to find matched VM in CloudStack DB. name: " + entry.getKey());
+                        continue;
+                    }
+                    vmId = vm.getId();
+                }
+                current.vmIds.put(entry.getKey(), vmId);
+                translatedInfo.put(vmId, entry.getValue().getState());
+            }
+        }
+
+        _hostReports.put(hostId, current);
+
+        processReport(hostId, translatedInfo, fullSync);
     }
 
-    private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
+    private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo, boolean fullSync) {
 
         if (s_logger.isDebugEnabled())
-            s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
+            s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size() + ", full sync: " + fullSync);
 
         for (Map.Entry<Long, VirtualMachine.PowerState> entry : translatedInfo.entrySet()) {
 
+            if (!fullSync && !isChanged(entry.getKey(), hostId, entry.getValue())) {
+                continue;
+            }
+
             if (s_logger.isDebugEnabled())
                 s_logger.debug("VM state report. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
 
-            if (_instanceDao.updatePowerState(entry.getKey(), hostId, entry.getValue())) {
+            boolean updated = _instanceDao.updatePowerState(entry.getKey(), hostId, entry.getValue());
+            trackReport(entry.getKey(), hostId, entry.getValue());
+            if (updated) {
                 if (s_logger.isDebugEnabled())
                     s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
 
@@ -126,7 +183,9 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
                 if (milliSecondsSinceLastStateUpdate > milliSecondsGracefullPeriod) {
                     s_logger.debug("vm id: " + instance.getId() + " - time since last state update(" + milliSecondsSinceLastStateUpdate + "ms) has passed graceful period");
 
-                    if (_instanceDao.updatePowerState(instance.getId(), hostId, VirtualMachine.PowerState.PowerReportMissing)) {
+                    boolean updated = _instanceDao.updatePowerState(instance.getId(), hostId, VirtualMachine.PowerState.PowerReportMissing);
+                    _vmReports.remove(instance.getId());
+                    if (updated) {
                         if (s_logger.isDebugEnabled())
                             s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + instance.getId() + ", power state: PowerReportMissing ");
 
@@ -167,4 +226,38 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
     private VMInstanceVO findVM(String vmName) {
         return _instanceDao.findVMByInstanceName(vmName);
     }
+
+    /**
+     * @return false if the vm was reported in the same state by the same host often enough for the DB
+     *         to stop recording it, so applying the report again would be a no-op
+     */
+    private boolean isChanged(long vmId, long hostId, VirtualMachine.PowerState state) {
+        ReportedState reported = _vmReports.get(vmId);
+        return reported == null || reported.hostId != hostId || reported.state != state || reported.count < MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT;
+    }
+
+    private void trackReport(long vmId, long hostId, VirtualMachine.PowerState state) {
+        ReportedState reported = _vmReports.get(vmId);
+        if (reported != null && reported.hostId == hostId && reported.state == state) {
+            reported.count++;
+        } else {
+            _vmReports.put(vmId, new ReportedState(hostId, state));
+        }
+    }
+
+    private static class HostReport {
+        final Map<String, Long> vmIds = new HashMap<String, Long>();
+        int pingsSinceFullSync;
+    }
+
+    private static class ReportedState {
+        final long hostId;
+        final VirtualMachine.PowerState state;
+        volatile int count = 1;
+
+        ReportedState(long hostId, VirtualMachine.PowerState state) {
+            this.hostId = hostId;
+            this.state = state;
+        }
+    }
 }
@@ -0,0 +1,134 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.vm.VirtualMachine.PowerState;
+import com.cloud.vm.dao.VMInstanceDao;
+
+public class VirtualMachinePowerStateSyncImplTest {
+    private static final long HOST_ID = 1L;
+    private static final long VM_ID = 10L;
+    private static final String VM_NAME = "i-2-10-VM";
+
+    VirtualMachinePowerStateSyncImpl _sync;
+    VMInstanceDao _instanceDao;
+
+    @Before
+    public void setup() {
+        _instanceDao = mock(VMInstanceDao.class);
+        VMInstanceVO vm = mock(VMInstanceVO.class);
+        when(vm.getId()).thenReturn(VM_ID);
+        when(_instanceDao.findVMByInstanceName(VM_NAME)).thenReturn(vm);
+        when(_instanceDao.updatePowerState(anyLong(), anyLong(), any(PowerState.class))).thenReturn(true);
+
+        _sync = new VirtualMachinePowerStateSyncImpl();
+        _sync._instanceDao = _instanceDao;
+        _sync._messageBus = mock(MessageBus.class);
+    }
+
+    @Test
+    public void testSameStateSkippedAfterThreeReports() {
+        ping(HOST_ID, PowerState.PowerOn, 10);
+
+        // the first report is a full sync, the two following ones are still written to the DB
+        verify(_instanceDao, times(3)).updatePowerState(VM_ID, HOST_ID, PowerState.PowerOn);
+        // the vm id is looked up once and reused until the next full sync
+        verify(_instanceDao, times(1)).findVMByInstanceName(VM_NAME);
+    }
+
+    @Test
+    public void testFullSyncEveryTenthReport() {
+        ping(HOST_ID, PowerState.PowerOn, 11);
+
+        verify(_instanceDao, times(4)).updatePowerState(VM_ID, HOST_ID, PowerState.PowerOn);
+        verify(_instanceDao, times(2)).findVMByInstanceName(VM_NAME);
+    }
+
+    @Test
+    public void testStateChangeIsAppliedRightAway() {
+        ping(HOST_ID, PowerState.PowerOn, 5);
+        ping(HOST_ID, PowerState.PowerOff, 1);
+
+        verify(_instanceDao, times(3)).updatePowerState(VM_ID, HOST_ID, PowerState.PowerOn);
+        verify(_instanceDao, times(1)).updatePowerState(VM_ID, HOST_ID, PowerState.PowerOff);
+    }
+
+    @Test
+    public void testHostChangeIsAppliedRightAway() {
+        ping(HOST_ID, PowerState.PowerOn, 5);
+        ping(HOST_ID + 1, PowerState.PowerOn, 1);
+
+        verify(_instanceDao, times(1)).updatePowerState(VM_ID, HOST_ID + 1, PowerState.PowerOn);
+    }
+
+    @Test
+    public void testHostResetForcesFullSync() {
+        ping(HOST_ID, PowerState.PowerOn, 5);
+        _sync.resetHostSyncState(HOST_ID);
+        ping(HOST_ID, PowerState.PowerOn, 1);
+
+        verify(_instanceDao, times(1)).resetHostPowerStateTracking(HOST_ID);
+        verify(_instanceDao, times(4)).updatePowerState(VM_ID, HOST_ID, PowerState.PowerOn);
+        verify(_instanceDao, times(2)).findVMByInstanceName(VM_NAME);
+    }
+
+    @Test
+    public void testVmResetIsAppliedOnNextReport() {
+        ping(HOST_ID, PowerState.PowerOn, 5);
+        _sync.resetVmSyncState(VM_ID);
+        ping(HOST_ID, PowerState.PowerOn, 1);
+
+        verify(_instanceDao, times(4)).updatePowerState(VM_ID, HOST_ID, PowerState.PowerOn);
+        // the vm id still comes from the previous report of the host
+        verify(_instanceDao, times(1)).findVMByInstanceName(VM_NAME);
+    }
+
+    @Test
+    public void testUnknownVmIsIgnored() {
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        report.put("i-2-11-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        _sync.processHostVmStatePingReport(HOST_ID, report);
+
+        verify(_instanceDao, never()).updatePowerState(anyLong(), eq(HOST_ID), any(PowerState.class));
+    }
+
+    private void ping(long hostId, PowerState state, int times) {
+        for (int i = 0; i < times; i++) {
+            Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+            report.put(VM_NAME, new HostVmStateReportEntry(state, "host"));
+            _sync.processHostVmStatePingReport(hostId, report);
+        }
+    }
+}
@@ -27,6 +27,8 @@ import com.cloud.utils.db.GenericDao;
 public interface CapacityDao extends GenericDao<CapacityVO, Long> {
     CapacityVO findByHostIdType(Long hostId, short capacityType);
 
+    List<CapacityVO> listByHostIdsAndType(List<Long> hostIds, short capacityType);
+
     List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone);
 
     List<Long> listHostsWithEnoughCapacity(int requiredCpu, long requiredRam, Long clusterId, String hostType);
@@ -56,4 +58,12 @@ public interface CapacityDao extends GenericDao<CapacityVO, Long> {
     List<Long> listClustersCrossingThreshold(short capacityType, Long zoneId, String configName, long computeRequested);
 
     float findClusterConsumption(Long clusterId, short capacityType, long computeRequested);
+
+    /**
+     * Adds to the used and reserved capacity of an entry in a single statement, so concurrent
+     * allocations neither wait on a row lock held across their computation nor overwrite each
+     * other. The resulting capacities are floored at 0, and an increase of the reserved capacity
+     * that would take it above reservedLimit is not applied.
+     */
+    void addCapacity(long id, long usedDelta, long reservedDelta, long reservedLimit);
 }
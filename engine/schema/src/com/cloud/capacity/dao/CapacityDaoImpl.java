@@ -56,6 +56,9 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     private static final String ADD_ALLOCATED_SQL = "UPDATE `cloud`.`op_host_capacity` SET used_capacity = used_capacity + ? WHERE host_id = ? AND capacity_type = ?";
     private static final String SUBTRACT_ALLOCATED_SQL =
         "UPDATE `cloud`.`op_host_capacity` SET used_capacity = used_capacity - ? WHERE host_id = ? AND capacity_type = ?";
+    private static final String ADD_CAPACITY_SQL =
+        "UPDATE `cloud`.`op_host_capacity` SET used_capacity = GREATEST(used_capacity + ?, 0), "
+            + "reserved_capacity = IF(? > 0 AND reserved_capacity + ? > ?, reserved_capacity, GREATEST(reserved_capacity + ?, 0)) WHERE id = ?";
 
     private static final String LIST_CLUSTERSINZONE_BY_HOST_CAPACITIES_PART1 =
         "SELECT DISTINCT capacity.cluster_id  FROM `cloud`.`op_host_capacity` capacity INNER JOIN `cloud`.`cluster` cluster on (cluster.id = capacity.cluster_id AND cluster.removed is NULL)   INNER JOIN `cloud`.`cluster_details` cluster_details ON (cluster.id = cluster_details.cluster_id ) WHERE ";
@@ -65,6 +68,7 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         " AND capacity_type = ? AND cluster_details.name= ? AND ((total_capacity * cluster_details.value) - used_capacity + reserved_capacity) >= ?) ";
 
     private final SearchBuilder<CapacityVO> _hostIdTypeSearch;
+    private final SearchBuilder<CapacityVO> _hostIdsTypeSearch;
     private final SearchBuilder<CapacityVO> _hostOrPoolIdSearch;
     private final SearchBuilder<CapacityVO> _allFieldsSearch;
     @Inject
@@ -192,6 +196,11 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         _hostIdTypeSearch.and("type", _hostIdTypeSearch.entity().getCapacityType(), SearchCriteria.Op.EQ);
         _hostIdTypeSearch.done();
 
+        _hostIdsTypeSearch = createSearchBuilder();
+        _hostIdsTypeSearch.and("hostIds", _hostIdsTypeSearch.entity().getHostOrPoolId(), SearchCriteria.Op.IN);
+        _hostIdsTypeSearch.and("type", _hostIdsTypeSearch.entity().getCapacityType(), SearchCriteria.Op.EQ);
+        _hostIdsTypeSearch.done();
+
         _hostOrPoolIdSearch = createSearchBuilder();
         _hostOrPoolIdSearch.and("hostId", _hostOrPoolIdSearch.entity().getHostOrPoolId(), SearchCriteria.Op.EQ);
         _hostOrPoolIdSearch.done();
@@ -469,6 +478,28 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         }
     }
 
+    @Override
+    public void addCapacity(long id, long usedDelta, long reservedDelta, long reservedLimit) {
+        if (usedDelta == 0 && reservedDelta == 0) {
+            return;
+        }
+
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(ADD_CAPACITY_SQL);
+            pstmt.setLong(1, usedDelta);
+            pstmt.setLong(2, reservedDelta);
+            pstmt.setLong(3, reservedDelta);
+            pstmt.setLong(4, reservedLimit);
+            pstmt.setLong(5, reservedDelta);
+            pstmt.setLong(6, id);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + ADD_CAPACITY_SQL, e);
+        }
+    }
+
     @Override
     public CapacityVO findByHostIdType(Long hostId, short capacityType) {
         SearchCriteria<CapacityVO> sc = _hostIdTypeSearch.create();
@@ -477,6 +508,17 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         return findOneBy(sc);
     }
 
+    @Override
+    public List<CapacityVO> listByHostIdsAndType(List<Long> hostIds, short capacityType) {
+        if (hostIds == null || hostIds.isEmpty()) {
+            return new ArrayList<CapacityVO>();
+        }
+        SearchCriteria<CapacityVO> sc = _hostIdsTypeSearch.create();
+        sc.setParameters("hostIds", hostIds.toArray());
+        sc.setParameters("type", capacityType);
+        return listBy(sc);
+    }
+
     @Override
     public List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone) {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
@@ -52,6 +52,16 @@ public interface ClusterManager extends Manager {
 
     void registerDispatcher(Dispatcher dispatcher);
 
+    /**
+     * Sends a message to the listeners registered for the topic on all other active management servers.
+     * Delivery is asynchronous and not acknowledged.
+     */
+    void broadcastMessage(String topic, String message);
+
+    void registerMessageListener(String topic, MessageListener listener);
+
+    void unregisterMessageListener(String topic);
+
     ManagementServerHost getPeer(String peerName);
 
     String getSelfPeerName();
@@ -65,4 +75,8 @@ public interface ClusterManager extends Manager {
 
         String dispatch(ClusterServicePdu pdu);
     }
+
+    public interface MessageListener {
+        void onMessage(String sourcePeer, String message);
+    }
 }
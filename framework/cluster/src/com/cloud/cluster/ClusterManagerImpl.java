@@ -19,6 +19,7 @@ package com.cloud.cluster;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.channels.SocketChannel;
 import java.rmi.RemoteException;
 import java.sql.Connection;
@@ -26,12 +27,15 @@ import java.sql.SQLException;
 import java.sql.SQLNonTransientException;
 import java.sql.SQLRecoverableException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -73,17 +77,30 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
     private static final Logger s_logger = Logger.getLogger(ClusterManagerImpl.class);
 
     private static final int EXECUTOR_SHUTDOWN_TIMEOUT = 1000; // 1 second
+    private static final int PEER_PROBE_TIMEOUT_DIVISOR = 3; // a probe times out after a third of the heartbeat interval
     private static final int DEFAULT_OUTGOING_WORKERS = 5;
 
     private final List<ClusterManagerListener> _listeners = new ArrayList<ClusterManagerListener>();
-    private final Map<Long, ManagementServerHostVO> _activePeers = new HashMap<Long, ManagementServerHostVO>();
+    final Map<Long, ManagementServerHostVO> _activePeers = new ConcurrentHashMap<Long, ManagementServerHostVO>();
 
     private final Map<String, ClusterService> _clusterPeers;
 
     @Inject
     protected ConfigDepot _configDepot;
 
+    static final ConfigKey<Boolean> PeerProbeEnabled = new ConfigKey<Boolean>("Advanced", Boolean.class, "cluster.peer.probe.enabled", "false",
+        "Probe the other management servers directly and only declare one down if both its DB heartbeat is stale and the probes fail", false);
+    static final ConfigKey<Double> PeerPhiThreshold = new ConfigKey<Double>("Advanced", Double.class, "cluster.peer.phi.threshold", "8",
+        "Suspicion level (phi) of the direct probes above which a management server with a stale DB heartbeat is declared down", true);
+
+    // the DB heartbeat update and the peer scan run on their own threads, so a slow scan (or a ping to a dead peer
+    // during it) can't delay the heartbeat of this node
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Cluster-Heartbeat"));
+    private final ScheduledExecutorService _peerScanScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Cluster-PeerScan"));
+    private final ScheduledExecutorService _peerProbeScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Cluster-PeerProbe"));
+    private final ExecutorService _peerProbeExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("Cluster-PeerProbeWorker"));
+    private final Set<Long> _probesInProgress = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    final Map<Long, PhiAccrualFailureDetector> _peerDetectors = new ConcurrentHashMap<Long, PhiAccrualFailureDetector>();
     private final ExecutorService _notificationExecutor = Executors.newFixedThreadPool(1, new NamedThreadFactory("Cluster-Notification"));
     private final List<ClusterManagerMessage> _notificationMsgs = new ArrayList<ClusterManagerMessage>();
     private ConnectionConcierge _heartbeatConnection = null;
@@ -101,6 +118,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
     private ManagementServerHostPeerDao _mshostPeerDao;
 
     protected Dispatcher _dispatcher;
+    private final Map<String, MessageListener> _messageListeners = new ConcurrentHashMap<String, MessageListener>();
 
     //
     // pay attention to _mshostId and _msid
@@ -140,6 +158,35 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         _dispatcher = dispatcher;
     }
 
+    @Override
+    public void registerMessageListener(String topic, MessageListener listener) {
+        _messageListeners.put(topic, listener);
+    }
+
+    @Override
+    public void unregisterMessageListener(String topic) {
+        _messageListeners.remove(topic);
+    }
+
+    private void dispatchTopicMessage(ClusterServicePdu pdu) {
+        // the topic is carried in front of the message, separated by a newline
+        String json = pdu.getJsonPackage();
+        int pos = json.indexOf('\n');
+        if (pos < 0) {
+            s_logger.warn("Dropping malformed topic message from " + pdu.getSourcePeer());
+            return;
+        }
+        String topic = json.substring(0, pos);
+        MessageListener listener = _messageListeners.get(topic);
+        if (listener == null) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("No listener for topic " + topic + ", dropping message from " + pdu.getSourcePeer());
+            }
+            return;
+        }
+        listener.onMessage(pdu.getSourcePeer(), json.substring(pos + 1));
+    }
+
     private ClusterServiceRequestPdu popRequestPdu(long ackSequenceId) {
         synchronized (_outgoingPdusWaitingForAck) {
             if (_outgoingPdusWaitingForAck.get(ackSequenceId) != null) {
@@ -305,6 +352,8 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
                             } else {
                                 s_logger.warn("Original request has already been cancelled. pdu: " + pdu.getJsonPackage());
                             }
+                        } else if (pdu.getPduType() == ClusterServicePdu.PDU_TYPE_TOPIC_MESSAGE) {
+                            dispatchTopicMessage(pdu);
                         } else {
                             String result = _dispatcher.dispatch(pdu);
                             if (result == null)
@@ -367,6 +416,25 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         }
     }
 
+    @Override
+    public void broadcastMessage(String topic, String message) {
+        Date cutTime = DateUtil.currentGMTTime();
+
+        List<ManagementServerHostVO> peers = _mshostDao.getActiveList(new Date(cutTime.getTime() - HeartbeatThreshold.value()));
+        for (ManagementServerHostVO peer : peers) {
+            String peerName = Long.toString(peer.getMsid());
+            if (getSelfPeerName().equals(peerName)) {
+                continue; // Skip myself.
+            }
+            ClusterServicePdu pdu = new ClusterServicePdu();
+            pdu.setPduType(ClusterServicePdu.PDU_TYPE_TOPIC_MESSAGE);
+            pdu.setSourcePeer(getSelfPeerName());
+            pdu.setDestPeer(peerName);
+            pdu.setJsonPackage(topic + "\n" + message);
+            addOutgoingClusterPdu(pdu);
+        }
+    }
+
     public void executeAsync(String strPeer, long agentId, String cmds, boolean stopOnError) {
         ClusterServicePdu pdu = new ClusterServicePdu();
         pdu.setSourcePeer(getSelfPeerName());
@@ -530,41 +598,22 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
                 TransactionLegacy txn = TransactionLegacy.open("ClusterHeartbeat");
                 try {
                     Profiler profiler = new Profiler();
-                    Profiler profilerHeartbeatUpdate = new Profiler();
-                    Profiler profilerPeerScan = new Profiler();
 
                     try {
                         profiler.start();
 
-                        profilerHeartbeatUpdate.start();
                         txn.transitToUserManagedConnection(getHeartbeatConnection());
                         if (s_logger.isTraceEnabled()) {
                             s_logger.trace("Cluster manager heartbeat update, id:" + _mshostId);
                         }
 
                         _mshostDao.update(_mshostId, getCurrentRunId(), DateUtil.currentGMTTime());
-                        profilerHeartbeatUpdate.stop();
-
-                        profilerPeerScan.start();
-                        if (s_logger.isTraceEnabled()) {
-                            s_logger.trace("Cluster manager peer-scan, id:" + _mshostId);
-                        }
-
-                        if (!_peerScanInited) {
-                            _peerScanInited = true;
-                            initPeerScan();
-                        }
-
-                        peerScan();
-                        profilerPeerScan.stop();
-
                     } finally {
                         profiler.stop();
 
                         if (profiler.getDuration() >= HeartbeatInterval.value()) {
                             if (s_logger.isDebugEnabled())
-                                s_logger.debug("Management server heartbeat takes too long to finish. profiler: " + profiler.toString() + ", profilerHeartbeatUpdate: " +
-                                    profilerHeartbeatUpdate.toString() + ", profilerPeerScan: " + profilerPeerScan.toString());
+                                s_logger.debug("Management server heartbeat takes too long to finish. profiler: " + profiler.toString());
                         }
                     }
 
@@ -579,8 +628,6 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
                     if (isRootCauseConnectionRelated(e.getCause())) {
                         invalidHeartbeatConnection();
                     }
-                } catch (ActiveFencingException e) {
-                    queueNotification(new ClusterManagerMessage(ClusterManagerMessage.MessageType.nodeIsolated));
                 } catch (Throwable e) {
                     s_logger.error("Unexpected exception in cluster heartbeat", e);
                     if (isRootCauseConnectionRelated(e.getCause())) {
@@ -594,6 +641,123 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         };
     }
 
+    private Runnable getPeerScanTask() {
+        return new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                TransactionLegacy txn = TransactionLegacy.open("ClusterPeerScan");
+                try {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Cluster manager peer-scan, id:" + _mshostId);
+                    }
+
+                    if (!_peerScanInited) {
+                        _peerScanInited = true;
+                        initPeerScan();
+                    }
+
+                    peerScan();
+                } catch (ActiveFencingException e) {
+                    queueNotification(new ClusterManagerMessage(ClusterManagerMessage.MessageType.nodeIsolated));
+                } catch (Throwable e) {
+                    s_logger.error("Unexpected exception in cluster peer scan", e);
+                } finally {
+                    txn.close("ClusterPeerScan");
+                }
+            }
+        };
+    }
+
+    private Runnable getPeerProbeTask() {
+        return new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                if (!PeerProbeEnabled.value()) {
+                    return;
+                }
+                probePeers(System.currentTimeMillis());
+            }
+        };
+    }
+
+    /**
+     * Probes all the peers at once, so a peer that is slow to answer can't delay the samples of the others.
+     * The probes of a round are all recorded with the time the round started, which keeps the intervals
+     * seen by the failure detectors those of the schedule. A peer whose previous probe is still running is
+     * skipped for this round.
+     */
+    void probePeers(final long roundStart) {
+        for (final ManagementServerHostVO peer : _activePeers.values()) {
+            if (peer.getMsid() == _msId || !_probesInProgress.add(peer.getMsid())) {
+                continue;
+            }
+            _peerProbeExecutor.execute(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    try {
+                        if (probeManagementNode(peer)) {
+                            recordPeerHeartbeat(peer.getMsid(), roundStart);
+                        }
+                    } finally {
+                        _probesInProgress.remove(peer.getMsid());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Only the periodic probes feed the failure detectors. Cluster PDUs arrive in bursts, and taking them as
+     * heartbeats would collapse the mean interval so that the next regular gap looks like a failure.
+     */
+    void recordPeerHeartbeat(long msid, long time) {
+        PhiAccrualFailureDetector detector = _peerDetectors.get(msid);
+        if (detector == null) {
+            // tolerate jitter of up to half an interval before suspicion starts to rise
+            detector = new PhiAccrualFailureDetector(HeartbeatInterval.value(), HeartbeatInterval.value() / 2);
+            _peerDetectors.put(msid, detector);
+        }
+        detector.heartbeat(time);
+    }
+
+    /**
+     * Single connection attempt to the cluster service port of the peer, bounded by a third of the heartbeat
+     * interval so that a probe is over well before the next round.
+     */
+    private boolean probeManagementNode(ManagementServerHostVO mshost) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(mshost.getServiceIP(), mshost.getServicePort()), HeartbeatInterval.value() / PEER_PROBE_TIMEOUT_DIVISOR);
+            return true;
+        } catch (IOException e) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Unable to probe management server at " + mshost.getServiceIP() + ":" + mshost.getServicePort() + ": " + e.getMessage());
+            }
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Decides whether a management server with a stale DB heartbeat is still alive. With direct probing on, the
+     * probe history of the peer answers right away; otherwise, or without history yet, the peer is pinged.
+     */
+    private boolean isManagementNodeReachable(ManagementServerHostVO mshost) {
+        if (PeerProbeEnabled.value()) {
+            PhiAccrualFailureDetector detector = _peerDetectors.get(mshost.getMsid());
+            if (detector != null) {
+                double phi = detector.phi(System.currentTimeMillis());
+                s_logger.info("Management node " + mshost.getId() + " suspicion level from direct probes: " + phi);
+                return phi < PeerPhiThreshold.value();
+            }
+        }
+        return pingManagementNode(mshost);
+    }
+
     private boolean isRootCauseConnectionRelated(Throwable e) {
         while (e != null) {
             if (e instanceof SQLRecoverableException || e instanceof SQLNonTransientException) {
@@ -853,6 +1017,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         if (invalidatedNodeList.size() > 0) {
             for (ManagementServerHostVO mshost : invalidatedNodeList) {
                 _activePeers.remove(mshost.getId());
+                _peerDetectors.remove(mshost.getMsid());
                 try {
                     JmxUtil.unregisterMBean("ClusterManager", "Node " + mshost.getId());
                 } catch (Exception e) {
@@ -870,9 +1035,10 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         Iterator<ManagementServerHostVO> it = removedNodeList.iterator();
         while (it.hasNext()) {
             ManagementServerHostVO mshost = it.next();
-            if (!pingManagementNode(mshost)) {
+            if (!isManagementNodeReachable(mshost)) {
                 s_logger.warn("Management node " + mshost.getId() + " is detected inactive by timestamp and also not pingable");
                 _activePeers.remove(mshost.getId());
+                _peerDetectors.remove(mshost.getMsid());
                 try {
                     JmxUtil.unregisterMBean("ClusterManager", "Node " + mshost.getId());
                 } catch (Exception e) {
@@ -984,6 +1150,8 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
         // use seperate thread for heartbeat updates
         _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HeartbeatInterval.value(), HeartbeatInterval.value(), TimeUnit.MILLISECONDS);
+        _peerScanScheduler.scheduleWithFixedDelay(getPeerScanTask(), HeartbeatInterval.value(), HeartbeatInterval.value(), TimeUnit.MILLISECONDS);
+        _peerProbeScheduler.scheduleWithFixedDelay(getPeerProbeTask(), HeartbeatInterval.value(), HeartbeatInterval.value(), TimeUnit.MILLISECONDS);
         _notificationExecutor.submit(getNotificationTask());
 
         if (s_logger.isInfoEnabled()) {
@@ -1003,10 +1171,16 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         }
 
         _heartbeatScheduler.shutdownNow();
+        _peerScanScheduler.shutdownNow();
+        _peerProbeScheduler.shutdownNow();
+        _peerProbeExecutor.shutdownNow();
         _executor.shutdownNow();
 
         try {
             _heartbeatScheduler.awaitTermination(EXECUTOR_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+            _peerScanScheduler.awaitTermination(EXECUTOR_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+            _peerProbeScheduler.awaitTermination(EXECUTOR_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+            _peerProbeExecutor.awaitTermination(EXECUTOR_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
             _executor.awaitTermination(EXECUTOR_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
         }
@@ -1099,7 +1273,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {HeartbeatInterval, HeartbeatThreshold};
+        return new ConfigKey<?>[] {HeartbeatInterval, HeartbeatThreshold, PeerProbeEnabled, PeerPhiThreshold};
     }
 
     private boolean pingManagementNode(ManagementServerHostVO mshost) {
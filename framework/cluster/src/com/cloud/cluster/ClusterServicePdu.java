@@ -20,6 +20,8 @@ public class ClusterServicePdu {
     public final static int PDU_TYPE_MESSAGE = 0;
     public final static int PDU_TYPE_REQUEST = 1;
     public final static int PDU_TYPE_RESPONSE = 2;
+    // fire-and-forget message for a listener registered with ClusterManager.registerMessageListener
+    public final static int PDU_TYPE_TOPIC_MESSAGE = 3;
 
     private long sequenceId;
     private long ackSequenceId;
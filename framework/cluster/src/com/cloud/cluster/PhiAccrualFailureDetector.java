@@ -0,0 +1,95 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.) for the heartbeats received from one peer.
+ *
+ * Instead of a fixed timeout it keeps the distribution of the recent heartbeat intervals and
+ * tells how unlikely it is, given that distribution, that the peer is still alive after the time
+ * elapsed since its last heartbeat. phi 1 means about 10% chance of being wrong when declaring
+ * the peer dead, phi 2 1%, phi 3 0.1% and so on.
+ */
+public class PhiAccrualFailureDetector {
+    private static final int MAX_SAMPLES = 100;
+
+    private final long[] _intervals = new long[MAX_SAMPLES];
+    private final long _minStdDeviation;
+    private int _count;
+    private int _next;
+    private long _sum;
+    private long _squareSum;
+    private long _lastHeartbeat = -1;
+
+    /**
+     * @param expectedInterval heartbeat interval used until real ones are measured, in ms
+     * @param minStdDeviation lower bound of the deviation, so very regular heartbeats don't make
+     *        a slight delay look like a failure, in ms
+     */
+    public PhiAccrualFailureDetector(long expectedInterval, long minStdDeviation) {
+        _minStdDeviation = minStdDeviation;
+        // seed with the expected interval +/- a quarter of it
+        addInterval(expectedInterval - expectedInterval / 4);
+        addInterval(expectedInterval + expectedInterval / 4);
+    }
+
+    public synchronized void heartbeat(long now) {
+        if (_lastHeartbeat >= 0) {
+            addInterval(now - _lastHeartbeat);
+        }
+        _lastHeartbeat = now;
+    }
+
+    /**
+     * @return suspicion level of the peer at the given time, 0 if no heartbeat was received yet
+     */
+    public synchronized double phi(long now) {
+        if (_lastHeartbeat < 0) {
+            return 0;
+        }
+        double mean = (double)_sum / _count;
+        double variance = (double)_squareSum / _count - mean * mean;
+        double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0)), _minStdDeviation);
+
+        // logistic approximation of the normal cumulative distribution
+        double y = (now - _lastHeartbeat - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (now - _lastHeartbeat > mean) {
+            return -Math.log10(e / (1.0 + e));
+        } else {
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+
+    public synchronized long getLastHeartbeat() {
+        return _lastHeartbeat;
+    }
+
+    private void addInterval(long interval) {
+        if (_count == MAX_SAMPLES) {
+            long dropped = _intervals[_next];
+            _sum -= dropped;
+            _squareSum -= dropped * dropped;
+        } else {
+            _count++;
+        }
+        _intervals[_next] = interval;
+        _next = (_next + 1) % MAX_SAMPLES;
+        _sum += interval;
+        _squareSum += interval * interval;
+    }
+}
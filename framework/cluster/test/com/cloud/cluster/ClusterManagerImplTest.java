@@ -0,0 +1,99 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.net.ServerSocket;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClusterManagerImplTest {
+    private static final long PEER = 2;
+    private static final long INTERVAL = ClusterManager.HeartbeatInterval.value();
+
+    ClusterManagerImpl clusterMgr;
+
+    @Before
+    public void setup() {
+        clusterMgr = new ClusterManagerImpl();
+        clusterMgr._msId = 1;
+    }
+
+    @After
+    public void tearDown() {
+        clusterMgr.stop();
+    }
+
+    @Test
+    public void testPduBurstIsNotTakenAsHeartbeat() {
+        long time = 0;
+        for (int i = 0; i < 10; i++) {
+            clusterMgr.recordPeerHeartbeat(PEER, time);
+            time += INTERVAL;
+        }
+        time -= INTERVAL;
+
+        // a burst of cluster traffic right after the last probe
+        for (int i = 0; i < 100; i++) {
+            ClusterServicePdu pdu = new ClusterServicePdu();
+            pdu.setSourcePeer(String.valueOf(PEER));
+            pdu.setDestPeer("1");
+            clusterMgr.OnReceiveClusterServicePdu(pdu);
+        }
+
+        // followed by the normal gap until the next probe
+        PhiAccrualFailureDetector detector = clusterMgr._peerDetectors.get(PEER);
+        Assert.assertEquals(time, detector.getLastHeartbeat());
+        Assert.assertTrue(detector.phi(time + INTERVAL) < 1);
+        Assert.assertTrue(detector.phi(time + INTERVAL + INTERVAL / 2) < ClusterManagerImpl.PeerPhiThreshold.value());
+    }
+
+    @Test
+    public void testProbeRecordsReachablePeersAtRoundStart() throws Exception {
+        ServerSocket listening = new ServerSocket(0);
+        ServerSocket closed = new ServerSocket(0);
+        int closedPort = closed.getLocalPort();
+        closed.close();
+        try {
+            clusterMgr._activePeers.put(1L, peer(1, listening.getLocalPort()));
+            clusterMgr._activePeers.put(PEER, peer(PEER, listening.getLocalPort()));
+            clusterMgr._activePeers.put(PEER + 1, peer(PEER + 1, closedPort));
+
+            clusterMgr.probePeers(12345);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!clusterMgr._peerDetectors.containsKey(PEER) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // give the probe of the unreachable peer the time to fail as well
+            Thread.sleep(INTERVAL / 3);
+
+            Assert.assertEquals(12345, clusterMgr._peerDetectors.get(PEER).getLastHeartbeat());
+            Assert.assertFalse(clusterMgr._peerDetectors.containsKey(PEER + 1));
+            Assert.assertFalse(clusterMgr._peerDetectors.containsKey(1L));
+        } finally {
+            listening.close();
+        }
+    }
+
+    private static ManagementServerHostVO peer(long msid, int port) {
+        return new ManagementServerHostVO(msid, 1, "127.0.0.1", port, new Date());
+    }
+}
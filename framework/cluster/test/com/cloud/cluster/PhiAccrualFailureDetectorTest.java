@@ -0,0 +1,88 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PhiAccrualFailureDetectorTest {
+    private static final long INTERVAL = 1000;
+
+    private static PhiAccrualFailureDetector detectorWithRegularHeartbeats(long until) {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(INTERVAL, 100);
+        for (long time = 0; time <= until; time += INTERVAL) {
+            detector.heartbeat(time);
+        }
+        return detector;
+    }
+
+    @Test
+    public void testNoHeartbeatYet() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(INTERVAL, 100);
+        Assert.assertEquals(0, detector.phi(100000), 0);
+        Assert.assertEquals(-1, detector.getLastHeartbeat());
+    }
+
+    @Test
+    public void testPhiGrowsWithElapsedTime() {
+        PhiAccrualFailureDetector detector = detectorWithRegularHeartbeats(10000);
+        double previous = detector.phi(10000);
+        for (long elapsed = 250; elapsed <= 3000; elapsed += 250) {
+            double phi = detector.phi(10000 + elapsed);
+            // flat at about 0 while the next heartbeat isn't due yet, growing once it is
+            if (elapsed > INTERVAL) {
+                Assert.assertTrue("phi should grow, was " + phi + " after " + elapsed + "ms", phi > previous);
+            } else {
+                Assert.assertTrue("phi should not drop, was " + phi + " after " + elapsed + "ms", phi >= previous);
+            }
+            previous = phi;
+        }
+    }
+
+    @Test
+    public void testThreshold() {
+        PhiAccrualFailureDetector detector = detectorWithRegularHeartbeats(10000);
+        // a heartbeat that is just due is no reason for suspicion
+        Assert.assertTrue(detector.phi(10000 + INTERVAL) < 1);
+        // a few missed heartbeats are well above the default threshold of 8
+        Assert.assertTrue(detector.phi(10000 + 3 * INTERVAL) > 8);
+    }
+
+    @Test
+    public void testIrregularHeartbeatsAreTolerated() {
+        PhiAccrualFailureDetector regular = detectorWithRegularHeartbeats(20000);
+        PhiAccrualFailureDetector irregular = new PhiAccrualFailureDetector(INTERVAL, 100);
+        long time = 0;
+        for (int i = 0; i < 20; i++) {
+            time += i % 2 == 0 ? 500 : 1500;
+            irregular.heartbeat(time);
+        }
+        Assert.assertEquals(20000, time);
+        Assert.assertTrue(irregular.phi(time + 2 * INTERVAL) < regular.phi(20000 + 2 * INTERVAL));
+    }
+
+    @Test
+    public void testRecovery() {
+        PhiAccrualFailureDetector detector = detectorWithRegularHeartbeats(10000);
+        Assert.assertTrue(detector.phi(30000) > 8);
+
+        detector.heartbeat(30000);
+        Assert.assertEquals(30000, detector.getLastHeartbeat());
+        Assert.assertTrue(detector.phi(30000) < 1);
+        Assert.assertTrue(detector.phi(30000 + INTERVAL) < 8);
+    }
+}
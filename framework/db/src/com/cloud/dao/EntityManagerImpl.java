@@ -17,6 +17,8 @@
 package com.cloud.dao;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -65,6 +67,21 @@ public class EntityManagerImpl extends ManagerBase implements EntityManager {
         return dao.findByUuidIncludingRemoved(uuid);
     }
 
+    @Override
+    public <T> List<? extends T> listByUuidsIncludingRemoved(Class<T> entityType, Collection<String> uuids) {
+        GenericDao<? extends T, ? extends Serializable> dao = GenericDaoBase.getDao(entityType);
+        return listByUuidsIncludingRemoved(dao, uuids);
+    }
+
+    private <T> List<T> listByUuidsIncludingRemoved(GenericDao<T, ? extends Serializable> dao, Collection<String> uuids) {
+        if (uuids.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        SearchCriteria<T> sc = dao.createSearchCriteria();
+        sc.addAnd("uuid", SearchCriteria.Op.IN, uuids.toArray());
+        return dao.searchIncludingRemoved(sc, null, null, false);
+    }
+
     @Override
     public <T> T findByXId(Class<T> entityType, String xid) {
         return null;
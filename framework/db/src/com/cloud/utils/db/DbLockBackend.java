@@ -0,0 +1,288 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Keeps the locks in the op_lock table so they are shared by all the management servers.
+ *
+ * The statements are spread over several stand alone connections, picked by the hash of the
+ * lock key, so that threads working on different locks do not queue up behind each other on a
+ * single connection.  Statements for a given key always go through the same connection.
+ */
+public class DbLockBackend implements LockBackend {
+    private static final Logger s_logger = Logger.getLogger(DbLockBackend.class);
+
+    private static final String ACQUIRE_SQL =
+        "INSERT INTO op_lock (op_lock.key, op_lock.mac, op_lock.ip, op_lock.thread, op_lock.acquired_on, waiters) VALUES (?, ?, ?, ?, ?, 1)";
+    private static final String INCREMENT_SQL = "UPDATE op_lock SET waiters=waiters+1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
+    private static final String SELECT_SQL = "SELECT op_lock.key, mac, ip, thread, acquired_on, waiters FROM op_lock";
+    private static final String INQUIRE_SQL = SELECT_SQL + " WHERE op_lock.key=?";
+    private static final String DECREMENT_SQL = "UPDATE op_lock SET waiters=waiters-1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
+    private static final String RELEASE_LOCK_SQL = "DELETE FROM op_lock WHERE op_lock.key = ?";
+    private static final String RELEASE_SQL = RELEASE_LOCK_SQL + " AND op_lock.mac=? AND waiters=0";
+    private static final String CLEANUP_MGMT_LOCKS_SQL = "DELETE FROM op_lock WHERE op_lock.mac = ?";
+    private static final String SELECT_MGMT_LOCKS_SQL = SELECT_SQL + " WHERE mac=?";
+    private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
+    private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
+
+    TimeZone _gmtTimeZone = TimeZone.getTimeZone("GMT");
+
+    private final ConnectionConcierge[] _concierges;
+
+    public DbLockBackend(int connections) {
+        _concierges = new ConnectionConcierge[Math.max(1, connections)];
+        for (int i = 0; i < _concierges.length; i++) {
+            Connection conn = null;
+            try {
+                conn = TransactionLegacy.getStandaloneConnectionWithException();
+                conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                conn.setAutoCommit(true);
+                _concierges[i] = new ConnectionConcierge("LockMaster", conn, true);
+            } catch (SQLException e) {
+                s_logger.error("Unable to get a new db connection", e);
+                throw new CloudRuntimeException("Unable to initialize a connection to the database for locking purposes: ", e);
+            }
+        }
+    }
+
+    protected Connection conn(String key) {
+        return _concierges[(key.hashCode() & Integer.MAX_VALUE) % _concierges.length].conn();
+    }
+
+    protected Connection conn() {
+        return _concierges[0].conn();
+    }
+
+    @Override
+    public boolean acquire(String key, long msId, String threadName, int threadId) {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = conn(key).prepareStatement(ACQUIRE_SQL);
+            pstmt.setString(1, key);
+            pstmt.setLong(2, msId);
+            pstmt.setString(3, threadName);
+            pstmt.setInt(4, threadId);
+            pstmt.setString(5, DateUtil.getDateDisplayString(_gmtTimeZone, new Date()));
+            try {
+                return pstmt.executeUpdate() == 1;
+            } catch (SQLException e) {
+                if (!(e.getSQLState().equals("23000") && e.getErrorCode() == 1062)) {
+                    throw new CloudRuntimeException("Unable to lock " + key, e);
+                }
+                return false;
+            }
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to lock " + key, e);
+        } finally {
+            close(pstmt, null);
+        }
+    }
+
+    @Override
+    public boolean increment(String key, long msId, String threadName, int threadId) {
+        return updateCount(INCREMENT_SQL, key, msId, threadName, threadId);
+    }
+
+    @Override
+    public boolean decrement(String key, long msId, String threadName, int threadId) {
+        return updateCount(DECREMENT_SQL, key, msId, threadName, threadId);
+    }
+
+    protected boolean updateCount(String sql, String key, long msId, String threadName, int threadId) {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = conn(key).prepareStatement(sql);
+            pstmt.setString(1, key);
+            pstmt.setLong(2, msId);
+            pstmt.setString(3, threadName);
+            pstmt.setInt(4, threadId);
+            int rows = pstmt.executeUpdate();
+            assert (rows <= 1) : "hmm...non unique key? " + pstmt;
+            return rows == 1;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to update the count of " + key, e);
+        } finally {
+            close(pstmt, null);
+        }
+    }
+
+    @Override
+    public boolean removeIfFree(String key, long msId) {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = conn(key).prepareStatement(RELEASE_SQL);
+            pstmt.setString(1, key);
+            pstmt.setLong(2, msId);
+            return pstmt.executeUpdate() == 1;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to release " + key, e);
+        } finally {
+            close(pstmt, null);
+        }
+    }
+
+    @Override
+    public Map<String, String> inquire(String key) {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = conn(key).prepareStatement(INQUIRE_SQL);
+            pstmt.setString(1, key);
+            rs = pstmt.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+
+            return toLock(rs);
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("SQL Exception on inquiry", e);
+        } finally {
+            close(pstmt, rs);
+        }
+    }
+
+    @Override
+    public List<Map<String, String>> getLocks(Long msId) {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            if (msId != null) {
+                pstmt = conn().prepareStatement(SELECT_MGMT_LOCKS_SQL);
+                pstmt.setLong(1, msId);
+            } else {
+                pstmt = conn().prepareStatement(SELECT_SQL);
+            }
+            rs = pstmt.executeQuery();
+            return toLocks(rs);
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to retrieve locks ", e);
+        } finally {
+            close(pstmt, rs);
+        }
+    }
+
+    @Override
+    public List<Map<String, String>> getLocks(long msId, String threadName) {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = conn().prepareStatement(SELECT_THREAD_LOCKS_SQL);
+            pstmt.setLong(1, msId);
+            pstmt.setString(2, threadName);
+            rs = pstmt.executeQuery();
+            return toLocks(rs);
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Can't get locks " + pstmt, e);
+        } finally {
+            close(pstmt, rs);
+        }
+    }
+
+    @Override
+    public int releaseServerLocks(long msId) {
+        PreparedStatement pstmt = null;
+        try {
+            synchronized (conn()) {
+                pstmt = conn().prepareStatement(CLEANUP_MGMT_LOCKS_SQL);
+                pstmt.setLong(1, msId);
+                return pstmt.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to clear the locks", e);
+        } finally {
+            close(pstmt, null);
+        }
+    }
+
+    @Override
+    public int releaseThreadLocks(long msId, String threadName, int threadId) {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = conn().prepareStatement(CLEANUP_THREAD_LOCKS_SQL);
+            pstmt.setLong(1, msId);
+            pstmt.setString(2, threadName);
+            pstmt.setInt(3, threadId);
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Can't clear locks " + pstmt, e);
+        } finally {
+            close(pstmt, null);
+        }
+    }
+
+    @Override
+    public boolean forceRelease(String key) {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = conn(key).prepareStatement(RELEASE_LOCK_SQL);
+            pstmt.setString(1, key);
+            return pstmt.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to release lock " + key, e);
+        } finally {
+            close(pstmt, null);
+        }
+    }
+
+    protected Map<String, String> toLock(ResultSet rs) throws SQLException {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("key", rs.getString(1));
+        map.put("mgmt", rs.getString(2));
+        map.put("name", rs.getString(3));
+        map.put("tid", Integer.toString(rs.getInt(4)));
+        map.put("date", rs.getString(5));
+        map.put("count", Integer.toString(rs.getInt(6)));
+        return map;
+    }
+
+    protected List<Map<String, String>> toLocks(ResultSet rs) throws SQLException {
+        LinkedList<Map<String, String>> results = new LinkedList<Map<String, String>>();
+        while (rs.next()) {
+            results.add(toLock(rs));
+        }
+        return results;
+    }
+
+    private void close(PreparedStatement pstmt, ResultSet rs) {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+            if (pstmt != null) {
+                pstmt.close();
+            }
+        } catch (SQLException e) {
+            s_logger.warn("Unexpected SQL exception " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Notified when a transaction that updated or removed cached entities has
+ * committed.  Used to propagate the invalidation to other management
+ * servers, which then call GenericDaoBase.evictFromCache().
+ */
+public interface EntityCacheListener {
+
+    /**
+     * @param idsByEntityType database ids of the changed entities, in their
+     *        string form, by name of the entity bean class.  An empty list
+     *        means the changed rows are not known and all the cached entities
+     *        of the type have to be dropped.
+     */
+    void onInvalidate(Map<String, List<String>> idsByEntityType);
+}
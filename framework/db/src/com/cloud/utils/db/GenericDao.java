@@ -199,6 +199,28 @@ public interface GenericDao<T, ID extends Serializable> {
      **/
     T persist(T entity);
 
+    /**
+     * Persist the entity beans using jdbc batching.  The rows are sent to the
+     * database in chunks of batch.size rows inside one transaction.  The id
+     * field of each entity is updated with the new id unless the id was
+     * already allocated, e.g. through getNextInSequence().
+     * @param entities the beans to persist.
+     * @return the beans passed in, with their ids filled in.  Unlike persist(),
+     * the beans are not reloaded from the database.  If any row fails, the
+     * whole batch is rolled back and the exception names the failed rows.
+     **/
+    List<T> persistBatch(List<T> entities);
+
+    /**
+     * Update the entity beans using jdbc batching.  Each bean must have been
+     * retrieved through this dao so that its changes are tracked.  Beans
+     * with identical sets of changed columns share one batched statement.
+     * @param entities the beans to update.
+     * @return number of rows updated.  If any row fails, the whole batch is
+     * rolled back and the exception names the failed rows.
+     */
+    int updateBatch(List<T> entities);
+
     /**
      * remove the entity bean.  This will call delete automatically if
      * the entity bean does not have a removed field.
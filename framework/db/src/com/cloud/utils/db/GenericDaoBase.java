@@ -18,6 +18,7 @@ package com.cloud.utils.db;
 
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
@@ -26,6 +27,7 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.sql.BatchUpdateException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -39,11 +41,15 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.naming.ConfigurationException;
 import javax.persistence.AttributeOverride;
@@ -64,6 +70,7 @@ import net.sf.cglib.proxy.NoOp;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.management.ManagementService;
 
 import org.apache.log4j.Logger;
 
@@ -151,12 +158,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     protected Factory _factory;
     protected Enhancer _searchEnhancer;
     protected int _timeoutSeconds;
+    protected int _batchSize = DEFAULT_BATCH_SIZE;
 
     protected final static CallbackFilter s_callbackFilter = new UpdateFilter();
 
     protected static final String FOR_UPDATE_CLAUSE = " FOR UPDATE ";
     protected static final String SHARE_MODE_CLAUSE = " LOCK IN SHARE MODE";
     protected static final String SELECT_LAST_INSERT_ID_SQL = "SELECT LAST_INSERT_ID()";
+    protected static final int DEFAULT_BATCH_SIZE = 500;
 
     protected static final SequenceFetcher s_seqFetcher = SequenceFetcher.getInstance();
 
@@ -785,13 +794,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     protected int update(ID id, UpdateBuilder ub, T entity) {
-        if (_cache != null) {
-            _cache.remove(id);
-        }
         SearchCriteria<T> sc = createSearchCriteria();
         sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
+        invalidateCache(id);
 
         try {
             if (ub.getCollectionChanges() != null) {
@@ -801,14 +808,27 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             throw new CloudRuntimeException("Unable to persist element collection", e);
         }
 
-        int rowsUpdated = update(ub, sc, null);
+        int rowsUpdated = executeUpdate(ub, sc, null);
 
         txn.commit();
 
         return rowsUpdated;
     }
 
+    /**
+     * Updates all the rows matching the search criteria.  The rows changed are
+     * not known, so the whole cache of the DAO is dropped once the update commits.
+     */
     public int update(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        txn.start();
+        invalidateCache();
+        final int result = executeUpdate(ub, sc, rows);
+        txn.commit();
+        return result;
+    }
+
+    private int executeUpdate(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
         StringBuilder sql = null;
         PreparedStatement pstmt = null;
         final TransactionLegacy txn = TransactionLegacy.currentTxn();
@@ -1170,9 +1190,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateCache(id);
             return true;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1199,12 +1217,16 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         final TransactionLegacy txn = TransactionLegacy.currentTxn();
         PreparedStatement pstmt = null;
         try {
+            txn.start();
+            invalidateCache();
             pstmt = txn.prepareAutoCloseStatement(sql);
             int i = 0;
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            final int result = pstmt.executeUpdate();
+            txn.commit();
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1408,6 +1430,275 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    @DB()
+    public List<T> persistBatch(final List<T> entities) {
+        if (entities == null || entities.isEmpty()) {
+            return entities;
+        }
+
+        allocateBatchIds(entities);
+
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        int offset = 0;
+        try {
+            txn.start();
+            for (offset = 0; offset < entities.size(); offset += _batchSize) {
+                final List<T> chunk = entities.subList(offset, Math.min(offset + _batchSize, entities.size()));
+
+                boolean first = true;
+                for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                    pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+                    for (final T entity : chunk) {
+                        prepareAttributes(pstmt, entity, pair.second(), 1);
+                        pstmt.addBatch();
+                    }
+
+                    pstmt.executeBatch();
+
+                    // Secondary tables reuse the id of the primary table so the ids
+                    // have to be in the beans before their inserts are prepared.
+                    if (first) {
+                        assignGeneratedIds(pstmt.getGeneratedKeys(), chunk);
+                        first = false;
+                    }
+                }
+
+                if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                    for (final T entity : chunk) {
+                        insertElementCollection(entity, _idAttributes.get(_table)[0], getId(entity), getElementCollections(entity));
+                    }
+                }
+            }
+            txn.commit();
+        } catch (final BatchUpdateException e) {
+            throw new CloudRuntimeException("Batch insert failed for rows " + getFailedRows(e, entities, offset) + " on: " + pstmt, e);
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        }
+
+        return entities;
+    }
+
+    @Override
+    @DB()
+    public int updateBatch(final List<T> entities) {
+        if (entities == null || entities.isEmpty()) {
+            return 0;
+        }
+
+        // Group the beans by the statement their changes translate to so each
+        // distinct set of changed columns is sent as one batch.
+        // Beans with element collection changes go through update() one by one, in the
+        // same transaction as the batches.
+        final Map<String, List<Pair<T, SearchCriteria<T>>>> batches = new LinkedHashMap<String, List<Pair<T, SearchCriteria<T>>>>();
+        final List<T> singles = new ArrayList<T>();
+        for (final T entity : entities) {
+            assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+
+            final UpdateBuilder ub = getUpdateBuilder(entity);
+            final ID id = getId(entity);
+            if (ub.getCollectionChanges() != null) {
+                singles.add(entity);
+                continue;
+            }
+
+            final StringBuilder sql = ub.toSql(_tables);
+            if (sql == null) {
+                continue;
+            }
+
+            final SearchCriteria<T> sc = createSearchCriteria();
+            sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
+            sql.append(sc.getWhereClause());
+
+            List<Pair<T, SearchCriteria<T>>> batch = batches.get(sql.toString());
+            if (batch == null) {
+                batch = new ArrayList<Pair<T, SearchCriteria<T>>>();
+                batches.put(sql.toString(), batch);
+            }
+            batch.add(new Pair<T, SearchCriteria<T>>(entity, sc));
+        }
+
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        List<T> chunk = null;
+        int rowsUpdated = 0;
+        try {
+            txn.start();
+            for (final T entity : singles) {
+                rowsUpdated += update(getId(entity), getUpdateBuilder(entity), entity);
+            }
+            for (final Map.Entry<String, List<Pair<T, SearchCriteria<T>>>> entry : batches.entrySet()) {
+                final List<Pair<T, SearchCriteria<T>>> batch = entry.getValue();
+                for (final Pair<T, SearchCriteria<T>> row : batch) {
+                    invalidateCache(getId(row.first()));
+                }
+                for (int offset = 0; offset < batch.size(); offset += _batchSize) {
+                    final List<Pair<T, SearchCriteria<T>>> rows = batch.subList(offset, Math.min(offset + _batchSize, batch.size()));
+                    chunk = new ArrayList<T>(rows.size());
+
+                    pstmt = txn.prepareAutoCloseStatement(entry.getKey());
+                    for (final Pair<T, SearchCriteria<T>> row : rows) {
+                        int i = 1;
+                        for (final Ternary<Attribute, Boolean, Object> value : getUpdateBuilder(row.first()).getChanges()) {
+                            prepareAttribute(i++, pstmt, value.first(), value.third());
+                        }
+                        for (final Pair<Attribute, Object> value : row.second().getValues()) {
+                            prepareAttribute(i++, pstmt, value.first(), value.second());
+                        }
+                        pstmt.addBatch();
+                        chunk.add(row.first());
+                    }
+
+                    for (final int count : pstmt.executeBatch()) {
+                        rowsUpdated += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+                    }
+                }
+            }
+            txn.commit();
+        } catch (final BatchUpdateException e) {
+            throw new CloudRuntimeException("Batch update failed for rows " + getFailedRows(e, chunk, 0) + " on: " + pstmt, e);
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        }
+
+        for (final List<Pair<T, SearchCriteria<T>>> batch : batches.values()) {
+            for (final Pair<T, SearchCriteria<T>> row : batch) {
+                getUpdateBuilder(row.first()).clear();
+            }
+        }
+
+        return rowsUpdated;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected ID getId(final T entity) {
+        try {
+            return (ID)_idField.get(entity);
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("How can it be illegal access...come on", e);
+        }
+    }
+
+    /**
+     * Makes sure the keys generated by a batch insert can be paired with its beans.  Ids
+     * drawn from a table generator are allocated before the insert; a batch left to the
+     * database for its ids can't mix beans with and without an id, as the driver doesn't
+     * tell which rows the generated keys belong to.
+     */
+    protected void allocateBatchIds(final List<T> entities) {
+        if (_idField == null) {
+            return;
+        }
+
+        final boolean generated = _tgs.containsKey(_idField.getName());
+        int withId = 0;
+        try {
+            for (final T entity : entities) {
+                if (!hasId(entity) && generated) {
+                    final Long id = getNextInSequence(Long.class, _idField.getName());
+                    if (id == null) {
+                        throw new CloudRuntimeException("Unable to allocate an id for " + entity);
+                    }
+                    _idField.set(entity, id);
+                }
+                if (hasId(entity)) {
+                    withId++;
+                }
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+
+        if (withId != 0 && withId != entities.size()) {
+            throw new CloudRuntimeException("Batch insert into " + _table + " mixes " + withId + " rows with an id and " + (entities.size() - withId) +
+                " rows without one, persist them in separate batches");
+        }
+    }
+
+    protected boolean hasId(final T entity) {
+        try {
+            final Object id = _idField.get(entity);
+            return id != null && !(id instanceof Number && ((Number)id).longValue() == 0);
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("How can it be illegal access...come on", e);
+        }
+    }
+
+    /**
+     * Hands out the generated keys, in order, to the beans of the chunk.  Chunks
+     * whose ids were allocated before the insert are left alone.
+     */
+    protected void assignGeneratedIds(final ResultSet rs, final List<T> chunk) throws SQLException {
+        if (_idField == null || rs == null || chunk.isEmpty() || hasId(chunk.get(0))) {
+            return;
+        }
+
+        try {
+            for (final T entity : chunk) {
+                if (!rs.next()) {
+                    break;
+                }
+                _idField.set(entity, rs.getObject(1));
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+    }
+
+    protected Map<Attribute, Object> getElementCollections(final T entity) {
+        final HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+        try {
+            for (final Attribute attr : _ecAttributes) {
+                final Object ec = attr.field.get(entity);
+                if (ec != null) {
+                    ecAttributes.put(attr, ec);
+                }
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        }
+        return ecAttributes;
+    }
+
+    /**
+     * Works out which rows of a batch failed.  Drivers that keep going after a
+     * failure mark the failed rows in the update counts; drivers that stop
+     * return the counts of the rows before the failing one.
+     */
+    protected List<Integer> getFailedRows(final BatchUpdateException e, final List<T> rows, final int offset) {
+        final List<Integer> failed = new ArrayList<Integer>();
+        final int[] counts = e.getUpdateCounts();
+        if (counts == null) {
+            return failed;
+        }
+
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == Statement.EXECUTE_FAILED) {
+                failed.add(offset + i);
+            }
+        }
+        if (failed.isEmpty()) {
+            failed.add(offset + counts.length);
+        }
+
+        for (final Integer row : failed) {
+            if (rows != null && row < rows.size()) {
+                s_logger.warn("Unable to write row " + row + " of " + _table + ": " + rows.get(row));
+            }
+        }
+        return failed;
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
@@ -1773,9 +2064,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
             final int result = pstmt.executeUpdate();
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateCache(id);
             return result > 0;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1797,6 +2086,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     protected Cache _cache;
 
+    protected final static Map<String, GenericDaoBase<?, ? extends Serializable>> s_cachedDaos = new ConcurrentHashMap<String, GenericDaoBase<?, ? extends Serializable>>();
+    protected final static List<EntityCacheListener> s_cacheListeners = new CopyOnWriteArrayList<EntityCacheListener>();
+    private static boolean s_cacheMBeansRegistered = false;
+
     @DB()
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
@@ -1808,12 +2101,175 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             final int idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
             _cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
             cm.addCache(_cache);
+            _cache.setStatisticsEnabled(true);
+            s_cachedDaos.put(_entityBeanType.getName(), this);
+            registerCacheMBeans(cm);
             s_logger.info("Cache created: " + _cache.toString());
         } else {
             _cache = null;
         }
     }
 
+    /**
+     * Exposes hit, miss and eviction counts of the DAO caches through JMX.
+     */
+    private static synchronized void registerCacheMBeans(final CacheManager cm) {
+        if (s_cacheMBeansRegistered) {
+            return;
+        }
+        try {
+            ManagementService.registerMBeans(cm, ManagementFactory.getPlatformMBeanServer(), false, true, false, true);
+            s_cacheMBeansRegistered = true;
+        } catch (final Exception e) {
+            s_logger.warn("Unable to register cache statistics with JMX", e);
+        }
+    }
+
+    /**
+     * Drops the entity from the local cache.  Once the transaction commits the
+     * entity is dropped again, in case another thread reloaded the old row in
+     * the meantime, and the listeners are told about all the entities changed
+     * by the transaction so that the other management servers can drop them too.
+     */
+    protected void invalidateCache(final ID id) {
+        if (_cache == null) {
+            return;
+        }
+
+        _cache.remove(id);
+        getCacheInvalidations().add(this, id);
+    }
+
+    /**
+     * Drops all the entities from the local cache, once now and once the
+     * transaction commits, and has the other management servers do the same.
+     * Used when the changed rows are not known, as for bulk updates.
+     */
+    protected void invalidateCache() {
+        if (_cache == null) {
+            return;
+        }
+
+        _cache.removeAll();
+        getCacheInvalidations().addAll(this);
+    }
+
+    private static CacheInvalidations getCacheInvalidations() {
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        CacheInvalidations pending = (CacheInvalidations)txn.getAfterCommitTask(CacheInvalidations.NAME);
+        if (pending == null) {
+            pending = new CacheInvalidations();
+            txn.runAfterCommit(CacheInvalidations.NAME, pending);
+        }
+        return pending;
+    }
+
+    /**
+     * Cache invalidations collected during a transaction, handled once it commits.
+     */
+    protected static class CacheInvalidations implements Runnable {
+        static final String NAME = "EntityCacheInvalidations";
+
+        private final Map<GenericDaoBase<?, ? extends Serializable>, Set<Serializable>> _ids =
+            new LinkedHashMap<GenericDaoBase<?, ? extends Serializable>, Set<Serializable>>();
+
+        void add(final GenericDaoBase<?, ? extends Serializable> dao, final Serializable id) {
+            Set<Serializable> ids = _ids.get(dao);
+            if (ids == null) {
+                if (_ids.containsKey(dao)) {
+                    // the whole cache of the DAO is already dropped
+                    return;
+                }
+                ids = new LinkedHashSet<Serializable>();
+                _ids.put(dao, ids);
+            }
+            ids.add(id);
+        }
+
+        void addAll(final GenericDaoBase<?, ? extends Serializable> dao) {
+            _ids.put(dao, null);
+        }
+
+        @Override
+        public void run() {
+            final Map<String, List<String>> idsByType = new LinkedHashMap<String, List<String>>();
+            for (final Map.Entry<GenericDaoBase<?, ? extends Serializable>, Set<Serializable>> entry : _ids.entrySet()) {
+                final GenericDaoBase<?, ? extends Serializable> dao = entry.getKey();
+                if (entry.getValue() == null) {
+                    if (dao._cache != null) {
+                        dao._cache.removeAll();
+                    }
+                    idsByType.put(dao._entityBeanType.getName(), Collections.<String> emptyList());
+                    continue;
+                }
+                final List<String> ids = new ArrayList<String>(entry.getValue().size());
+                for (final Serializable id : entry.getValue()) {
+                    if (dao._cache != null) {
+                        dao._cache.remove(id);
+                    }
+                    ids.add(String.valueOf(id));
+                }
+                idsByType.put(dao._entityBeanType.getName(), ids);
+            }
+
+            for (final EntityCacheListener listener : s_cacheListeners) {
+                try {
+                    listener.onInvalidate(idsByType);
+                } catch (final Exception e) {
+                    s_logger.warn("Cache listener failed to handle invalidation of " + idsByType.keySet(), e);
+                }
+            }
+        }
+    }
+
+    public static void registerCacheListener(final EntityCacheListener listener) {
+        s_cacheListeners.add(listener);
+    }
+
+    public static void unregisterCacheListener(final EntityCacheListener listener) {
+        s_cacheListeners.remove(listener);
+    }
+
+    /**
+     * Drops the entity from the local cache without notifying the listeners.
+     * Called when another management server has changed the row.
+     * @param entityType name of the entity bean class.
+     * @param id database id of the entity in its string form.
+     * @return true if the entity type is cached on this management server.
+     */
+    public static boolean evictFromCache(final String entityType, final String id) {
+        final GenericDaoBase<?, ? extends Serializable> dao = s_cachedDaos.get(entityType);
+        if (dao == null || dao._cache == null) {
+            return false;
+        }
+
+        final Class<?> idType = dao._idField.getType();
+        if (idType == Long.class || idType == long.class) {
+            dao._cache.remove(Long.valueOf(id));
+        } else if (idType == Integer.class || idType == int.class) {
+            dao._cache.remove(Integer.valueOf(id));
+        } else {
+            dao._cache.remove(id);
+        }
+        return true;
+    }
+
+    /**
+     * Drops all the entities of a type from the local cache without notifying
+     * the listeners.  Called when another management server ran a bulk update.
+     * @param entityType name of the entity bean class.
+     * @return true if the entity type is cached on this management server.
+     */
+    public static boolean evictAllFromCache(final String entityType) {
+        final GenericDaoBase<?, ? extends Serializable> dao = s_cachedDaos.get(entityType);
+        if (dao == null || dao._cache == null) {
+            return false;
+        }
+
+        dao._cache.removeAll();
+        return true;
+    }
+
     @Override
     @DB()
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
@@ -1821,6 +2277,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
         final String value = (String)params.get("lock.timeout");
         _timeoutSeconds = NumbersUtil.parseInt(value, 300);
+        _batchSize = NumbersUtil.parseInt((String)params.get("batch.size"), DEFAULT_BATCH_SIZE);
 
         createCache(params);
         final boolean load = Boolean.parseBoolean((String)params.get("cache.preload"));
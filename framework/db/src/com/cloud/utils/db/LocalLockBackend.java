@@ -0,0 +1,160 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cloud.utils.DateUtil;
+
+/**
+ * Keeps the locks in memory.  Only usable when a single management server runs against the
+ * database as the locks are not visible to other servers.
+ */
+public class LocalLockBackend implements LockBackend {
+    TimeZone _gmtTimeZone = TimeZone.getTimeZone("GMT");
+
+    private final ConcurrentHashMap<String, LockRecord> _locks = new ConcurrentHashMap<String, LockRecord>();
+
+    @Override
+    public boolean acquire(String key, long msId, String threadName, int threadId) {
+        LockRecord lock = new LockRecord(key, msId, threadName, threadId, DateUtil.getDateDisplayString(_gmtTimeZone, new Date()));
+        return _locks.putIfAbsent(key, lock) == null;
+    }
+
+    @Override
+    public boolean increment(String key, long msId, String threadName, int threadId) {
+        LockRecord lock = _locks.get(key);
+        if (lock == null || !lock.isOwnedBy(msId, threadName, threadId)) {
+            return false;
+        }
+        lock.count.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public boolean decrement(String key, long msId, String threadName, int threadId) {
+        LockRecord lock = _locks.get(key);
+        if (lock == null || !lock.isOwnedBy(msId, threadName, threadId)) {
+            return false;
+        }
+        lock.count.decrementAndGet();
+        return true;
+    }
+
+    @Override
+    public boolean removeIfFree(String key, long msId) {
+        LockRecord lock = _locks.get(key);
+        if (lock == null || lock.msId != msId || lock.count.get() != 0) {
+            return false;
+        }
+        return _locks.remove(key, lock);
+    }
+
+    @Override
+    public Map<String, String> inquire(String key) {
+        LockRecord lock = _locks.get(key);
+        return lock == null ? null : lock.toMap();
+    }
+
+    @Override
+    public List<Map<String, String>> getLocks(Long msId) {
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>();
+        for (LockRecord lock : _locks.values()) {
+            if (msId == null || lock.msId == msId) {
+                results.add(lock.toMap());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<Map<String, String>> getLocks(long msId, String threadName) {
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>();
+        for (LockRecord lock : _locks.values()) {
+            if (lock.msId == msId && lock.threadName.equals(threadName)) {
+                results.add(lock.toMap());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public int releaseServerLocks(long msId) {
+        int released = 0;
+        for (LockRecord lock : _locks.values()) {
+            if (lock.msId == msId && _locks.remove(lock.key, lock)) {
+                released++;
+            }
+        }
+        return released;
+    }
+
+    @Override
+    public int releaseThreadLocks(long msId, String threadName, int threadId) {
+        int released = 0;
+        for (LockRecord lock : _locks.values()) {
+            if (lock.isOwnedBy(msId, threadName, threadId) && _locks.remove(lock.key, lock)) {
+                released++;
+            }
+        }
+        return released;
+    }
+
+    @Override
+    public boolean forceRelease(String key) {
+        return _locks.remove(key) != null;
+    }
+
+    protected static class LockRecord {
+        final String key;
+        final long msId;
+        final String threadName;
+        final int threadId;
+        final String acquiredOn;
+        final AtomicInteger count = new AtomicInteger(1);
+
+        LockRecord(String key, long msId, String threadName, int threadId, String acquiredOn) {
+            this.key = key;
+            this.msId = msId;
+            this.threadName = threadName;
+            this.threadId = threadId;
+            this.acquiredOn = acquiredOn;
+        }
+
+        boolean isOwnedBy(long msId, String threadName, int threadId) {
+            return this.msId == msId && this.threadId == threadId && this.threadName.equals(threadName);
+        }
+
+        Map<String, String> toMap() {
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("key", key);
+            map.put("mgmt", Long.toString(msId));
+            map.put("name", threadName);
+            map.put("tid", Integer.toString(threadId));
+            map.put("date", acquiredOn);
+            map.put("count", Integer.toString(count.get()));
+            return map;
+        }
+    }
+}
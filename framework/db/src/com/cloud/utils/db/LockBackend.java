@@ -0,0 +1,82 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage for the global locks handed out by Merovingian2.  A lock is owned by a thread of a
+ * management server and carries a hold count so the owning thread can reenter it.
+ *
+ * Lock descriptions are returned as maps with the key, mgmt, name, tid, date and count entries.
+ */
+public interface LockBackend {
+
+    /**
+     * Creates the lock for the given thread.
+     * @return false if the lock is already held.
+     */
+    boolean acquire(String key, long msId, String threadName, int threadId);
+
+    /**
+     * Increments the hold count of a lock owned by the given thread.
+     * @return false if the thread does not own the lock.
+     */
+    boolean increment(String key, long msId, String threadName, int threadId);
+
+    /**
+     * Decrements the hold count of a lock owned by the given thread.
+     * @return false if the thread does not own the lock.
+     */
+    boolean decrement(String key, long msId, String threadName, int threadId);
+
+    /**
+     * Removes the lock if its hold count dropped to zero.
+     * @return true if the lock was removed.
+     */
+    boolean removeIfFree(String key, long msId);
+
+    /**
+     * @return the description of the lock or null if nobody holds it.
+     */
+    Map<String, String> inquire(String key);
+
+    /**
+     * @return the locks held by the management server, all locks if msId is null.
+     */
+    List<Map<String, String>> getLocks(Long msId);
+
+    List<Map<String, String>> getLocks(long msId, String threadName);
+
+    /**
+     * Drops all the locks held by a management server.
+     * @return number of locks dropped.
+     */
+    int releaseServerLocks(long msId);
+
+    /**
+     * Drops all the locks held by a thread.
+     * @return number of locks dropped.
+     */
+    int releaseThreadLocks(long msId, String threadName, int threadId);
+
+    /**
+     * Drops the lock regardless of its owner.
+     */
+    boolean forceRelease(String key);
+}
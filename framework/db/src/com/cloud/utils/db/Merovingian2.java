@@ -16,22 +16,18 @@
 // under the License.
 package com.cloud.utils.db;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import javax.management.StandardMBean;
 
 import org.apache.log4j.Logger;
 
-import com.cloud.utils.DateUtil;
+import com.cloud.utils.LatencyHistogram;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.time.InaccurateClock;
@@ -39,45 +35,53 @@ import com.cloud.utils.time.InaccurateClock;
 public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final Logger s_logger = Logger.getLogger(Merovingian2.class);
 
-    private static final String ACQUIRE_SQL =
-        "INSERT INTO op_lock (op_lock.key, op_lock.mac, op_lock.ip, op_lock.thread, op_lock.acquired_on, waiters) VALUES (?, ?, ?, ?, ?, 1)";
-    private static final String INCREMENT_SQL = "UPDATE op_lock SET waiters=waiters+1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
-    private static final String SELECT_SQL = "SELECT op_lock.key, mac, ip, thread, acquired_on, waiters FROM op_lock";
-    private static final String INQUIRE_SQL = SELECT_SQL + " WHERE op_lock.key=?";
-    private static final String DECREMENT_SQL = "UPDATE op_lock SET waiters=waiters-1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
-    private static final String RELEASE_LOCK_SQL = "DELETE FROM op_lock WHERE op_lock.key = ?";
-    private static final String RELEASE_SQL = RELEASE_LOCK_SQL + " AND op_lock.mac=? AND waiters=0";
-    private static final String CLEANUP_MGMT_LOCKS_SQL = "DELETE FROM op_lock WHERE op_lock.mac = ?";
-    private static final String SELECT_MGMT_LOCKS_SQL = SELECT_SQL + " WHERE mac=?";
-    private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
-    private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
-
-    TimeZone _gmtTimeZone = TimeZone.getTimeZone("GMT");
+    private static final int DEFAULT_LOCK_CONNECTIONS = 4;
+
+    /**
+     * Waiting for a lock held by another server means polling the backend, starting at
+     * MIN_POLL_INTERVAL and backing off to MAX_POLL_INTERVAL.  Releases by threads of this
+     * server wake the waiters up immediately.
+     */
+    private static final long MIN_POLL_INTERVAL = 50;
+    private static final long MAX_POLL_INTERVAL = 5000;
+
+    private static final int STRIPES = 64;
 
     private final long _msId;
 
     private static Merovingian2 s_instance = null;
-    private ConnectionConcierge _concierge = null;
+    private final LockBackend _backend;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
-    private Merovingian2(long msId) {
+    private final Object[] _stripes = new Object[STRIPES];
+    private final AtomicIntegerArray _releases = new AtomicIntegerArray(STRIPES);
+
+    private final LatencyHistogram _waitHistogram = new LatencyHistogram();
+    private final LatencyHistogram _holdHistogram = new LatencyHistogram();
+
+    protected Merovingian2(long msId, LockBackend backend) {
         super(MerovingianMBean.class, false);
         _msId = msId;
-        Connection conn = null;
-        try {
-            conn = TransactionLegacy.getStandaloneConnectionWithException();
-            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
-            conn.setAutoCommit(true);
-            _concierge = new ConnectionConcierge("LockMaster", conn, true);
-        } catch (SQLException e) {
-            s_logger.error("Unable to get a new db connection", e);
-            throw new CloudRuntimeException("Unable to initialize a connection to the database for locking purposes: ", e);
+        _backend = backend;
+        for (int i = 0; i < STRIPES; i++) {
+            _stripes[i] = new Object();
+        }
+    }
+
+    public static Merovingian2 createLockMaster(long msId) {
+        Properties dbProps = DbProperties.getDbProperties();
+        LockBackend backend;
+        if ("local".equalsIgnoreCase(dbProps.getProperty("db.cloud.lock.backend"))) {
+            backend = new LocalLockBackend();
+        } else {
+            backend = new DbLockBackend(NumbersUtil.parseInt(dbProps.getProperty("db.cloud.lock.connections"), DEFAULT_LOCK_CONNECTIONS));
         }
+        return createLockMaster(msId, backend);
     }
 
-    public static synchronized Merovingian2 createLockMaster(long msId) {
+    public static synchronized Merovingian2 createLockMaster(long msId, LockBackend backend) {
         assert s_instance == null : "No lock can serve two masters.  Either he will hate the one and love the other, or he will be devoted to the one and despise the other.";
-        s_instance = new Merovingian2(msId);
+        s_instance = new Merovingian2(msId, backend);
         s_instance.cleanupThisServer();
         try {
             JmxUtil.registerMBean("Locks", "Locks", s_instance);
@@ -91,14 +95,17 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return s_instance;
     }
 
-    protected void incrCount() {
+    protected Count getCount() {
         Count count = s_tls.get();
         if (count == null) {
             count = new Count();
             s_tls.set(count);
         }
+        return count;
+    }
 
-        count.count++;
+    protected void incrCount() {
+        getCount().count++;
     }
 
     protected void decrCount() {
@@ -118,96 +125,96 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
+
+        // reentering a lock this thread holds does not need to find out who owns it
+        Count held = getCount();
+        if (held.acquiredAt.containsKey(key)) {
+            if (increment(key, threadName, threadId)) {
+                return true;
+            }
+            held.acquiredAt.remove(key);
+        }
+
         long startTime = InaccurateClock.getTime();
+        long waitStart = System.nanoTime();
+        long pollInterval = MIN_POLL_INTERVAL;
+        int stripe = stripe(key);
 
         while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
+            int releases = _releases.get(stripe);
             int count = owns(key);
 
             if (count >= 1) {
                 return increment(key, threadName, threadId);
             } else if (count == 0) {
                 if (doAcquire(key, threadName, threadId)) {
+                    _waitHistogram.record((System.nanoTime() - waitStart) / 1000000);
                     return true;
                 }
             }
-            try {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
-                }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Waiting " + pollInterval + "ms more for lck-" + key);
             }
+            long remaining = timeInSeconds * 1000 - (InaccurateClock.getTime() - startTime);
+            waitForRelease(stripe, releases, Math.max(1, Math.min(pollInterval, remaining)));
+            pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL);
         }
+        _waitHistogram.record((System.nanoTime() - waitStart) / 1000000);
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (InaccurateClock.getTime() - startTime));
         }
         return false;
     }
 
-    protected boolean increment(String key, String threadName, int threadId) {
-        PreparedStatement pstmt = null;
-        try {
-            pstmt = _concierge.conn().prepareStatement(INCREMENT_SQL);
-            pstmt.setString(1, key);
-            pstmt.setLong(2, _msId);
-            pstmt.setString(3, threadName);
-            pstmt.setInt(4, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (rows <= 1) : "hmm...non unique key? " + pstmt;
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("lck-" + key + (rows == 1 ? " acquired again" : " failed to acquire again"));
-            }
-            if (rows == 1) {
-                incrCount();
-                return true;
+    protected int stripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    /**
+     * Waits until a lock of the stripe is released by this server or the timeout expires,
+     * unless a release happened since the caller read the release counter.
+     */
+    protected void waitForRelease(int stripe, int releases, long timeout) {
+        Object monitor = _stripes[stripe];
+        synchronized (monitor) {
+            if (_releases.get(stripe) != releases) {
+                return;
             }
-            return false;
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("Unable to increment " + key, e);
-        } finally {
             try {
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-            } catch (SQLException e) {
+                monitor.wait(timeout);
+            } catch (InterruptedException e) {
             }
         }
     }
 
-    protected boolean doAcquire(String key, String threadName, int threadId) {
-        PreparedStatement pstmt = null;
+    protected void signalRelease(String key) {
+        int stripe = stripe(key);
+        Object monitor = _stripes[stripe];
+        synchronized (monitor) {
+            _releases.incrementAndGet(stripe);
+            monitor.notifyAll();
+        }
+    }
 
-        long startTime = InaccurateClock.getTime();
-        try {
-            pstmt = _concierge.conn().prepareStatement(ACQUIRE_SQL);
-            pstmt.setString(1, key);
-            pstmt.setLong(2, _msId);
-            pstmt.setString(3, threadName);
-            pstmt.setInt(4, threadId);
-            pstmt.setString(5, DateUtil.getDateDisplayString(_gmtTimeZone, new Date()));
-            try {
-                int rows = pstmt.executeUpdate();
-                if (rows == 1) {
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace("Acquired for lck-" + key);
-                    }
-                    incrCount();
-                    return true;
-                }
-            } catch (SQLException e) {
-                if (!(e.getSQLState().equals("23000") && e.getErrorCode() == 1062)) {
-                    throw new CloudRuntimeException("Unable to lock " + key + ".  Waited " + (InaccurateClock.getTime() - startTime), e);
-                }
-            }
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("Unable to lock " + key + ".  Waited " + (InaccurateClock.getTime() - startTime), e);
-        } finally {
-            try {
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-            } catch (SQLException e) {
+    protected boolean increment(String key, String threadName, int threadId) {
+        boolean incremented = _backend.increment(key, _msId, threadName, threadId);
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("lck-" + key + (incremented ? " acquired again" : " failed to acquire again"));
+        }
+        if (incremented) {
+            incrCount();
+        }
+        return incremented;
+    }
+
+    protected boolean doAcquire(String key, String threadName, int threadId) {
+        if (_backend.acquire(key, _msId, threadName, threadId)) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Acquired for lck-" + key);
             }
+            incrCount();
+            getCount().acquiredAt.put(key, System.nanoTime());
+            return true;
         }
 
         s_logger.trace("Unable to acquire lck-" + key);
@@ -215,31 +222,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
     protected Map<String, String> isLocked(String key) {
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        try {
-            pstmt = _concierge.conn().prepareStatement(INQUIRE_SQL);
-            pstmt.setString(1, key);
-            rs = pstmt.executeQuery();
-            if (!rs.next()) {
-                return null;
-            }
-
-            return toLock(rs);
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("SQL Exception on inquiry", e);
-        } finally {
-            try {
-                if (rs != null) {
-                    rs.close();
-                }
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-            } catch (SQLException e) {
-                s_logger.warn("Unexpected SQL exception " + e.getMessage(), e);
-            }
-        }
+        return _backend.inquire(key);
     }
 
     public void cleanupThisServer() {
@@ -249,123 +232,52 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     @Override
     public void cleanupForServer(long msId) {
         s_logger.info("Cleaning up locks for " + msId);
-        PreparedStatement pstmt = null;
-        try {
-            synchronized (_concierge.conn()) {
-                pstmt = _concierge.conn().prepareStatement(CLEANUP_MGMT_LOCKS_SQL);
-                pstmt.setLong(1, msId);
-                int rows = pstmt.executeUpdate();
-                s_logger.info("Released " + rows + " locks for " + msId);
-            }
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("Unable to clear the locks", e);
-        } finally {
-            try {
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-            } catch (SQLException e) {
+        int rows = _backend.releaseServerLocks(msId);
+        s_logger.info("Released " + rows + " locks for " + msId);
+        for (int i = 0; i < STRIPES; i++) {
+            synchronized (_stripes[i]) {
+                _releases.incrementAndGet(i);
+                _stripes[i].notifyAll();
             }
         }
     }
 
     public boolean release(String key) {
-        PreparedStatement pstmt = null;
         Thread th = Thread.currentThread();
         String threadName = th.getName();
         int threadId = System.identityHashCode(th);
-        try {
-            pstmt = _concierge.conn().prepareStatement(DECREMENT_SQL);
-            pstmt.setString(1, key);
-            pstmt.setLong(2, _msId);
-            pstmt.setString(3, threadName);
-            pstmt.setLong(4, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (rows <= 1) : "hmmm....keys not unique? " + pstmt;
 
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("lck-" + key + " released");
-            }
-            if (rows == 1) {
-                pstmt.close();
-                pstmt = _concierge.conn().prepareStatement(RELEASE_SQL);
-                pstmt.setString(1, key);
-                pstmt.setLong(2, _msId);
-                int result = pstmt.executeUpdate();
-                if (result == 1 && s_logger.isTraceEnabled()) {
+        boolean released = _backend.decrement(key, _msId, threadName, threadId);
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("lck-" + key + " released");
+        }
+        if (released) {
+            if (_backend.removeIfFree(key, _msId)) {
+                if (s_logger.isTraceEnabled()) {
                     s_logger.trace("lck-" + key + " removed");
                 }
-                decrCount();
-            } else if (rows < 1) {
-                s_logger.warn("Was unable to find lock for the key " + key + " and thread id " + threadId);
-            }
-
-            return rows == 1;
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("Unable to release " + key, e);
-        } finally {
-            try {
-                if (pstmt != null) {
-                    pstmt.close();
+                Long acquiredAt = getCount().acquiredAt.remove(key);
+                if (acquiredAt != null) {
+                    _holdHistogram.record((System.nanoTime() - acquiredAt) / 1000000);
                 }
-            } catch (SQLException e) {
+                signalRelease(key);
             }
+            decrCount();
+        } else {
+            s_logger.warn("Was unable to find lock for the key " + key + " and thread id " + threadId);
         }
-    }
-
-    protected Map<String, String> toLock(ResultSet rs) throws SQLException {
-        Map<String, String> map = new HashMap<String, String>();
-        map.put("key", rs.getString(1));
-        map.put("mgmt", rs.getString(2));
-        map.put("name", rs.getString(3));
-        map.put("tid", Integer.toString(rs.getInt(4)));
-        map.put("date", rs.getString(5));
-        map.put("count", Integer.toString(rs.getInt(6)));
-        return map;
 
-    }
-
-    protected List<Map<String, String>> toLocks(ResultSet rs) throws SQLException {
-        LinkedList<Map<String, String>> results = new LinkedList<Map<String, String>>();
-        while (rs.next()) {
-            results.add(toLock(rs));
-        }
-        return results;
-    }
-
-    protected List<Map<String, String>> getLocks(String sql, Long msId) {
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        try {
-            pstmt = _concierge.conn().prepareStatement(sql);
-            if (msId != null) {
-                pstmt.setLong(1, msId);
-            }
-            rs = pstmt.executeQuery();
-            return toLocks(rs);
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("Unable to retrieve locks ", e);
-        } finally {
-            try {
-                if (rs != null) {
-                    rs.close();
-                }
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-            } catch (SQLException e) {
-            }
-        }
+        return released;
     }
 
     @Override
     public List<Map<String, String>> getAllLocks() {
-        return getLocks(SELECT_SQL, null);
+        return _backend.getLocks(null);
     }
 
     @Override
     public List<Map<String, String>> getLocksAcquiredByThisServer() {
-        return getLocks(SELECT_MGMT_LOCKS_SQL, _msId);
+        return _backend.getLocks(_msId);
     }
 
     public int owns(String key) {
@@ -382,27 +294,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
     public List<Map<String, String>> getLocksAcquiredBy(long msId, String threadName) {
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        try {
-            pstmt = _concierge.conn().prepareStatement(SELECT_THREAD_LOCKS_SQL);
-            pstmt.setLong(1, msId);
-            pstmt.setString(2, threadName);
-            rs = pstmt.executeQuery();
-            return toLocks(rs);
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("Can't get locks " + pstmt, e);
-        } finally {
-            try {
-                if (rs != null) {
-                    rs.close();
-                }
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-            } catch (SQLException e) {
-            }
-        }
+        return _backend.getLocks(msId, threadName);
     }
 
     public void cleanupThread() {
@@ -415,48 +307,50 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         int c = count.count;
 
         count.count = 0;
+        count.acquiredAt.clear();
 
         Thread th = Thread.currentThread();
         String threadName = th.getName();
         int threadId = System.identityHashCode(th);
 
-        PreparedStatement pstmt = null;
-        try {
-            pstmt = _concierge.conn().prepareStatement(CLEANUP_THREAD_LOCKS_SQL);
-            pstmt.setLong(1, _msId);
-            pstmt.setString(2, threadName);
-            pstmt.setInt(3, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c +
-                " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("Can't clear locks " + pstmt, e);
-        } finally {
-            try {
-                if (pstmt != null) {
-                    pstmt.close();
-                }
-            } catch (SQLException e) {
-            }
-        }
+        int rows = _backend.releaseThreadLocks(_msId, threadName, threadId);
+        assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c +
+            " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
     }
 
     @Override
     public boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key) {
         s_logger.info("Releasing a lock from JMX lck-" + key);
-        PreparedStatement pstmt = null;
         try {
-            pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);
-            pstmt.setString(1, key);
-            int rows = pstmt.executeUpdate();
-            return rows > 0;
-        } catch (SQLException e) {
+            boolean released = _backend.forceRelease(key);
+            if (released) {
+                signalRelease(key);
+            }
+            return released;
+        } catch (CloudRuntimeException e) {
             s_logger.error("Unable to release lock " + key, e);
             return false;
         }
     }
 
+    @Override
+    public String getLockBackend() {
+        return _backend.getClass().getSimpleName();
+    }
+
+    @Override
+    public Map<String, Long> getLockWaitHistogram() {
+        return _waitHistogram.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getLockHoldHistogram() {
+        return _holdHistogram.snapshot();
+    }
+
     protected static class Count {
         public int count = 0;
+        /** when this thread first acquired each lock it holds, in nanoseconds */
+        public final Map<String, Long> acquiredAt = new HashMap<String, Long>();
     }
 }
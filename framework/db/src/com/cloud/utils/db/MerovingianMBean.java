@@ -28,4 +28,16 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
 
     void cleanupForServer(long msId);
+
+    String getLockBackend();
+
+    /**
+     * @return number of lock acquisitions per time spent waiting for the lock
+     */
+    Map<String, Long> getLockWaitHistogram();
+
+    /**
+     * @return number of locks per time they were held
+     */
+    Map<String, Long> getLockHoldHistogram();
 }
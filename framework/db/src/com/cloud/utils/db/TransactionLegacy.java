@@ -25,8 +25,10 @@ import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -103,6 +105,7 @@ public class TransactionLegacy {
     private long _txnTime;
     private Statement _stmt;
     private String _creator;
+    private Map<String, Runnable> _postCommitTasks;
 
     public static TransactionLegacy currentTxn() {
         return currentTxn(true);
@@ -655,6 +658,7 @@ public class TransactionLegacy {
             rollbackTransaction();
         }
         _txn = false;
+        _postCommitTasks = null;
         _name = null;
 
         closeConnection();
@@ -748,6 +752,7 @@ public class TransactionLegacy {
                 clearLockTimes();
                 closeConnection();
             }
+            runPostCommitTasks();
             return true;
         } catch (final SQLException e) {
             rollbackTransaction();
@@ -755,6 +760,48 @@ public class TransactionLegacy {
         }
     }
 
+    /**
+     * Runs the task once the database transaction in progress commits, or right away if
+     * there is none.  The task is dropped if the transaction rolls back.  Only the first
+     * task registered under a name is kept, later callers can find it with
+     * getAfterCommitTask() and add to it.
+     */
+    public void runAfterCommit(final String name, final Runnable task) {
+        if (!_txn) {
+            runPostCommitTask(name, task);
+            return;
+        }
+        if (_postCommitTasks == null) {
+            _postCommitTasks = new LinkedHashMap<String, Runnable>();
+        }
+        if (!_postCommitTasks.containsKey(name)) {
+            _postCommitTasks.put(name, task);
+        }
+    }
+
+    public Runnable getAfterCommitTask(final String name) {
+        return _postCommitTasks != null ? _postCommitTasks.get(name) : null;
+    }
+
+    protected void runPostCommitTasks() {
+        if (_postCommitTasks == null) {
+            return;
+        }
+        final Map<String, Runnable> tasks = _postCommitTasks;
+        _postCommitTasks = null;
+        for (final Map.Entry<String, Runnable> task : tasks.entrySet()) {
+            runPostCommitTask(task.getKey(), task.getValue());
+        }
+    }
+
+    private void runPostCommitTask(final String name, final Runnable task) {
+        try {
+            task.run();
+        } catch (final Exception e) {
+            s_logger.warn("Post commit task " + name + " failed", e);
+        }
+    }
+
     protected void closeConnection() {
         closePreviousStatement();
 
@@ -857,6 +904,7 @@ public class TransactionLegacy {
         }
         assert (!hasTxnInStack()) : "Who's rolling back transaction when there's still txn in stack?";
         _txn = false;
+        _postCommitTasks = null;
         try {
             if (_conn != null) {
                 if (s_logger.isDebugEnabled()) {
@@ -882,6 +930,7 @@ public class TransactionLegacy {
 
         if (!hasTxnInStack()) {
             _txn = false;
+            _postCommitTasks = null;
             closeConnection();
         }
     }
@@ -934,6 +983,7 @@ public class TransactionLegacy {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runPostCommitTasks();
         }
     }
 
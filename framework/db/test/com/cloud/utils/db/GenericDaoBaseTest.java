@@ -16,8 +16,18 @@
 // under the License.
 package com.cloud.utils.db;
 
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.ehcache.Cache;
 
 import junit.framework.Assert;
 
@@ -27,6 +37,8 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.cloud.utils.exception.CloudRuntimeException;
+
 @RunWith(MockitoJUnitRunner.class)
 public class GenericDaoBaseTest {
     @Mock
@@ -131,4 +143,195 @@ public class GenericDaoBaseTest {
         Mockito.verify(resultSet).getByte(1);
     }
 
+    @Test
+    public void getFailedRowsMarkedByDriver() {
+        DbTestDao dao = new DbTestDao();
+        BatchUpdateException e = new BatchUpdateException(new int[] {1, Statement.EXECUTE_FAILED, 1, Statement.EXECUTE_FAILED});
+        Assert.assertEquals(Arrays.asList(11, 13), dao.getFailedRows(e, null, 10));
+    }
+
+    @Test
+    public void getFailedRowsStoppedByDriver() {
+        DbTestDao dao = new DbTestDao();
+        BatchUpdateException e = new BatchUpdateException(new int[] {1, 1});
+        Assert.assertEquals(Arrays.asList(2), dao.getFailedRows(e, null, 0));
+    }
+
+    @Test
+    public void cacheInvalidationSentOnCommit() {
+        DbTestDao dao = new DbTestDao();
+        dao._cache = Mockito.mock(Cache.class);
+        RecordingCacheListener listener = new RecordingCacheListener();
+        GenericDaoBase.registerCacheListener(listener);
+        TransactionLegacy txn = TransactionLegacy.open("cacheInvalidationSentOnCommit");
+        try {
+            txn.start();
+            dao.invalidateCache(1L);
+            Mockito.verify(dao._cache).remove(1L);
+            Assert.assertNull(listener.idsByType);
+
+            txn.commit();
+            Mockito.verify(dao._cache, Mockito.times(2)).remove(1L);
+            Assert.assertEquals(Collections.singletonMap(DbTestVO.class.getName(), Arrays.asList("1")), listener.idsByType);
+        } finally {
+            txn.close();
+            GenericDaoBase.unregisterCacheListener(listener);
+        }
+    }
+
+    @Test
+    public void bulkInvalidationDropsWholeCache() {
+        DbTestDao dao = new DbTestDao();
+        dao._cache = Mockito.mock(Cache.class);
+        RecordingCacheListener listener = new RecordingCacheListener();
+        GenericDaoBase.registerCacheListener(listener);
+        TransactionLegacy txn = TransactionLegacy.open("bulkInvalidationDropsWholeCache");
+        try {
+            txn.start();
+            dao.invalidateCache(1L);
+            dao.invalidateCache();
+            dao.invalidateCache(2L);
+            Assert.assertNull(listener.idsByType);
+
+            txn.commit();
+            Mockito.verify(dao._cache, Mockito.times(2)).removeAll();
+            Mockito.verify(dao._cache, Mockito.never()).remove(2L);
+            Assert.assertEquals(Collections.singletonMap(DbTestVO.class.getName(), Collections.<String> emptyList()), listener.idsByType);
+        } finally {
+            txn.close();
+            GenericDaoBase.unregisterCacheListener(listener);
+        }
+    }
+
+    @Test
+    public void persistBatchAssignsGeneratedKeysInOrder() throws SQLException {
+        DbTestDao dao = new DbTestDao();
+        Connection conn = Mockito.mock(Connection.class);
+        PreparedStatement pstmt = Mockito.mock(PreparedStatement.class);
+        Mockito.when(conn.prepareStatement(Mockito.anyString(), Mockito.eq(Statement.RETURN_GENERATED_KEYS))).thenReturn(pstmt);
+        Mockito.when(pstmt.executeBatch()).thenReturn(new int[] {1, 1});
+        Mockito.when(pstmt.getGeneratedKeys()).thenReturn(resultSet);
+        Mockito.when(resultSet.next()).thenReturn(true, true, false);
+        Mockito.when(resultSet.getObject(1)).thenReturn(5L, 6L);
+        DbTestVO first = new DbTestVO();
+        DbTestVO second = new DbTestVO();
+
+        TransactionLegacy txn = TransactionLegacy.open("persistBatchAssignsGeneratedKeysInOrder");
+        txn.setConnection(conn);
+        try {
+            dao.persistBatch(Arrays.asList(first, second));
+        } finally {
+            txn.close();
+        }
+
+        Assert.assertEquals(5L, first.id);
+        Assert.assertEquals(6L, second.id);
+        Mockito.verify(pstmt, Mockito.times(2)).addBatch();
+        Mockito.verify(conn).commit();
+    }
+
+    @Test
+    public void persistBatchRejectsRowsWithAndWithoutIds() throws SQLException {
+        DbTestDao dao = new DbTestDao();
+        Connection conn = Mockito.mock(Connection.class);
+        DbTestVO preset = new DbTestVO();
+        preset.id = 7;
+
+        TransactionLegacy txn = TransactionLegacy.open("persistBatchRejectsRowsWithAndWithoutIds");
+        txn.setConnection(conn);
+        try {
+            dao.persistBatch(Arrays.asList(preset, new DbTestVO()));
+            Assert.fail("a batch mixing preset and generated ids was inserted");
+        } catch (CloudRuntimeException e) {
+            Mockito.verify(conn, Mockito.never()).prepareStatement(Mockito.anyString(), Mockito.anyInt());
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void persistBatchReportsFailedRows() throws SQLException {
+        DbTestDao dao = new DbTestDao();
+        Connection conn = Mockito.mock(Connection.class);
+        PreparedStatement pstmt = Mockito.mock(PreparedStatement.class);
+        Mockito.when(conn.prepareStatement(Mockito.anyString(), Mockito.eq(Statement.RETURN_GENERATED_KEYS))).thenReturn(pstmt);
+        Mockito.when(pstmt.executeBatch()).thenThrow(new BatchUpdateException(new int[] {1, Statement.EXECUTE_FAILED, 1}));
+
+        TransactionLegacy txn = TransactionLegacy.open("persistBatchReportsFailedRows");
+        txn.setConnection(conn);
+        try {
+            dao.persistBatch(Arrays.asList(new DbTestVO(), new DbTestVO(), new DbTestVO()));
+            Assert.fail("the failed batch was not reported");
+        } catch (CloudRuntimeException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Batch insert failed for rows [1]"));
+            Mockito.verify(conn, Mockito.never()).commit();
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void updateBatchGroupsRowsByChangedColumns() throws SQLException {
+        DbTestDao dao = new DbTestDao();
+        Connection conn = Mockito.mock(Connection.class);
+        PreparedStatement pstmt = Mockito.mock(PreparedStatement.class);
+        Mockito.when(conn.prepareStatement(Mockito.anyString())).thenReturn(pstmt);
+        Mockito.when(pstmt.executeBatch()).thenReturn(new int[] {1, 1}, new int[] {Statement.SUCCESS_NO_INFO});
+        DbTestVO first = update(dao, 1L, "fieldString", "a");
+        DbTestVO second = update(dao, 2L, "fieldInt", 2);
+        DbTestVO third = update(dao, 3L, "fieldString", "c");
+
+        TransactionLegacy txn = TransactionLegacy.open("updateBatchGroupsRowsByChangedColumns");
+        txn.setConnection(conn);
+        try {
+            Assert.assertEquals(3, dao.updateBatch(Arrays.asList(first, second, third)));
+        } finally {
+            txn.close();
+        }
+
+        Mockito.verify(conn, Mockito.times(2)).prepareStatement(Mockito.anyString());
+        Mockito.verify(pstmt, Mockito.times(3)).addBatch();
+        Mockito.verify(conn).commit();
+        Assert.assertFalse(GenericDaoBase.getUpdateBuilder(first).hasChanges());
+    }
+
+    @Test
+    public void updateBatchReportsFailedRowsAndRollsBack() throws SQLException {
+        DbTestDao dao = new DbTestDao();
+        Connection conn = Mockito.mock(Connection.class);
+        PreparedStatement pstmt = Mockito.mock(PreparedStatement.class);
+        Mockito.when(conn.prepareStatement(Mockito.anyString())).thenReturn(pstmt);
+        Mockito.when(pstmt.executeBatch()).thenThrow(new BatchUpdateException(new int[] {1}));
+        DbTestVO first = update(dao, 1L, "fieldString", "a");
+        DbTestVO second = update(dao, 2L, "fieldString", "b");
+
+        TransactionLegacy txn = TransactionLegacy.open("updateBatchReportsFailedRowsAndRollsBack");
+        txn.setConnection(conn);
+        try {
+            dao.updateBatch(Arrays.asList(first, second));
+            Assert.fail("the failed batch was not reported");
+        } catch (CloudRuntimeException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Batch update failed for rows [1]"));
+            Mockito.verify(conn, Mockito.never()).commit();
+            Assert.assertTrue(GenericDaoBase.getUpdateBuilder(second).hasChanges());
+        } finally {
+            txn.close();
+        }
+    }
+
+    private static DbTestVO update(DbTestDao dao, long id, String field, Object value) {
+        DbTestVO entity = dao.createForUpdate(id);
+        GenericDaoBase.getUpdateBuilder(entity).set(entity, field, value);
+        return entity;
+    }
+
+    private static class RecordingCacheListener implements EntityCacheListener {
+        Map<String, List<String>> idsByType;
+
+        @Override
+        public void onInvalidate(Map<String, List<String>> idsByEntityType) {
+            idsByType = idsByEntityType;
+        }
+    }
+
 }
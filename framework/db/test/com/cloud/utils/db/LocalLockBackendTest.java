@@ -0,0 +1,79 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class LocalLockBackendTest {
+
+    @Test
+    public void testLockAndRelease() {
+        Merovingian2 lockMaster = new Merovingian2(1234, new LocalLockBackend());
+
+        Assert.assertTrue(lockMaster.acquire("first", 5));
+        Assert.assertTrue(lockMaster.acquire("second", 5));
+        Assert.assertTrue(lockMaster.acquire("first", 5));
+
+        Assert.assertEquals(2, lockMaster.owns("first"));
+        Assert.assertEquals(1, lockMaster.owns("second"));
+        Assert.assertEquals(2, lockMaster.getLocksAcquiredByThisServer().size());
+
+        Assert.assertTrue(lockMaster.release("first"));
+        Assert.assertEquals(1, lockMaster.owns("first"));
+        Assert.assertTrue(lockMaster.release("second"));
+        Assert.assertTrue(lockMaster.release("first"));
+
+        Assert.assertEquals(0, lockMaster.owns("first"));
+        Assert.assertTrue(lockMaster.getAllLocks().isEmpty());
+        long holds = 0;
+        for (Long count : lockMaster.getLockHoldHistogram().values()) {
+            holds += count;
+        }
+        Assert.assertEquals(2, holds);
+    }
+
+    @Test
+    public void testWaiterWokenUpOnRelease() throws Exception {
+        final Merovingian2 lockMaster = new Merovingian2(1234, new LocalLockBackend());
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                lockMaster.acquire("contended", 5);
+                locked.countDown();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                }
+                lockMaster.release("contended");
+            }
+        };
+        holder.start();
+        locked.await();
+
+        Assert.assertEquals(-1, lockMaster.owns("contended"));
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(lockMaster.acquire("contended", 10));
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertTrue(lockMaster.release("contended"));
+        holder.join();
+    }
+}
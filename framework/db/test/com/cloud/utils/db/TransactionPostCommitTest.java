@@ -0,0 +1,83 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TransactionPostCommitTest {
+
+    private static class CountingTask implements Runnable {
+        final AtomicInteger runs = new AtomicInteger();
+
+        @Override
+        public void run() {
+            runs.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testRunsAfterOutermostCommit() {
+        TransactionLegacy txn = TransactionLegacy.open("testRunsAfterOutermostCommit");
+        try {
+            CountingTask task = new CountingTask();
+            txn.start();
+            txn.start();
+            txn.runAfterCommit("task", task);
+            txn.runAfterCommit("task", new CountingTask());
+            Assert.assertSame(task, txn.getAfterCommitTask("task"));
+
+            txn.commit();
+            Assert.assertEquals(0, task.runs.get());
+            txn.commit();
+            Assert.assertEquals(1, task.runs.get());
+            Assert.assertNull(txn.getAfterCommitTask("task"));
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testDroppedOnRollback() {
+        TransactionLegacy txn = TransactionLegacy.open("testDroppedOnRollback");
+        try {
+            CountingTask task = new CountingTask();
+            txn.start();
+            txn.runAfterCommit("task", task);
+            txn.rollback();
+            Assert.assertEquals(0, task.runs.get());
+            Assert.assertNull(txn.getAfterCommitTask("task"));
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testRunsRightAwayWithoutTransaction() {
+        TransactionLegacy txn = TransactionLegacy.open("testRunsRightAwayWithoutTransaction");
+        try {
+            CountingTask task = new CountingTask();
+            txn.runAfterCommit("task", task);
+            Assert.assertEquals(1, task.runs.get());
+        } finally {
+            txn.close();
+        }
+    }
+}
@@ -19,6 +19,7 @@ package org.apache.cloudstack.framework.jobs;
 import java.io.Serializable;
 import java.util.List;
 
+import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.jobs.impl.AsyncJobVO;
 import org.apache.cloudstack.jobs.JobInfo;
 
@@ -30,6 +31,13 @@ public interface AsyncJobManager extends Manager {
     public static final String API_JOB_POOL_THREAD_PREFIX = "API-Job-Executor";
     public static final String WORK_JOB_POOL_THREAD_PREFIX = "Work-Job-Executor";
 
+    static final ConfigKey<Integer> JobQueryMaxWaitSeconds = new ConfigKey<Integer>("Advanced", Integer.class, "job.query.max.wait.seconds", "60",
+        "Maximum number of seconds a queryAsyncJobResult(s) call waits for pending jobs to complete", true);
+    static final ConfigKey<Integer> JobQueryMaxWaiters = new ConfigKey<Integer>("Advanced", Integer.class, "job.query.max.waiters", "50",
+        "Maximum number of queryAsyncJobResult(s) calls waiting for jobs at the same time, further calls return the current job status right away", true);
+    static final ConfigKey<Integer> JobQueryMaxIds = new ConfigKey<Integer>("Advanced", Integer.class, "job.query.max.ids", "100",
+        "Maximum number of jobs that can be queried in one queryAsyncJobResults call", true);
+
     AsyncJobVO getAsyncJob(long jobId);
 
     List<? extends AsyncJob> findInstancePendingAsyncJobs(String instanceType, Long accountId);
@@ -126,6 +134,15 @@ public interface AsyncJobManager extends Manager {
 
     AsyncJob queryJob(long jobId, boolean updatePollTime);
 
+    /**
+     * Waits for the jobs to complete, including the jobs completed on other management servers
+     *
+     * @param jobIds jobs to wait for
+     * @param timeoutInMilliSeconds time out to give up waiting
+     * @return the jobs in their latest state, the ones that no longer exist are left out
+     */
+    List<? extends AsyncJob> waitForJobs(List<Long> jobIds, long timeoutInMilliSeconds);
+
     String marshallResultObject(Serializable obj);
 
     Object unmarshallResultObject(AsyncJob job);
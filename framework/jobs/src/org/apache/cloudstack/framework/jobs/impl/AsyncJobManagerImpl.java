@@ -18,12 +18,15 @@
 package org.apache.cloudstack.framework.jobs.impl;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -51,12 +54,14 @@ import org.apache.cloudstack.framework.jobs.dao.AsyncJobJournalDao;
 import org.apache.cloudstack.framework.jobs.dao.SyncQueueItemDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.MessageDetector;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.jobs.JobInfo;
 import org.apache.cloudstack.jobs.JobInfo.Status;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
 
+import com.cloud.cluster.ClusterManager;
 import com.cloud.cluster.ClusterManagerListener;
 import com.cloud.cluster.ManagementServerHost;
 import com.cloud.utils.DateUtil;
@@ -75,6 +80,7 @@ import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExceptionUtil;
@@ -94,6 +100,9 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
     private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;                // 10 seconds
+    private static final int JOB_WAIT_CHECK_INTERVAL = 5000;     // 5 seconds
+    private static final int LAST_POLLED_UPDATE_INTERVAL = 60000; // 1 minute
+    private static final String JOB_STATE_CLUSTER_TOPIC = "async-job-state";
 
     @Inject
     private SyncQueueItemDao _queueItemDao;
@@ -113,10 +122,19 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private AsyncJobMonitor _jobMonitor;
     @Inject
     private ConfigDepot _configDepot;
+    @Inject
+    private ClusterManager _clusterMgr;
 
     private volatile long _executionRunNumber = 1;
 
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
+    private final SyncQueueSignaler _queueSignaler = new SyncQueueSignaler(new SyncQueueSignaler.QueueProcessor() {
+        @Override
+        public int processQueue(long queueId) {
+            return checkQueue(queueId);
+        }
+    }, Executors.newSingleThreadExecutor(new NamedThreadFactory("AsyncJobMgr-QueueScheduler")));
+    private final Map<Long, JobCompletionWaiter> _completionWaiters = new HashMap<Long, JobCompletionWaiter>();
     private ExecutorService _apiJobExecutor;
     private ExecutorService _workerJobExecutor;
 
@@ -127,7 +145,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes};
+        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes, JobQueryMaxWaitSeconds, JobQueryMaxWaiters, JobQueryMaxIds};
     }
 
     @Override
@@ -268,6 +286,15 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 }
         */
         _messageBus.publish(null, AsyncJob.Topics.JOB_STATE, PublishScope.GLOBAL, jobId);
+
+        // clients may be waiting for API jobs on other management servers
+        if (job.getDispatcher() == null || job.getDispatcher().equalsIgnoreCase("ApiAsyncJobDispatcher")) {
+            try {
+                _clusterMgr.broadcastMessage(JOB_STATE_CLUSTER_TOPIC, String.valueOf(jobId));
+            } catch (Throwable e) {
+                s_logger.warn("Unable to notify peers of job-" + jobId + " completion", e);
+            }
+        }
     }
 
     @Override
@@ -373,19 +400,103 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         queue = _queueMgr.queue(syncObjType, syncObjId, SyncQueueItem.AsyncJobContentType, job.getId(), queueSizeLimit);
         if (queue == null)
             throw new CloudRuntimeException("Unable to insert queue item into database, DB is full?");
+
+        // the item becomes visible to the dequeue once the queueing transaction commits
+        final long queueId = queue.getId();
+        TransactionLegacy.currentTxn().runAfterCommit("SyncQueueSignal-" + queueId, new Runnable() {
+            @Override
+            public void run() {
+                _queueSignaler.signal(queueId);
+            }
+        });
     }
 
     @Override
     public AsyncJob queryJob(long jobId, boolean updatePollTime) {
         AsyncJobVO job = _jobDao.findById(jobId);
 
+        // the poll time is informational, don't turn every poll into a write
         if (updatePollTime) {
-            job.setLastPolled(DateUtil.currentGMTTime());
-            _jobDao.update(jobId, job);
+            Date now = DateUtil.currentGMTTime();
+            if (job.getLastPolled() == null || now.getTime() - job.getLastPolled().getTime() >= LAST_POLLED_UPDATE_INTERVAL) {
+                job.setLastPolled(now);
+                _jobDao.update(jobId, job);
+            }
         }
         return job;
     }
 
+    @Override
+    public List<? extends AsyncJob> waitForJobs(List<Long> jobIds, long timeoutInMilliSeconds) {
+        List<JobCompletionWaiter> waiters = new ArrayList<JobCompletionWaiter>(jobIds.size());
+        for (Long jobId : jobIds) {
+            waiters.add(registerCompletionWaiter(jobId));
+        }
+
+        try {
+            long deadline = System.currentTimeMillis() + timeoutInMilliSeconds;
+            while (true) {
+                SearchCriteria<AsyncJobVO> sc = JobIdsSearch.create("ids", jobIds.toArray());
+                List<AsyncJobVO> jobs = _jobDao.search(sc, null);
+
+                JobCompletionWaiter pending = null;
+                for (AsyncJobVO job : jobs) {
+                    if (!job.getStatus().done()) {
+                        pending = waiters.get(jobIds.indexOf(job.getId()));
+                        break;
+                    }
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (pending == null || remaining <= 0) {
+                    return jobs;
+                }
+
+                // completion signals may get lost on the way from other management servers, check again from time to time
+                try {
+                    pending.completed.await(Math.min(remaining, JOB_WAIT_CHECK_INTERVAL), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return jobs;
+                }
+            }
+        } finally {
+            for (int i = 0; i < jobIds.size(); i++) {
+                unregisterCompletionWaiter(jobIds.get(i), waiters.get(i));
+            }
+        }
+    }
+
+    private JobCompletionWaiter registerCompletionWaiter(long jobId) {
+        synchronized (_completionWaiters) {
+            JobCompletionWaiter waiter = _completionWaiters.get(jobId);
+            if (waiter == null) {
+                waiter = new JobCompletionWaiter();
+                _completionWaiters.put(jobId, waiter);
+            }
+            waiter.references++;
+            return waiter;
+        }
+    }
+
+    private void unregisterCompletionWaiter(long jobId, JobCompletionWaiter waiter) {
+        synchronized (_completionWaiters) {
+            waiter.references--;
+            if (waiter.references == 0 && _completionWaiters.get(jobId) == waiter) {
+                _completionWaiters.remove(jobId);
+            }
+        }
+    }
+
+    private void signalJobCompletion(long jobId) {
+        JobCompletionWaiter waiter;
+        synchronized (_completionWaiters) {
+            waiter = _completionWaiters.remove(jobId);
+        }
+        if (waiter != null) {
+            waiter.completed.countDown();
+        }
+    }
+
     private void scheduleExecution(final AsyncJobVO job) {
         scheduleExecution(job, false);
     }
@@ -555,7 +666,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         AsyncJobVO job = _jobDao.findById(item.getContentId());
         if (job != null) {
             if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Schedule queued job-" + job.getId());
+                s_logger.debug("Schedule queued job-" + job.getId() + ", queued for " + (System.currentTimeMillis() - item.getCreated().getTime()) + "ms");
             }
 
             job.setSyncSource(item);
@@ -641,7 +752,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         return null;
     }
 
-    private void checkQueue(long queueId) {
+    private int checkQueue(long queueId) {
+        int executed = 0;
         while (true) {
             try {
                 SyncQueueItemVO item = _queueMgr.dequeueFromOne(queueId, getMsid());
@@ -651,6 +763,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     }
 
                     executeQueueItem(item, false);
+                    executed++;
                 } else {
                     break;
                 }
@@ -659,6 +772,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 break;
             }
         }
+        return executed;
     }
 
     private Runnable getHeartbeatTask() {
@@ -763,6 +877,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
                             // purge the item and resume queue processing
                             _queueMgr.purgeItem(item.getId());
+                            _queueSignaler.signal(item.getQueueId());
                         }
                     }
 
@@ -919,6 +1034,15 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         AsyncJobExecutionContext.init(this, _joinMapDao);
         OutcomeImpl.init(this);
 
+        _messageBus.subscribe(AsyncJob.Topics.JOB_STATE, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                if (args instanceof Long) {
+                    signalJobCompletion((Long)args);
+                }
+            }
+        });
+
         return true;
     }
 
@@ -960,6 +1084,17 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             s_logger.error("Unexpected exception " + e.getMessage(), e);
         }
 
+        _clusterMgr.registerMessageListener(JOB_STATE_CLUSTER_TOPIC, new ClusterManager.MessageListener() {
+            @Override
+            public void onMessage(String sourcePeer, String message) {
+                try {
+                    signalJobCompletion(Long.parseLong(message));
+                } catch (NumberFormatException e) {
+                    s_logger.warn("Ignoring malformed job completion notice " + message + " from " + sourcePeer);
+                }
+            }
+        });
+
         _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
         _heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL, GC_INTERVAL, TimeUnit.MILLISECONDS);
 
@@ -968,7 +1103,9 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public boolean stop() {
+        _clusterMgr.unregisterMessageListener(JOB_STATE_CLUSTER_TOPIC);
         _heartbeatScheduler.shutdown();
+        _queueSignaler.shutdown();
         _apiJobExecutor.shutdown();
         _workerJobExecutor.shutdown();
         return true;
@@ -985,4 +1122,9 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     }
 
+    private static class JobCompletionWaiter {
+        final CountDownLatch completed = new CountDownLatch(1);
+        int references;
+    }
+
 }
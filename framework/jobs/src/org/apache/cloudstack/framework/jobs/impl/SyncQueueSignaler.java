@@ -0,0 +1,81 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+/**
+ * Processes a sync queue right after an item was put on it, instead of leaving it to the
+ * next heartbeat scan.  Signals for a queue that is already waiting to be processed are
+ * coalesced, and each signal looks at the queue once: when nothing can be dequeued the
+ * queue is blocked behind a running job, whose completion processes it again, or the
+ * heartbeat scan will pick it up.
+ */
+public class SyncQueueSignaler {
+    private static final Logger s_logger = Logger.getLogger(SyncQueueSignaler.class);
+
+    public interface QueueProcessor {
+        /**
+         * @return number of queue items started
+         */
+        int processQueue(long queueId);
+    }
+
+    private final QueueProcessor _processor;
+    private final ExecutorService _executor;
+    private final Set<Long> _signaledQueues = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    public SyncQueueSignaler(QueueProcessor processor, ExecutorService executor) {
+        _processor = processor;
+        _executor = executor;
+    }
+
+    public void signal(final long queueId) {
+        if (!_signaledQueues.add(queueId)) {
+            return;
+        }
+
+        try {
+            _executor.execute(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    _signaledQueues.remove(queueId);
+                    try {
+                        _processor.processQueue(queueId);
+                    } catch (Throwable e) {
+                        s_logger.warn("Unable to process sync queue " + queueId, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down, the heartbeat will pick the queue up on the next start
+            _signaledQueues.remove(queueId);
+        }
+    }
+
+    public void shutdown() {
+        _executor.shutdown();
+    }
+}
@@ -0,0 +1,95 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SyncQueueSignalerTest {
+
+    private static class CountingProcessor implements SyncQueueSignaler.QueueProcessor {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release;
+
+        CountingProcessor(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public int processQueue(long queueId) {
+            calls.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+            return 0;
+        }
+    }
+
+    @Test
+    public void testEmptyQueueIsCheckedOnce() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountingProcessor processor = new CountingProcessor(new CountDownLatch(0));
+        SyncQueueSignaler signaler = new SyncQueueSignaler(processor, executor);
+
+        signaler.signal(1);
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals(1, processor.calls.get());
+    }
+
+    @Test
+    public void testPendingSignalsAreCoalesced() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        CountingProcessor processor = new CountingProcessor(release);
+        SyncQueueSignaler signaler = new SyncQueueSignaler(processor, executor);
+
+        // the first signal occupies the executor, the next ones wait as one
+        signaler.signal(1);
+        while (processor.calls.get() == 0) {
+            Thread.sleep(10);
+        }
+        signaler.signal(1);
+        signaler.signal(1);
+        signaler.signal(1);
+        release.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals(2, processor.calls.get());
+    }
+
+    @Test
+    public void testSignalAfterShutdownIsIgnored() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountingProcessor processor = new CountingProcessor(new CountDownLatch(0));
+        SyncQueueSignaler signaler = new SyncQueueSignaler(processor, executor);
+
+        signaler.shutdown();
+        signaler.signal(1);
+
+        Assert.assertEquals(0, processor.calls.get());
+    }
+}
@@ -24,9 +24,6 @@ import javax.ejb.Local;
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
@@ -36,6 +33,7 @@ import org.apache.cloudstack.api.command.user.ratelimit.GetApiLimitCmd;
 import org.apache.cloudstack.api.response.ApiLimitResponse;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Config;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.exception.RequestLimitException;
@@ -64,11 +62,27 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
      */
     private int maxAllowed = 30;
 
-    private LimitStore _store = null;
+    /**
+     * Max number of state changing api requests (anything but list/get/query calls) during
+     * timeToLive duration, 0 to count them against maxAllowed.
+     */
+    private int mutatingMaxAllowed = 0;
+
+    /**
+     * Interval at which locally counted requests are shared with the other management servers, in ms.
+     */
+    private static final long SYNC_INTERVAL = 1000;
+
+    private ClusterLimitStore _store = null;
+
+    private ClusterLimitStore _mutatingStore = null;
 
     @Inject
     AccountService _accountService;
 
+    @Inject
+    ClusterManager _clusterMgr;
+
     @Inject
     ConfigurationDao _configDao;
 
@@ -90,25 +104,39 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             if (maxReqs != null) {
                 maxAllowed = Integer.parseInt(maxReqs);
             }
-            // create limit store
-            EhcacheLimitStore cacheStore = new EhcacheLimitStore();
+            String mutatingMaxReqs = _configDao.getValue(Config.ApiLimitMutatingMax.key());
+            if (mutatingMaxReqs != null) {
+                mutatingMaxAllowed = Integer.parseInt(mutatingMaxReqs);
+            }
+            // create limit stores, shared with the other management servers
             int maxElements = 10000;
             String cachesize = _configDao.getValue(Config.ApiLimitCacheSize.key());
             if (cachesize != null) {
                 maxElements = Integer.parseInt(cachesize);
             }
-            CacheManager cm = CacheManager.create();
-            Cache cache = new Cache("api-limit-cache", maxElements, false, false, timeToLive, timeToLive);
-            cm.addCache(cache);
-            s_logger.info("Limit Cache created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", maxElements=" + maxElements);
-            cacheStore.setCache(cache);
-            _store = cacheStore;
-
+            _store = new ClusterLimitStore("api-limit", _clusterMgr, maxElements, timeToLive);
+            _mutatingStore = new ClusterLimitStore("api-limit-mutating", _clusterMgr, maxElements, timeToLive);
+            s_logger.info("Limit store created with timeToLive=" + timeToLive + ", maxAllowed=" + maxAllowed + ", mutatingMaxAllowed=" + mutatingMaxAllowed +
+                ", maxElements=" + maxElements);
         }
 
         return true;
     }
 
+    @Override
+    public boolean start() {
+        _store.start(SYNC_INTERVAL);
+        _mutatingStore.start(SYNC_INTERVAL);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        _store.stop();
+        _mutatingStore.stop();
+        return true;
+    }
+
     @Override
     public ApiLimitResponse searchApiLimit(Account caller) {
         ApiLimitResponse response = new ApiLimitResponse();
@@ -134,9 +162,11 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
     @Override
     public boolean resetApiLimit(Long accountId) {
         if (accountId != null) {
-            _store.create(accountId, timeToLive);
+            _store.resetCounter(accountId);
+            _mutatingStore.resetCounter(accountId);
         } else {
             _store.resetCounters();
+            _mutatingStore.resetCounters();
         }
         return true;
     }
@@ -153,18 +183,24 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
             // no API throttling on root admin
             return true;
         }
-        StoreEntry entry = _store.get(accountId);
+        LimitStore store = _store;
+        int max = maxAllowed;
+        if (mutatingMaxAllowed > 0 && !isReadOnlyApi(apiCommandName)) {
+            store = _mutatingStore;
+            max = mutatingMaxAllowed;
+        }
+        StoreEntry entry = store.get(accountId);
 
         if (entry == null) {
 
             /* Populate the entry, thus unlocking any underlying mutex */
-            entry = _store.create(accountId, timeToLive);
+            entry = store.create(accountId, timeToLive);
         }
 
         /* Increment the client count and see whether we have hit the maximum allowed clients yet. */
         int current = entry.incrementAndGet();
 
-        if (current <= maxAllowed) {
+        if (current <= max) {
             s_logger.trace("account (" + account.getAccountId() + "," + account.getAccountName() + ") has current count = " + current);
             return true;
         } else {
@@ -176,6 +212,10 @@ public class ApiRateLimitServiceImpl extends AdapterBase implements APIChecker,
         }
     }
 
+    private static boolean isReadOnlyApi(String apiCommandName) {
+        return apiCommandName == null || apiCommandName.startsWith("list") || apiCommandName.startsWith("get") || apiCommandName.startsWith("query");
+    }
+
     @Override
     public List<Class<?>> getCommands() {
         List<Class<?>> cmdList = new ArrayList<Class<?>>();
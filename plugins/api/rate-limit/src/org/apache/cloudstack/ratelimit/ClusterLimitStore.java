@@ -0,0 +1,269 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+import com.cloud.cluster.ClusterManager;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Limit store keeping its counters in a lock-free map and sharing them with the other
+ * management servers of the cluster.
+ *
+ * Requests are counted locally; every sync interval the number of requests counted since
+ * the previous sync is broadcast to the peers, which add it to their own view of the
+ * account. The limit therefore applies cluster wide, lagging at most one sync interval
+ * behind the requests served by the other management servers.
+ */
+public class ClusterLimitStore implements LimitStore, ClusterManager.MessageListener {
+    private static final Logger s_logger = Logger.getLogger(ClusterLimitStore.class);
+
+    private final String _topic;
+
+    private final ClusterManager _clusterMgr;
+
+    private final int _maxEntries;
+
+    private final ConcurrentHashMap<Long, ClusterStoreEntry> _entries = new ConcurrentHashMap<Long, ClusterStoreEntry>();
+
+    /**
+     * Entries in the order they were created, so the oldest ones, which expire first, are
+     * evicted without scanning the map. Pairs whose entry was replaced or removed since are
+     * skipped.
+     */
+    private final ConcurrentLinkedQueue<Map.Entry<Long, ClusterStoreEntry>> _creationOrder = new ConcurrentLinkedQueue<Map.Entry<Long, ClusterStoreEntry>>();
+
+    private volatile int _timeToLive;
+
+    private ScheduledExecutorService _syncExecutor;
+
+    /**
+     * @param topic cluster message topic used to exchange the counters
+     * @param clusterMgr cluster manager, null to keep the counters local to this server
+     * @param maxEntries maximum number of accounts tracked, once reached the oldest entries
+     *            are dropped
+     * @param timeToLive interval in seconds of the counters created for the requests of the peers
+     */
+    public ClusterLimitStore(String topic, ClusterManager clusterMgr, int maxEntries, int timeToLive) {
+        _topic = topic;
+        _clusterMgr = clusterMgr;
+        _maxEntries = maxEntries;
+        _timeToLive = timeToLive;
+    }
+
+    public void start(long syncIntervalMs) {
+        if (_clusterMgr != null) {
+            _clusterMgr.registerMessageListener(_topic, this);
+        }
+        _syncExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(_topic + "-Sync"));
+        _syncExecutor.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                try {
+                    sync();
+                } catch (Throwable e) {
+                    s_logger.warn("Unable to sync api limit counters", e);
+                }
+            }
+        }, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (_clusterMgr != null) {
+            _clusterMgr.unregisterMessageListener(_topic);
+        }
+        if (_syncExecutor != null) {
+            _syncExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the live entry of the account, creating it if there is none, so that callers
+     * racing on the first request of an interval all count against the same entry.
+     */
+    @Override
+    public StoreEntry create(Long account, int timeToLive) {
+        _timeToLive = timeToLive;
+        return getOrCreate(account, timeToLive);
+    }
+
+    @Override
+    public StoreEntry get(Long account) {
+        ClusterStoreEntry entry = _entries.get(account);
+        if (entry != null && entry.isExpired()) {
+            _entries.remove(account, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    @Override
+    public void resetCounters() {
+        _entries.clear();
+        _creationOrder.clear();
+    }
+
+    /**
+     * Drops the counters of an account, its next request starts a new interval.
+     */
+    public void resetCounter(Long account) {
+        _entries.remove(account);
+    }
+
+    int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Publishes the requests counted locally since the previous sync, as a comma separated
+     * list of accountId:count pairs, and drops the entries of expired intervals.
+     */
+    protected void sync() {
+        purgeCreationOrder();
+        StringBuilder message = new StringBuilder();
+        for (Map.Entry<Long, ClusterStoreEntry> mapEntry : _entries.entrySet()) {
+            ClusterStoreEntry entry = mapEntry.getValue();
+            if (entry.isExpired()) {
+                _entries.remove(mapEntry.getKey(), entry);
+                continue;
+            }
+            int delta = entry.takeUnpublished();
+            if (delta > 0) {
+                if (message.length() > 0) {
+                    message.append(',');
+                }
+                message.append(mapEntry.getKey()).append(':').append(delta);
+            }
+        }
+        if (message.length() > 0 && _clusterMgr != null) {
+            _clusterMgr.broadcastMessage(_topic, message.toString());
+        }
+    }
+
+    @Override
+    public void onMessage(String sourcePeer, String message) {
+        for (String pair : message.split(",")) {
+            int pos = pair.indexOf(':');
+            if (pos <= 0) {
+                continue;
+            }
+            Long account;
+            int delta;
+            try {
+                account = Long.valueOf(pair.substring(0, pos));
+                delta = Integer.parseInt(pair.substring(pos + 1));
+            } catch (NumberFormatException e) {
+                s_logger.warn("Ignoring malformed api limit counter " + pair + " from " + sourcePeer);
+                continue;
+            }
+
+            getOrCreate(account, _timeToLive).addRemote(delta);
+        }
+    }
+
+    private ClusterStoreEntry getOrCreate(Long account, int timeToLive) {
+        ClusterStoreEntry newEntry = new ClusterStoreEntry(timeToLive);
+        while (true) {
+            ClusterStoreEntry entry = _entries.get(account);
+            if (entry == null) {
+                makeRoom();
+                entry = _entries.putIfAbsent(account, newEntry);
+                if (entry == null) {
+                    _creationOrder.add(new AbstractMap.SimpleImmutableEntry<Long, ClusterStoreEntry>(account, newEntry));
+                    return newEntry;
+                }
+            }
+            if (!entry.isExpired()) {
+                return entry;
+            }
+            if (_entries.replace(account, entry, newEntry)) {
+                _creationOrder.add(new AbstractMap.SimpleImmutableEntry<Long, ClusterStoreEntry>(account, newEntry));
+                return newEntry;
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest entries until there is room for a new one. As the entries are created
+     * with the same interval, the oldest ones are the expired ones if there are any.
+     */
+    private void makeRoom() {
+        while (_entries.size() >= _maxEntries) {
+            Map.Entry<Long, ClusterStoreEntry> oldest = _creationOrder.poll();
+            if (oldest == null) {
+                break;
+            }
+            _entries.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /**
+     * Drops the expired and the no longer mapped entries from the head of the creation order,
+     * keeping it about as long as the map.
+     */
+    private void purgeCreationOrder() {
+        Map.Entry<Long, ClusterStoreEntry> oldest;
+        while ((oldest = _creationOrder.peek()) != null) {
+            if (!oldest.getValue().isExpired() && _entries.get(oldest.getKey()) == oldest.getValue()) {
+                break;
+            }
+            _creationOrder.remove(oldest);
+            _entries.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    static class ClusterStoreEntry extends StoreEntryImpl {
+        private final AtomicInteger _remote = new AtomicInteger(0);
+
+        private final AtomicInteger _unpublished = new AtomicInteger(0);
+
+        ClusterStoreEntry(int timeToLive) {
+            super(timeToLive);
+        }
+
+        @Override
+        public int incrementAndGet() {
+            _unpublished.incrementAndGet();
+            return super.incrementAndGet() + _remote.get();
+        }
+
+        @Override
+        public int getCounter() {
+            return super.getCounter() + _remote.get();
+        }
+
+        void addRemote(int delta) {
+            _remote.addAndGet(delta);
+        }
+
+        int takeUnpublished() {
+            return _unpublished.getAndSet(0);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.ratelimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.cloud.cluster.ClusterManager;
+
+public class ClusterLimitStoreTest {
+
+    @Test
+    public void syncPublishesLocalDeltasOnly() {
+        ClusterManager clusterMgr = mock(ClusterManager.class);
+        ClusterLimitStore store = new ClusterLimitStore("api-limit", clusterMgr, 100, 60);
+
+        StoreEntry entry = store.create(1L, 60);
+        entry.incrementAndGet();
+        entry.incrementAndGet();
+        store.onMessage("peer", "1:5");
+
+        assertEquals(7, entry.getCounter());
+        store.sync();
+        verify(clusterMgr).broadcastMessage("api-limit", "1:2");
+    }
+
+    @Test
+    public void remoteCountersCreateMissingEntries() {
+        ClusterManager clusterMgr = mock(ClusterManager.class);
+        ClusterLimitStore store = new ClusterLimitStore("api-limit", clusterMgr, 100, 60);
+
+        store.onMessage("peer", "2:3,bogus,3:4");
+
+        StoreEntry entry = store.get(2L);
+        assertNotNull(entry);
+        assertEquals(4, entry.incrementAndGet());
+        assertEquals(4, store.get(3L).getCounter());
+
+        store.sync();
+        verify(clusterMgr).broadcastMessage("api-limit", "2:1");
+        store.sync();
+        verify(clusterMgr, times(1)).broadcastMessage(anyString(), anyString());
+    }
+
+    @Test
+    public void concurrentCreatesShareOneEntry() throws Exception {
+        final ClusterLimitStore store = new ClusterLimitStore("api-limit", null, 100, 60);
+        final int threads = 8;
+        final int requests = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < requests; j++) {
+                        StoreEntry entry = store.get(1L);
+                        if (entry == null) {
+                            entry = store.create(1L, 60);
+                        }
+                        entry.incrementAndGet();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads * requests, store.get(1L).getCounter());
+        assertSame(store.get(1L), store.create(1L, 60));
+    }
+
+    @Test
+    public void maxEntriesIsEnforced() {
+        ClusterLimitStore store = new ClusterLimitStore("api-limit", null, 2, 60);
+
+        store.create(1L, 60);
+        store.create(2L, 120);
+        store.create(3L, 180);
+        store.onMessage("peer", "4:1");
+
+        assertTrue(store.size() <= 2);
+        assertNotNull(store.get(4L));
+    }
+
+    @Test
+    public void resetCounterStartsNewInterval() {
+        ClusterLimitStore store = new ClusterLimitStore("api-limit", null, 100, 60);
+
+        StoreEntry entry = store.create(1L, 60);
+        entry.incrementAndGet();
+        store.resetCounter(1L);
+
+        assertEquals(0, store.create(1L, 60).getCounter());
+    }
+
+    @Test
+    public void remoteCountersLiveForTheConfiguredInterval() {
+        ClusterLimitStore store = new ClusterLimitStore("api-limit", null, 100, 60);
+
+        store.onMessage("peer", "1:3");
+
+        StoreEntry entry = store.get(1L);
+        assertNotNull(entry);
+        assertTrue(entry.getExpireDuration() > 50000);
+        assertEquals(3, entry.getCounter());
+    }
+
+    @Test
+    public void oldestEntriesAreEvictedFirst() {
+        ClusterLimitStore store = new ClusterLimitStore("api-limit", null, 2, 60);
+
+        StoreEntry first = store.create(1L, 60);
+        store.create(2L, 60);
+        store.resetCounter(2L);
+        store.create(2L, 60);
+        store.create(3L, 60);
+
+        assertEquals(2, store.size());
+        assertNull(store.get(1L));
+        assertNotNull(store.get(2L));
+        assertNotNull(store.get(3L));
+        assertTrue(first != store.create(1L, 60));
+        assertNull(store.get(2L));
+    }
+}
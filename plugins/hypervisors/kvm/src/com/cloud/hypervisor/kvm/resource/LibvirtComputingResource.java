@@ -2835,7 +2835,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
         boolean result =
                 add_network_rules(cmd.getVmName(), Long.toString(cmd.getVmId()), cmd.getGuestIp(), cmd.getSignature(), Long.toString(cmd.getSeqNum()), cmd.getGuestMac(),
-                        cmd.stringifyRules(), vif, brname, cmd.getSecIpsString());
+                        cmd.stringifyRules(), vif, brname, cmd.getSecIpsString(), cmd.getBaseSignature(), cmd.isDelta() ? cmd.stringifyRevokedRules() : null);
 
         if (!result) {
             s_logger.warn("Failed to program network rules for vm " + cmd.getVmName());
@@ -5280,7 +5280,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     private boolean add_network_rules(String vmName, String vmId, String guestIP, String sig, String seq, String mac, String rules, String vif, String brname,
-            String secIps) {
+            String secIps, String baseSig, String revokedRules) {
         if (!_canBridgeFirewall) {
             return false;
         }
@@ -5300,6 +5300,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         if (newRules != null && !newRules.isEmpty()) {
             cmd.add("--rules", newRules);
         }
+        if (baseSig != null) {
+            // delta update: only the added and revoked cidrs are applied on top of the base ruleset
+            cmd.add("--basesig", baseSig);
+            if (revokedRules != null && !revokedRules.isEmpty()) {
+                cmd.add("--revokedrules", revokedRules.replace(" ", ";"));
+            }
+        }
         String result = cmd.execute();
         if (result != null) {
             return false;
@@ -493,6 +493,7 @@ public class VmwareManagerImpl extends ManagerBase implements VmwareManager, Vmw
         params.put("vmware.root.disk.controller", _rootDiskController);
         params.put("vmware.recycle.hung.wokervm", _recycleHungWorker);
         params.put("ports.per.dvportgroup", _portsPerDvPortGroup);
+        params.put(Config.RouterConfigBatchThreshold.key(), _configDao.getValue(Config.RouterConfigBatchThreshold.key()));
     }
 
     @Override
@@ -781,6 +781,95 @@ def remove_rule_log_for_vm(vmName):
 def egress_chain_name(vm_name):
     return vm_name + "-eg"
 
+def network_rule_specs(vm_name, line):
+    """Returns [is egress rule, [chain, iptables rule spec] list] for a rule line, None if it is malformed"""
+    tokens = line.split(':')
+    if len(tokens) != 5:
+        return None
+    ruletype = tokens[0]
+    protocol = tokens[1]
+    start = tokens[2]
+    end = tokens[3]
+    cidrs = tokens.pop();
+    ips = cidrs.split(",")
+    ips.pop()
+    allow_any = False
+    if ruletype == 'E':
+        vmchain = egress_chain_name(vm_name)
+        direction = "-d"
+        action = "RETURN"
+    else:
+        vmchain = vm_name
+        action = "ACCEPT"
+        direction = "-s"
+    if '0.0.0.0/0' in ips:
+        i = ips.index('0.0.0.0/0')
+        del ips[i]
+        allow_any = True
+    range = start + ":" + end
+    specs = []
+    if ips:
+        if protocol == 'all':
+            for ip in ips:
+                specs.append([vmchain, "-m state --state NEW " + direction + " " + ip + " -j "+action])
+        elif protocol != 'icmp':
+            for ip in ips:
+                specs.append([vmchain, "-p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW " + direction + " " + ip + " -j "+ action])
+        else:
+            range = start + "/" + end
+            if start == "-1":
+                range = "any"
+            for ip in ips:
+                specs.append([vmchain, "-p icmp --icmp-type " + range + " " + direction + " " + ip + " -j "+ action])
+
+    if allow_any and protocol != 'all':
+        if protocol != 'icmp':
+            specs.append([vmchain, "-p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW -j "+ action])
+        else:
+            range = start + "/" + end
+            if start == "-1":
+                range = "any"
+            specs.append([vmchain, "-p icmp --icmp-type " + range + " -j "+action])
+
+    return [ruletype == 'E', specs]
+
+def add_network_rules_delta(vm_name, vm_id, vm_ip, signature, seqno, base_signature, rules, revoked_rules):
+  try:
+    domId = getvmId(vm_name)
+    changes = check_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, base_signature, seqno)
+    if changes[0] or changes[1] or changes[2] or changes[3] or changes[4]:
+        logging.debug("Rules of vm " + vm_name + " are not the ones of signature " + base_signature + ", a full update is needed")
+        return 'false'
+
+    logging.debug("    programming network rule changes for IP: " + vm_ip + " vmname=" + vm_name)
+    # the rules are inserted at the head of the chains, so the trailing default rules are kept
+    if revoked_rules:
+        for line in revoked_rules.split(';')[:-1]:
+            parsed = network_rule_specs(vm_name, line)
+            if parsed is None:
+                continue
+            for [vmchain, spec] in parsed[1]:
+                try:
+                    execute("iptables -D " + vmchain + " " + spec)
+                except:
+                    logging.debug("Rule to remove was not found in " + vmchain + ": " + spec)
+    if rules:
+        for line in rules.split(';')[:-1]:
+            parsed = network_rule_specs(vm_name, line)
+            if parsed is None:
+                continue
+            for [vmchain, spec] in parsed[1]:
+                execute("iptables -I " + vmchain + " " + spec)
+
+    if write_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, signature, seqno) == False:
+        return 'false'
+
+    return 'true'
+  except:
+    exceptionText = traceback.format_exc()
+    logging.debug("Failed to apply network rule changes !: " + exceptionText)
+    return 'false'
+
 def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif, brname, sec_ips):
   try:
     vmName = vm_name
@@ -812,54 +901,14 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
       default_network_rules(vm_name, vm_id, vm_ip, vmMac, vif, brname)
     egressrule = 0
     for line in lines:
-
-        tokens = line.split(':')
-        if len(tokens) != 5:
+        parsed = network_rule_specs(vm_name, line)
+        if parsed is None:
           continue
-        ruletype = tokens[0]
-        protocol = tokens[1]
-        start = tokens[2]
-        end = tokens[3]
-        cidrs = tokens.pop();
-        ips = cidrs.split(",")
-        ips.pop()
-        allow_any = False
-        if ruletype == 'E':
-            vmchain = egress_chain_name(vm_name)
-            direction = "-d"
-            action = "RETURN"
+        [egress, specs] = parsed
+        if egress:
             egressrule = egressrule + 1
-        else:
-            vmchain = vm_name
-            action = "ACCEPT"
-            direction = "-s"
-        if '0.0.0.0/0' in ips:
-            i = ips.index('0.0.0.0/0')
-            del ips[i]
-            allow_any = True
-        range = start + ":" + end
-        if ips:
-            if protocol == 'all':
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -m state --state NEW " + direction + " " + ip + " -j "+action)
-            elif protocol != 'icmp':
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW " + direction + " " + ip + " -j "+ action)
-            else:
-                range = start + "/" + end
-                if start == "-1":
-                    range = "any"
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -p icmp --icmp-type " + range + " " + direction + " " + ip + " -j "+ action)
-
-        if allow_any and protocol != 'all':
-            if protocol != 'icmp':
-                execute("iptables -I " + vmchain + " -p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW -j "+ action)
-            else:
-                range = start + "/" + end
-                if start == "-1":
-                    range = "any"
-                execute("iptables -I " + vmchain + " -p icmp --icmp-type " + range + " -j "+action)
+        for [vmchain, spec] in specs:
+            execute("iptables -I " + vmchain + " " + spec)
 
     egress_vmchain = egress_chain_name(vm_name)
     if egressrule == 0 :
@@ -1017,6 +1066,8 @@ if __name__ == '__main__':
     parser.add_option("--hostMacAddr", dest="hostMacAddr")
     parser.add_option("--nicsecips", dest="nicSecIps")
     parser.add_option("--action", dest="action")
+    parser.add_option("--basesig", dest="baseSig")
+    parser.add_option("--revokedrules", dest="revokedRules")
     (option, args) = parser.parse_args()
     if len(args) == 0:
         logging.debug("No command to execute")
@@ -1032,6 +1083,9 @@ if __name__ == '__main__':
         default_network_rules_systemvm(option.vmName, option.localbrname)
     elif cmd == "get_rule_logs_for_vms":
         get_rule_logs_for_vms()
+    elif cmd == "add_network_rules" and option.baseSig:
+        if add_network_rules_delta(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.baseSig, option.rules, option.revokedRules) != 'true':
+            sys.exit(1)
     elif cmd == "add_network_rules":
         add_network_rules(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.vmMAC, option.rules, option.vif, option.brname, option.nicSecIps)
     elif cmd == "network_rules_vmSecondaryIp":
@@ -19,6 +19,7 @@ package com.cloud.api;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -27,6 +28,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 
@@ -41,6 +43,7 @@ import org.apache.cloudstack.api.ApiConstants.VMDetails;
 import org.apache.cloudstack.api.ResponseGenerator;
 import org.apache.cloudstack.api.ResponseObject.ResponseView;
 import org.apache.cloudstack.api.command.user.job.QueryAsyncJobResultCmd;
+import org.apache.cloudstack.api.command.user.job.QueryAsyncJobResultsCmd;
 import org.apache.cloudstack.api.response.AccountResponse;
 import org.apache.cloudstack.api.response.ApplicationLoadBalancerInstanceResponse;
 import org.apache.cloudstack.api.response.ApplicationLoadBalancerResponse;
@@ -304,6 +307,8 @@ import com.cloud.vm.snapshot.VMSnapshot;
 public class ApiResponseHelper implements ResponseGenerator {
 
     private static final Logger s_logger = Logger.getLogger(ApiResponseHelper.class);
+    // number of queryAsyncJobResult(s) calls currently holding an API thread while waiting for jobs
+    private static final AtomicInteger s_jobWaiters = new AtomicInteger();
     private static final DecimalFormat s_percentFormat = new DecimalFormat("##.##");
     @Inject
     private EntityManager _entityMgr;
@@ -1532,7 +1537,76 @@ public class ApiResponseHelper implements ResponseGenerator {
         if (job == null) {
             throw new InvalidParameterValueException("Unable to find a job by id " + cmd.getId());
         }
+        checkJobAccess(caller, job);
 
+        if (!job.getStatus().done()) {
+            waitForJobs(Collections.singletonList(job.getId()), cmd.getTimeout());
+        }
+
+        return createAsyncJobResponse(_jobMgr.queryJob(cmd.getId(), true));
+    }
+
+    @Override
+    public ListResponse<AsyncJobResponse> queryJobResults(QueryAsyncJobResultsCmd cmd) {
+        Account caller = CallContext.current().getCallingAccount();
+
+        int maxIds = AsyncJobManager.JobQueryMaxIds.value();
+        if (cmd.getIds().size() > maxIds) {
+            throw new InvalidParameterValueException("Unable to query more than " + maxIds + " jobs at once");
+        }
+
+        boolean pending = false;
+        for (Long jobId : cmd.getIds()) {
+            AsyncJob job = _entityMgr.findById(AsyncJob.class, jobId);
+            if (job == null) {
+                throw new InvalidParameterValueException("Unable to find a job by id " + jobId);
+            }
+            checkJobAccess(caller, job);
+            pending = pending || !job.getStatus().done();
+        }
+
+        if (pending) {
+            waitForJobs(cmd.getIds(), cmd.getTimeout());
+        }
+
+        List<AsyncJobResponse> jobResponses = new ArrayList<AsyncJobResponse>();
+        for (Long jobId : cmd.getIds()) {
+            jobResponses.add(createAsyncJobResponse(_jobMgr.queryJob(jobId, true)));
+        }
+        ListResponse<AsyncJobResponse> response = new ListResponse<AsyncJobResponse>();
+        response.setResponses(jobResponses, jobResponses.size());
+        return response;
+    }
+
+    /**
+     * Holds the API thread until the jobs are done or the timeout, capped by job.query.max.wait.seconds, expires.
+     * Servlet 2.4 has no asynchronous completion, so the number of calls waiting at the same time is capped as well
+     * and the others return the current status right away.
+     */
+    private void waitForJobs(List<Long> jobIds, Integer timeoutSeconds) {
+        if (timeoutSeconds == null || timeoutSeconds <= 0) {
+            return;
+        }
+        long timeout = Math.min(timeoutSeconds, AsyncJobManager.JobQueryMaxWaitSeconds.value()) * 1000L;
+        if (timeout <= 0) {
+            return;
+        }
+
+        if (s_jobWaiters.incrementAndGet() > AsyncJobManager.JobQueryMaxWaiters.value()) {
+            s_jobWaiters.decrementAndGet();
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Too many calls waiting for jobs, returning the status of jobs " + jobIds + " without waiting");
+            }
+            return;
+        }
+        try {
+            _jobMgr.waitForJobs(jobIds, timeout);
+        } finally {
+            s_jobWaiters.decrementAndGet();
+        }
+    }
+
+    private void checkJobAccess(Account caller, AsyncJob job) {
         User userJobOwner = _accountMgr.getUserIncludingRemoved(job.getUserId());
         Account jobOwner = _accountMgr.getAccount(userJobOwner.getAccountId());
 
@@ -1545,8 +1619,6 @@ public class ApiResponseHelper implements ResponseGenerator {
         } else if (_accountMgr.isDomainAdmin(caller.getId())) {
             _accountMgr.checkAccess(caller, null, true, jobOwner);
         }
-
-        return createAsyncJobResponse(_jobMgr.queryJob(cmd.getId(), true));
     }
 
     public AsyncJobResponse createAsyncJobResponse(AsyncJob job) {
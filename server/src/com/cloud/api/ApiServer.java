@@ -19,6 +19,8 @@ package com.cloud.api;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -366,9 +368,69 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     @Override
     @SuppressWarnings("rawtypes")
     public String handleRequest(final Map params, final String responseType, final StringBuilder auditTrailSb) throws ServerApiException {
+        final StringWriter out = new StringWriter();
+        try {
+            handleRequest(params, responseType, auditTrailSb, out);
+        } catch (final IOException e) {
+            throw new CloudRuntimeException("Unable to serialize response", e);
+        }
+        return out.getBuffer().length() == 0 ? null : out.toString();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void handleRequest(final Map params, final String responseType, final StringBuilder auditTrailSb, final Writer out) throws ServerApiException, IOException {
+        final ResponseObject response = executeRequest(params, responseType, auditTrailSb);
+        if (response == null) {
+            return;
+        }
+
+        writeResponse(response, ((String[])params.get("command"))[0], responseType, auditTrailSb, out);
+    }
+
+    /**
+     * Serializes the response of a command to the writer. Any failure to serialize it is
+     * reported as an INTERNAL_ERROR, whether the response is streamed or not.
+     */
+    void writeResponse(final ResponseObject response, final String command, final String responseType, final StringBuilder auditTrailSb, final Writer out)
+        throws ServerApiException, IOException {
+        if (response instanceof ListResponse) {
+            // list responses can be huge, stream them and only keep the count in the audit trail
+            auditTrailSb.append(" " + HttpServletResponse.SC_OK + " count=" + ((ListResponse<?>)response).getCount());
+            try {
+                ApiResponseSerializer.serialize(response, responseType, out);
+            } catch (final RuntimeException ex) {
+                throw serializationFailure(command, ex);
+            }
+        } else {
+            String responseText = null;
+            try {
+                responseText = ApiResponseSerializer.toSerializedString(response, responseType);
+            } catch (final RuntimeException ex) {
+                throw serializationFailure(command, ex);
+            }
+            buildAuditTrail(auditTrailSb, command, responseText);
+            if (responseText != null) {
+                out.write(responseText);
+            }
+        }
+    }
+
+    private ServerApiException serializationFailure(final String command, final RuntimeException ex) {
+        s_logger.error("unhandled exception serializing response of api command: " + command, ex);
+        String errorMsg = ex.getMessage();
+        if (!_accountMgr.isRootAdmin(CallContext.current().getCallingAccount().getId())) {
+            // hide internal details to non-admin user for security reason
+            errorMsg = BaseCmd.USER_ERROR_MESSAGE;
+        }
+        return new ServerApiException(ApiErrorCode.INTERNAL_ERROR, errorMsg, ex);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private ResponseObject executeRequest(final Map params, final String responseType, final StringBuilder auditTrailSb) throws ServerApiException {
         checkCharacterInkParams(params);
 
-        String response = null;
+        ResponseObject response = null;
         String[] command = null;
 
         try {
@@ -414,13 +476,6 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
 
                     // This is where the command is either serialized, or directly dispatched
                     response = queueCommand(cmdObj, paramMap);
-                    if (annotation.responseHasSensitiveInfo())
-                    {
-                        buildAuditTrail(auditTrailSb, command[0],
-                                StringUtils.cleanString(response));
-                    }
-                    else
-                    buildAuditTrail(auditTrailSb, command[0], response);
                 } else {
                     if (!command[0].equalsIgnoreCase("login") && !command[0].equalsIgnoreCase("logout")) {
                         final String errorString = "Unknown API command: " + command[0];
@@ -489,25 +544,25 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         return response;
     }
 
-    private String getBaseAsyncResponse(final long jobId, final BaseAsyncCmd cmd) {
+    private AsyncJobResponse getBaseAsyncResponse(final long jobId, final BaseAsyncCmd cmd) {
         final AsyncJobResponse response = new AsyncJobResponse();
 
         final AsyncJob job = _entityMgr.findById(AsyncJob.class, jobId);
         response.setJobId(job.getUuid());
         response.setResponseName(cmd.getCommandName());
-        return ApiResponseSerializer.toSerializedString(response, cmd.getResponseType());
+        return response;
     }
 
-    private String getBaseAsyncCreateResponse(final long jobId, final BaseAsyncCreateCmd cmd, final String objectUuid) {
+    private CreateCmdResponse getBaseAsyncCreateResponse(final long jobId, final BaseAsyncCreateCmd cmd, final String objectUuid) {
         final CreateCmdResponse response = new CreateCmdResponse();
         final AsyncJob job = _entityMgr.findById(AsyncJob.class, jobId);
         response.setJobId(job.getUuid());
         response.setId(objectUuid);
         response.setResponseName(cmd.getCommandName());
-        return ApiResponseSerializer.toSerializedString(response, cmd.getResponseType());
+        return response;
     }
 
-    private String queueCommand(final BaseCmd cmdObj, final Map<String, String> params) throws Exception {
+    private ResponseObject queueCommand(final BaseCmd cmdObj, final Map<String, String> params) throws Exception {
         final CallContext ctx = CallContext.current();
         final Long callerUserId = ctx.getCallingUserId();
         final Account caller = ctx.getCallingAccount();
@@ -605,7 +660,7 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             }
 
             SerializationContext.current().setUuidTranslation(true);
-            return ApiResponseSerializer.toSerializedString((ResponseObject)cmdObj.getResponseObject(), cmdObj.getResponseType());
+            return (ResponseObject)cmdObj.getResponseObject();
         }
     }
 
@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.api;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Map;
 
 import javax.servlet.http.HttpSession;
@@ -42,5 +44,12 @@ public interface ApiServerService {
 
     public String handleRequest(Map params, String responseType, StringBuilder auditTrailSb) throws ServerApiException;
 
+    /**
+     * Executes the api command and writes its serialized response to out. List responses are
+     * streamed entry by entry instead of being built up as a single String first, so a failure
+     * can occur after part of the response has already been written to out.
+     */
+    public void handleRequest(Map params, String responseType, StringBuilder auditTrailSb, Writer out) throws ServerApiException, IOException;
+
     public Class<?> getCmdClass(String cmdName);
 }
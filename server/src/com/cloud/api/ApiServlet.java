@@ -17,11 +17,14 @@
 package com.cloud.api;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URLDecoder;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.inject.Inject;
 import javax.servlet.ServletConfig;
@@ -47,6 +50,7 @@ import com.cloud.user.Account;
 import com.cloud.user.AccountService;
 import com.cloud.user.User;
 import com.cloud.utils.StringUtils;
+import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.db.EntityManager;
 
 @Component("apiServlet")
@@ -142,6 +146,8 @@ public class ApiServlet extends HttpServlet {
             s_logger.debug("===START=== " + reqStr);
         }
 
+        ApiResponseWriter out = null;
+        Exception failedAfterCommit = null;
         try {
             HttpSession session = req.getSession(false);
             final Object[] responseTypeParam = params.get(ApiConstants.RESPONSE);
@@ -314,8 +320,9 @@ public class ApiServlet extends HttpServlet {
 
                 // Add the HTTP method (GET/POST/PUT/DELETE) as well into the params map.
                 params.put("httpmethod", new String[] {req.getMethod()});
-                final String response = _apiServer.handleRequest(params, responseType, auditTrailSb);
-                writeResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType);
+                out = new ApiResponseWriter(req, resp, responseType);
+                _apiServer.handleRequest(params, responseType, auditTrailSb, out);
+                out.close();
             } else {
                 if (session != null) {
                     try {
@@ -332,13 +339,21 @@ public class ApiServlet extends HttpServlet {
 
             }
         } catch (final ServerApiException se) {
-            final String serializedResponseText = _apiServer.getSerializedApiError(se, params, responseType);
-            resp.setHeader("X-Description", se.getDescription());
-            writeResponse(resp, serializedResponseText, se.getErrorCode().getHttpCode(), responseType);
+            if (out != null && out.isCommitted()) {
+                s_logger.error("api command failed after its response was committed: " + se.getDescription(), se);
+                failedAfterCommit = se;
+            } else {
+                writeErrorResponse(resp, se, params, responseType);
+            }
             auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
         } catch (final Exception ex) {
             s_logger.error("unknown exception writing api response", ex);
             auditTrailSb.append(" unknown exception writing api response");
+            if (out != null && out.isCommitted()) {
+                failedAfterCommit = ex;
+            } else {
+                writeErrorResponse(resp, new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "unknown exception writing api response", ex), params, responseType);
+            }
         } finally {
             s_accessLogger.info(auditTrailSb.toString());
             if (s_logger.isDebugEnabled()) {
@@ -347,16 +362,32 @@ public class ApiServlet extends HttpServlet {
             // cleanup user context to prevent from being peeked in other request context
             CallContext.unregister();
         }
+
+        if (failedAfterCommit != null) {
+            // the 200 status is already on the wire, leave the body unterminated and have the
+            // container drop the connection so that the client sees the response as failed
+            throw new CloudRuntimeException("api response failed after it was committed", failedAfterCommit);
+        }
+    }
+
+    private void writeErrorResponse(final HttpServletResponse resp, final ServerApiException se, final Map<String, Object[]> params, final String responseType) {
+        final String serializedResponseText = _apiServer.getSerializedApiError(se, params, responseType);
+        resp.setHeader("X-Description", se.getDescription());
+        writeResponse(resp, serializedResponseText, se.getErrorCode().getHttpCode(), responseType);
+    }
+
+    private static void setContentType(final HttpServletResponse resp, final String responseType) {
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            resp.setContentType(ApiServer.getJsonContentType() + "; charset=UTF-8");
+        } else {
+            resp.setContentType("text/xml; charset=UTF-8");
+        }
     }
 
     // FIXME: rather than isError, we might was to pass in the status code to give more flexibility
     private void writeResponse(final HttpServletResponse resp, final String response, final int responseCode, final String responseType) {
         try {
-            if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-                resp.setContentType(ApiServer.getJsonContentType() + "; charset=UTF-8");
-            } else {
-                resp.setContentType("text/xml; charset=UTF-8");
-            }
+            setContentType(resp, responseType);
 
             resp.setStatus(responseCode);
             resp.getWriter().print(response);
@@ -371,6 +402,106 @@ public class ApiServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Writer for successful api responses. Output is held back until BUFFER_SIZE characters have
+     * been written or the writer is closed, so a command that fails before then is still answered
+     * with its own error status. Once committed, the body goes through the servlet output stream,
+     * gzip compressed when the client accepts it, and getWriter() must no longer be used.
+     */
+    static class ApiResponseWriter extends Writer {
+        static final int BUFFER_SIZE = 64 * 1024;
+        private static final int GZIP_BUFFER_SIZE = 8192;
+
+        private final HttpServletRequest _req;
+        private final HttpServletResponse _resp;
+        private final String _responseType;
+        private final StringBuilder _buffer = new StringBuilder();
+        private boolean _committed;
+        private Writer _out;
+
+        ApiResponseWriter(final HttpServletRequest req, final HttpServletResponse resp, final String responseType) {
+            _req = req;
+            _resp = resp;
+            _responseType = responseType;
+        }
+
+        /**
+         * @return true once the status and headers have been set, after which an error can no longer be reported
+         */
+        boolean isCommitted() {
+            return _committed;
+        }
+
+        private void commit() throws IOException {
+            _committed = true;
+            setContentType(_resp, _responseType);
+            _resp.setStatus(HttpServletResponse.SC_OK);
+            if (_buffer.length() == 0) {
+                return;
+            }
+
+            _resp.setHeader("Vary", "Accept-Encoding");
+            if (acceptsGzip(_req)) {
+                _resp.setHeader("Content-Encoding", "gzip");
+                _out = new OutputStreamWriter(new GZIPOutputStream(_resp.getOutputStream(), GZIP_BUFFER_SIZE), "UTF-8");
+            } else {
+                _out = new OutputStreamWriter(_resp.getOutputStream(), "UTF-8");
+            }
+            _out.append(_buffer);
+            _buffer.setLength(0);
+        }
+
+        static boolean acceptsGzip(final HttpServletRequest req) {
+            final String acceptEncoding = req.getHeader("Accept-Encoding");
+            return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException {
+            if (_out != null) {
+                _out.write(cbuf, off, len);
+                return;
+            }
+            _buffer.append(cbuf, off, len);
+            if (_buffer.length() >= BUFFER_SIZE) {
+                commit();
+            }
+        }
+
+        @Override
+        public void write(final String str, final int off, final int len) throws IOException {
+            if (_out != null) {
+                _out.write(str, off, len);
+                return;
+            }
+            _buffer.append(str, off, off + len);
+            if (_buffer.length() >= BUFFER_SIZE) {
+                commit();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (_out != null) {
+                _out.flush();
+            }
+        }
+
+        /**
+         * Commits whatever has been buffered as the successful response and ends it.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!_committed) {
+                commit();
+            }
+            if (_out != null) {
+                _out.close();
+            }
+        }
+
+    }
+
     @SuppressWarnings("rawtypes")
     String getLoginSuccessResponse(final HttpSession session, final String responseType) {
         final StringBuilder sb = new StringBuilder();
@@ -26,10 +26,14 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.inject.Inject;
 
@@ -43,6 +47,7 @@ import org.apache.cloudstack.api.ApiErrorCode;
 import org.apache.cloudstack.api.BaseAsyncCreateCmd;
 import org.apache.cloudstack.api.BaseCmd;
 import org.apache.cloudstack.api.EntityReference;
+import org.apache.cloudstack.api.Identity;
 import org.apache.cloudstack.api.InternalIdentity;
 import org.apache.cloudstack.api.Parameter;
 import org.apache.cloudstack.api.ServerApiException;
@@ -65,6 +70,39 @@ public class ParamProcessWorker implements DispatchWorker {
 
     private static final Logger s_logger = Logger.getLogger(ParamProcessWorker.class.getName());
 
+    private static final Pattern s_uuidPattern = Pattern.compile("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
+
+    private static final Map<Field, ParamBinding> s_bindings = new ConcurrentHashMap<Field, ParamBinding>();
+
+    /**
+     * Reflection data needed to set a @Parameter field, looked up once per field instead of on every call.
+     */
+    protected static class ParamBinding {
+        final Field field;
+        final Parameter annotation;
+        final ACL checkAccess;
+        // entity classes of the referenced response, null if the parameter doesn't reference one
+        final Class<?>[] entities;
+
+        ParamBinding(final Field field) {
+            field.setAccessible(true);
+            this.field = field;
+            annotation = field.getAnnotation(Parameter.class);
+            checkAccess = field.getAnnotation(ACL.class);
+            final EntityReference reference = annotation.entityType()[0].getAnnotation(EntityReference.class);
+            entities = reference == null ? null : reference.value();
+        }
+    }
+
+    protected static ParamBinding getBinding(final Field field) {
+        ParamBinding binding = s_bindings.get(field);
+        if (binding == null) {
+            binding = new ParamBinding(field);
+            s_bindings.put(field, binding);
+        }
+        return binding;
+    }
+
     @Inject
     protected AccountManager _accountMgr;
 
@@ -83,7 +121,8 @@ public class ParamProcessWorker implements DispatchWorker {
         final List<Field> cmdFields = cmd.getParamFields();
 
         for (final Field field : cmdFields) {
-            final Parameter parameterAnnotation = field.getAnnotation(Parameter.class);
+            final ParamBinding binding = getBinding(field);
+            final Parameter parameterAnnotation = binding.annotation;
             final Object paramObj = params.get(parameterAnnotation.name());
             if (paramObj == null) {
                 if (parameterAnnotation.required()) {
@@ -96,7 +135,7 @@ public class ParamProcessWorker implements DispatchWorker {
 
             // marshall the parameter into the correct type and set the field value
             try {
-                setFieldValue(field, cmd, paramObj, parameterAnnotation);
+                setFieldValue(binding, cmd, paramObj);
             } catch (final IllegalArgumentException argEx) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Unable to execute API command " + cmd.getCommandName() + " due to invalid value " + paramObj + " for parameter " +
@@ -126,7 +165,7 @@ public class ParamProcessWorker implements DispatchWorker {
 
             //check access on the resource this field points to
             try {
-                final ACL checkAccess = field.getAnnotation(ACL.class);
+                final ACL checkAccess = binding.checkAccess;
                 final CommandType fieldType = parameterAnnotation.type();
 
                 if (checkAccess != null) {
@@ -139,7 +178,7 @@ public class ParamProcessWorker implements DispatchWorker {
 
                     // find the controlled entity DBid by uuid
                     if (parameterAnnotation.entityType() != null) {
-                        final Class<?>[] entityList = parameterAnnotation.entityType()[0].getAnnotation(EntityReference.class).value();
+                        final Class<?>[] entityList = binding.entities;
 
                         for (final Class entity : entityList) {
                             // Check if the parameter type is a single
@@ -237,9 +276,10 @@ public class ParamProcessWorker implements DispatchWorker {
 
 
     @SuppressWarnings({"unchecked", "rawtypes"})
-    private void setFieldValue(final Field field, final BaseCmd cmdObj, final Object paramObj, final Parameter annotation) throws IllegalArgumentException, ParseException {
+    private void setFieldValue(final ParamBinding binding, final BaseCmd cmdObj, final Object paramObj) throws IllegalArgumentException, ParseException {
+        final Field field = binding.field;
+        final Parameter annotation = binding.annotation;
         try {
-            field.setAccessible(true);
             final CommandType fieldType = annotation.type();
             switch (fieldType) {
                 case BOOLEAN:
@@ -294,6 +334,10 @@ public class ParamProcessWorker implements DispatchWorker {
                     }
                     break;
                 case LIST:
+                    if (annotation.collectionType() == CommandType.UUID) {
+                        field.set(cmdObj, translateUuidsToInternalIds(paramObj.toString(), binding));
+                        break;
+                    }
                     final List listParam = new ArrayList();
                     final StringTokenizer st = new StringTokenizer(paramObj.toString(), ",");
                     while (st.hasMoreTokens()) {
@@ -303,12 +347,6 @@ public class ParamProcessWorker implements DispatchWorker {
                             case INTEGER:
                                 listParam.add(Integer.valueOf(token));
                                 break;
-                            case UUID:
-                                if (token.isEmpty())
-                                    break;
-                                final Long internalId = translateUuidToInternalId(token, annotation);
-                                listParam.add(internalId);
-                                break;
                             case LONG: {
                                 listParam.add(Long.valueOf(token));
                             }
@@ -325,7 +363,7 @@ public class ParamProcessWorker implements DispatchWorker {
                 case UUID:
                     if (paramObj.toString().isEmpty())
                         break;
-                    final Long internalId = translateUuidToInternalId(paramObj.toString(), annotation);
+                    final Long internalId = translateUuidToInternalId(paramObj.toString(), binding);
                     field.set(cmdObj, internalId);
                     break;
                 case LONG:
@@ -370,7 +408,52 @@ public class ParamProcessWorker implements DispatchWorker {
         return cal.getTime();
     }
 
-    private Long translateUuidToInternalId(final String uuid, final Parameter annotation) {
+    /**
+     * Translates a comma separated list of uuids, looking up all of them in one query per entity type
+     * instead of one query per uuid.
+     */
+    private List<Long> translateUuidsToInternalIds(final String value, final ParamBinding binding) {
+        final List<String> tokens = new ArrayList<String>();
+        final Set<String> uuids = new HashSet<String>();
+        final StringTokenizer st = new StringTokenizer(value, ",");
+        while (st.hasMoreTokens()) {
+            final String token = st.nextToken();
+            if (token.isEmpty()) {
+                continue;
+            }
+            tokens.add(token);
+            if (s_uuidPattern.matcher(token).matches()) {
+                uuids.add(token);
+            }
+        }
+
+        final Map<String, Long> internalIds = new HashMap<String, Long>();
+        if (!uuids.isEmpty() && binding.entities != null) {
+            for (final Class<?> entity : binding.entities) {
+                for (final Object objVO : _entityMgr.listByUuidsIncludingRemoved(entity, uuids)) {
+                    if (objVO instanceof Identity && objVO instanceof InternalIdentity) {
+                        final String uuid = ((Identity)objVO).getUuid();
+                        internalIds.put(uuid, ((InternalIdentity)objVO).getId());
+                        uuids.remove(uuid);
+                    }
+                }
+                if (uuids.isEmpty()) {
+                    break;
+                }
+            }
+        }
+
+        final List<Long> listParam = new ArrayList<Long>(tokens.size());
+        for (final String token : tokens) {
+            final Long internalId = internalIds.get(token);
+            // anything the batch lookup didn't resolve goes through the regular path, which also reports missing entities
+            listParam.add(internalId != null ? internalId : translateUuidToInternalId(token, binding));
+        }
+        return listParam;
+    }
+
+    private Long translateUuidToInternalId(final String uuid, final ParamBinding binding) {
+        final Parameter annotation = binding.annotation;
         if (uuid.equals("-1")) {
             // FIXME: This is to handle a lot of hardcoded special cases where -1 is sent
             // APITODO: Find and get rid of all hardcoded params in API Cmds and service layer
@@ -380,7 +463,7 @@ public class ParamProcessWorker implements DispatchWorker {
         // If annotation's empty, the cmd existed before 3.x try conversion to long
         final boolean isPre3x = annotation.since().isEmpty();
         // Match against Java's UUID regex to check if input is uuid string
-        final boolean isUuid = uuid.matches("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
+        final boolean isUuid = s_uuidPattern.matcher(uuid).matches();
         // Enforce that it's uuid for newly added apis from version 3.x
         if (!isPre3x && !isUuid)
             return null;
@@ -396,7 +479,7 @@ public class ParamProcessWorker implements DispatchWorker {
         }
         // There may be multiple entities defined on the @EntityReference of a Response.class
         // UUID CommandType would expect only one entityType, so use the first entityType
-        final Class<?>[] entities = annotation.entityType()[0].getAnnotation(EntityReference.class).value();
+        final Class<?>[] entities = binding.entities;
         // Go through each entity which is an interface to a VO class and get a VO object
         // Try to getId() for the object using reflection, break on first non-null value
         for (final Class<?> entity : entities) {
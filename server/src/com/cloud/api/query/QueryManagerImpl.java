@@ -35,6 +35,7 @@ import org.apache.cloudstack.affinity.AffinityGroupResponse;
 import org.apache.cloudstack.affinity.AffinityGroupVMMapVO;
 import org.apache.cloudstack.affinity.dao.AffinityGroupDomainMapDao;
 import org.apache.cloudstack.affinity.dao.AffinityGroupVMMapDao;
+import org.apache.cloudstack.api.BaseListCmd;
 import org.apache.cloudstack.api.BaseListProjectAndAccountResourcesCmd;
 import org.apache.cloudstack.api.ResourceDetail;
 import org.apache.cloudstack.api.ResponseObject.ResponseView;
@@ -121,6 +122,7 @@ import com.cloud.api.query.dao.VolumeJoinDao;
 import com.cloud.api.query.vo.AccountJoinVO;
 import com.cloud.api.query.vo.AffinityGroupJoinVO;
 import com.cloud.api.query.vo.AsyncJobJoinVO;
+import com.cloud.api.query.vo.BaseViewVO;
 import com.cloud.api.query.vo.DataCenterJoinVO;
 import com.cloud.api.query.vo.DiskOfferingJoinVO;
 import com.cloud.api.query.vo.DomainRouterJoinVO;
@@ -192,6 +194,7 @@ import com.cloud.utils.Pair;
 import com.cloud.utils.Ternary;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.JoinBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
@@ -466,6 +469,62 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         return _userAccountJoinDao.searchAndCount(sc, searchFilter);
     }
 
+    /**
+     * Resolves the startafter parameter of a list command to the entry it refers to.
+     *
+     * @return null if the command is paged by offset
+     */
+    private <T extends BaseViewVO> T findStartAfter(BaseListCmd cmd, GenericDao<T, Long> dao) {
+        String startAfter = cmd.getStartAfter();
+        if (startAfter == null) {
+            return null;
+        }
+        T entry = dao.findByUuidIncludingRemoved(startAfter);
+        if (entry == null) {
+            throw new InvalidParameterValueException("Unable to find the entry to start after with specified uuid " + startAfter);
+        }
+        return entry;
+    }
+
+    /**
+     * Runs a paged list search over a list ordered by id only.
+     *
+     * @see #searchPage(GenericDao, SearchCriteria, Filter, BaseViewVO, String, Object, boolean)
+     */
+    private <T extends BaseViewVO> Pair<List<T>, Integer> searchPage(GenericDao<T, Long> dao, SearchCriteria<T> sc, Filter searchFilter, T startAfter,
+        boolean ascending) {
+        return searchPage(dao, sc, searchFilter, startAfter, null, null, ascending);
+    }
+
+    /**
+     * Runs a paged list search. When startAfter is set the page is located with a keyset condition that follows
+     * the list order, which must be orderField then id, both in the given direction. With orderField null the list
+     * is ordered by id only. The total count is skipped in that case: it costs a full scan of the view on every
+     * page, so the page size is returned as count instead.
+     */
+    private <T extends BaseViewVO> Pair<List<T>, Integer> searchPage(GenericDao<T, Long> dao, SearchCriteria<T> sc, Filter searchFilter, T startAfter,
+        String orderField, Object orderValue, boolean ascending) {
+        if (startAfter == null) {
+            return dao.searchAndCount(sc, searchFilter);
+        }
+        SearchCriteria.Op after = ascending ? SearchCriteria.Op.GT : SearchCriteria.Op.LT;
+        if (orderField == null) {
+            sc.addAnd("id", after, startAfter.getId());
+        } else {
+            // (orderField, id) after (orderValue, startAfter.id), spelled out so that MySQL can use an index on orderField
+            SearchCriteria<T> tieSc = dao.createSearchCriteria();
+            tieSc.addAnd(orderField, SearchCriteria.Op.EQ, orderValue);
+            tieSc.addAnd("id", after, startAfter.getId());
+
+            SearchCriteria<T> ssc = dao.createSearchCriteria();
+            ssc.addOr(orderField, after, orderValue);
+            ssc.addOr("id", SearchCriteria.Op.SC, tieSc);
+            sc.addAnd(orderField, SearchCriteria.Op.SC, ssc);
+        }
+        List<T> entries = dao.search(sc, searchFilter);
+        return new Pair<List<T>, Integer>(entries, entries.size());
+    }
+
     @Override
     public ListResponse<EventResponse> searchForEvents(ListEventsCmd cmd) {
         Pair<List<EventJoinVO>, Integer> result = searchForEventsInternal(cmd);
@@ -498,7 +557,10 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
+        EventJoinVO startAfter = findStartAfter(cmd, _eventJoinDao);
         Filter searchFilter = new Filter(EventJoinVO.class, "createDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        // id breaks ties between events created in the same second, startafter relies on a total order
+        searchFilter.addOrderBy(EventJoinVO.class, "id", false);
         SearchBuilder<EventJoinVO> sb = _eventJoinDao.createSearchBuilder();
 
         sb.and("id", sb.entity().getId(), SearchCriteria.Op.EQ);
@@ -579,7 +641,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
              * == null) { pendingEvents.add(event); } } return pendingEvents;
              */
         } else {
-            eventPair = _eventJoinDao.searchAndCount(sc, searchFilter);
+            eventPair = searchPage(_eventJoinDao, sc, searchFilter, startAfter, "createDate",
+                startAfter != null ? startAfter.getCreateDate() : null, false);
         }
         return eventPair;
 
@@ -753,6 +816,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
 
         Filter searchFilter = new Filter(UserVmJoinVO.class, "id", true, cmd.getStartIndex(),
                 cmd.getPageSizeVal());
+        UserVmJoinVO startAfter = findStartAfter(cmd, _userVmJoinDao);
 
         List<Long> ids = null;
         if (cmd.getId() != null) {
@@ -963,7 +1027,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
             sc.setParameters("displayVm", 1);
         }
         // search vm details by ids
-        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair = _userVmJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair = searchPage(_userVmJoinDao, sc, searchFilter, startAfter, true);
         Integer count = uniqueVmPair.second();
         if (count.intValue() == 0) {
             // handle empty result cases
@@ -1137,6 +1201,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
         Filter searchFilter = new Filter(DomainRouterJoinVO.class, "id", true, cmd.getStartIndex(),
                 cmd.getPageSizeVal());
+        DomainRouterJoinVO startAfter = findStartAfter(cmd, _routerJoinDao);
 
         SearchBuilder<DomainRouterJoinVO> sb = _routerJoinDao.createSearchBuilder();
         sb.select(null, Func.DISTINCT, sb.entity().getId()); // select distinct
@@ -1229,7 +1294,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         }
 
         // search VR details by ids
-        Pair<List<DomainRouterJoinVO>, Integer> uniqueVrPair = _routerJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<DomainRouterJoinVO>, Integer> uniqueVrPair = searchPage(_routerJoinDao, sc, searchFilter, startAfter, true);
         Integer count = uniqueVrPair.second();
         if (count.intValue() == 0) {
             // empty result
@@ -1674,7 +1739,10 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
 //        Long domainId = domainIdRecursiveListProject.first();
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
+        VolumeJoinVO startAfter = findStartAfter(cmd, _volumeJoinDao);
         Filter searchFilter = new Filter(VolumeJoinVO.class, "created", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        // id breaks ties between volumes created in the same second, startafter relies on a total order
+        searchFilter.addOrderBy(VolumeJoinVO.class, "id", false);
 
         // hack for now, this should be done better but due to needing a join I
         // opted to
@@ -1778,7 +1846,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         sc.setParameters("state", Volume.State.Destroy);
 
         // search Volume details by ids
-        Pair<List<VolumeJoinVO>, Integer> uniqueVolPair = _volumeJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<VolumeJoinVO>, Integer> uniqueVolPair = searchPage(_volumeJoinDao, sc, searchFilter, startAfter, "created",
+                startAfter != null ? startAfter.getCreated() : null, false);
         Integer count = uniqueVolPair.second();
         if (count.intValue() == 0) {
             // empty result
@@ -1952,6 +2021,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
         Filter searchFilter = new Filter(AsyncJobJoinVO.class, "id", true, cmd.getStartIndex(), cmd.getPageSizeVal());
+        AsyncJobJoinVO startAfter = findStartAfter(cmd, _jobJoinDao);
         /*
         SearchBuilder<AsyncJobJoinVO> sb = _jobJoinDao.createSearchBuilder();
         sb.and("accountIdIN", sb.entity().getAccountId(), SearchCriteria.Op.IN);
@@ -2013,7 +2083,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService {
             sc.addAnd("created", SearchCriteria.Op.GTEQ, startDate);
         }
 
-        return _jobJoinDao.searchAndCount(sc, searchFilter);
+        return searchPage(_jobJoinDao, sc, searchFilter, startAfter, true);
     }
 
     @Override
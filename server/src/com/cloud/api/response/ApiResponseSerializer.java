@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.api.response;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -63,6 +66,19 @@ public class ApiResponseSerializer {
         }
     }
 
+    /**
+     * Writes the serialized response to the given writer. Entries of a list response are serialized
+     * and written one at a time, so the complete response text is never held in memory.
+     */
+    public static void serialize(ResponseObject result, String responseType, Writer out) throws IOException {
+        s_logger.trace("===Serializing Response===");
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            writeJSON(result, out);
+        } else {
+            writeXML(result, out);
+        }
+    }
+
     private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
 
     public static String unescape(String escaped) {
@@ -76,17 +92,28 @@ public class ApiResponseSerializer {
 
     public static String toJSONSerializedString(ResponseObject result) {
         if (result != null) {
-            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+            StringWriter out = new StringWriter();
+            try {
+                writeJSON(result, out);
+            } catch (IOException e) {
+                throw new CloudRuntimeException("Unable to serialize response", e);
+            }
+            return out.toString();
+        }
+        return null;
+    }
 
-            StringBuilder sb = new StringBuilder();
+    private static void writeJSON(ResponseObject result, Writer out) throws IOException {
+        if (result != null) {
+            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
 
-            sb.append("{ \"").append(result.getResponseName()).append("\" : ");
+            out.append("{ \"").append(result.getResponseName()).append("\" : ");
             if (result instanceof ListResponse) {
                 List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
                 Integer count = ((ListResponse)result).getCount();
                 boolean nonZeroCount = (count != null && count.longValue() != 0);
                 if (nonZeroCount) {
-                    sb.append("{ \"").append(ApiConstants.COUNT).append("\":").append(count);
+                    out.append("{ \"").append(ApiConstants.COUNT).append("\":").append(String.valueOf(count));
                 }
 
                 if ((responses != null) && !responses.isEmpty()) {
@@ -94,48 +121,56 @@ public class ApiResponseSerializer {
                     jsonStr = unescape(jsonStr);
 
                     if (nonZeroCount) {
-                        sb.append(" ,\"").append(responses.get(0).getObjectName()).append("\" : [  ").append(jsonStr);
+                        out.append(" ,\"").append(responses.get(0).getObjectName()).append("\" : [  ").append(jsonStr);
                     }
 
-                    for (int i = 1; i < ((ListResponse)result).getResponses().size(); i++) {
+                    for (int i = 1; i < responses.size(); i++) {
                         jsonStr = gson.toJson(responses.get(i));
                         jsonStr = unescape(jsonStr);
-                        sb.append(", ").append(jsonStr);
+                        out.append(", ").append(jsonStr);
                     }
-                    sb.append(" ] }");
+                    out.append(" ] }");
                 } else  {
                     if (!nonZeroCount) {
-                        sb.append("{");
+                        out.append("{");
                     }
 
-                    sb.append(" }");
+                    out.append(" }");
                 }
             } else if (result instanceof SuccessResponse) {
-                sb.append("{ \"success\" : \"").append(((SuccessResponse)result).getSuccess()).append("\"} ");
+                out.append("{ \"success\" : \"").append(String.valueOf(((SuccessResponse)result).getSuccess())).append("\"} ");
             } else if (result instanceof ExceptionResponse) {
                 String jsonErrorText = gson.toJson(result);
                 jsonErrorText = unescape(jsonErrorText);
-                sb.append(jsonErrorText);
+                out.append(jsonErrorText);
             } else {
                 String jsonStr = gson.toJson(result);
                 if ((jsonStr != null) && !"".equals(jsonStr)) {
                     jsonStr = unescape(jsonStr);
                     if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
-                        sb.append(jsonStr);
+                        out.append(jsonStr);
                     } else {
-                        sb.append(" { \"").append(result.getObjectName()).append("\" : ").append(jsonStr).append(" } ");
+                        out.append(" { \"").append(result.getObjectName()).append("\" : ").append(jsonStr).append(" } ");
                     }
                 } else {
-                    sb.append("{ }");
+                    out.append("{ }");
                 }
             }
-            sb.append(" }");
-            return sb.toString();
+            out.append(" }");
         }
-        return null;
     }
 
     private static String toXMLSerializedString(ResponseObject result) {
+        StringWriter out = new StringWriter();
+        try {
+            writeXML(result, out);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize response", e);
+        }
+        return out.toString();
+    }
+
+    private static void writeXML(ResponseObject result, Writer out) throws IOException {
         StringBuilder sb = new StringBuilder();
         sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
         sb.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
@@ -150,6 +185,9 @@ public class ApiResponseSerializer {
             if ((responses != null) && !responses.isEmpty()) {
                 for (ResponseObject obj : responses) {
                     serializeResponseObjXML(sb, obj);
+                    // flush each entry so that only one of them is buffered at a time
+                    out.append(sb);
+                    sb.setLength(0);
                 }
             }
         } else {
@@ -161,7 +199,7 @@ public class ApiResponseSerializer {
         }
 
         sb.append("</").append(result.getResponseName()).append(">");
-        return sb.toString();
+        out.append(sb);
     }
 
     private static void serializeResponseObjXML(StringBuilder sb, ResponseObject obj) {
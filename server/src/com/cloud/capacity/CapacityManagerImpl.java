@@ -200,70 +200,50 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         }
 
         try {
-            final Long clusterIdFinal = clusterId;
-            final long capacityCpuId = capacityCpu.getId();
-            final long capacityMemoryId = capacityMemory.getId();
-            Transaction.execute(new TransactionCallbackNoReturn() {
-                @Override
-                public void doInTransactionWithoutResult(TransactionStatus status) {
-                    CapacityVO capacityCpu = _capacityDao.lockRow(capacityCpuId, true);
-                    CapacityVO capacityMemory = _capacityDao.lockRow(capacityMemoryId, true);
-
-                    long usedCpu = capacityCpu.getUsedCapacity();
-                    long usedMem = capacityMemory.getUsedCapacity();
-                    long reservedCpu = capacityCpu.getReservedCapacity();
-                    long reservedMem = capacityMemory.getReservedCapacity();
-                    long actualTotalCpu = capacityCpu.getTotalCapacity();
-                    float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterIdFinal, "cpuOvercommitRatio").getValue());
-                    float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterIdFinal, "memoryOvercommitRatio").getValue());
-                    int vmCPU = svo.getCpu() * svo.getSpeed();
-                    long vmMem = svo.getRamSize() * 1024L * 1024L;
-                    long actualTotalMem = capacityMemory.getTotalCapacity();
-                    long totalMem = (long)(actualTotalMem * memoryOvercommitRatio);
-                    long totalCpu = (long)(actualTotalCpu * cpuOvercommitRatio);
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Hosts's actual total CPU: " + actualTotalCpu + " and CPU after applying overprovisioning: " + totalCpu);
-                        s_logger.debug("Hosts's actual total RAM: " + actualTotalMem + " and RAM after applying overprovisioning: " + totalMem);
-                    }
-
-                    if (!moveFromReserved) {
-                        /* move resource from used */
-                        if (usedCpu >= vmCPU) {
-                            capacityCpu.setUsedCapacity(usedCpu - vmCPU);
-                        }
-                        if (usedMem >= vmMem) {
-                            capacityMemory.setUsedCapacity(usedMem - vmMem);
-                        }
+            long usedCpu = capacityCpu.getUsedCapacity();
+            long usedMem = capacityMemory.getUsedCapacity();
+            long reservedCpu = capacityCpu.getReservedCapacity();
+            long reservedMem = capacityMemory.getReservedCapacity();
+            long actualTotalCpu = capacityCpu.getTotalCapacity();
+            float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "cpuOvercommitRatio").getValue());
+            float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "memoryOvercommitRatio").getValue());
+            int vmCPU = svo.getCpu() * svo.getSpeed();
+            long vmMem = svo.getRamSize() * 1024L * 1024L;
+            long actualTotalMem = capacityMemory.getTotalCapacity();
+            long totalMem = (long)(actualTotalMem * memoryOvercommitRatio);
+            long totalCpu = (long)(actualTotalCpu * cpuOvercommitRatio);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Hosts's actual total CPU: " + actualTotalCpu + " and CPU after applying overprovisioning: " + totalCpu);
+                s_logger.debug("Hosts's actual total RAM: " + actualTotalMem + " and RAM after applying overprovisioning: " + totalMem);
+            }
 
-                        if (moveToReservered) {
-                            if (reservedCpu + vmCPU <= totalCpu) {
-                                capacityCpu.setReservedCapacity(reservedCpu + vmCPU);
-                            }
-                            if (reservedMem + vmMem <= totalMem) {
-                                capacityMemory.setReservedCapacity(reservedMem + vmMem);
-                            }
-                        }
-                    } else {
-                        if (reservedCpu >= vmCPU) {
-                            capacityCpu.setReservedCapacity(reservedCpu - vmCPU);
-                        }
-                        if (reservedMem >= vmMem) {
-                            capacityMemory.setReservedCapacity(reservedMem - vmMem);
-                        }
-                    }
+            // the bounds are enforced by the update itself, the entries may have changed since they were read
+            long usedCpuDelta = 0;
+            long usedMemDelta = 0;
+            long reservedCpuDelta = 0;
+            long reservedMemDelta = 0;
+            if (!moveFromReserved) {
+                /* move resource from used */
+                usedCpuDelta = -vmCPU;
+                usedMemDelta = -vmMem;
+
+                if (moveToReservered) {
+                    reservedCpuDelta = vmCPU;
+                    reservedMemDelta = vmMem;
+                }
+            } else {
+                reservedCpuDelta = -vmCPU;
+                reservedMemDelta = -vmMem;
+            }
 
-                    s_logger.debug("release cpu from host: " + hostId + ", old used: " + usedCpu + ",reserved: " + reservedCpu + ", actual total: " + actualTotalCpu +
-                        ", total with overprovisioning: " + totalCpu + "; new used: " + capacityCpu.getUsedCapacity() + ",reserved:" + capacityCpu.getReservedCapacity() +
-                        "; movedfromreserved: " + moveFromReserved + ",moveToReservered" + moveToReservered);
+            s_logger.debug("release cpu from host: " + hostId + ", old used: " + usedCpu + ",reserved: " + reservedCpu + ", actual total: " + actualTotalCpu +
+                ", total with overprovisioning: " + totalCpu + "; used change: " + usedCpuDelta + ",reserved change:" + reservedCpuDelta +
+                "; movedfromreserved: " + moveFromReserved + ",moveToReservered" + moveToReservered);
 
-                    s_logger.debug("release mem from host: " + hostId + ", old used: " + usedMem + ",reserved: " + reservedMem + ", total: " + totalMem + "; new used: " +
-                        capacityMemory.getUsedCapacity() + ",reserved:" + capacityMemory.getReservedCapacity() + "; movedfromreserved: " + moveFromReserved +
-                        ",moveToReservered" + moveToReservered);
+            s_logger.debug("release mem from host: " + hostId + ", old used: " + usedMem + ",reserved: " + reservedMem + ", total: " + totalMem + "; used change: " +
+                usedMemDelta + ",reserved change:" + reservedMemDelta + "; movedfromreserved: " + moveFromReserved + ",moveToReservered" + moveToReservered);
 
-                    _capacityDao.update(capacityCpu.getId(), capacityCpu);
-                    _capacityDao.update(capacityMemory.getId(), capacityMemory);
-                }
-            });
+            addVmCapacity(capacityCpu.getId(), usedCpuDelta, reservedCpuDelta, totalCpu, capacityMemory.getId(), usedMemDelta, reservedMemDelta, totalMem);
 
             return true;
         } catch (Exception e) {
@@ -295,82 +275,92 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         final long ram = svo.getRamSize() * 1024L * 1024L;
 
         try {
-            final long capacityCpuId = capacityCpu.getId();
-            final long capacityMemId = capacityMem.getId();
+            long usedCpu = capacityCpu.getUsedCapacity();
+            long usedMem = capacityMem.getUsedCapacity();
+            long reservedCpu = capacityCpu.getReservedCapacity();
+            long reservedMem = capacityMem.getReservedCapacity();
+            long actualTotalCpu = capacityCpu.getTotalCapacity();
+            long actualTotalMem = capacityMem.getTotalCapacity();
+            long totalCpu = (long)(actualTotalCpu * cpuOvercommitRatio);
+            long totalMem = (long)(actualTotalMem * memoryOvercommitRatio);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Hosts's actual total CPU: " + actualTotalCpu + " and CPU after applying overprovisioning: " + totalCpu);
+            }
 
-            Transaction.execute(new TransactionCallbackNoReturn() {
-                @Override
-                public void doInTransactionWithoutResult(TransactionStatus status) {
-                    CapacityVO capacityCpu = _capacityDao.lockRow(capacityCpuId, true);
-                    CapacityVO capacityMem = _capacityDao.lockRow(capacityMemId, true);
-
-                    long usedCpu = capacityCpu.getUsedCapacity();
-                    long usedMem = capacityMem.getUsedCapacity();
-                    long reservedCpu = capacityCpu.getReservedCapacity();
-                    long reservedMem = capacityMem.getReservedCapacity();
-                    long actualTotalCpu = capacityCpu.getTotalCapacity();
-                    long actualTotalMem = capacityMem.getTotalCapacity();
-                    long totalCpu = (long)(actualTotalCpu * cpuOvercommitRatio);
-                    long totalMem = (long)(actualTotalMem * memoryOvercommitRatio);
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Hosts's actual total CPU: " + actualTotalCpu + " and CPU after applying overprovisioning: " + totalCpu);
-                    }
+            long freeCpu = totalCpu - (reservedCpu + usedCpu);
+            long freeMem = totalMem - (reservedMem + usedMem);
 
-                    long freeCpu = totalCpu - (reservedCpu + usedCpu);
-                    long freeMem = totalMem - (reservedMem + usedMem);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("We are allocating VM, increasing the used capacity of this host:" + hostId);
+                s_logger.debug("Current Used CPU: " + usedCpu + " , Free CPU:" + freeCpu + " ,Requested CPU: " + cpu);
+                s_logger.debug("Current Used RAM: " + usedMem + " , Free RAM:" + freeMem + " ,Requested RAM: " + ram);
+            }
+            capacityCpu.setUsedCapacity(usedCpu + cpu);
+            capacityMem.setUsedCapacity(usedMem + ram);
 
+            if (fromLastHost) {
+                /* alloc from reserved */
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("We are allocating VM to the last host again, so adjusting the reserved capacity if it is not less than required");
+                    s_logger.debug("Reserved CPU: " + reservedCpu + " , Requested CPU: " + cpu);
+                    s_logger.debug("Reserved RAM: " + reservedMem + " , Requested RAM: " + ram);
+                }
+                if (reservedCpu >= cpu && reservedMem >= ram) {
+                    capacityCpu.setReservedCapacity(reservedCpu - cpu);
+                    capacityMem.setReservedCapacity(reservedMem - ram);
+                }
+            } else {
+                /* alloc from free resource */
+                if (!((reservedCpu + usedCpu + cpu <= totalCpu) && (reservedMem + usedMem + ram <= totalMem))) {
                     if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("We are allocating VM, increasing the used capacity of this host:" + hostId);
-                        s_logger.debug("Current Used CPU: " + usedCpu + " , Free CPU:" + freeCpu + " ,Requested CPU: " + cpu);
-                        s_logger.debug("Current Used RAM: " + usedMem + " , Free RAM:" + freeMem + " ,Requested RAM: " + ram);
-                    }
-                    capacityCpu.setUsedCapacity(usedCpu + cpu);
-                    capacityMem.setUsedCapacity(usedMem + ram);
-
-                    if (fromLastHost) {
-                        /* alloc from reserved */
-                        if (s_logger.isDebugEnabled()) {
-                            s_logger.debug("We are allocating VM to the last host again, so adjusting the reserved capacity if it is not less than required");
-                            s_logger.debug("Reserved CPU: " + reservedCpu + " , Requested CPU: " + cpu);
-                            s_logger.debug("Reserved RAM: " + reservedMem + " , Requested RAM: " + ram);
-                        }
-                        if (reservedCpu >= cpu && reservedMem >= ram) {
-                            capacityCpu.setReservedCapacity(reservedCpu - cpu);
-                            capacityMem.setReservedCapacity(reservedMem - ram);
-                        }
-                    } else {
-                        /* alloc from free resource */
-                        if (!((reservedCpu + usedCpu + cpu <= totalCpu) && (reservedMem + usedMem + ram <= totalMem))) {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Host doesnt seem to have enough free capacity, but increasing the used capacity anyways, " +
-                                    "since the VM is already starting on this host ");
-                            }
-                        }
+                        s_logger.debug("Host doesnt seem to have enough free capacity, but increasing the used capacity anyways, " +
+                            "since the VM is already starting on this host ");
                     }
+                }
+            }
 
-                    s_logger.debug("CPU STATS after allocation: for host: " + hostId + ", old used: " + usedCpu + ", old reserved: " + reservedCpu + ", actual total: " +
-                        actualTotalCpu + ", total with overprovisioning: " + totalCpu + "; new used:" + capacityCpu.getUsedCapacity() + ", reserved:" +
-                        capacityCpu.getReservedCapacity() + "; requested cpu:" + cpu + ",alloc_from_last:" + fromLastHost);
+            s_logger.debug("CPU STATS after allocation: for host: " + hostId + ", old used: " + usedCpu + ", old reserved: " + reservedCpu + ", actual total: " +
+                actualTotalCpu + ", total with overprovisioning: " + totalCpu + "; new used:" + capacityCpu.getUsedCapacity() + ", reserved:" +
+                capacityCpu.getReservedCapacity() + "; requested cpu:" + cpu + ",alloc_from_last:" + fromLastHost);
 
-                    s_logger.debug("RAM STATS after allocation: for host: " + hostId + ", old used: " + usedMem + ", old reserved: " + reservedMem + ", total: " +
-                        totalMem + "; new used: " + capacityMem.getUsedCapacity() + ", reserved: " + capacityMem.getReservedCapacity() + "; requested mem: " + ram +
-                        ",alloc_from_last:" + fromLastHost);
+            s_logger.debug("RAM STATS after allocation: for host: " + hostId + ", old used: " + usedMem + ", old reserved: " + reservedMem + ", total: " +
+                totalMem + "; new used: " + capacityMem.getUsedCapacity() + ", reserved: " + capacityMem.getReservedCapacity() + "; requested mem: " + ram +
+                ",alloc_from_last:" + fromLastHost);
 
-                    _capacityDao.update(capacityCpu.getId(), capacityCpu);
-                    _capacityDao.update(capacityMem.getId(), capacityMem);
-                }
-            });
+            // apply the changes as deltas, the entries may have been updated since they were read
+            addVmCapacity(capacityCpu.getId(), capacityCpu.getUsedCapacity() - usedCpu, capacityCpu.getReservedCapacity() - reservedCpu, totalCpu, capacityMem.getId(),
+                capacityMem.getUsedCapacity() - usedMem, capacityMem.getReservedCapacity() - reservedMem, totalMem);
         } catch (Exception e) {
             s_logger.error("Exception allocating VM capacity", e);
             return;
         }
     }
 
+    /**
+     * Applies the cpu and memory changes of a vm together. Each entry is floored at 0 and its reserved
+     * capacity is only increased while it stays within the total with overprovisioning.
+     */
+    private void addVmCapacity(final long cpuId, final long usedCpuDelta, final long reservedCpuDelta, final long totalCpu, final long memId, final long usedMemDelta,
+        final long reservedMemDelta, final long totalMem) {
+        Transaction.execute(new TransactionCallbackNoReturn() {
+            @Override
+            public void doInTransactionWithoutResult(TransactionStatus status) {
+                _capacityDao.addCapacity(cpuId, usedCpuDelta, reservedCpuDelta, totalCpu);
+                _capacityDao.addCapacity(memId, usedMemDelta, reservedMemDelta, totalMem);
+            }
+        });
+    }
+
     @Override
     public boolean checkIfHostHasCpuCapability(long hostId, Integer cpuNum, Integer cpuSpeed) {
+        return checkIfHostHasCpuCapability(_hostDao.findById(hostId), cpuNum, cpuSpeed);
+    }
+
+    @Override
+    public boolean checkIfHostHasCpuCapability(Host host, Integer cpuNum, Integer cpuSpeed) {
 
         // Check host can support the Cpu Number and Speed.
-        Host host = _hostDao.findById(hostId);
+        long hostId = host.getId();
         boolean isCpuNumGood = host.getCpus().intValue() >= cpuNum;
         boolean isCpuSpeedGood = host.getSpeed().intValue() >= cpuSpeed;
         if (isCpuNumGood && isCpuSpeedGood) {
@@ -391,6 +381,16 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Override
     public boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOvercommitRatio, float memoryOvercommitRatio,
         boolean considerReservedCapacity) {
+        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU);
+        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
+
+        return checkIfHostHasCapacity(hostId, capacityCpu, capacityMem, cpu, ram, checkFromReservedCapacity, cpuOvercommitRatio, memoryOvercommitRatio,
+            considerReservedCapacity);
+    }
+
+    @Override
+    public boolean checkIfHostHasCapacity(long hostId, CapacityVO capacityCpu, CapacityVO capacityMem, Integer cpu, long ram, boolean checkFromReservedCapacity,
+        float cpuOvercommitRatio, float memoryOvercommitRatio, boolean considerReservedCapacity) {
         boolean hasCapacity = false;
 
         if (s_logger.isDebugEnabled()) {
@@ -398,9 +398,6 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                 " , cpuOverprovisioningFactor: " + cpuOvercommitRatio);
         }
 
-        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU);
-        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
-
         if (capacityCpu == null || capacityMem == null) {
             if (capacityCpu == null) {
                 if (s_logger.isDebugEnabled()) {
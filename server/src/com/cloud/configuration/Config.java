@@ -350,6 +350,22 @@ public enum Config {
             "100",
             "The number of outstanding security group work items that can be queued to a host. If exceeded, work items will get dropped to conserve memory. Security Group Sync will take care of ensuring that the host gets updated eventually",
             null),
+    SecurityGroupDeltaUpdatesEnabled(
+            "Network",
+            ManagementServer.class,
+            Boolean.class,
+            "network.securitygroups.delta.updates.enabled",
+            "false",
+            "If true, only the cidrs added to or removed from the last acknowledged ruleset of a vm are sent to KVM hosts. All KVM agents must support delta updates",
+            null),
+    SecurityGroupMemberCacheTtl(
+            "Network",
+            ManagementServer.class,
+            Integer.class,
+            "network.securitygroups.member.cache.ttl",
+            "30",
+            "Time in seconds the guest ips of the members of a security group are cached by a management server. Bounds how long membership changes made on other management servers take to show up in the rules it sends",
+            null),
 
     SecurityGroupDefaultAdding(
             "Network",
@@ -685,6 +701,14 @@ public enum Config {
     UpdateWait("Advanced", AgentManager.class, Integer.class, "update.wait", "600", "Time to wait (in seconds) before alerting on a updating agent", null),
     XapiWait("Advanced", AgentManager.class, Integer.class, "xapiwait", "60", "Time (in seconds) to wait for XAPI to return", null),
     MigrateWait("Advanced", AgentManager.class, Integer.class, "migratewait", "3600", "Time (in seconds) to wait for VM migrate finish", null),
+    RouterConfigBatchThreshold(
+            "Advanced",
+            AgentManager.class,
+            Integer.class,
+            "router.config.batch.threshold",
+            "10",
+            "Number of configuration scripts from which the configuration of a virtual router is applied as one batched file, 0 applies them one by one. KVM hosts read it from agent.properties",
+            null),
     HAWorkers("Advanced", AgentManager.class, Integer.class, "ha.workers", "5", "Number of ha worker threads.", null),
     MountParent(
             "Advanced",
@@ -991,6 +1015,22 @@ public enum Config {
             "FirstFitPlanner",
             "'FirstFitPlanner', 'UserDispersingPlanner', 'UserConcentratedPodPlanner': DeploymentPlanner heuristic that will be used for VM deployment.",
             null),
+    VmDeploymentClusterCheckThreads(
+            "Advanced",
+            ManagementServer.class,
+            Integer.class,
+            "vm.deployment.cluster.check.threads",
+            "1",
+            "Number of threads used to look up suitable hosts and storage pools in the candidate clusters of a VM deployment in parallel. 1 checks the clusters one after the other",
+            null),
+    VmDeploymentClusterChecksPerPlan(
+            "Advanced",
+            ManagementServer.class,
+            Integer.class,
+            "vm.deployment.cluster.checks.per.plan",
+            "2",
+            "Maximum number of clusters of a single VM deployment checked in parallel, so that deployments with many candidate clusters don't hold up the other ones",
+            null),
     ElasticLoadBalancerEnabled(
             "Advanced",
             ManagementServer.class,
@@ -1807,6 +1847,14 @@ public enum Config {
     ApiLimitInterval("Advanced", ManagementServer.class, Integer.class, "api.throttling.interval", "1", "Time interval (in seconds) to reset API count", null),
     ApiLimitMax("Advanced", ManagementServer.class, Integer.class, "api.throttling.max", "25", "Max allowed number of APIs within fixed interval", null),
     ApiLimitCacheSize("Advanced", ManagementServer.class, Integer.class, "api.throttling.cachesize", "50000", "Account based API count cache size", null),
+    ApiLimitMutatingMax(
+            "Advanced",
+            ManagementServer.class,
+            Integer.class,
+            "api.throttling.mutating.max",
+            "0",
+            "Max allowed number of state changing APIs (all but list/get/query APIs) within fixed interval, counted separately from api.throttling.max. 0 to count them against api.throttling.max",
+            null),
 
     // object store
     S3EnableRRS("Advanced", ManagementServer.class, Boolean.class, "s3.rrs.enabled", "false", "enable s3 reduced redundancy storage", null),
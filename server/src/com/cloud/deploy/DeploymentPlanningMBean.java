@@ -0,0 +1,40 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.Map;
+
+/**
+ * Allows JMX access to the deployment planning latencies
+ *
+ */
+public interface DeploymentPlanningMBean {
+    /**
+     * @return time taken by complete deployment plans, including affinity processing and storage allocation
+     */
+    Map<String, Long> getPlanLatencyHistogram();
+
+    /**
+     * @return time taken by cluster planners to order the candidate clusters
+     */
+    Map<String, Long> getClusterOrderingLatencyHistogram();
+
+    /**
+     * @return time taken by the host allocators to find suitable hosts within a cluster
+     */
+    Map<String, Long> getHostAllocationLatencyHistogram();
+}
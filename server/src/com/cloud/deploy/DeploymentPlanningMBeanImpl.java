@@ -0,0 +1,60 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+import com.cloud.utils.LatencyHistogram;
+
+public class DeploymentPlanningMBeanImpl extends StandardMBean implements DeploymentPlanningMBean {
+    private final LatencyHistogram _planHistogram = new LatencyHistogram();
+    private final LatencyHistogram _clusterOrderingHistogram = new LatencyHistogram();
+    private final LatencyHistogram _hostAllocationHistogram = new LatencyHistogram();
+
+    protected DeploymentPlanningMBeanImpl() {
+        super(DeploymentPlanningMBean.class, false);
+    }
+
+    public void recordPlan(long ms) {
+        _planHistogram.record(ms);
+    }
+
+    public void recordClusterOrdering(long ms) {
+        _clusterOrderingHistogram.record(ms);
+    }
+
+    public void recordHostAllocation(long ms) {
+        _hostAllocationHistogram.record(ms);
+    }
+
+    @Override
+    public Map<String, Long> getPlanLatencyHistogram() {
+        return _planHistogram.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getClusterOrderingLatencyHistogram() {
+        return _clusterOrderingHistogram.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getHostAllocationLatencyHistogram() {
+        return _hostAllocationHistogram.snapshot();
+    }
+}
@@ -428,6 +428,7 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     ScheduledExecutorService _checkExecutor;
     ScheduledExecutorService _networkStatsUpdateExecutor;
     ExecutorService _rvrStatusUpdateExecutor;
+    ExecutorService _dhcpReplayExecutor;
 
     Account _systemAcct;
 
@@ -674,6 +675,13 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     static final ConfigKey<Boolean> routerVersionCheckEnabled = new ConfigKey<Boolean>("Advanced", Boolean.class, "router.version.check", "true",
             "If true, router minimum required version is checked before sending command", false);
 
+    static final ConfigKey<Integer> RouterDhcpReplayChunkSize = new ConfigKey<Integer>("Advanced", Integer.class, "router.dhcp.replay.chunk.size", "100",
+            "Number of vms whose dhcp and user data entries are reapplied at a time on router start. Networks with more vms get them reapplied in the background once "
+                    + "the router is running, 0 to always reapply them while starting the router", true);
+
+    private static final int DHCP_REPLAY_POOL_SIZE = 10;
+    private static final long DHCP_REPLAY_START_WAIT = 10 * 60 * 1000L;
+
 
     @Override
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
@@ -718,6 +726,7 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
         _vrUpdateQueue = new LinkedBlockingQueue<Long>(_rvrStatusUpdatePoolSize * 1000);
 
         _rvrStatusUpdateExecutor = Executors.newFixedThreadPool(_rvrStatusUpdatePoolSize, new NamedThreadFactory("RedundantRouterStatusMonitor"));
+        _dhcpReplayExecutor = Executors.newFixedThreadPool(DHCP_REPLAY_POOL_SIZE, new NamedThreadFactory("RouterDhcpReplay"));
 
         _instance = configs.get("instance.name");
         if (_instance == null) {
@@ -2537,16 +2546,126 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
     }
 
     protected void finalizeUserDataAndDhcpOnStart(final Commands cmds, final DomainRouterVO router, final Provider provider, final Long guestNetworkId) {
-        if (_networkModel.isProviderSupportServiceInNetwork(guestNetworkId, Service.Dhcp, provider)) {
+        final boolean dhcp = _networkModel.isProviderSupportServiceInNetwork(guestNetworkId, Service.Dhcp, provider);
+        final boolean userData = _networkModel.isProviderSupportServiceInNetwork(guestNetworkId, Service.UserData, provider);
+        if (!dhcp && !userData) {
+            return;
+        }
+
+        final List<UserVmVO> vms = _userVmDao.listByNetworkIdAndStates(guestNetworkId, State.Running, State.Migrating, State.Stopping);
+        final int chunkSize = RouterDhcpReplayChunkSize.value();
+        if (chunkSize > 0 && vms.size() > chunkSize) {
+            // don't hold the router start (and the forwarding rules sent with it) until every entry is back
+            s_logger.debug("Reapplying dhcp and vm data entries of " + vms.size() + " vms in network " + guestNetworkId + " once domR " + router + " is running");
+            _dhcpReplayExecutor.submit(new DhcpReplayTask(router.getId(), guestNetworkId, dhcp, userData, chunkSize));
+            return;
+        }
+
+        if (dhcp) {
             // Resend dhcp
             s_logger.debug("Reapplying dhcp entries as a part of domR " + router + " start...");
-            createDhcpEntryCommandsForVMs(router, cmds, guestNetworkId);
+            createDhcpEntryCommandsForVMs(router, cmds, guestNetworkId, vms);
         }
 
-        if (_networkModel.isProviderSupportServiceInNetwork(guestNetworkId, Service.UserData, provider)) {
+        if (userData) {
             // Resend user data
             s_logger.debug("Reapplying vm data (userData and metaData) entries as a part of domR " + router + " start...");
-            createVmDataCommandForVMs(router, cmds, guestNetworkId);
+            createVmDataCommandForVMs(router, cmds, guestNetworkId, vms);
+        }
+    }
+
+    /**
+     * Reapplies the dhcp and vm data entries of a network on a router that has just been started,
+     * a chunk of vms at a time.
+     */
+    protected class DhcpReplayTask extends ManagedContextRunnable {
+        private final long _routerId;
+        private final long _networkId;
+        private final boolean _dhcp;
+        private final boolean _userData;
+        private final int _chunkSize;
+
+        public DhcpReplayTask(final long routerId, final long networkId, final boolean dhcp, final boolean userData, final int chunkSize) {
+            _routerId = routerId;
+            _networkId = networkId;
+            _dhcp = dhcp;
+            _userData = userData;
+            _chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void runInContext() {
+            DomainRouterVO router = waitForRouterRunning();
+            if (router == null) {
+                s_logger.debug("Router " + _routerId + " didn't get to running state, not reapplying dhcp and vm data entries of network " + _networkId);
+                return;
+            }
+            final long hostId = router.getHostId();
+
+            final List<UserVmVO> vms = _userVmDao.listByNetworkIdAndStates(_networkId, State.Running, State.Migrating, State.Stopping);
+            int done = 0;
+            int failed = 0;
+            for (int i = 0; i < vms.size(); i += _chunkSize) {
+                final List<UserVmVO> chunk = vms.subList(i, Math.min(vms.size(), i + _chunkSize));
+                try {
+                    final String routerControlIp = getRouterControlIp(router.getId());
+                    final String routerGuestIp = getRouterIpInNetwork(_networkId, router.getId());
+                    final Commands cmds = new Commands(Command.OnError.Continue);
+                    cmds.addCommand(new AggregationControlCommand(Action.Start, router.getInstanceName(), routerControlIp, routerGuestIp));
+                    if (_dhcp) {
+                        createDhcpEntryCommandsForVMs(router, cmds, _networkId, chunk);
+                    }
+                    if (_userData) {
+                        createVmDataCommandForVMs(router, cmds, _networkId, chunk);
+                    }
+                    cmds.addCommand(new AggregationControlCommand(Action.Finish, router.getInstanceName(), routerControlIp, routerGuestIp));
+                    if (!sendCommandsToRouter(router, cmds)) {
+                        failed += chunk.size();
+                    }
+                } catch (final Exception e) {
+                    s_logger.warn("Unable to reapply dhcp and vm data entries on domR " + router, e);
+                    failed += chunk.size();
+                }
+                done += chunk.size();
+                s_logger.info("Reapplied dhcp and vm data entries of " + done + "/" + vms.size() + " vms in network " + _networkId + " on domR " + router);
+
+                // a restarted or stopped router gets its entries again on its next start
+                router = _routerDao.findById(_routerId);
+                if (router == null || router.getState() != State.Running || router.getHostId() == null || router.getHostId() != hostId) {
+                    s_logger.debug("Router " + _routerId + " is no longer running on host " + hostId + ", stopped reapplying dhcp and vm data entries");
+                    return;
+                }
+            }
+
+            if (failed > 0) {
+                final String title = "Failed to reapply dhcp and vm data entries of " + failed + " vms on virtual router " + router.getInstanceName();
+                final String context = "Virtual router (name: " + router.getInstanceName() + ", id: " + router.getId() + ") failed to reapply dhcp and vm data entries of "
+                        + failed + " out of " + vms.size() + " vms in network " + _networkId + " after start";
+                s_logger.warn(context);
+                _alertMgr.sendAlert(AlertManager.AlertType.ALERT_TYPE_DOMAIN_ROUTER, router.getDataCenterId(), router.getPodIdToDeployIn(), title, context);
+            }
+        }
+
+        private DomainRouterVO waitForRouterRunning() {
+            final long deadline = System.currentTimeMillis() + DHCP_REPLAY_START_WAIT;
+            while (System.currentTimeMillis() < deadline) {
+                final DomainRouterVO router = _routerDao.findById(_routerId);
+                if (router == null) {
+                    return null;
+                }
+                if (router.getState() == State.Running) {
+                    return router;
+                }
+                if (router.getState() != State.Starting) {
+                    return null;
+                }
+                try {
+                    Thread.sleep(2000);
+                } catch (final InterruptedException e) {
+                    return null;
+                }
+            }
+            return null;
         }
     }
 
@@ -3543,8 +3662,7 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
                         vm.getId(), vm.getUuid(), publicKey, nic.getNetworkId()));
     }
 
-    private void createVmDataCommandForVMs(final DomainRouterVO router, final Commands cmds, final long guestNetworkId) {
-        final List<UserVmVO> vms = _userVmDao.listByNetworkIdAndStates(guestNetworkId, State.Running, State.Migrating, State.Stopping);
+    protected void createVmDataCommandForVMs(final DomainRouterVO router, final Commands cmds, final long guestNetworkId, final List<UserVmVO> vms) {
         final DataCenterVO dc = _dcDao.findById(router.getDataCenterId());
         for (final UserVmVO vm : vms) {
             boolean createVmData = true;
@@ -3634,8 +3752,7 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
         cmds.addCommand("ipalias", ipaliasCmd);
     }
 
-    private void createDhcpEntryCommandsForVMs(final DomainRouterVO router, final Commands cmds, final long guestNetworkId) {
-        final List<UserVmVO> vms = _userVmDao.listByNetworkIdAndStates(guestNetworkId, State.Running, State.Migrating, State.Stopping);
+    protected void createDhcpEntryCommandsForVMs(final DomainRouterVO router, final Commands cmds, final long guestNetworkId, final List<UserVmVO> vms) {
         final DataCenterVO dc = _dcDao.findById(router.getDataCenterId());
         for (final UserVmVO vm : vms) {
             boolean createDhcp = true;
@@ -4330,7 +4447,7 @@ public class VirtualNetworkApplianceManagerImpl extends ManagerBase implements V
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {UseExternalDnsServers, routerVersionCheckEnabled, SetServiceMonitor};
+        return new ConfigKey<?>[] {UseExternalDnsServers, routerVersionCheckEnabled, SetServiceMonitor, RouterDhcpReplayChunkSize};
     }
 
     @Override
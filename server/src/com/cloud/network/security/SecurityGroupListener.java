@@ -106,6 +106,7 @@ public class SecurityGroupListener implements Listener {
                         }
                     }
                 }
+                _securityGroupManager.handleRulesetAnswer(ruleAnswer);
                 commandNum++;
                 if (_workTracker != null)
                     _workTracker.processAnswers(agentId, seq, answers);
@@ -172,6 +173,7 @@ public class SecurityGroupListener implements Listener {
             if (_workTracker != null) {
                 _workTracker.processConnect(host.getId());
             }
+            _securityGroupManager.handleHostConnected(host.getId());
         }
     }
 
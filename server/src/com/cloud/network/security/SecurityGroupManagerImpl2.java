@@ -17,12 +17,15 @@
 package com.cloud.network.security;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -30,18 +33,23 @@ import javax.naming.ConfigurationException;
 
 import org.apache.cloudstack.managed.context.ManagedContext;
 
+import com.cloud.agent.api.SecurityGroupRuleAnswer;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.network.security.SecurityGroupWork.Step;
 import com.cloud.network.security.SecurityRule.SecurityRuleType;
 import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.Profiler;
+import com.cloud.utils.Ternary;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.NicVO;
+import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine.State;
 
 /**
@@ -61,6 +69,64 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private boolean _schedulerDisabled = false;
 
+    /**
+     * Guest ips (as /32 cidrs) of the running members of each security group, so that
+     * the rules of every vm referencing a group don't each query its members again.
+     * Dropped as a whole on every membership change and full sync seen by this management
+     * server, and reloaded once older than the ttl for the changes made by the others.
+     */
+    private final Map<Long, GroupMembers> _groupMemberCidrs = new ConcurrentHashMap<Long, GroupMembers>();
+    private final AtomicLong _groupMemberGeneration = new AtomicLong();
+    long _groupMemberCacheTtlMs = 30000;
+
+    /**
+     * Host, log sequence and signature of the last ruleset sent to each vm, used to skip
+     * updates that would not change anything on the host. An update sent by another
+     * management server moves the log sequence of the vm, so the entry no longer matches.
+     */
+    final Map<Long, Ternary<Long, Long, String>> _sentRulesets = new ConcurrentHashMap<Long, Ternary<Long, Long, String>>();
+
+    /**
+     * Vms with a pending update whose log sequence is still to be incremented. The
+     * increment is done when the update is actually sent, so that skipped vms stay
+     * in sync with the sequence number their host reports.
+     */
+    private final Set<Long> _pendingSeqnoUpdates = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /**
+     * With delta updates enabled, the rulesets sent to each vm and not answered yet, and the
+     * last ones acknowledged by its host, which the next update is computed against.
+     */
+    private boolean _deltaUpdatesEnabled = false;
+    final Map<Long, AppliedRuleset> _pendingRulesets = new ConcurrentHashMap<Long, AppliedRuleset>();
+    final Map<Long, AppliedRuleset> _appliedRulesets = new ConcurrentHashMap<Long, AppliedRuleset>();
+
+    protected static class GroupMembers {
+        final Set<String> _cidrs;
+        final long _loadedAt;
+
+        GroupMembers(Set<String> cidrs, long loadedAt) {
+            _cidrs = cidrs;
+            _loadedAt = loadedAt;
+        }
+    }
+
+    protected static class AppliedRuleset {
+        final long _hostId;
+        final long _seqno;
+        final String _signature;
+        final Map<PortAndProto, Set<String>> _ingressRules;
+        final Map<PortAndProto, Set<String>> _egressRules;
+
+        AppliedRuleset(long hostId, long seqno, String signature, Map<PortAndProto, Set<String>> ingressRules, Map<PortAndProto, Set<String>> egressRules) {
+            _hostId = hostId;
+            _seqno = seqno;
+            _signature = signature;
+            _ingressRules = ingressRules;
+            _egressRules = egressRules;
+        }
+    }
+
     protected class WorkerThread extends Thread {
         public WorkerThread(String name) {
             super(name);
@@ -113,11 +179,15 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
 
         Profiler p = new Profiler();
         p.start();
-        int updated = 0;
         if (updateSeqno) {
-            updated = _rulesetLogDao.createOrUpdate(workItems);
-            if (updated < workItems.size()) {
-                throw new CloudRuntimeException("Failed to create ruleset log entries");
+            // rules or memberships changed, vms with an unchanged ruleset are skipped by the workers
+            invalidateGroupMembers();
+            _pendingSeqnoUpdates.addAll(workItems);
+        } else {
+            // full sync or retry: the host is out of sync, resend what the database holds now
+            invalidateGroupMembers();
+            for (Long vmId : workItems) {
+                forgetRuleset(vmId);
             }
         }
         int newJobs = _workQueue.submitWorkForVms(workItems);
@@ -125,7 +195,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         p.stop();
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Security Group Mgr v2: done scheduling ruleset updates for " + workItems.size() + " vms: num new jobs=" + newJobs +
-                " num rows insert or updated=" + updated + " time taken=" + p.getDuration());
+                " time taken=" + p.getDuration());
         }
     }
 
@@ -149,13 +219,16 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                 }
 
                 try {
+                    boolean updateSeqno = _pendingSeqnoUpdates.remove(work.getInstanceId());
                     VmRulesetLogVO rulesetLog = _rulesetLogDao.findByVmId(work.getInstanceId());
-                    if (rulesetLog == null) {
+                    if (rulesetLog == null && !updateSeqno) {
                         s_logger.warn("Could not find ruleset log for vm " + work.getInstanceId());
                         continue;
                     }
-                    work.setLogsequenceNumber(rulesetLog.getLogsequence());
-                    sendRulesetUpdates(work);
+                    if (rulesetLog != null) {
+                        work.setLogsequenceNumber(rulesetLog.getLogsequence());
+                    }
+                    sendRulesetUpdates(work, true, updateSeqno);
                     _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
                 } catch (Exception e) {
                     s_logger.error("Problem during SG work " + work, e);
@@ -168,6 +241,14 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     }
 
     public void sendRulesetUpdates(SecurityGroupWork work) {
+        sendRulesetUpdates(work, false, false);
+    }
+
+    /**
+     * @param skipUnchanged don't send anything if the vm's host already has the same ruleset
+     * @param updateSeqno increment the log sequence of the vm before sending
+     */
+    protected void sendRulesetUpdates(SecurityGroupWork work, boolean skipUnchanged, boolean updateSeqno) {
         Long userVmId = work.getInstanceId();
         UserVm vm = _userVMDao.findById(userVmId);
 
@@ -179,6 +260,22 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
             Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
             Long agentId = vm.getHostId();
             if (agentId != null) {
+                String signature = generateRulesetSignature(ingressRules, egressRules);
+                Ternary<Long, Long, String> sent = _sentRulesets.get(userVmId);
+                if (skipUnchanged && sent != null && sent.equals(new Ternary<Long, Long, String>(agentId, work.getLogsequenceNumber(), signature))) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("SecurityGroupManager v2: ruleset of vm " + vm.getInstanceName() + " is unchanged, not sending it");
+                    }
+                    return;
+                }
+                if (updateSeqno) {
+                    _rulesetLogDao.createOrUpdate(Collections.singleton(userVmId));
+                    VmRulesetLogVO rulesetLog = _rulesetLogDao.findByVmId(userVmId);
+                    if (rulesetLog == null) {
+                        throw new CloudRuntimeException("Failed to create ruleset log entry for vm " + userVmId);
+                    }
+                    work.setLogsequenceNumber(rulesetLog.getLogsequence());
+                }
                 String privateIp = vm.getPrivateIpAddress();
                 NicVO nic = _nicDao.findByIp4AddressAndVmId(privateIp, vm.getId());
                 List<String> nicSecIps = null;
@@ -192,24 +289,35 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                 SecurityGroupRulesCmd cmd =
                     generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), null, work.getLogsequenceNumber(),
                         ingressRules, egressRules, nicSecIps);
+                if (_deltaUpdatesEnabled && vm.getHypervisorType() == HypervisorType.KVM) {
+                    AppliedRuleset applied = _appliedRulesets.get(userVmId);
+                    SecurityGroupRulesCmd deltaCmd = generateRulesetDeltaCmd(cmd, applied, agentId, ingressRules, egressRules, nicSecIps);
+                    _pendingRulesets.put(userVmId, new AppliedRuleset(agentId, work.getLogsequenceNumber(), cmd.getSignature(), ingressRules, egressRules));
+                    if (deltaCmd != null) {
+                        cmd = deltaCmd;
+                    }
+                }
                 cmd.setMsId(_serverId);
                 if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + ":ingress num rules=" +
-                        cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" +
-                        cmd.getSignature());
+                    s_logger.debug("SecurityGroupManager v2: sending ruleset " + (cmd.isDelta() ? "delta " : "") + "update for vm " + vm.getInstanceName() +
+                        ":ingress num rules=" + cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" +
+                        cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
                 }
                 Commands cmds = new Commands(cmd);
                 try {
+                    _sentRulesets.put(userVmId, new Ternary<Long, Long, String>(agentId, work.getLogsequenceNumber(), signature));
                     _agentMgr.send(agentId, cmds, _answerListener);
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + vm.getInstanceName() + " curr queue size=" + _workQueue.size());
                     }
                 } catch (AgentUnavailableException e) {
                     s_logger.debug("Unable to send updates for vm: " + userVmId + "(agentid=" + agentId + ")");
+                    forgetRuleset(userVmId);
                     _workTracker.handleException(agentId);
                 }
             }
         } else {
+            forgetRuleset(userVmId);
             if (s_logger.isDebugEnabled()) {
                 if (vm != null)
                     s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
@@ -219,6 +327,117 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         }
     }
 
+    /**
+     * @return a command holding only the cidrs added to and removed from the ruleset last acknowledged
+     *         by the vm's host, null if the full ruleset has to be sent
+     */
+    protected SecurityGroupRulesCmd generateRulesetDeltaCmd(SecurityGroupRulesCmd fullCmd, AppliedRuleset applied, long agentId,
+        Map<PortAndProto, Set<String>> ingressRules, Map<PortAndProto, Set<String>> egressRules, List<String> nicSecIps) {
+        if (applied == null || applied._hostId != agentId) {
+            return null;
+        }
+        // the default rule closing the egress chain depends on whether there are egress rules at all
+        if (applied._egressRules.isEmpty() != egressRules.isEmpty()) {
+            return null;
+        }
+        Map<PortAndProto, Set<String>> addedIngress = subtractRules(ingressRules, applied._ingressRules);
+        Map<PortAndProto, Set<String>> addedEgress = subtractRules(egressRules, applied._egressRules);
+        Map<PortAndProto, Set<String>> revokedIngress = subtractRules(applied._ingressRules, ingressRules);
+        Map<PortAndProto, Set<String>> revokedEgress = subtractRules(applied._egressRules, egressRules);
+        int changes = countCidrs(addedIngress) + countCidrs(addedEgress) + countCidrs(revokedIngress) + countCidrs(revokedEgress);
+        if (changes >= fullCmd.getTotalNumCidrs()) {
+            return null;
+        }
+        SecurityGroupRulesCmd cmd =
+            generateRulesetCmd(fullCmd.getVmName(), fullCmd.getGuestIp(), fullCmd.getGuestMac(), fullCmd.getVmId(), fullCmd.getSignature(), fullCmd.getSeqNum(),
+                addedIngress, addedEgress, nicSecIps);
+        cmd.setDelta(applied._signature, generateIpPortAndProtos(revokedIngress), generateIpPortAndProtos(revokedEgress));
+        return cmd;
+    }
+
+    private static Map<PortAndProto, Set<String>> subtractRules(Map<PortAndProto, Set<String>> rules, Map<PortAndProto, Set<String>> removed) {
+        Map<PortAndProto, Set<String>> result = new TreeMap<PortAndProto, Set<String>>();
+        for (Map.Entry<PortAndProto, Set<String>> entry : rules.entrySet()) {
+            Set<String> cidrs = new TreeSet<String>(new CidrComparator());
+            cidrs.addAll(entry.getValue());
+            Set<String> removedCidrs = removed.get(entry.getKey());
+            if (removedCidrs != null) {
+                cidrs.removeAll(removedCidrs);
+            }
+            if (cidrs.size() > 0) {
+                result.put(entry.getKey(), cidrs);
+            }
+        }
+        return result;
+    }
+
+    private static int countCidrs(Map<PortAndProto, Set<String>> rules) {
+        int count = 0;
+        for (Set<String> cidrs : rules.values()) {
+            count += cidrs.size();
+        }
+        return count;
+    }
+
+    @Override
+    protected void handleRulesetAnswer(SecurityGroupRuleAnswer answer) {
+        Long vmId = answer.getVmId();
+        if (vmId == null) {
+            return;
+        }
+        if (!answer.getResult()) {
+            // the host may be left with anything, make sure the next update is a full one
+            forgetRuleset(vmId);
+            return;
+        }
+        AppliedRuleset pending = _pendingRulesets.get(vmId);
+        if (pending != null && answer.getLogSequenceNumber() != null && pending._seqno == answer.getLogSequenceNumber()) {
+            _pendingRulesets.remove(vmId);
+            _appliedRulesets.put(vmId, pending);
+        } else {
+            _appliedRulesets.remove(vmId);
+        }
+    }
+
+    protected void forgetRuleset(long vmId) {
+        _sentRulesets.remove(vmId);
+        _pendingRulesets.remove(vmId);
+        _appliedRulesets.remove(vmId);
+    }
+
+    /**
+     * Forgets what was sent to all the vms of a host, so that they all get a full update next.
+     */
+    protected void forgetRulesets(long hostId) {
+        for (Iterator<Ternary<Long, Long, String>> it = _sentRulesets.values().iterator(); it.hasNext();) {
+            if (it.next().first() == hostId) {
+                it.remove();
+            }
+        }
+        for (Iterator<AppliedRuleset> it = _pendingRulesets.values().iterator(); it.hasNext();) {
+            if (it.next()._hostId == hostId) {
+                it.remove();
+            }
+        }
+        for (Iterator<AppliedRuleset> it = _appliedRulesets.values().iterator(); it.hasNext();) {
+            if (it.next()._hostId == hostId) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    protected void handleHostConnected(long hostId) {
+        forgetRulesets(hostId);
+    }
+
+    @Override
+    public void fullSync(long agentId, HashMap<String, Pair<Long, Long>> newGroupStates) {
+        // the host lost or changed rules behind our back, don't trust what was sent to it
+        forgetRulesets(agentId);
+        super.fullSync(agentId, newGroupStates);
+    }
+
     @Override
     public void cleanupFinishedWork() {
         //TODO: over time clean up op_vm_ruleset_log table for destroyed vms
@@ -245,14 +464,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                     cidrs = new TreeSet<String>(new CidrComparator());
                 }
                 if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        //here, we differ from the superclass: instead of creating N more queries to the
-                        //nics table, we use what's already there in the VO since the listBySecurityGroup already
-                        //did a join with the nics table
-                        String cidr = ngmapVO.getGuestIpAddress() + "/32";
-                        cidrs.add(cidr);
-                    }
+                    cidrs.addAll(getGroupMemberCidrs(rule.getAllowedNetworkId()));
                 } else if (rule.getAllowedSourceIpCidr() != null) {
                     cidrs.add(rule.getAllowedSourceIpCidr());
                 }
@@ -265,6 +477,67 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         return allowed;
     }
 
+    protected Set<String> getGroupMemberCidrs(long groupId) {
+        long now = System.currentTimeMillis();
+        GroupMembers cached = _groupMemberCidrs.get(groupId);
+        if (cached != null && now - cached._loadedAt < _groupMemberCacheTtlMs) {
+            return cached._cidrs;
+        }
+        long generation = _groupMemberGeneration.get();
+        Set<String> cidrs = new TreeSet<String>(new CidrComparator());
+        List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(groupId, State.Running);
+        for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
+            //here, we differ from the superclass: instead of creating N more queries to the
+            //nics table, we use what's already there in the VO since the listBySecurityGroup already
+            //did a join with the nics table
+            cidrs.add(ngmapVO.getGuestIpAddress() + "/32");
+        }
+        cidrs = Collections.unmodifiableSet(cidrs);
+        // don't cache what may have been read before the latest invalidation
+        if (generation == _groupMemberGeneration.get()) {
+            _groupMemberCidrs.put(groupId, new GroupMembers(cidrs, now));
+        }
+        return cidrs;
+    }
+
+    protected void invalidateGroupMembers() {
+        _groupMemberGeneration.incrementAndGet();
+        _groupMemberCidrs.clear();
+    }
+
+    @Override
+    public void handleVmStarted(VMInstanceVO vm) {
+        forgetRuleset(vm.getId());
+        invalidateGroupMembers();
+        super.handleVmStarted(vm);
+    }
+
+    @Override
+    protected void handleVmStopped(VMInstanceVO vm) {
+        forgetRuleset(vm.getId());
+        invalidateGroupMembers();
+        super.handleVmStopped(vm);
+    }
+
+    @Override
+    protected void handleVmMigrated(VMInstanceVO vm) {
+        forgetRuleset(vm.getId());
+        super.handleVmMigrated(vm);
+    }
+
+    @Override
+    public boolean addInstanceToGroups(Long userVmId, List<Long> groups) {
+        boolean result = super.addInstanceToGroups(userVmId, groups);
+        invalidateGroupMembers();
+        return result;
+    }
+
+    @Override
+    public void removeInstanceFromGroups(long userVmId) {
+        super.removeInstanceFromGroups(userVmId);
+        invalidateGroupMembers();
+    }
+
     public int getQueueSize() {
         return _workQueue.size();
     }
@@ -284,6 +557,8 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         boolean result = super.configure(name, params);
         Map<String, String> configs = _configDao.getConfiguration("Network", params);
         int bufferLength = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkPerAgentMaxQueueSize.key()), 100);
+        _deltaUpdatesEnabled = Boolean.parseBoolean(configs.get(Config.SecurityGroupDeltaUpdatesEnabled.key()));
+        _groupMemberCacheTtlMs = NumbersUtil.parseInt(configs.get(Config.SecurityGroupMemberCacheTtl.key()), 30) * 1000L;
         _workTracker = new SecurityGroupWorkTracker(_agentMgr, _answerListener, bufferLength);
         _answerListener.setWorkDispatcher(_workTracker);
         return result;
@@ -320,6 +595,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
 
     public void clearWorkQueue() {
         _workQueue.clear();
+        _pendingSeqnoUpdates.clear();
         s_logger.warn("Cleared the work queue (possible JMX operation)");
     }
 
@@ -20,6 +20,8 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,6 +36,10 @@ import javax.inject.Inject;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
 import org.apache.cloudstack.engine.subsystem.api.storage.DataStore;
 import org.apache.cloudstack.engine.subsystem.api.storage.DataStoreManager;
 import org.apache.cloudstack.engine.subsystem.api.storage.EndPoint;
@@ -51,6 +57,8 @@ import com.cloud.agent.api.HostStatsEntry;
 import com.cloud.agent.api.PerformanceMonitorCommand;
 import com.cloud.agent.api.VmDiskStatsEntry;
 import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ManagementServerHost;
 import com.cloud.cluster.ManagementServerHostVO;
 import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.exception.StorageUnavailableException;
@@ -94,11 +102,11 @@ import com.cloud.user.VmDiskStatisticsVO;
 import com.cloud.user.dao.VmDiskStatisticsDao;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
+import com.cloud.utils.TimeSeries;
 import com.cloud.utils.component.ComponentMethodInterceptable;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.Filter;
-import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
@@ -117,7 +125,7 @@ import com.cloud.vm.dao.VMInstanceDao;
  *
  */
 @Component
-public class StatsCollector extends ManagerBase implements ComponentMethodInterceptable {
+public class StatsCollector extends ManagerBase implements ComponentMethodInterceptable, ClusterManager.MessageListener {
 
     public static final Logger s_logger = Logger.getLogger(StatsCollector.class.getName());
 
@@ -178,13 +186,38 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     private ServiceOfferingDao _serviceOfferingDao;
     @Inject
     private HostGpuGroupsDao _hostGpuGroupsDao;
+    @Inject
+    private ClusterManager _clusterMgr;
 
-    private ConcurrentHashMap<Long, HostStats> _hostStats = new ConcurrentHashMap<Long, HostStats>();
+    private final ConcurrentHashMap<Long, HostStats> _hostStats = new ConcurrentHashMap<Long, HostStats>();
     private final ConcurrentHashMap<Long, VmStats> _VmStats = new ConcurrentHashMap<Long, VmStats>();
     private final ConcurrentHashMap<Long, VolumeStats> _volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
     private ConcurrentHashMap<Long, StorageStats> _storageStats = new ConcurrentHashMap<Long, StorageStats>();
     private ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
 
+    // history of the collected samples, in three tiers: every sample, 10 minute averages and hourly averages. All the
+    // metrics of a host or vm share one point: 2 bytes for the time delta and up to 3 per metric for the cpu in
+    // hundredths of a percent and rates below 1GB/s in KB, 23 bytes for the 7 vm metrics. The tiers hold the last 3
+    // samples, an hour and a full day at least, in a single array of about 1.1KB per vm with the state of the tiers.
+    private static final int[] HISTORY_TIER_SIZES = {64, 128, 560};
+    private static final long[] HISTORY_TIER_PERIODS = {0, 10 * 60 * 1000L, 60 * 60 * 1000L};
+    private static final long HISTORY_RETENTION = 24 * 60 * 60 * 1000L;
+    private static final String[] HOST_HISTORY_METRICS = {"cpuused", "memoryused", "networkkbsread", "networkkbswrite"};
+    // units per value: hundredths of a percent, MB, KB
+    private static final double[] HOST_HISTORY_SCALES = {100, 1.0 / (1024 * 1024), 1, 1};
+    private static final String[] VM_HISTORY_METRICS = {"cpuused", "networkkbsread", "networkkbswrite", "diskkbsread", "diskkbswrite", "diskioread", "diskiowrite"};
+    private static final double[] VM_HISTORY_SCALES = {100, 1, 1, 1, 1, 1, 1};
+
+    // every management server polls only the hosts connected to it and shares the results on this topic
+    private static final String STATS_TOPIC = "stats-collector";
+    private static final Gson s_gson = new GsonBuilder().create();
+    private final ConcurrentHashMap<Long, TimeSeries> _hostStatsHistory = new ConcurrentHashMap<Long, TimeSeries>();
+    private final ConcurrentHashMap<Long, TimeSeries> _vmStatsHistory = new ConcurrentHashMap<Long, TimeSeries>();
+
+    // shape of the histories, averaging the samples into the tiers' points according to the collection intervals
+    private TimeSeries.Layout _hostHistoryLayout;
+    private TimeSeries.Layout _vmHistoryLayout;
+
     long hostStatsInterval = -1L;
     long hostAndVmStatsInterval = -1L;
     long storageStatsInterval = -1L;
@@ -197,7 +230,6 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     private int _usageAggregationRange = 1440;
     private String _usageTimeZone = "GMT";
     private final long mgmtSrvrId = MacAddress.getMacAddress().toLong();
-    private static final int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 5;    // 5 seconds
     private static final int USAGE_AGGREGATION_RANGE_MIN = 10; // 10 minutes, same to com.cloud.usage.UsageManagerImpl.USAGE_AGGREGATION_RANGE_MIN
     private boolean _dailyOrHourly = false;
 
@@ -219,6 +251,13 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     @Override
     public boolean start() {
         init(_configDao.getConfiguration());
+        _clusterMgr.registerMessageListener(STATS_TOPIC, this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        _clusterMgr.unregisterMessageListener(STATS_TOPIC);
         return true;
     }
 
@@ -231,6 +270,8 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         volumeStatsInterval = NumbersUtil.parseLong(configs.get("volume.stats.interval"), -1L);
         autoScaleStatsInterval = NumbersUtil.parseLong(configs.get("autoscale.stats.interval"), 60000L);
         vmDiskStatsInterval = NumbersUtil.parseInt(configs.get("vm.disk.stats.interval"), 0);
+        _hostHistoryLayout = new TimeSeries.Layout(HOST_HISTORY_SCALES, HISTORY_TIER_SIZES, getHistoryTiers(hostStatsInterval));
+        _vmHistoryLayout = new TimeSeries.Layout(VM_HISTORY_SCALES, HISTORY_TIER_SIZES, getHistoryTiers(hostAndVmStatsInterval));
 
         if (hostStatsInterval > 0) {
             _executor.scheduleWithFixedDelay(new HostCollector(), 15000L, hostStatsInterval, TimeUnit.MILLISECONDS);
@@ -318,28 +359,43 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.L2Networking.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalDhcp.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalPxe.toString());
-                ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
                 List<HostVO> hosts = _hostDao.search(sc, null);
+                Set<Long> upHostIds = new HashSet<Long>();
+                List<HostVO> ownHosts = new ArrayList<HostVO>();
                 for (HostVO host : hosts) {
+                    upHostIds.add(host.getId());
+                    if (host.getManagementServerId() != null && host.getManagementServerId() == mgmtSrvrId) {
+                        ownHosts.add(host);
+                    }
+                }
+
+                Map<Long, HostStatsEntry> collected = new HashMap<Long, HostStatsEntry>();
+                long now = System.currentTimeMillis();
+                for (HostVO host : ownHosts) {
                     HostStatsEntry stats = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
                     if (stats != null) {
-                        hostStats.put(host.getId(), stats);
+                        _hostStats.put(host.getId(), stats);
+                        collected.put(host.getId(), stats);
+                        recordHostStats(host.getId(), now, stats);
                     } else {
                         s_logger.warn("Received invalid host stats for host: " + host.getId());
                     }
                 }
-                _hostStats = hostStats;
+                // drop the hosts that aren't up anymore, whichever server reported them
+                _hostStats.keySet().retainAll(upHostIds);
+                pruneHistory(_hostStatsHistory, now);
+                publishStats(now, collected, null);
                 // Get a subset of hosts with GPU support from the list of "hosts"
                 List<HostVO> gpuEnabledHosts = new ArrayList<HostVO>();
                 if (hostIds != null) {
-                    for (HostVO host : hosts) {
+                    for (HostVO host : ownHosts) {
                         if (hostIds.contains(host.getId())) {
                             gpuEnabledHosts.add(host);
                         }
                     }
                 } else {
-                    // Check for all the hosts managed by CloudStack.
-                    gpuEnabledHosts = hosts;
+                    // Check for all the hosts managed by this management server.
+                    gpuEnabledHosts = ownHosts;
                 }
                 for (HostVO host : gpuEnabledHosts) {
                     HashMap<String, HashMap<String, Long>> groupDetails = _resourceMgr.getGPUStatistics(host);
@@ -369,7 +425,10 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.LocalSecondaryStorage.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.TrafficMonitor.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
+                sc.addAnd("managementServerId", SearchCriteria.Op.EQ, mgmtSrvrId);
                 List<HostVO> hosts = _hostDao.search(sc, null);
+                long now = System.currentTimeMillis();
+                Map<Long, VmStatsEntry> samples = new HashMap<Long, VmStatsEntry>();
 
                 for (HostVO host : hosts) {
                     List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
@@ -383,29 +442,10 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                         HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
 
                         if (vmStatsById != null) {
-                            VmStatsEntry statsInMemory = null;
-
-                            Set<Long> vmIdSet = vmStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-                                statsInMemory = (VmStatsEntry)_VmStats.get(vmId);
-
-                                if (statsInMemory == null) {
-                                    //no stats exist for this vm, directly persist
-                                    _VmStats.put(vmId, statsForCurrentIteration);
-                                } else {
-                                    //update each field
-                                    statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-                                    statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-                                    statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-                                    statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-                                    statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
-                                    statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
-                                    statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
-                                    statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
-
-                                    _VmStats.put(vmId, statsInMemory);
-                                }
+                            for (Map.Entry<Long, VmStatsEntry> entry : vmStatsById.entrySet()) {
+                                recordVmStats(entry.getKey(), now, entry.getValue());
+                                samples.put(entry.getKey(), entry.getValue());
+                                mergeVmStats(entry.getKey(), entry.getValue());
                             }
                         }
 
@@ -414,6 +454,8 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                         continue;
                     }
                 }
+                pruneHistory(_vmStatsHistory, now);
+                publishStats(now, null, samples);
 
             } catch (Throwable t) {
                 s_logger.error("Error trying to retrieve VM stats", t);
@@ -425,51 +467,213 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         return _VmStats.get(id);
     }
 
+    /**
+     * Adds a sample of the vm to its totals, the network and disk counters of the samples add up.
+     */
+    private void mergeVmStats(long vmId, VmStatsEntry sample) {
+        VmStatsEntry statsInMemory = (VmStatsEntry)_VmStats.get(vmId);
+        if (statsInMemory == null) {
+            //no stats exist for this vm, directly persist
+            _VmStats.put(vmId, sample);
+            return;
+        }
+        //update each field
+        statsInMemory.setCPUUtilization(sample.getCPUUtilization());
+        statsInMemory.setNumCPUs(sample.getNumCPUs());
+        statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + sample.getNetworkReadKBs());
+        statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + sample.getNetworkWriteKBs());
+        statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + sample.getDiskWriteKBs());
+        statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + sample.getDiskReadIOs());
+        statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + sample.getDiskWriteIOs());
+        statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + sample.getDiskReadKBs());
+    }
+
+    /**
+     * Stats collected by this management server in the last interval, sent to the other ones. Only the samples of the
+     * vms are sent, every server adds them up to the totals itself.
+     */
+    static class StatsUpdate {
+        long timestamp;
+        Map<Long, HostStatsEntry> hosts;
+        Map<Long, VmStatsEntry> vmSamples;
+    }
+
+    private void publishStats(long now, Map<Long, HostStatsEntry> hosts, Map<Long, VmStatsEntry> vmSamples) {
+        if ((hosts == null || hosts.isEmpty()) && (vmSamples == null || vmSamples.isEmpty())) {
+            return;
+        }
+        StatsUpdate update = new StatsUpdate();
+        update.timestamp = now;
+        update.hosts = hosts;
+        update.vmSamples = vmSamples;
+        _clusterMgr.broadcastMessage(STATS_TOPIC, s_gson.toJson(update));
+    }
+
+    @Override
+    public void onMessage(String sourcePeer, String message) {
+        StatsUpdate update;
+        try {
+            update = s_gson.fromJson(message, StatsUpdate.class);
+        } catch (JsonParseException e) {
+            s_logger.warn("Ignoring malformed stats from management server " + sourcePeer, e);
+            return;
+        }
+        if (update.hosts != null) {
+            for (Map.Entry<Long, HostStatsEntry> entry : update.hosts.entrySet()) {
+                _hostStats.put(entry.getKey(), entry.getValue());
+                recordHostStats(entry.getKey(), update.timestamp, entry.getValue());
+            }
+        }
+        if (update.vmSamples != null) {
+            for (Map.Entry<Long, VmStatsEntry> entry : update.vmSamples.entrySet()) {
+                recordVmStats(entry.getKey(), update.timestamp, entry.getValue());
+                mergeVmStats(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the number of samples collected every intervalMs that make up a point of each history tier
+     */
+    private static int[] getHistoryTiers(long intervalMs) {
+        int[] tiers = new int[HISTORY_TIER_PERIODS.length];
+        for (int i = 0; i < tiers.length; i++) {
+            tiers[i] = intervalMs > 0 ? (int)Math.max(1, HISTORY_TIER_PERIODS[i] / intervalMs) : 1;
+        }
+        return tiers;
+    }
+
+    private void recordHostStats(long hostId, long now, HostStats stats) {
+        getOrCreateHistory(_hostStatsHistory, _hostHistoryLayout, hostId).add(now, stats.getCpuUtilization(), stats.getUsedMemory(), stats.getNetworkReadKBs(),
+            stats.getNetworkWriteKBs());
+    }
+
+    private void recordVmStats(long vmId, long now, VmStats stats) {
+        getOrCreateHistory(_vmStatsHistory, _vmHistoryLayout, vmId).add(now, stats.getCPUUtilization(), stats.getNetworkReadKBs(), stats.getNetworkWriteKBs(),
+            stats.getDiskReadKBs(), stats.getDiskWriteKBs(), stats.getDiskReadIOs(), stats.getDiskWriteIOs());
+    }
+
+    private static TimeSeries getOrCreateHistory(ConcurrentHashMap<Long, TimeSeries> history, TimeSeries.Layout layout, long id) {
+        TimeSeries series = history.get(id);
+        if (series == null) {
+            series = new TimeSeries(layout);
+            TimeSeries existing = history.putIfAbsent(id, series);
+            if (existing != null) {
+                series = existing;
+            }
+        }
+        return series;
+    }
+
+    /**
+     * Drops the history of hosts and vms that haven't reported for the whole retention period.
+     */
+    private static void pruneHistory(ConcurrentHashMap<Long, TimeSeries> history, long now) {
+        Iterator<TimeSeries> it = history.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getLastTimestamp() > HISTORY_RETENTION) {
+                it.remove();
+            }
+        }
+    }
+
+    private static Map<String, List<Pair<Long, Double>>> getHistory(ConcurrentHashMap<Long, TimeSeries> history, String[] metrics, long id, long since) {
+        Map<String, List<Pair<Long, Double>>> result = new HashMap<String, List<Pair<Long, Double>>>();
+        TimeSeries series = history.get(id);
+        if (series != null) {
+            for (int i = 0; i < metrics.length; i++) {
+                result.put(metrics[i], series.getPoints(i, since));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the collected samples of the vm since the given time (in ms) by metric name, as (time, value) pairs
+     */
+    public Map<String, List<Pair<Long, Double>>> getVmStatsHistory(long vmId, long since) {
+        return getHistory(_vmStatsHistory, VM_HISTORY_METRICS, vmId, since);
+    }
+
+    /**
+     * @return the collected samples of the host since the given time (in ms) by metric name, as (time, value) pairs
+     */
+    public Map<String, List<Pair<Long, Double>>> getHostStatsHistory(long hostId, long since) {
+        return getHistory(_hostStatsHistory, HOST_HISTORY_METRICS, hostId, since);
+    }
+
     class VmDiskStatsUpdaterTask extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
-            GlobalLock scanLock = GlobalLock.getInternLock("vm.disk.stats");
             try {
-                if (scanLock.lock(ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION)) {
-                    //Check for ownership
-                    //msHost in UP state with min id should run the job
-                    ManagementServerHostVO msHost = _msHostDao.findOneInUpState(new Filter(ManagementServerHostVO.class, "id", true, 0L, 1L));
-                    if (msHost == null || (msHost.getMsid() != mgmtSrvrId)) {
-                        s_logger.debug("Skipping aggregate disk stats update");
-                        scanLock.unlock();
-                        return;
-                    }
-                    try {
-                        Transaction.execute(new TransactionCallbackNoReturn() {
-                            @Override
-                            public void doInTransactionWithoutResult(TransactionStatus status) {
-                                //get all stats with delta > 0
-                                List<VmDiskStatisticsVO> updatedVmNetStats = _vmDiskStatsDao.listUpdatedStats();
-                                for (VmDiskStatisticsVO stat : updatedVmNetStats) {
-                                    if (_dailyOrHourly) {
-                                        //update agg bytes
-                                        stat.setAggBytesRead(stat.getCurrentBytesRead() + stat.getNetBytesRead());
-                                        stat.setAggBytesWrite(stat.getCurrentBytesWrite() + stat.getNetBytesWrite());
-                                        stat.setAggIORead(stat.getCurrentIORead() + stat.getNetIORead());
-                                        stat.setAggIOWrite(stat.getCurrentIOWrite() + stat.getNetIOWrite());
-                                        _vmDiskStatsDao.update(stat.getId(), stat);
-                                    }
-                                }
-                                s_logger.debug("Successfully updated aggregate vm disk stats");
+                Transaction.execute(new TransactionCallbackNoReturn() {
+                    @Override
+                    public void doInTransactionWithoutResult(TransactionStatus status) {
+                        //get all stats with delta > 0
+                        List<VmDiskStatisticsVO> updatedVmNetStats = _vmDiskStatsDao.listUpdatedStats();
+                        if (_dailyOrHourly) {
+                            List<VmDiskStatisticsVO> ownStats = listOwnDiskStats(updatedVmNetStats);
+                            for (VmDiskStatisticsVO stat : ownStats) {
+                                //update agg bytes
+                                stat.setAggBytesRead(stat.getCurrentBytesRead() + stat.getNetBytesRead());
+                                stat.setAggBytesWrite(stat.getCurrentBytesWrite() + stat.getNetBytesWrite());
+                                stat.setAggIORead(stat.getCurrentIORead() + stat.getNetIORead());
+                                stat.setAggIOWrite(stat.getCurrentIOWrite() + stat.getNetIOWrite());
                             }
-                        });
-                    } catch (Exception e) {
-                        s_logger.debug("Failed to update aggregate disk stats", e);
-                    } finally {
-                        scanLock.unlock();
+                            _vmDiskStatsDao.updateBatch(ownStats);
+                        }
+                        s_logger.debug("Successfully updated aggregate vm disk stats");
                     }
-                }
+                });
             } catch (Exception e) {
-                s_logger.debug("Exception while trying to acquire disk stats lock", e);
-            } finally {
-                scanLock.releaseRef();
+                s_logger.debug("Failed to update aggregate disk stats", e);
+            }
+        }
+    }
+
+    /**
+     * Like the collection of the disk stats, their aggregation is partitioned by host ownership: a management server
+     * aggregates the stats of the vms on (or last on) the hosts it manages. The stats of the vms on hosts managed by no
+     * server in Up state are aggregated by the one with the min id.
+     */
+    private List<VmDiskStatisticsVO> listOwnDiskStats(List<VmDiskStatisticsVO> stats) {
+        Set<Long> upServers = new HashSet<Long>();
+        for (ManagementServerHostVO msHost : _msHostDao.listBy(ManagementServerHost.State.Up)) {
+            upServers.add(msHost.getMsid());
+        }
+        Map<Long, Long> vmOwners = new HashMap<Long, Long>();
+        Map<Long, Long> hostOwners = new HashMap<Long, Long>();
+        Boolean ownsOrphans = null;
+        List<VmDiskStatisticsVO> ownStats = new ArrayList<VmDiskStatisticsVO>();
+        for (VmDiskStatisticsVO stat : stats) {
+            Long vmId = stat.getVmId();
+            if (!vmOwners.containsKey(vmId)) {
+                Long owner = null;
+                VMInstanceVO vm = _vmInstance.findByIdIncludingRemoved(vmId);
+                Long hostId = vm == null ? null : vm.getHostId() != null ? vm.getHostId() : vm.getLastHostId();
+                if (hostId != null) {
+                    if (!hostOwners.containsKey(hostId)) {
+                        HostVO host = _hostDao.findByIdIncludingRemoved(hostId);
+                        hostOwners.put(hostId, host == null ? null : host.getManagementServerId());
+                    }
+                    owner = hostOwners.get(hostId);
+                }
+                vmOwners.put(vmId, owner);
+            }
+            Long owner = vmOwners.get(vmId);
+            if (owner == null || !upServers.contains(owner)) {
+                if (ownsOrphans == null) {
+                    ManagementServerHostVO msHost = _msHostDao.findOneInUpState(new Filter(ManagementServerHostVO.class, "id", true, 0L, 1L));
+                    ownsOrphans = msHost != null && msHost.getMsid() == mgmtSrvrId;
+                }
+                if (ownsOrphans) {
+                    ownStats.add(stat);
+                }
+            } else if (owner == mgmtSrvrId) {
+                ownStats.add(stat);
             }
         }
+        return ownStats;
     }
 
     class VmDiskStatsTask extends ManagedContextRunnable {
@@ -486,6 +690,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                             ResourceState.ErrorInMaintenance);
                         sc.addAnd("type", SearchCriteria.Op.EQ, Host.Type.Routing.toString());
                         sc.addAnd("hypervisorType", SearchCriteria.Op.EQ, HypervisorType.KVM); // support KVM only util 2013.06.25
+                        sc.addAnd("managementServerId", SearchCriteria.Op.EQ, mgmtSrvrId);
                         List<HostVO> hosts = _hostDao.search(sc, null);
 
                         for (HostVO host : hosts) {
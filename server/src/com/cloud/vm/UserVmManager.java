@@ -45,6 +45,13 @@ public interface UserVmManager extends UserVmService {
     static final ConfigKey<Boolean> EnableDynamicallyScaleVm = new ConfigKey<Boolean>("Advanced", Boolean.class, EnableDynamicallyScaleVmCK, "false",
         "Enables/Disables dynamically scaling a vm", true, ConfigKey.Scope.Zone);
 
+    static final ConfigKey<Integer> BulkDeployMaxCount = new ConfigKey<Integer>("Advanced", Integer.class, "vm.bulk.deploy.max.count", "50",
+        "The maximum number of vms a single deployVirtualMachines call can create", true);
+    static final ConfigKey<Integer> BulkDeployStartWorkers = new ConfigKey<Integer>("Advanced", Integer.class, "vm.bulk.deploy.start.workers", "10",
+        "The number of threads starting the vms of deployVirtualMachines calls, shared by all of them", false);
+    static final ConfigKey<Integer> BulkDeployStartTimeout = new ConfigKey<Integer>("Advanced", Integer.class, "vm.bulk.deploy.start.timeout", "3600",
+        "Time in seconds a deployVirtualMachines call waits for its vms to start, vms not started by then are reported as failed", true);
+
     static final int MAX_USER_DATA_LENGTH_BYTES = 2048;
 
     /**
@@ -18,6 +18,7 @@ package com.cloud.vm;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -27,9 +28,13 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -52,7 +57,9 @@ import org.apache.cloudstack.api.command.admin.vm.ExpungeVMCmd;
 import org.apache.cloudstack.api.command.admin.vm.RecoverVMCmd;
 import org.apache.cloudstack.api.command.user.vm.AddNicToVMCmd;
 import org.apache.cloudstack.api.command.user.vm.DeployVMCmd;
+import org.apache.cloudstack.api.command.user.vm.DeployVMsCmd;
 import org.apache.cloudstack.api.command.user.vm.DestroyVMCmd;
+import org.apache.cloudstack.api.command.user.vm.ListVMMetricsCmd;
 import org.apache.cloudstack.api.command.user.vm.RebootVMCmd;
 import org.apache.cloudstack.api.command.user.vm.RemoveNicFromVMCmd;
 import org.apache.cloudstack.api.command.user.vm.ResetVMPasswordCmd;
@@ -81,6 +88,7 @@ import org.apache.cloudstack.framework.async.AsyncCallFuture;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.jobs.AsyncJobExecutionContext;
 import org.apache.cloudstack.framework.jobs.AsyncJobManager;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.storage.command.DettachCommand;
@@ -108,6 +116,8 @@ import com.cloud.api.ApiDBUtils;
 import com.cloud.api.query.dao.UserVmJoinDao;
 import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.ConfigurationManager;
 import com.cloud.configuration.Resource.ResourceType;
@@ -130,7 +140,9 @@ import com.cloud.deploy.dao.PlannerHostReservationDao;
 import com.cloud.domain.DomainVO;
 import com.cloud.domain.dao.DomainDao;
 import com.cloud.event.ActionEvent;
+import com.cloud.event.ActionEventUtils;
 import com.cloud.event.EventTypes;
+import com.cloud.event.EventVO;
 import com.cloud.event.UsageEventUtils;
 import com.cloud.event.UsageEventVO;
 import com.cloud.event.dao.UsageEventDao;
@@ -184,6 +196,7 @@ import com.cloud.network.security.dao.SecurityGroupDao;
 import com.cloud.network.security.dao.SecurityGroupVMMapDao;
 import com.cloud.network.vpc.VpcManager;
 import com.cloud.network.vpc.dao.VpcDao;
+import com.cloud.offering.DiskOffering;
 import com.cloud.offering.NetworkOffering;
 import com.cloud.offering.NetworkOffering.Availability;
 import com.cloud.offering.ServiceOffering;
@@ -195,6 +208,7 @@ import com.cloud.projects.ProjectManager;
 import com.cloud.resource.ResourceManager;
 import com.cloud.resource.ResourceState;
 import com.cloud.server.ConfigurationServer;
+import com.cloud.server.StatsCollector;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.service.dao.ServiceOfferingDetailsDao;
@@ -392,6 +406,8 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
     @Inject
     protected CapacityManager _capacityMgr;
     @Inject
+    protected CapacityDao _capacityDao;
+    @Inject
     protected VMInstanceDao _vmInstanceDao;
     @Inject
     protected ResourceLimitService _resourceLimitMgr;
@@ -459,6 +475,7 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
     DataStoreManager _dataStoreMgr;
 
     protected ScheduledExecutorService _executor = null;
+    private ExecutorService _bulkStartExecutor = null;
     protected int _expungeInterval;
     protected int _expungeDelay;
     protected boolean _dailyOrHourly = false;
@@ -1608,6 +1625,7 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
         _expungeDelay = NumbersUtil.parseInt(time, _expungeInterval);
 
         _executor = Executors.newScheduledThreadPool(wrks, new NamedThreadFactory("UserVm-Scavenger"));
+        _bulkStartExecutor = Executors.newFixedThreadPool(BulkDeployStartWorkers.value(), new NamedThreadFactory("UserVm-BulkStarter"));
 
         String aggregationRange = configs.get("usage.stats.job.aggregation.range");
         int _usageAggregationRange  = NumbersUtil.parseInt(aggregationRange, 1440);
@@ -1649,6 +1667,7 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
     @Override
     public boolean stop() {
         _executor.shutdown();
+        _bulkStartExecutor.shutdown();
         return true;
     }
 
@@ -3084,6 +3103,316 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
         return startVirtualMachine(cmd, null, cmd.getDeploymentPlanner());
     }
 
+    @Override
+    @ActionEvent(eventType = EventTypes.EVENT_VM_CREATE, eventDescription = "deploying Vms", async = true)
+    public List<UserVm> deployVirtualMachines(DeployVMsCmd cmd) throws InsufficientCapacityException, ResourceUnavailableException, ConcurrentOperationException,
+        ResourceAllocationException {
+        Account caller = CallContext.current().getCallingAccount();
+        long callerUserId = CallContext.current().getCallingUserId();
+        Account owner = _accountService.getActiveAccountById(cmd.getEntityOwnerId());
+        int count = cmd.getCount();
+        if (count > BulkDeployMaxCount.value()) {
+            throw new InvalidParameterValueException("Can't deploy more than " + BulkDeployMaxCount.value() + " vms at once, see " + BulkDeployMaxCount.key());
+        }
+
+        // look everything up once for the whole batch
+        DataCenter zone = _entityMgr.findById(DataCenter.class, cmd.getZoneId());
+        if (zone == null) {
+            throw new InvalidParameterValueException("Unable to find zone by id=" + cmd.getZoneId());
+        }
+        ServiceOffering serviceOffering = _entityMgr.findById(ServiceOffering.class, cmd.getServiceOfferingId());
+        if (serviceOffering == null) {
+            throw new InvalidParameterValueException("Unable to find service offering: " + cmd.getServiceOfferingId());
+        }
+        VirtualMachineTemplate template = _entityMgr.findById(VirtualMachineTemplate.class, cmd.getTemplateId());
+        if (template == null) {
+            throw new InvalidParameterValueException("Unable to use template " + cmd.getTemplateId());
+        }
+        DiskOffering diskOffering = null;
+        if (cmd.getDiskOfferingId() != null) {
+            diskOffering = _entityMgr.findById(DiskOffering.class, cmd.getDiskOfferingId());
+            if (diskOffering == null) {
+                throw new InvalidParameterValueException("Unable to find disk offering " + cmd.getDiskOfferingId());
+            }
+        }
+        if (!zone.isLocalStorageEnabled()) {
+            if (serviceOffering.getUseLocalStorage()) {
+                throw new InvalidParameterValueException("Zone is not configured to use local storage but service offering " + serviceOffering.getName() + " uses it");
+            }
+            if (diskOffering != null && diskOffering.getUseLocalStorage()) {
+                throw new InvalidParameterValueException("Zone is not configured to use local storage but disk offering " + diskOffering.getName() + " uses it");
+            }
+        }
+        if (zone.getNetworkType() == NetworkType.Basic && cmd.getNetworkIds() != null) {
+            throw new InvalidParameterValueException("Can't specify network Ids in Basic zone");
+        }
+        if (zone.getNetworkType() != NetworkType.Basic && !zone.isSecurityGroupEnabled() && cmd.getSecurityGroupIdList() != null &&
+            !cmd.getSecurityGroupIdList().isEmpty()) {
+            throw new InvalidParameterValueException("Can't create vm with security groups; security group feature is not enabled per zone");
+        }
+
+        // fail before creating anything if the whole batch doesn't fit in the owner's limits
+        if (!serviceOffering.isDynamic()) {
+            _resourceLimitMgr.checkResourceLimit(owner, ResourceType.user_vm, cmd.getDisplayVm(), count);
+            _resourceLimitMgr.checkResourceLimit(owner, ResourceType.cpu, cmd.getDisplayVm(), (long)count * serviceOffering.getCpu());
+            _resourceLimitMgr.checkResourceLimit(owner, ResourceType.memory, cmd.getDisplayVm(), (long)count * serviceOffering.getRamSize());
+        }
+
+        List<UserVm> vms = new ArrayList<UserVm>(count);
+        boolean created = false;
+        try {
+            for (int i = 1; i <= count; i++) {
+                String hostName = cmd.getName() == null ? null : cmd.getName() + "-" + i;
+                String displayName = cmd.getDisplayName() == null ? null : cmd.getDisplayName() + "-" + i;
+                IpAddresses addrs = new IpAddresses(null, null);
+                UserVm vm;
+                if (zone.getNetworkType() == NetworkType.Basic) {
+                    vm = createBasicSecurityGroupVirtualMachine(zone, serviceOffering, template, cmd.getSecurityGroupIdList(), owner, hostName, displayName, cmd.getDiskOfferingId(),
+                        cmd.getSize(), cmd.getGroup(), cmd.getHypervisor(), cmd.getHttpMethod(), cmd.getUserData(), cmd.getSSHKeyPairName(), null, addrs, cmd.getDisplayVm(),
+                        cmd.getKeyboard(), cmd.getAffinityGroupIdList(), cmd.getDetails(), null);
+                } else if (zone.isSecurityGroupEnabled()) {
+                    vm = createAdvancedSecurityGroupVirtualMachine(zone, serviceOffering, template, cmd.getNetworkIds(), cmd.getSecurityGroupIdList(), owner, hostName, displayName,
+                        cmd.getDiskOfferingId(), cmd.getSize(), cmd.getGroup(), cmd.getHypervisor(), cmd.getHttpMethod(), cmd.getUserData(), cmd.getSSHKeyPairName(), null, addrs,
+                        cmd.getDisplayVm(), cmd.getKeyboard(), cmd.getAffinityGroupIdList(), cmd.getDetails(), null);
+                } else {
+                    vm = createAdvancedVirtualMachine(zone, serviceOffering, template, cmd.getNetworkIds(), owner, hostName, displayName, cmd.getDiskOfferingId(), cmd.getSize(),
+                        cmd.getGroup(), cmd.getHypervisor(), cmd.getHttpMethod(), cmd.getUserData(), cmd.getSSHKeyPairName(), null, addrs, cmd.getDisplayVm(), cmd.getKeyboard(),
+                        cmd.getAffinityGroupIdList(), cmd.getDetails(), null);
+                }
+                vms.add(vm);
+            }
+            created = true;
+        } finally {
+            if (!created) {
+                // don't leave the vms of a half created batch allocated and never started
+                expungeBulkDeployedVms(vms);
+            }
+        }
+
+        if (!cmd.getStartVm()) {
+            return vms;
+        }
+
+        Map<Long, Long> plannedHosts = null;
+        if ((cmd.getAffinityGroupIdList() == null || cmd.getAffinityGroupIdList().isEmpty()) && cmd.getDeploymentPlanner() == null
+            && serviceOffering.getDeploymentPlanner() == null && serviceOffering.getHostTag() == null && !serviceOffering.isDynamic()) {
+            plannedHosts = planBulkDeployment(vms, serviceOffering);
+        }
+
+        Map<UserVm, String> failures = startVirtualMachines(vms, plannedHosts, cmd.getDeploymentPlanner(), BulkDeployStartTimeout.value() * 1000L);
+        if (!failures.isEmpty()) {
+            StringBuilder msg = new StringBuilder("Failed to start " + failures.size() + " of " + count + " vms, the other ones are running:");
+            for (Map.Entry<UserVm, String> failure : failures.entrySet()) {
+                msg.append(" ").append(failure.getKey().getUuid()).append(": ").append(failure.getValue()).append(";");
+            }
+            CloudRuntimeException ex = new CloudRuntimeException(msg.toString());
+            for (UserVm vm : failures.keySet()) {
+                ex.addProxyObject(vm.getUuid(), "vmId");
+            }
+            throw ex;
+        }
+
+        List<UserVm> result = new ArrayList<UserVm>(count);
+        for (UserVm vm : vms) {
+            result.add(_vmDao.findById(vm.getId()));
+        }
+        return result;
+    }
+
+    /**
+     * Destroys and expunges the vms created by a bulk deployment that failed before all of them were created.
+     */
+    protected void expungeBulkDeployedVms(List<UserVm> vms) {
+        Account caller = CallContext.current().getCallingAccount();
+        long callerUserId = CallContext.current().getCallingUserId();
+        for (UserVm vm : vms) {
+            try {
+                destroyVm(vm.getId());
+                if (!expunge(_vmDao.findByIdIncludingRemoved(vm.getId()), callerUserId, caller)) {
+                    s_logger.warn("Unable to expunge " + vm + " of a failed bulk deployment");
+                }
+            } catch (Exception e) {
+                s_logger.warn("Unable to expunge " + vm + " of a failed bulk deployment", e);
+            }
+        }
+    }
+
+    /**
+     * Places the identical vms of a bulk deployment in one pass over a single snapshot of the cpu and memory
+     * capacity of the zone, filling each host before moving on to the next one, instead of having every start
+     * search the whole zone on its own. The host is only a hint: the start still checks and reserves the
+     * capacity, and falls back to the deployment planner if the host turns out to be unsuitable.
+     *
+     * @return the host planned for each vm id; vms that didn't fit in the snapshot are left to the planner
+     */
+    protected Map<Long, Long> planBulkDeployment(List<UserVm> vms, ServiceOffering offering) {
+        Map<Long, Long> plannedHosts = new HashMap<Long, Long>();
+        if (vms.isEmpty()) {
+            return plannedHosts;
+        }
+        UserVm first = vms.get(0);
+        List<HostVO> hosts = _resourceMgr.listAllUpAndEnabledHostsInOneZoneByHypervisor(first.getHypervisorType(), first.getDataCenterId());
+        List<Long> hostIds = new ArrayList<Long>(hosts.size());
+        for (HostVO host : hosts) {
+            if (host.getType() == Host.Type.Routing) {
+                hostIds.add(host.getId());
+            }
+        }
+        if (hostIds.isEmpty()) {
+            return plannedHosts;
+        }
+
+        Map<Long, Long> hostClusters = new HashMap<Long, Long>();
+        for (HostVO host : hosts) {
+            hostClusters.put(host.getId(), host.getClusterId());
+        }
+        Map<Long, Long> freeCpu = freeCapacityByHost(_capacityDao.listByHostIdsAndType(hostIds, Capacity.CAPACITY_TYPE_CPU), hostClusters);
+        Map<Long, Long> freeMem = freeCapacityByHost(_capacityDao.listByHostIdsAndType(hostIds, Capacity.CAPACITY_TYPE_MEMORY), hostClusters);
+
+        long cpu = (long)offering.getCpu() * offering.getSpeed();
+        long ram = offering.getRamSize() * 1024L * 1024L;
+        int next = 0;
+        for (UserVm vm : vms) {
+            while (next < hostIds.size()) {
+                Long hostId = hostIds.get(next);
+                Long cpuLeft = freeCpu.get(hostId);
+                Long memLeft = freeMem.get(hostId);
+                if (cpuLeft != null && memLeft != null && cpuLeft >= cpu && memLeft >= ram) {
+                    freeCpu.put(hostId, cpuLeft - cpu);
+                    freeMem.put(hostId, memLeft - ram);
+                    plannedHosts.put(vm.getId(), hostId);
+                    break;
+                }
+                next++;
+            }
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Planned " + plannedHosts.size() + " of " + vms.size() + " vms of a bulk deployment on " + new HashSet<Long>(plannedHosts.values()).size() + " hosts");
+        }
+        return plannedHosts;
+    }
+
+    private Map<Long, Long> freeCapacityByHost(List<CapacityVO> capacities, Map<Long, Long> hostClusters) {
+        Map<Long, Float> overProvisioning = new HashMap<Long, Float>();
+        Map<Long, Long> free = new HashMap<Long, Long>();
+        for (CapacityVO capacity : capacities) {
+            Long clusterId = hostClusters.get(capacity.getHostOrPoolId());
+            float factor = 1;
+            if (clusterId != null) {
+                if (!overProvisioning.containsKey(clusterId)) {
+                    overProvisioning.put(clusterId, _capacityMgr.getClusterOverProvisioningFactor(clusterId, capacity.getCapacityType()));
+                }
+                factor = overProvisioning.get(clusterId);
+            }
+            long total = (long)(capacity.getTotalCapacity() * factor);
+            free.put(capacity.getHostOrPoolId(), total - capacity.getUsedCapacity() - capacity.getReservedCapacity());
+        }
+        return free;
+    }
+
+    /**
+     * Starts the vms of a bulk deployment in parallel on the bulk start workers. The starts don't run in
+     * API jobs of their own, as those would compete for the API job threads with the deploying job waiting
+     * for them.
+     *
+     * @param plannedHosts the host to try first for each vm id, may be null
+     * @return the reason of each vm that failed to start or didn't start within the timeout
+     */
+    protected Map<UserVm, String> startVirtualMachines(List<UserVm> vms, final Map<Long, Long> plannedHosts, final String deploymentPlanner, long timeoutMs) {
+        final User callingUser = CallContext.current().getCallingUser();
+        final Account callingAccount = CallContext.current().getCallingAccount();
+
+        final Set<Long> running = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        Map<UserVm, Future<?>> starts = new LinkedHashMap<UserVm, Future<?>>();
+        for (final UserVm vm : vms) {
+            starts.put(vm, _bulkStartExecutor.submit(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    running.add(vm.getId());
+                    try {
+                        startBulkDeployedVm(vm, plannedHosts == null ? null : plannedHosts.get(vm.getId()), callingUser, callingAccount, deploymentPlanner);
+                    } catch (CloudRuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new CloudRuntimeException(e.getMessage(), e);
+                    }
+                }
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        Map<UserVm, String> failures = new LinkedHashMap<UserVm, String>();
+        for (Map.Entry<UserVm, Future<?>> start : starts.entrySet()) {
+            try {
+                start.getValue().get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (java.util.concurrent.ExecutionException e) {
+                Throwable cause = e.getCause();
+                failures.put(start.getKey(), cause.getMessage() != null ? cause.getMessage() : cause.toString());
+            } catch (TimeoutException e) {
+                // starts still queued are dropped, the running ones complete in the background
+                start.getValue().cancel(false);
+                if (running.contains(start.getKey().getId())) {
+                    failures.put(start.getKey(), "still starting after " + timeoutMs / 1000 + " seconds");
+                } else {
+                    failures.put(start.getKey(), "not started within " + timeoutMs / 1000 + " seconds");
+                }
+            } catch (InterruptedException e) {
+                start.getValue().cancel(false);
+                failures.put(start.getKey(), "interrupted while waiting for the vm to start");
+            }
+        }
+        return failures;
+    }
+
+    protected void startBulkDeployedVm(UserVm vm, Long plannedHostId, User callingUser, Account callingAccount, String deploymentPlanner)
+        throws ResourceUnavailableException, InsufficientCapacityException, ConcurrentOperationException {
+        CallContext.register(callingUser, callingAccount);
+        AsyncJobExecutionContext.registerPseudoExecutionContext(callingAccount.getId(), callingUser.getId());
+        long eventId = ActionEventUtils.onStartedActionEvent(callingUser.getId(), vm.getAccountId(), EventTypes.EVENT_VM_START, "starting Vm. Vm Id: " + vm.getUuid(),
+            vm.isDisplayVm(), 0);
+        boolean started = false;
+        try {
+            if (plannedHostId != null) {
+                try {
+                    startVirtualMachine(vm.getId(), plannedHostId, true, null, deploymentPlanner);
+                    started = true;
+                } catch (InsufficientCapacityException e) {
+                    s_logger.debug("Unable to start " + vm + " on its planned host " + plannedHostId + ", leaving the placement to the deployment planner: " + e.getMessage());
+                }
+            }
+            if (!started) {
+                startVirtualMachine(vm.getId(), null, false, null, deploymentPlanner);
+                started = true;
+            }
+        } finally {
+            ActionEventUtils.onCompletedActionEvent(callingUser.getId(), vm.getAccountId(), started ? EventVO.LEVEL_INFO : EventVO.LEVEL_ERROR, EventTypes.EVENT_VM_START,
+                vm.isDisplayVm(), (started ? "Successfully started Vm. Vm Id: " : "Error while starting Vm. Vm Id: ") + vm.getUuid(), eventId);
+            AsyncJobExecutionContext.unregister();
+            CallContext.unregister();
+        }
+    }
+
+    @Override
+    public Map<String, List<Pair<Long, Double>>> listVirtualMachineMetrics(ListVMMetricsCmd cmd) {
+        Account caller = CallContext.current().getCallingAccount();
+        UserVmVO vm = _vmDao.findById(cmd.getId());
+        if (vm == null) {
+            throw new InvalidParameterValueException("Unable to find virtual machine with id " + cmd.getId());
+        }
+        _accountMgr.checkAccess(caller, null, true, vm);
+
+        long since = cmd.getStartDate() == null ? 0 : cmd.getStartDate().getTime();
+        Map<String, List<Pair<Long, Double>>> metrics = StatsCollector.getInstance().getVmStatsHistory(vm.getId(), since);
+        if (cmd.getName() != null) {
+            List<Pair<Long, Double>> samples = metrics.get(cmd.getName());
+            metrics = new HashMap<String, List<Pair<Long, Double>>>();
+            if (samples != null) {
+                metrics.put(cmd.getName(), samples);
+            }
+        }
+        return metrics;
+    }
+
     protected UserVm startVirtualMachine(DeployVMCmd cmd, Map<VirtualMachineProfile.Param, Object> additonalParams, String deploymentPlannerToUse) throws ResourceUnavailableException,
             InsufficientCapacityException, ConcurrentOperationException {
 
@@ -3341,6 +3670,16 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
     @Override
     public Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> startVirtualMachine(long vmId, Long hostId, Map<VirtualMachineProfile.Param, Object> additionalParams, String deploymentPlannerToUse)
             throws ConcurrentOperationException, ResourceUnavailableException, InsufficientCapacityException {
+        return startVirtualMachine(vmId, hostId, false, additionalParams, deploymentPlannerToUse);
+    }
+
+    /**
+     * @param plannedHost whether the host was chosen by the management server itself rather than requested by the
+     * caller, which only root admins are allowed to do
+     */
+    private Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> startVirtualMachine(long vmId, Long hostId, boolean plannedHost,
+            Map<VirtualMachineProfile.Param, Object> additionalParams, String deploymentPlannerToUse) throws ConcurrentOperationException, ResourceUnavailableException,
+            InsufficientCapacityException {
         // Input validation
         Account callerAccount = CallContext.current().getCallingAccount();
         UserVO callerUser = _userDao.findById(CallContext.current().getCallingUserId());
@@ -3370,7 +3709,7 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
         Host destinationHost = null;
         if (hostId != null) {
             Account account = CallContext.current().getCallingAccount();
-            if (!_accountService.isRootAdmin(account.getId())) {
+            if (!plannedHost && !_accountService.isRootAdmin(account.getId())) {
                 throw new PermissionDeniedException(
                         "Parameter hostid can only be specified by a Root Admin, permission denied");
             }
@@ -4794,7 +5133,7 @@ public class UserVmManagerImpl extends ManagerBase implements UserVmManager, Vir
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {EnableDynamicallyScaleVm};
+        return new ConfigKey<?>[] {EnableDynamicallyScaleVm, BulkDeployMaxCount, BulkDeployStartWorkers, BulkDeployStartTimeout};
     }
 
     @Override
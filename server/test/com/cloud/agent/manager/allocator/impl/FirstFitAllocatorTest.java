@@ -0,0 +1,171 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.deploy.DataCenterDeployment;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.host.Host;
+import com.cloud.resource.ResourceManager;
+import com.cloud.service.ServiceOfferingDetailsVO;
+import com.cloud.service.ServiceOfferingVO;
+import com.cloud.service.dao.ServiceOfferingDetailsDao;
+import com.cloud.vm.VirtualMachine;
+
+public class FirstFitAllocatorTest {
+    private static final long CLUSTER_ID = 10L;
+
+    FirstFitAllocator _allocator;
+    CapacityManager _capacityMgr;
+    CapacityDao _capacityDao;
+    ClusterDetailsDao _clusterDetailsDao;
+    List<Host> _hosts;
+    List<CapacityVO> _cpuCapacities;
+    List<CapacityVO> _memCapacities;
+    ServiceOfferingVO _offering;
+
+    @Before
+    public void setup() {
+        _allocator = new FirstFitAllocator();
+        _allocator._allocationAlgorithm = "firstfit";
+        _capacityMgr = mock(CapacityManager.class);
+        _capacityDao = mock(CapacityDao.class);
+        _clusterDetailsDao = mock(ClusterDetailsDao.class);
+        _allocator._capacityMgr = _capacityMgr;
+        _allocator._capacityDao = _capacityDao;
+        _allocator._clusterDetailsDao = _clusterDetailsDao;
+        _allocator._serviceOfferingDetailsDao = mock(ServiceOfferingDetailsDao.class);
+        _allocator._resourceMgr = mock(ResourceManager.class);
+
+        _hosts = new ArrayList<Host>();
+        _cpuCapacities = new ArrayList<CapacityVO>();
+        _memCapacities = new ArrayList<CapacityVO>();
+        for (long id = 1; id <= 4; id++) {
+            Host host = mock(Host.class);
+            when(host.getId()).thenReturn(id);
+            when(host.getClusterId()).thenReturn(CLUSTER_ID);
+            _hosts.add(host);
+            _cpuCapacities.add(new CapacityVO(id, 1L, 1L, CLUSTER_ID, 0, 8000, Capacity.CAPACITY_TYPE_CPU));
+            _memCapacities.add(new CapacityVO(id, 1L, 1L, CLUSTER_ID, 0, 8L << 30, Capacity.CAPACITY_TYPE_MEMORY));
+        }
+        when(_capacityDao.listByHostIdsAndType(Arrays.asList(1L, 2L, 3L, 4L), Capacity.CAPACITY_TYPE_CPU)).thenReturn(_cpuCapacities);
+        when(_capacityDao.listByHostIdsAndType(Arrays.asList(1L, 2L, 3L, 4L), Capacity.CAPACITY_TYPE_MEMORY)).thenReturn(_memCapacities);
+        when(_clusterDetailsDao.findDetail(CLUSTER_ID, "cpuOvercommitRatio")).thenReturn(new ClusterDetailsVO(CLUSTER_ID, "cpuOvercommitRatio", "1.0"));
+        when(_clusterDetailsDao.findDetail(CLUSTER_ID, "memoryOvercommitRatio")).thenReturn(new ClusterDetailsVO(CLUSTER_ID, "memoryOvercommitRatio", "1.0"));
+        when(_capacityMgr.checkIfHostHasCpuCapability(any(Host.class), anyInt(), anyInt())).thenReturn(true);
+        when(_capacityMgr.checkIfHostHasCapacity(anyLong(), any(CapacityVO.class), any(CapacityVO.class), anyInt(), anyLong(), anyBoolean(), anyFloat(), anyFloat(),
+            anyBoolean())).thenReturn(true);
+
+        _offering = new ServiceOfferingVO("offering", 1, 512, 500, 1, 1, false, false, false, "test", false, false, null, false, VirtualMachine.Type.User, 1L, null,
+            "FirstFitPlanner");
+    }
+
+    @Test
+    public void testCapacitiesAreReadOnceForAllHosts() {
+        List<Host> suitable = allocate(new ExcludeList());
+
+        assertEquals(_hosts, suitable);
+        verify(_capacityDao, times(1)).listByHostIdsAndType(Arrays.asList(1L, 2L, 3L, 4L), Capacity.CAPACITY_TYPE_CPU);
+        verify(_capacityDao, times(1)).listByHostIdsAndType(Arrays.asList(1L, 2L, 3L, 4L), Capacity.CAPACITY_TYPE_MEMORY);
+        for (int i = 0; i < _hosts.size(); i++) {
+            verify(_capacityMgr).checkIfHostHasCapacity(eq(i + 1L), same(_cpuCapacities.get(i)), same(_memCapacities.get(i)), eq(500), eq(512L * 1024 * 1024),
+                eq(false), eq(1.0f), eq(1.0f), eq(true));
+        }
+        verify(_clusterDetailsDao, times(1)).findDetail(CLUSTER_ID, "cpuOvercommitRatio");
+        verify(_clusterDetailsDao, times(1)).findDetail(CLUSTER_ID, "memoryOvercommitRatio");
+    }
+
+    @Test
+    public void testHostWithoutCapacityIsAvoided() {
+        Host full = _hosts.get(2);
+        when(_capacityMgr.checkIfHostHasCapacity(eq(3L), any(CapacityVO.class), any(CapacityVO.class), anyInt(), anyLong(), anyBoolean(), anyFloat(), anyFloat(),
+            anyBoolean())).thenReturn(false);
+        ExcludeList avoid = new ExcludeList();
+
+        List<Host> suitable = allocate(avoid);
+
+        assertEquals(Arrays.asList(_hosts.get(0), _hosts.get(1), _hosts.get(3)), suitable);
+        assertTrue(avoid.shouldAvoid(full));
+    }
+
+    @Test
+    public void testHostAtGuestLimitIsSkippedBeforeTheCapacityCheck() {
+        Host atLimit = _hosts.get(1);
+        when(_capacityMgr.checkIfHostReachMaxGuestLimit(atLimit)).thenReturn(true);
+        when(_capacityMgr.checkIfHostHasCapacity(eq(2L), any(CapacityVO.class), any(CapacityVO.class), anyInt(), anyLong(), anyBoolean(), anyFloat(), anyFloat(),
+            anyBoolean())).thenReturn(false);
+        ExcludeList avoid = new ExcludeList();
+
+        List<Host> suitable = allocate(avoid);
+
+        assertEquals(Arrays.asList(_hosts.get(0), _hosts.get(2), _hosts.get(3)), suitable);
+        // skipped for this allocation only, the host is not avoided
+        assertFalse(avoid.shouldAvoid(atLimit));
+        verify(_capacityMgr, never()).checkIfHostHasCapacity(eq(2L), any(CapacityVO.class), any(CapacityVO.class), anyInt(), anyLong(), anyBoolean(), anyFloat(),
+            anyFloat(), anyBoolean());
+    }
+
+    @Test
+    public void testHostWithoutGpuIsSkippedBeforeTheCapacityCheck() {
+        ServiceOfferingDetailsVO vgpu = mock(ServiceOfferingDetailsVO.class);
+        when(vgpu.getValue()).thenReturn("GRID K120Q");
+        when(_allocator._serviceOfferingDetailsDao.findDetail(anyLong(), anyString())).thenReturn(vgpu);
+        when(_allocator._resourceMgr.isGPUDeviceAvailable(anyLong(), eq("GRID K120Q"))).thenReturn(true);
+        when(_allocator._resourceMgr.isGPUDeviceAvailable(4L, "GRID K120Q")).thenReturn(false);
+        ExcludeList avoid = new ExcludeList();
+
+        List<Host> suitable = allocate(avoid);
+
+        assertEquals(Arrays.asList(_hosts.get(0), _hosts.get(1), _hosts.get(2)), suitable);
+        assertFalse(avoid.shouldAvoid(_hosts.get(3)));
+        verify(_capacityMgr, never()).checkIfHostHasCapacity(eq(4L), any(CapacityVO.class), any(CapacityVO.class), anyInt(), anyLong(), anyBoolean(), anyFloat(),
+            anyFloat(), anyBoolean());
+    }
+
+    private List<Host> allocate(ExcludeList avoid) {
+        return _allocator.allocateTo(new DataCenterDeployment(1L), _offering, null, avoid, new ArrayList<Host>(_hosts), 10, true, null);
+    }
+}
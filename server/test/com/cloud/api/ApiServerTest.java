@@ -0,0 +1,107 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import org.apache.cloudstack.api.ApiErrorCode;
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.BaseResponse;
+import org.apache.cloudstack.api.ServerApiException;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.context.CallContext;
+
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.AccountVO;
+import com.cloud.user.UserVO;
+
+public class ApiServerTest {
+
+    ApiServer apiServer;
+
+    AccountManager accountMgr;
+
+    @Before
+    public void setup() throws Exception {
+        apiServer = new ApiServer();
+        accountMgr = Mockito.mock(AccountManager.class);
+        Field accountMgrField = ApiServer.class.getDeclaredField("_accountMgr");
+        accountMgrField.setAccessible(true);
+        accountMgrField.set(apiServer, accountMgr);
+
+        Account account = new AccountVO("testaccount", 1, "networkdomain", (short)0, UUID.randomUUID().toString());
+        UserVO user = new UserVO(1, "testuser", "password", "firstname", "lastName", "email", "timezone", UUID.randomUUID().toString());
+        CallContext.register(user, account);
+    }
+
+    @After
+    public void tearDown() {
+        CallContext.unregister();
+    }
+
+    @Test
+    public void streamedSerializationFailureIsInternalError() throws Exception {
+        ListResponse<BrokenResponse> response = new ListResponse<BrokenResponse>();
+        response.setResponses(Arrays.asList(new BrokenResponse()), 1);
+        response.setResponseName("listbrokenresponse");
+
+        StringWriter out = new StringWriter();
+        try {
+            apiServer.writeResponse(response, "listBroken", BaseCmd.RESPONSE_TYPE_JSON, new StringBuilder(), out);
+            Assert.fail("serialization failure was not reported");
+        } catch (ServerApiException e) {
+            Assert.assertEquals(ApiErrorCode.INTERNAL_ERROR, e.getErrorCode());
+            Assert.assertEquals(BaseCmd.USER_ERROR_MESSAGE, e.getDescription());
+        }
+    }
+
+    @Test
+    public void streamedSerializationFailureDetailsShownToRootAdmin() throws Exception {
+        Mockito.when(accountMgr.isRootAdmin(Mockito.anyLong())).thenReturn(true);
+        ListResponse<BrokenResponse> response = new ListResponse<BrokenResponse>();
+        response.setResponses(Arrays.asList(new BrokenResponse()), 1);
+        response.setResponseName("listbrokenresponse");
+
+        try {
+            apiServer.writeResponse(response, "listBroken", BaseCmd.RESPONSE_TYPE_JSON, new StringBuilder(), new StringWriter());
+            Assert.fail("serialization failure was not reported");
+        } catch (ServerApiException e) {
+            Assert.assertEquals(ApiErrorCode.INTERNAL_ERROR, e.getErrorCode());
+            Assert.assertEquals("broken response", e.getDescription());
+        }
+    }
+
+    /**
+     * Response that fails to serialize once the serializer asks for its name.
+     */
+    static class BrokenResponse extends BaseResponse {
+        @Override
+        public String getObjectName() {
+            throw new IllegalStateException("broken response");
+        }
+    }
+}
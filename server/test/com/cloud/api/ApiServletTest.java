@@ -16,22 +16,30 @@
 // under the License.
 package com.cloud.api;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.net.URLEncoder;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.ApiErrorCode;
+import org.apache.cloudstack.api.ServerApiException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.collections.iterators.IteratorEnumeration;
 import org.junit.After;
 import org.junit.Assert;
@@ -40,7 +48,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.XMLReaderFactory;
@@ -49,6 +59,7 @@ import com.cloud.server.ManagementServer;
 import com.cloud.user.Account;
 import com.cloud.user.AccountService;
 import com.cloud.user.User;
+import com.cloud.utils.exception.CloudRuntimeException;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -82,6 +93,8 @@ public class ApiServletTest {
 
     StringWriter responseWriter;
 
+    ByteArrayOutputStream responseStream;
+
     ApiServlet servlet;
 
     @Before
@@ -91,6 +104,14 @@ public class ApiServletTest {
         responseWriter = new StringWriter();
         Mockito.when(response.getWriter()).thenReturn(
                 new PrintWriter(responseWriter));
+        responseStream = new ByteArrayOutputStream();
+        Mockito.when(response.getOutputStream()).thenReturn(
+                new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        responseStream.write(b);
+                    }
+                });
         Mockito.when(request.getRemoteAddr()).thenReturn("127.0.0.1");
         Mockito.when(accountService.getSystemUser()).thenReturn(user);
         Mockito.when(accountService.getSystemAccount()).thenReturn(account);
@@ -160,7 +181,7 @@ public class ApiServletTest {
 
     @SuppressWarnings("unchecked")
     @Test
-    public void processRequestInContextUnauthorizedGET() {
+    public void processRequestInContextUnauthorizedGET() throws IOException {
         Mockito.when(request.getMethod()).thenReturn("GET");
         Mockito.when(
                 apiServer.verifyRequest(Mockito.anyMap(), Mockito.anyLong()))
@@ -169,12 +190,12 @@ public class ApiServletTest {
         Mockito.verify(response).setStatus(HttpServletResponse.SC_UNAUTHORIZED);
         Mockito.verify(apiServer, Mockito.never()).handleRequest(
                 Mockito.anyMap(), Mockito.anyString(),
-                Mockito.any(StringBuilder.class));
+                Mockito.any(StringBuilder.class), Mockito.any(Writer.class));
     }
 
     @SuppressWarnings("unchecked")
     @Test
-    public void processRequestInContextAuthorizedGet() {
+    public void processRequestInContextAuthorizedGet() throws IOException {
         Mockito.when(request.getMethod()).thenReturn("GET");
         Mockito.when(
                 apiServer.verifyRequest(Mockito.anyMap(), Mockito.anyLong()))
@@ -183,7 +204,7 @@ public class ApiServletTest {
         Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
         Mockito.verify(apiServer, Mockito.times(1)).handleRequest(
                 Mockito.anyMap(), Mockito.anyString(),
-                Mockito.any(StringBuilder.class));
+                Mockito.any(StringBuilder.class), Mockito.any(Writer.class));
     }
 
     @Test
@@ -262,4 +283,119 @@ public class ApiServletTest {
         ;
     }
 
+    @Test
+    public void responseWriterPlain() throws IOException {
+        ApiServlet.ApiResponseWriter out = new ApiServlet.ApiResponseWriter(request, response, "json");
+        out.write("{ \"listresponse\" : { } }");
+        Assert.assertFalse(out.isCommitted());
+        out.close();
+        Assert.assertTrue(out.isCommitted());
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
+        Mockito.verify(response, Mockito.never()).setHeader(Mockito.eq("Content-Encoding"), Mockito.anyString());
+        Mockito.verify(response, Mockito.never()).getWriter();
+        Assert.assertEquals("{ \"listresponse\" : { } }", responseStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void responseWriterGzip() throws IOException {
+        Mockito.when(request.getHeader("Accept-Encoding")).thenReturn("deflate, GZIP");
+        ApiServlet.ApiResponseWriter out = new ApiServlet.ApiResponseWriter(request, response, "json");
+        out.write("{ \"listresponse\" : { } }");
+        out.close();
+        Mockito.verify(response).setHeader("Content-Encoding", "gzip");
+        Mockito.verify(response, Mockito.never()).getWriter();
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(responseStream.toByteArray()));
+        Assert.assertEquals("{ \"listresponse\" : { } }", IOUtils.toString(in, "UTF-8"));
+    }
+
+    @Test
+    public void responseWriterEmpty() throws IOException {
+        Mockito.when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+        ApiServlet.ApiResponseWriter out = new ApiServlet.ApiResponseWriter(request, response, "json");
+        out.close();
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
+        Mockito.verify(response, Mockito.never()).setHeader(Mockito.eq("Content-Encoding"), Mockito.anyString());
+        Mockito.verify(response, Mockito.never()).getOutputStream();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void processRequestInContextErrorBeforeCommit() throws IOException {
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        Mockito.when(
+                apiServer.verifyRequest(Mockito.anyMap(), Mockito.anyLong()))
+                .thenReturn(true);
+        Mockito.when(
+                apiServer.getSerializedApiError(Mockito.any(ServerApiException.class), Mockito.anyMap(), Mockito.anyString()))
+                .thenReturn("error");
+        Mockito.doAnswer(new FailingResponse(10)).when(apiServer).handleRequest(
+                Mockito.anyMap(), Mockito.anyString(),
+                Mockito.any(StringBuilder.class), Mockito.any(Writer.class));
+        servlet.processRequestInContext(request, response);
+        Mockito.verify(response).setStatus(ApiErrorCode.INTERNAL_ERROR.getHttpCode());
+        Mockito.verify(response, Mockito.never()).setStatus(HttpServletResponse.SC_OK);
+        Mockito.verify(response, Mockito.never()).getOutputStream();
+        Assert.assertEquals("error", responseWriter.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void processRequestInContextErrorAfterCommit() throws IOException {
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        Mockito.when(
+                apiServer.verifyRequest(Mockito.anyMap(), Mockito.anyLong()))
+                .thenReturn(true);
+        Mockito.doAnswer(new FailingResponse(ApiServlet.ApiResponseWriter.BUFFER_SIZE)).when(apiServer).handleRequest(
+                Mockito.anyMap(), Mockito.anyString(),
+                Mockito.any(StringBuilder.class), Mockito.any(Writer.class));
+        try {
+            servlet.processRequestInContext(request, response);
+            Assert.fail("a failure after the response was committed must reach the container");
+        } catch (CloudRuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof ServerApiException);
+        }
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
+        Mockito.verify(response, Mockito.never()).setStatus(ApiErrorCode.INTERNAL_ERROR.getHttpCode());
+        Mockito.verify(response, Mockito.never()).getWriter();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void processRequestInContextUnexpectedErrorBeforeCommit() throws IOException {
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        Mockito.when(
+                apiServer.verifyRequest(Mockito.anyMap(), Mockito.anyLong()))
+                .thenReturn(true);
+        Mockito.when(
+                apiServer.getSerializedApiError(Mockito.any(ServerApiException.class), Mockito.anyMap(), Mockito.anyString()))
+                .thenReturn("error");
+        Mockito.doThrow(new IllegalStateException("serializer failed")).when(apiServer).handleRequest(
+                Mockito.anyMap(), Mockito.anyString(),
+                Mockito.any(StringBuilder.class), Mockito.any(Writer.class));
+        servlet.processRequestInContext(request, response);
+        Mockito.verify(response).setStatus(ApiErrorCode.INTERNAL_ERROR.getHttpCode());
+        Mockito.verify(response, Mockito.never()).setStatus(HttpServletResponse.SC_OK);
+        Assert.assertEquals("error", responseWriter.toString());
+    }
+
+    /**
+     * Writes the given number of characters to the response and then fails the command.
+     */
+    static class FailingResponse implements Answer<Void> {
+        private final int length;
+
+        FailingResponse(int length) {
+            this.length = length;
+        }
+
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+            Writer out = (Writer) invocation.getArguments()[3];
+            char[] chars = new char[length];
+            Arrays.fill(chars, 'x');
+            out.write(chars);
+            throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "failed while serializing");
+        }
+    }
+
 }
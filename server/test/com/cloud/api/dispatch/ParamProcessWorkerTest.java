@@ -18,7 +18,9 @@
  */
 package com.cloud.api.dispatch;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -32,6 +34,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.apache.cloudstack.api.BaseCmd;
 import org.apache.cloudstack.api.Parameter;
 import org.apache.cloudstack.api.ServerApiException;
+import org.apache.cloudstack.api.response.UserVmResponse;
 import org.apache.cloudstack.context.CallContext;
 
 import com.cloud.exception.ConcurrentOperationException;
@@ -42,6 +45,8 @@ import com.cloud.exception.ResourceUnavailableException;
 import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
 import com.cloud.user.User;
+import com.cloud.utils.db.EntityManager;
+import com.cloud.vm.VirtualMachine;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ParamProcessWorkerTest {
@@ -49,6 +54,9 @@ public class ParamProcessWorkerTest {
     @Mock
     protected AccountManager accountManager;
 
+    @Mock
+    protected EntityManager entityManager;
+
     protected ParamProcessWorker paramProcessWorker;
 
     public static class TestCmd extends BaseCmd {
@@ -62,6 +70,9 @@ public class ParamProcessWorkerTest {
         @Parameter(name = "boolparam1", type = CommandType.BOOLEAN)
         boolean boolparam1;
 
+        @Parameter(name = "vmids", type = CommandType.LIST, collectionType = CommandType.UUID, entityType = UserVmResponse.class)
+        List<Long> vmids;
+
         @Override
         public void execute() throws ResourceUnavailableException, InsufficientCapacityException, ServerApiException, ConcurrentOperationException,
             ResourceAllocationException, NetworkRuleConflictException {
@@ -85,6 +96,7 @@ public class ParamProcessWorkerTest {
         CallContext.register(Mockito.mock(User.class), Mockito.mock(Account.class));
         paramProcessWorker = new ParamProcessWorker();
         paramProcessWorker._accountMgr = accountManager;
+        paramProcessWorker._entityMgr = entityManager;
     }
 
     @After
@@ -104,4 +116,25 @@ public class ParamProcessWorkerTest {
         Assert.assertEquals(100, cmd.intparam1);
     }
 
+    @Test
+    public void processUuidListParameter() {
+        final String uuid1 = "0f3a3a36-1e08-4ad4-8d0b-1c3f3e3b1a01";
+        final String uuid2 = "0f3a3a36-1e08-4ad4-8d0b-1c3f3e3b1a02";
+        final VirtualMachine vm1 = Mockito.mock(VirtualMachine.class);
+        Mockito.when(vm1.getUuid()).thenReturn(uuid1);
+        Mockito.when(vm1.getId()).thenReturn(1L);
+        final VirtualMachine vm2 = Mockito.mock(VirtualMachine.class);
+        Mockito.when(vm2.getUuid()).thenReturn(uuid2);
+        Mockito.when(vm2.getId()).thenReturn(2L);
+        Mockito.doReturn(Arrays.asList(vm2, vm1)).when(entityManager)
+            .listByUuidsIncludingRemoved(Mockito.eq(VirtualMachine.class), Mockito.anyCollectionOf(String.class));
+
+        final HashMap<String, String> params = new HashMap<String, String>();
+        params.put("vmids", uuid1 + "," + uuid2 + "," + uuid1);
+        final TestCmd cmd = new TestCmd();
+        paramProcessWorker.processParameters(cmd, params);
+        Assert.assertEquals(Arrays.asList(1L, 2L, 1L), cmd.vmids);
+        Mockito.verify(entityManager, Mockito.never()).findByUuidIncludingRemoved(Mockito.any(Class.class), Mockito.anyString());
+    }
+
 }
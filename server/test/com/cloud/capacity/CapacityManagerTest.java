@@ -21,6 +21,8 @@ import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.junit.Assert;
@@ -29,6 +31,8 @@ import org.junit.Test;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.vm.VirtualMachine;
@@ -37,6 +41,7 @@ public class CapacityManagerTest {
     CapacityDao CDao = mock(CapacityDao.class);
     ServiceOfferingDao SOfferingDao = mock(ServiceOfferingDao.class);
     ClusterDetailsDao ClusterDetailsDao = mock(com.cloud.dc.ClusterDetailsDao.class);
+    HostDao hostDao = mock(HostDao.class);
     CapacityManagerImpl capMgr;
     private ServiceOfferingVO svo = mock(ServiceOfferingVO.class);
     private CapacityVO cvoCpu = mock(CapacityVO.class);
@@ -50,6 +55,7 @@ public class CapacityManagerTest {
         capMgr._clusterDetailsDao = ClusterDetailsDao;
         capMgr._capacityDao = CDao;
         capMgr._offeringsDao = SOfferingDao;
+        capMgr._hostDao = hostDao;
         return capMgr;
     }
 
@@ -76,4 +82,53 @@ public class CapacityManagerTest {
         Assert.assertTrue(hasCapacity);
 
     }
+
+    private void setUpRelease() {
+        capMgr = setUp();
+        HostVO host = mock(HostVO.class);
+        when(host.getClusterId()).thenReturn(3l);
+        when(hostDao.findById(1l)).thenReturn(host);
+        when(vm.getServiceOfferingId()).thenReturn(2l);
+        when(SOfferingDao.findById(anyLong(), anyLong())).thenReturn(svo);
+        when(CDao.findByHostIdType(anyLong(), eq(Capacity.CAPACITY_TYPE_CPU))).thenReturn(cvoCpu);
+        when(CDao.findByHostIdType(anyLong(), eq(Capacity.CAPACITY_TYPE_MEMORY))).thenReturn(cvoRam);
+        when(cvoCpu.getId()).thenReturn(10l);
+        when(cvoRam.getId()).thenReturn(11l);
+        when(cvoCpu.getTotalCapacity()).thenReturn(2000l);
+        when(cvoRam.getTotalCapacity()).thenReturn(1024l * 1024 * 1024);
+        when(svo.getCpu()).thenReturn(1);
+        when(svo.getSpeed()).thenReturn(500);
+        when(svo.getRamSize()).thenReturn(512);
+        when(clusterDetailCpu.getValue()).thenReturn("2");
+        when(clusterDetailRam.getValue()).thenReturn("1");
+        when(ClusterDetailsDao.findDetail(3l, "cpuOvercommitRatio")).thenReturn(clusterDetailCpu);
+        when(ClusterDetailsDao.findDetail(3l, "memoryOvercommitRatio")).thenReturn(clusterDetailRam);
+    }
+
+    @Test
+    public void releaseCapacityToReservedTest() {
+        setUpRelease();
+        when(cvoCpu.getUsedCapacity()).thenReturn(500l);
+        when(cvoRam.getUsedCapacity()).thenReturn(512l * 1024 * 1024);
+
+        Assert.assertTrue(capMgr.releaseVmCapacity(vm, false, true, 1l));
+        // both entries move the vm from used to reserved, bounded by the total with overprovisioning
+        verify(CDao).addCapacity(10l, -500l, 500l, 4000l);
+        verify(CDao).addCapacity(11l, -512l * 1024 * 1024, 512l * 1024 * 1024, 1024l * 1024 * 1024);
+    }
+
+    @Test
+    public void releaseCapacityReadBelowVmSizeTest() {
+        setUpRelease();
+        // a concurrent release already lowered the entries when they were read, the update floors them at 0
+        when(cvoCpu.getUsedCapacity()).thenReturn(100l);
+        when(cvoRam.getUsedCapacity()).thenReturn(0l);
+        when(cvoCpu.getReservedCapacity()).thenReturn(0l);
+        when(cvoRam.getReservedCapacity()).thenReturn(0l);
+
+        Assert.assertTrue(capMgr.releaseVmCapacity(vm, true, false, 1l));
+        verify(CDao).addCapacity(10l, 0l, -500l, 4000l);
+        verify(CDao).addCapacity(11l, 0l, -512l * 1024 * 1024, 1024l * 1024 * 1024);
+        verify(CDao, never()).update(anyLong(), isA(CapacityVO.class));
+    }
 }
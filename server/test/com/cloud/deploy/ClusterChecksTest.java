@@ -0,0 +1,199 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.deploy.DeploymentPlanningManagerImpl.ClusterChecks;
+import com.cloud.deploy.DeploymentPlanningManagerImpl.ClusterResources;
+import com.cloud.host.Host;
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.Volume;
+
+public class ClusterChecksTest {
+
+    AtomicInteger _submitted;
+    ThreadPoolExecutor _executor;
+
+    @Before
+    public void setup() {
+        _submitted = new AtomicInteger();
+        _executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            public void execute(Runnable command) {
+                _submitted.incrementAndGet();
+                super.execute(command);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    @Test
+    public void testChecksAreSubmittedAsTheyAreUsed() throws Exception {
+        ClusterChecks checks = new ClusterChecks(_executor, 5, 2) {
+            @Override
+            protected ClusterResources check(int index) {
+                return resources(index);
+            }
+        };
+
+        Assert.assertTrue(checks.get(0).avoid.getClustersToAvoid().contains(0L));
+        Assert.assertEquals(2, _submitted.get());
+        Assert.assertTrue(checks.get(1).avoid.getClustersToAvoid().contains(1L));
+        Assert.assertEquals(3, _submitted.get());
+        Assert.assertTrue(checks.get(4).avoid.getClustersToAvoid().contains(4L));
+        Assert.assertEquals(5, _submitted.get());
+    }
+
+    @Test
+    public void testCancelStopsTheRemainingChecks() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> checked = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Boolean> cancelSeen = Collections.synchronizedList(new ArrayList<Boolean>());
+        final ClusterChecks checks = new ClusterChecks(_executor, 3, 3) {
+            @Override
+            protected ClusterResources check(int index) {
+                checked.add(index);
+                if (index == 1) {
+                    running.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    cancelSeen.add(isCancelled());
+                }
+                return resources(index);
+            }
+        };
+
+        checks.get(0);
+        running.await();
+        checks.cancel();
+        release.countDown();
+        _executor.shutdown();
+        Assert.assertTrue(_executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals(Arrays.asList(0, 1), checked);
+        Assert.assertEquals(Arrays.asList(true), cancelSeen);
+    }
+
+    @Test
+    public void testPrefetchedResourcesSkipWhatWasAvoidedSince() throws Exception {
+        Host host1 = host(1);
+        Host host2 = host(2);
+        StoragePool pool1 = pool(1);
+        StoragePool pool2 = pool(2);
+        Volume volume = Mockito.mock(Volume.class);
+
+        final ClusterResources found = new ClusterResources();
+        found.suitableHosts = new ArrayList<Host>(Arrays.asList(host1, host2));
+        found.suitableVolumeStoragePools = new HashMap<Volume, List<StoragePool>>();
+        found.suitableVolumeStoragePools.put(volume, new ArrayList<StoragePool>(Arrays.asList(pool1, pool2)));
+        found.avoid = new ExcludeList();
+        found.avoid.addHost(3);
+        ClusterChecks checks = new ClusterChecks(_executor, 1, 1) {
+            @Override
+            protected ClusterResources check(int index) {
+                return found;
+            }
+        };
+
+        // added by the clusters tried while the check was running
+        ExcludeList avoid = new ExcludeList();
+        avoid.addHost(1);
+        avoid.addPool(2);
+
+        ClusterResources resources = DeploymentPlanningManagerImpl.getPrefetchedClusterResources(checks, 0, avoid);
+
+        Assert.assertEquals(Arrays.asList(host2), resources.suitableHosts);
+        Assert.assertEquals(Arrays.asList(pool1), resources.suitableVolumeStoragePools.get(volume));
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(1L, 3L)), avoid.getHostsToAvoid());
+    }
+
+    @Test
+    public void testMergeAvoidSet() {
+        ExcludeList avoid = new ExcludeList();
+        avoid.addHost(1);
+
+        ExcludeList add = new ExcludeList();
+        add.addDataCenter(2);
+        add.addPod(3);
+        add.addCluster(4);
+        add.addHost(5);
+        add.addPool(6);
+        DeploymentPlanningManagerImpl.mergeAvoidSet(avoid, add);
+
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(2L)), avoid.getDataCentersToAvoid());
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(3L)), avoid.getPodsToAvoid());
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(4L)), avoid.getClustersToAvoid());
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(1L, 5L)), avoid.getHostsToAvoid());
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(6L)), avoid.getPoolsToAvoid());
+    }
+
+    @Test
+    public void testMergeEmptyAvoidSet() {
+        ExcludeList avoid = new ExcludeList();
+        avoid.addHost(1);
+
+        DeploymentPlanningManagerImpl.mergeAvoidSet(avoid, new ExcludeList());
+
+        Assert.assertEquals(new HashSet<Long>(Arrays.asList(1L)), avoid.getHostsToAvoid());
+        Assert.assertNull(avoid.getPoolsToAvoid());
+    }
+
+    private static ClusterResources resources(long clusterId) {
+        ClusterResources resources = new ClusterResources();
+        resources.avoid = new ExcludeList();
+        resources.avoid.addCluster(clusterId);
+        return resources;
+    }
+
+    private static Host host(long id) {
+        Host host = Mockito.mock(Host.class);
+        Mockito.when(host.getId()).thenReturn(id);
+        return host;
+    }
+
+    private static StoragePool pool(long id) {
+        StoragePool pool = Mockito.mock(StoragePool.class);
+        Mockito.when(pool.getId()).thenReturn(id);
+        return pool;
+    }
+}
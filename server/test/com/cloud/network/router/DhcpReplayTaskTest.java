@@ -0,0 +1,176 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.router;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.agent.manager.Commands;
+import com.cloud.alert.AlertManager;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.vm.DomainRouterVO;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VirtualMachine.State;
+import com.cloud.vm.dao.DomainRouterDao;
+import com.cloud.vm.dao.UserVmDao;
+
+public class DhcpReplayTaskTest {
+    private static final long ROUTER_ID = 1L;
+    private static final long HOST_ID = 2L;
+    private static final long NETWORK_ID = 3L;
+
+    VirtualNetworkApplianceManagerImpl _vrMgr;
+    DomainRouterDao _routerDao;
+    AlertManager _alertMgr;
+    DomainRouterVO _router;
+    List<Integer> _chunkSizes;
+
+    @Before
+    public void setup() throws Exception {
+        _vrMgr = spy(new VirtualNetworkApplianceManagerImpl());
+        _routerDao = mock(DomainRouterDao.class);
+        _alertMgr = mock(AlertManager.class);
+        _vrMgr._routerDao = _routerDao;
+        _vrMgr._alertMgr = _alertMgr;
+        _vrMgr._userVmDao = mock(UserVmDao.class);
+
+        List<UserVmVO> vms = new ArrayList<UserVmVO>();
+        for (int i = 0; i < 5; i++) {
+            vms.add(mock(UserVmVO.class));
+        }
+        when(_vrMgr._userVmDao.listByNetworkIdAndStates(NETWORK_ID, State.Running, State.Migrating, State.Stopping)).thenReturn(vms);
+
+        _router = router(State.Running, HOST_ID);
+        when(_routerDao.findById(ROUTER_ID)).thenReturn(_router);
+
+        doReturn("169.254.0.1").when(_vrMgr).getRouterControlIp(anyLong());
+        doReturn("10.1.1.1").when(_vrMgr).getRouterIpInNetwork(anyLong(), anyLong());
+        doNothing().when(_vrMgr).createVmDataCommandForVMs(any(DomainRouterVO.class), any(Commands.class), anyLong(), anyListOf(UserVmVO.class));
+
+        _chunkSizes = new ArrayList<Integer>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                _chunkSizes.add(((List<?>)invocation.getArguments()[3]).size());
+                return null;
+            }
+        }).when(_vrMgr).createDhcpEntryCommandsForVMs(any(DomainRouterVO.class), any(Commands.class), eq(NETWORK_ID), anyListOf(UserVmVO.class));
+    }
+
+    @Test
+    public void testChunkBoundaries() throws Exception {
+        doReturn(true).when(_vrMgr).sendCommandsToRouter(any(VirtualRouter.class), any(Commands.class));
+
+        replay(2);
+
+        assertEquals(3, _chunkSizes.size());
+        assertEquals(2, (int)_chunkSizes.get(0));
+        assertEquals(2, (int)_chunkSizes.get(1));
+        assertEquals(1, (int)_chunkSizes.get(2));
+        verify(_alertMgr, never()).sendAlert(any(AlertManager.AlertType.class), anyLong(), anyLong(), anyString(), anyString());
+    }
+
+    @Test
+    public void testChunkSizeDividingVmCount() throws Exception {
+        doReturn(true).when(_vrMgr).sendCommandsToRouter(any(VirtualRouter.class), any(Commands.class));
+
+        replay(5);
+
+        assertEquals(1, _chunkSizes.size());
+        assertEquals(5, (int)_chunkSizes.get(0));
+    }
+
+    @Test
+    public void testFailedChunkIsReportedAndOthersApplied() throws Exception {
+        doReturn(true).doReturn(false).doReturn(true).when(_vrMgr).sendCommandsToRouter(any(VirtualRouter.class), any(Commands.class));
+
+        replay(2);
+
+        assertEquals(3, _chunkSizes.size());
+        verify(_alertMgr).sendAlert(eq(AlertManager.AlertType.ALERT_TYPE_DOMAIN_ROUTER), anyLong(), anyLong(),
+            eq("Failed to reapply dhcp and vm data entries of 2 vms on virtual router r-1-VM"), anyString());
+    }
+
+    @Test
+    public void testChunkThrowingIsReportedAndOthersApplied() throws Exception {
+        doThrow(new AgentUnavailableException("host is down", HOST_ID)).doReturn(true).when(_vrMgr).sendCommandsToRouter(any(VirtualRouter.class), any(Commands.class));
+
+        replay(2);
+
+        assertEquals(3, _chunkSizes.size());
+        verify(_alertMgr).sendAlert(eq(AlertManager.AlertType.ALERT_TYPE_DOMAIN_ROUTER), anyLong(), anyLong(), startsWith("Failed to reapply dhcp and vm data entries of 2 vms"),
+            anyString());
+    }
+
+    @Test
+    public void testStopsWhenRouterIsRestartedElsewhere() throws Exception {
+        doReturn(true).when(_vrMgr).sendCommandsToRouter(any(VirtualRouter.class), any(Commands.class));
+        DomainRouterVO moved = router(State.Running, HOST_ID + 1);
+        when(_routerDao.findById(ROUTER_ID)).thenReturn(_router, moved);
+
+        replay(2);
+
+        assertEquals(1, _chunkSizes.size());
+    }
+
+    @Test
+    public void testNothingSentWhenRouterDoesNotStart() throws Exception {
+        when(_routerDao.findById(ROUTER_ID)).thenReturn(router(State.Stopped, HOST_ID));
+
+        replay(2);
+
+        assertEquals(0, _chunkSizes.size());
+        verify(_vrMgr, never()).sendCommandsToRouter(any(VirtualRouter.class), any(Commands.class));
+    }
+
+    private void replay(int chunkSize) {
+        _vrMgr.new DhcpReplayTask(ROUTER_ID, NETWORK_ID, true, true, chunkSize).run();
+    }
+
+    private static DomainRouterVO router(State state, long hostId) {
+        DomainRouterVO router = mock(DomainRouterVO.class);
+        when(router.getId()).thenReturn(ROUTER_ID);
+        when(router.getState()).thenReturn(state);
+        when(router.getHostId()).thenReturn(hostId);
+        when(router.getInstanceName()).thenReturn("r-1-VM");
+        when(router.getDataCenterId()).thenReturn(1L);
+        when(router.getPodIdToDeployIn()).thenReturn(1L);
+        return router;
+    }
+}
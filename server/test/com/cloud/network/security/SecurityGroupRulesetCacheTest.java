@@ -0,0 +1,157 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.Listener;
+import com.cloud.agent.manager.Commands;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.network.security.LocalSecurityGroupWorkQueue.LocalSecurityGroupWork;
+import com.cloud.network.security.SecurityGroupWork.Step;
+import com.cloud.network.security.dao.SecurityGroupRuleDao;
+import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.network.security.dao.VmRulesetLogDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.Ternary;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VirtualMachine.State;
+import com.cloud.vm.dao.NicDao;
+import com.cloud.vm.dao.UserVmDao;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SecurityGroupRulesetCacheTest {
+    private static final long HOST_ID = 1L;
+    private static final long VM_ID = 10L;
+    private static final long GROUP_ID = 5L;
+
+    @Mock
+    SecurityGroupVMMapDao securityGroupVMMapDao;
+    @Mock
+    SecurityGroupRuleDao securityGroupRuleDao;
+    @Mock
+    UserVmDao userVmDao;
+    @Mock
+    VmRulesetLogDao rulesetLogDao;
+    @Mock
+    NicDao nicDao;
+    @Mock
+    AgentManager agentManager;
+
+    SecurityGroupManagerImpl2 sgMgr;
+
+    @Before
+    public void setup() {
+        sgMgr = new SecurityGroupManagerImpl2();
+        sgMgr._securityGroupVMMapDao = securityGroupVMMapDao;
+        sgMgr._securityGroupRuleDao = securityGroupRuleDao;
+        sgMgr._userVMDao = userVmDao;
+        sgMgr._rulesetLogDao = rulesetLogDao;
+        sgMgr._nicDao = nicDao;
+        sgMgr._agentMgr = agentManager;
+
+        SecurityGroupVMMapVO member = Mockito.mock(SecurityGroupVMMapVO.class);
+        Mockito.when(member.getGuestIpAddress()).thenReturn("10.1.1.1");
+        Mockito.when(securityGroupVMMapDao.listBySecurityGroup(GROUP_ID, State.Running)).thenReturn(Collections.singletonList(member));
+
+        UserVmVO vm = Mockito.mock(UserVmVO.class);
+        Mockito.when(vm.getId()).thenReturn(VM_ID);
+        Mockito.when(vm.getState()).thenReturn(State.Running);
+        Mockito.when(vm.getHostId()).thenReturn(HOST_ID);
+        Mockito.when(vm.getInstanceName()).thenReturn("i-2-10-VM");
+        Mockito.when(vm.getPrivateIpAddress()).thenReturn("10.1.1.10");
+        Mockito.when(vm.getHypervisorType()).thenReturn(HypervisorType.KVM);
+        Mockito.when(userVmDao.findById(VM_ID)).thenReturn(vm);
+    }
+
+    @Test
+    public void groupMembersAreCached() {
+        Set<String> cidrs = sgMgr.getGroupMemberCidrs(GROUP_ID);
+        Assert.assertEquals(Collections.singleton("10.1.1.1/32"), cidrs);
+        Assert.assertSame(cidrs, sgMgr.getGroupMemberCidrs(GROUP_ID));
+        Mockito.verify(securityGroupVMMapDao, Mockito.times(1)).listBySecurityGroup(GROUP_ID, State.Running);
+    }
+
+    @Test
+    public void groupMembersAreReloadedAfterInvalidation() {
+        sgMgr.getGroupMemberCidrs(GROUP_ID);
+        sgMgr.invalidateGroupMembers();
+        sgMgr.getGroupMemberCidrs(GROUP_ID);
+        Mockito.verify(securityGroupVMMapDao, Mockito.times(2)).listBySecurityGroup(GROUP_ID, State.Running);
+    }
+
+    @Test
+    public void groupMembersAreReloadedOnceExpired() {
+        sgMgr._groupMemberCacheTtlMs = 0;
+        sgMgr.getGroupMemberCidrs(GROUP_ID);
+        sgMgr.getGroupMemberCidrs(GROUP_ID);
+        Mockito.verify(securityGroupVMMapDao, Mockito.times(2)).listBySecurityGroup(GROUP_ID, State.Running);
+    }
+
+    @Test
+    public void unchangedRulesetIsSkipped() throws Exception {
+        sgMgr.sendRulesetUpdates(work(3), true, false);
+        sgMgr.sendRulesetUpdates(work(3), true, false);
+        verifySent(1);
+    }
+
+    @Test
+    public void rulesetIsResentAfterAnotherServerUpdatedIt() throws Exception {
+        sgMgr.sendRulesetUpdates(work(3), true, false);
+        // another management server sent an update in between, moving the log sequence
+        sgMgr.sendRulesetUpdates(work(4), true, false);
+        verifySent(2);
+    }
+
+    @Test
+    public void rulesetIsResentAfterHostReconnect() throws Exception {
+        sgMgr._sentRulesets.put(VM_ID + 1, new Ternary<Long, Long, String>(HOST_ID + 1, 1L, "sig"));
+        sgMgr.sendRulesetUpdates(work(3), true, false);
+        sgMgr.handleHostConnected(HOST_ID);
+        sgMgr.sendRulesetUpdates(work(3), true, false);
+        verifySent(2);
+        Assert.assertTrue(sgMgr._sentRulesets.containsKey(VM_ID + 1));
+    }
+
+    @Test
+    public void rulesetIsResentAfterFullSync() throws Exception {
+        sgMgr.sendRulesetUpdates(work(3), true, false);
+        sgMgr.fullSync(HOST_ID, new HashMap<String, Pair<Long, Long>>());
+        sgMgr.sendRulesetUpdates(work(3), true, false);
+        verifySent(2);
+    }
+
+    private static SecurityGroupWork work(long seqno) {
+        return new LocalSecurityGroupWork(VM_ID, seqno, Step.Scheduled);
+    }
+
+    private void verifySent(int times) throws Exception {
+        Mockito.verify(agentManager, Mockito.times(times)).send(Matchers.eq(HOST_ID), Matchers.any(Commands.class), Matchers.any(Listener.class));
+    }
+}
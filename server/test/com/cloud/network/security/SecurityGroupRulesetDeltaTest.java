@@ -0,0 +1,197 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.api.SecurityGroupRuleAnswer;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityGroupManagerImpl2.AppliedRuleset;
+
+public class SecurityGroupRulesetDeltaTest {
+    private static final long HOST_ID = 1L;
+    private static final long VM_ID = 10L;
+    private static final PortAndProto SSH = new PortAndProto("tcp", 22, 22);
+    private static final PortAndProto HTTP = new PortAndProto("tcp", 80, 80);
+
+    private SecurityGroupManagerImpl2 _sgMgr;
+    private Map<PortAndProto, Set<String>> _appliedIngress;
+    private Map<PortAndProto, Set<String>> _appliedEgress;
+
+    @Before
+    public void setup() {
+        _sgMgr = new SecurityGroupManagerImpl2();
+        _appliedIngress = rules(SSH, "10.1.1.1/32", "10.1.1.2/32", "10.1.1.3/32");
+        _appliedIngress.putAll(rules(HTTP, "0.0.0.0/0"));
+        _appliedEgress = rules(HTTP, "10.2.0.0/16");
+    }
+
+    @Test
+    public void addedOnly() {
+        Map<PortAndProto, Set<String>> ingress = rules(SSH, "10.1.1.1/32", "10.1.1.2/32", "10.1.1.3/32", "10.1.1.4/32");
+        ingress.putAll(rules(HTTP, "0.0.0.0/0"));
+
+        AppliedRuleset applied = applied(1);
+        SecurityGroupRulesCmd cmd = delta(applied, ingress, _appliedEgress);
+        assertNotNull(cmd);
+        assertTrue(cmd.isDelta());
+        assertEquals(applied._signature, cmd.getBaseSignature());
+        assertEquals(_sgMgr.generateRulesetSignature(ingress, _appliedEgress), cmd.getSignature());
+        assertCidrs(cmd.getIngressRuleSet(), SSH, "10.1.1.4/32");
+        assertEquals(0, cmd.getEgressRuleSet().length);
+        assertEquals(0, cmd.getRevokedIngressRuleSet().length);
+        assertEquals(0, cmd.getRevokedEgressRuleSet().length);
+    }
+
+    @Test
+    public void removedOnly() {
+        Map<PortAndProto, Set<String>> ingress = rules(SSH, "10.1.1.1/32", "10.1.1.3/32");
+        ingress.putAll(rules(HTTP, "0.0.0.0/0"));
+
+        SecurityGroupRulesCmd cmd = delta(applied(1), ingress, _appliedEgress);
+        assertNotNull(cmd);
+        assertTrue(cmd.isDelta());
+        assertEquals(0, cmd.getIngressRuleSet().length);
+        assertEquals(0, cmd.getEgressRuleSet().length);
+        assertCidrs(cmd.getRevokedIngressRuleSet(), SSH, "10.1.1.2/32");
+        assertEquals(0, cmd.getRevokedEgressRuleSet().length);
+    }
+
+    @Test
+    public void mixed() {
+        // a rule dropped completely, a cidr added to another one and an egress cidr replaced
+        Map<PortAndProto, Set<String>> ingress = rules(SSH, "10.1.1.1/32", "10.1.1.2/32", "10.1.1.3/32", "10.1.1.5/32");
+        Map<PortAndProto, Set<String>> egress = rules(HTTP, "10.3.0.0/16");
+
+        SecurityGroupRulesCmd cmd = delta(applied(1), ingress, egress);
+        assertNotNull(cmd);
+        assertTrue(cmd.isDelta());
+        assertCidrs(cmd.getIngressRuleSet(), SSH, "10.1.1.5/32");
+        assertCidrs(cmd.getEgressRuleSet(), HTTP, "10.3.0.0/16");
+        assertCidrs(cmd.getRevokedIngressRuleSet(), HTTP, "0.0.0.0/0");
+        assertCidrs(cmd.getRevokedEgressRuleSet(), HTTP, "10.2.0.0/16");
+    }
+
+    @Test
+    public void fullUpdateWithoutAppliedRuleset() {
+        assertNull(delta(null, _appliedIngress, _appliedEgress));
+    }
+
+    @Test
+    public void fullUpdateAfterMigration() {
+        AppliedRuleset applied = new AppliedRuleset(HOST_ID + 1, 1, signature(_appliedIngress, _appliedEgress), _appliedIngress, _appliedEgress);
+        assertNull(delta(applied, rules(SSH, "10.1.1.1/32"), _appliedEgress));
+    }
+
+    @Test
+    public void fullUpdateWhenEgressRulesAppearOrDisappear() {
+        assertNull(delta(applied(1), _appliedIngress, new TreeMap<PortAndProto, Set<String>>()));
+    }
+
+    @Test
+    public void fullUpdateWhenDeltaIsNotSmaller() {
+        Map<PortAndProto, Set<String>> ingress = rules(SSH, "10.9.9.9/32");
+        assertNull(delta(applied(1), ingress, rules(HTTP, "10.4.0.0/16")));
+    }
+
+    @Test
+    public void acknowledgedRulesetIsUsedAsBase() {
+        AppliedRuleset pending = applied(5);
+        _sgMgr._pendingRulesets.put(VM_ID, pending);
+
+        _sgMgr.handleRulesetAnswer(answer(5, true));
+        assertSame(pending, _sgMgr._appliedRulesets.get(VM_ID));
+        assertFalse(_sgMgr._pendingRulesets.containsKey(VM_ID));
+    }
+
+    @Test
+    public void outOfOrderAnswerDropsBase() {
+        _sgMgr._appliedRulesets.put(VM_ID, applied(4));
+        _sgMgr._pendingRulesets.put(VM_ID, applied(6));
+
+        _sgMgr.handleRulesetAnswer(answer(5, true));
+        assertNull(_sgMgr._appliedRulesets.get(VM_ID));
+        assertNull(delta(_sgMgr._appliedRulesets.get(VM_ID), rules(SSH, "10.1.1.1/32"), _appliedEgress));
+    }
+
+    @Test
+    public void signatureMismatchFallsBackToFullUpdate() {
+        // the host refuses a delta whose base signature isn't the one it has, the next update must be a full one
+        _sgMgr._appliedRulesets.put(VM_ID, applied(4));
+        _sgMgr._pendingRulesets.put(VM_ID, applied(5));
+
+        _sgMgr.handleRulesetAnswer(answer(5, false));
+        assertNull(_sgMgr._appliedRulesets.get(VM_ID));
+        assertNull(_sgMgr._pendingRulesets.get(VM_ID));
+        assertNull(delta(_sgMgr._appliedRulesets.get(VM_ID), rules(SSH, "10.1.1.1/32"), _appliedEgress));
+    }
+
+    private AppliedRuleset applied(long seqno) {
+        return new AppliedRuleset(HOST_ID, seqno, signature(_appliedIngress, _appliedEgress), _appliedIngress, _appliedEgress);
+    }
+
+    private SecurityGroupRulesCmd delta(AppliedRuleset applied, Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress) {
+        SecurityGroupRulesCmd fullCmd = _sgMgr.generateRulesetCmd("i-2-10-VM", "10.1.1.10", "02:00:00:00:00:01", VM_ID, signature(ingress, egress), 1, ingress, egress, null);
+        return _sgMgr.generateRulesetDeltaCmd(fullCmd, applied, HOST_ID, ingress, egress, null);
+    }
+
+    private SecurityGroupRuleAnswer answer(long seqno, boolean result) {
+        SecurityGroupRulesCmd cmd = _sgMgr.generateRulesetCmd("i-2-10-VM", "10.1.1.10", "02:00:00:00:00:01", VM_ID, null, seqno, _appliedIngress, _appliedEgress, null);
+        return new SecurityGroupRuleAnswer(cmd, result, null);
+    }
+
+    private String signature(Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress) {
+        return _sgMgr.generateRulesetSignature(ingress, egress);
+    }
+
+    private static Map<PortAndProto, Set<String>> rules(PortAndProto portAndProto, String... cidrs) {
+        Set<String> set = new TreeSet<String>(new CidrComparator());
+        for (String cidr : cidrs) {
+            set.add(cidr);
+        }
+        Map<PortAndProto, Set<String>> rules = new TreeMap<PortAndProto, Set<String>>();
+        rules.put(portAndProto, set);
+        return rules;
+    }
+
+    private static void assertCidrs(IpPortAndProto[] ruleSet, PortAndProto portAndProto, String... cidrs) {
+        assertEquals(1, ruleSet.length);
+        assertEquals(portAndProto.getProto(), ruleSet[0].getProto());
+        assertEquals(portAndProto.getStartPort(), ruleSet[0].getStartPort());
+        assertEquals(portAndProto.getEndPort(), ruleSet[0].getEndPort());
+        assertEquals(cidrs.length, ruleSet[0].getAllowedCidrs().length);
+        for (int i = 0; i < cidrs.length; i++) {
+            assertEquals(cidrs[i], ruleSet[0].getAllowedCidrs()[i]);
+        }
+    }
+}
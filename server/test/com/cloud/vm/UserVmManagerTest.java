@@ -17,6 +17,8 @@
 
 package com.cloud.vm;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyFloat;
@@ -24,21 +26,31 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.Spy;
 
 import org.apache.cloudstack.acl.ControlledEntity;
@@ -53,17 +65,24 @@ import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 
+import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.ConfigurationManager;
+import com.cloud.dc.DataCenter;
 import com.cloud.exception.ConcurrentOperationException;
 import com.cloud.exception.InsufficientCapacityException;
 import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.exception.ResourceAllocationException;
 import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
 import com.cloud.hypervisor.Hypervisor;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.offering.ServiceOffering;
+import com.cloud.resource.ResourceManager;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.Storage.ImageFormat;
@@ -77,9 +96,11 @@ import com.cloud.user.AccountManager;
 import com.cloud.user.AccountService;
 import com.cloud.user.AccountVO;
 import com.cloud.user.ResourceLimitService;
+import com.cloud.user.User;
 import com.cloud.user.UserVO;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserDao;
+import com.cloud.uservm.UserVm;
 import com.cloud.utils.db.EntityManager;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.dao.UserVmDao;
@@ -145,6 +166,10 @@ public class UserVmManagerTest {
     ResourceLimitService _resourceLimitMgr;
     @Mock
     PrimaryDataStoreDao _storagePoolDao;
+    @Mock
+    ResourceManager _resourceMgr;
+    @Mock
+    CapacityDao _capacityDao;
 
     @Before
     public void setup() {
@@ -167,6 +192,8 @@ public class UserVmManagerTest {
         _userVmMgr._scaleRetry = 2;
         _userVmMgr._entityMgr = _entityMgr;
         _userVmMgr._storagePoolDao = _storagePoolDao;
+        _userVmMgr._resourceMgr = _resourceMgr;
+        _userVmMgr._capacityDao = _capacityDao;
 
         doReturn(3L).when(_account).getId();
         doReturn(8L).when(_vmMock).getAccountId();
@@ -620,4 +647,132 @@ public class UserVmManagerTest {
         }
     }
 
+    // Test that a bulk deployment reports the vms that failed to start, and only those
+    @Test
+    public void testStartVirtualMachinesMixedResults() throws Exception {
+        UserVmVO started = new UserVmVO(10L, "started", "started", 1L, HypervisorType.Any, 1L, false, false, 1L, 1L, 5L, "test", "test", 1L);
+        UserVmVO failed = new UserVmVO(11L, "failed", "failed", 1L, HypervisorType.Any, 1L, false, false, 1L, 1L, 5L, "test", "test", 1L);
+        doNothing().when(_userVmMgr).startBulkDeployedVm(eq(started), anyLong(), any(User.class), any(Account.class), anyString());
+        doThrow(new InsufficientCapacityException("Unable to create a deployment for " + failed, DataCenter.class, 1L)).when(_userVmMgr).startBulkDeployedVm(eq(failed),
+            anyLong(), any(User.class), any(Account.class), anyString());
+
+        Account account = new AccountVO("testaccount", 1L, "networkdomain", (short)0, "uuid");
+        UserVO user = new UserVO(1, "testuser", "password", "firstname", "lastName", "email", "timezone", UUID.randomUUID().toString());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        setBulkStartExecutor(executor);
+
+        CallContext.register(user, account);
+        try {
+            Map<UserVm, String> failures = _userVmMgr.startVirtualMachines(Arrays.<UserVm>asList(started, failed), null, null, 60000);
+            assertEquals(1, failures.size());
+            assertEquals("Unable to create a deployment for " + failed, failures.get(failed));
+            verify(_userVmMgr, times(1)).startBulkDeployedVm(eq(started), anyLong(), any(User.class), any(Account.class), anyString());
+        } finally {
+            CallContext.unregister();
+            executor.shutdownNow();
+        }
+    }
+
+    // Test that a bulk deployment doesn't wait longer than its timeout for the vms to start
+    @Test
+    public void testStartVirtualMachinesTimeout() throws Exception {
+        UserVmVO stuck = new UserVmVO(10L, "stuck", "stuck", 1L, HypervisorType.Any, 1L, false, false, 1L, 1L, 5L, "test", "test", 1L);
+        UserVmVO queued = new UserVmVO(11L, "queued", "queued", 1L, HypervisorType.Any, 1L, false, false, 1L, 1L, 5L, "test", "test", 1L);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return null;
+            }
+        }).when(_userVmMgr).startBulkDeployedVm(any(UserVm.class), anyLong(), any(User.class), any(Account.class), anyString());
+
+        Account account = new AccountVO("testaccount", 1L, "networkdomain", (short)0, "uuid");
+        UserVO user = new UserVO(1, "testuser", "password", "firstname", "lastName", "email", "timezone", UUID.randomUUID().toString());
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        setBulkStartExecutor(executor);
+
+        CallContext.register(user, account);
+        try {
+            Map<UserVm, String> failures = _userVmMgr.startVirtualMachines(Arrays.<UserVm>asList(stuck, queued), null, null, 100);
+            assertEquals(2, failures.size());
+            assertTrue(failures.get(stuck).startsWith("still starting"));
+            assertTrue(failures.get(queued).startsWith("not started"));
+        } finally {
+            release.countDown();
+            CallContext.unregister();
+            executor.shutdownNow();
+        }
+    }
+
+    // Test that the vms of a bulk deployment fill each host before the next one is used
+    @Test
+    public void testPlanBulkDeploymentFillsHostsInOrder() {
+        List<UserVm> vms = Arrays.<UserVm>asList(bulkVm(10L), bulkVm(11L), bulkVm(12L), bulkVm(13L));
+        List<HostVO> hosts = Arrays.asList(host(1L), host(2L), host(3L));
+        when(_resourceMgr.listAllUpAndEnabledHostsInOneZoneByHypervisor(HypervisorType.KVM, 1L)).thenReturn(hosts);
+        when(_capacityMgr.getClusterOverProvisioningFactor(anyLong(), eq(Capacity.CAPACITY_TYPE_CPU))).thenReturn(2f);
+        when(_capacityMgr.getClusterOverProvisioningFactor(anyLong(), eq(Capacity.CAPACITY_TYPE_MEMORY))).thenReturn(1f);
+        // host 1 fits one vm, host 2 is full, host 3 fits the rest
+        when(_capacityDao.listByHostIdsAndType(Arrays.asList(1L, 2L, 3L), Capacity.CAPACITY_TYPE_CPU)).thenReturn(
+            Arrays.asList(capacity(1L, 1000, 1500, Capacity.CAPACITY_TYPE_CPU), capacity(2L, 1000, 2000, Capacity.CAPACITY_TYPE_CPU),
+                capacity(3L, 4000, 0, Capacity.CAPACITY_TYPE_CPU)));
+        when(_capacityDao.listByHostIdsAndType(Arrays.asList(1L, 2L, 3L), Capacity.CAPACITY_TYPE_MEMORY)).thenReturn(
+            Arrays.asList(capacity(1L, 4096L << 20, 0, Capacity.CAPACITY_TYPE_MEMORY), capacity(2L, 4096L << 20, 0, Capacity.CAPACITY_TYPE_MEMORY),
+                capacity(3L, 4096L << 20, 0, Capacity.CAPACITY_TYPE_MEMORY)));
+        ServiceOffering offering = new ServiceOfferingVO("bulk", 1, 1024, 500, null, null, false, "bulk", false, false, null, false, VirtualMachine.Type.User, false);
+
+        Map<Long, Long> planned = _userVmMgr.planBulkDeployment(vms, offering);
+
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        expected.put(10L, 1L);
+        expected.put(11L, 3L);
+        expected.put(12L, 3L);
+        expected.put(13L, 3L);
+        assertEquals(expected, planned);
+    }
+
+    // Test that the vms created by a bulk deployment that failed part way are expunged
+    @Test
+    public void testExpungeBulkDeployedVms() throws Exception {
+        UserVmVO created = bulkVm(10L);
+        UserVmVO notDestroyed = bulkVm(11L);
+        doReturn(created).when(_userVmMgr).destroyVm(10L);
+        doThrow(new CloudRuntimeException("Failed to destroy vm with specified vmId")).when(_userVmMgr).destroyVm(11L);
+        when(_vmDao.findByIdIncludingRemoved(10L)).thenReturn(created);
+        doReturn(true).when(_userVmMgr).expunge(eq(created), anyLong(), any(Account.class));
+
+        Account account = new AccountVO("testaccount", 1L, "networkdomain", (short)0, "uuid");
+        UserVO user = new UserVO(1, "testuser", "password", "firstname", "lastName", "email", "timezone", UUID.randomUUID().toString());
+        CallContext.register(user, account);
+        try {
+            _userVmMgr.expungeBulkDeployedVms(Arrays.<UserVm>asList(notDestroyed, created));
+            verify(_userVmMgr, times(1)).expunge(eq(created), anyLong(), any(Account.class));
+            verify(_userVmMgr, times(0)).expunge(eq(notDestroyed), anyLong(), any(Account.class));
+        } finally {
+            CallContext.unregister();
+        }
+    }
+
+    private void setBulkStartExecutor(ExecutorService executor) throws Exception {
+        Field field = UserVmManagerImpl.class.getDeclaredField("_bulkStartExecutor");
+        field.setAccessible(true);
+        field.set(_userVmMgr, executor);
+    }
+
+    private static UserVmVO bulkVm(long id) {
+        return new UserVmVO(id, "bulk-" + id, "bulk-" + id, 1L, HypervisorType.KVM, 1L, false, false, 1L, 1L, 5L, "test", "test", 1L);
+    }
+
+    private static HostVO host(long id) {
+        HostVO host = mock(HostVO.class);
+        when(host.getId()).thenReturn(id);
+        when(host.getClusterId()).thenReturn(1L);
+        when(host.getType()).thenReturn(Host.Type.Routing);
+        return host;
+    }
+
+    private static CapacityVO capacity(long hostId, long total, long used, short type) {
+        return new CapacityVO(hostId, 1L, 1L, 1L, used, total, type);
+    }
 }
@@ -31,7 +31,6 @@ import java.security.SecureRandom;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.Executor;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.xml.DOMConfigurator;
@@ -70,6 +69,9 @@ public class ConsoleProxy {
     static int httpCmdListenPort = 8001;
     static int reconnectMaxRetry = 5;
     static int readTimeoutSeconds = 90;
+    static int httpWorkerThreads = 250;
+    static int httpWorkerQueueSize = 1000;
+    static ConsoleProxyWorkerExecutor httpExecutor;
     static int keyboardType = KEYBOARD_RAW;
     static String factoryClzName;
     static boolean standaloneStart = false;
@@ -158,6 +160,18 @@ public class ConsoleProxy {
             readTimeoutSeconds = Integer.parseInt(s);
             s_logger.info("Setting readTimeoutSeconds=" + readTimeoutSeconds);
         }
+
+        s = conf.getProperty("consoleproxy.httpWorkerThreads");
+        if (s != null) {
+            httpWorkerThreads = Integer.parseInt(s);
+            s_logger.info("Setting httpWorkerThreads=" + httpWorkerThreads);
+        }
+
+        s = conf.getProperty("consoleproxy.httpWorkerQueueSize");
+        if (s != null) {
+            httpWorkerQueueSize = Integer.parseInt(s);
+            s_logger.info("Setting httpWorkerQueueSize=" + httpWorkerQueueSize);
+        }
     }
 
     public static ConsoleProxyServerFactory getHttpServerFactory() {
@@ -353,7 +367,8 @@ public class ConsoleProxy {
             server.createContext("/resource/", new ConsoleProxyResourceHandler());
             server.createContext("/ajax", new ConsoleProxyAjaxHandler());
             server.createContext("/ajaximg", new ConsoleProxyAjaxImageHandler());
-            server.setExecutor(new ThreadExecutor()); // creates a default executor
+            httpExecutor = new ConsoleProxyWorkerExecutor("ConsoleProxyHttp", httpWorkerThreads, httpWorkerQueueSize);
+            server.setExecutor(httpExecutor);
             server.start();
         } catch (Exception e) {
             s_logger.error(e.getMessage(), e);
@@ -366,7 +381,7 @@ public class ConsoleProxy {
             s_logger.info("Listening for HTTP CMDs on port " + httpCmdListenPort);
             HttpServer cmdServer = HttpServer.create(new InetSocketAddress(httpCmdListenPort), 2);
             cmdServer.createContext("/cmd", new ConsoleProxyCmdHandler());
-            cmdServer.setExecutor(new ThreadExecutor()); // creates a default executor
+            cmdServer.setExecutor(new ConsoleProxyWorkerExecutor("ConsoleProxyCmd", 4, 100));
             cmdServer.start();
         } catch (Exception e) {
             s_logger.error(e.getMessage(), e);
@@ -524,10 +539,7 @@ public class ConsoleProxy {
         encryptorPassword = password;
     }
 
-    static class ThreadExecutor implements Executor {
-        @Override
-        public void execute(Runnable r) {
-            new Thread(r).start();
-        }
+    public static ConsoleProxyWorkerExecutor getHttpExecutor() {
+        return httpExecutor;
     }
 }
@@ -184,7 +184,7 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
                 if (s_logger.isTraceEnabled())
                     s_logger.trace("Ajax request indicates client update");
 
-                handleClientUpdate(t, viewer);
+                handleClientUpdate(t, viewer, ajaxSessionId);
             }
         }
     }
@@ -396,8 +396,8 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
         }
     }
 
-    private void handleClientUpdate(HttpExchange t, ConsoleProxyClient viewer) throws IOException {
-        String response = viewer.onAjaxClientUpdate();
+    private void handleClientUpdate(HttpExchange t, ConsoleProxyClient viewer, long ajaxSessionId) throws IOException {
+        String response = viewer.onAjaxClientUpdate(ajaxSessionId);
 
         Headers hds = t.getResponseHeaders();
         hds.set("Content-Type", "text/javascript");
@@ -46,7 +46,7 @@ public interface ConsoleProxyClient {
 
     String onAjaxClientStart(String title, List<String> languages, String guest);
 
-    String onAjaxClientUpdate();
+    String onAjaxClientUpdate(long ajaxSessionId);
 
     String onAjaxClientKickoff();
 
@@ -18,7 +18,9 @@ package com.cloud.consoleproxy;
 
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -43,6 +45,10 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 
     protected boolean dirtyFlag = false;
     protected Object tileDirtyEvent = new Object();
+    // bumped by every AJAX update request, a parked update returns early once a newer one of its session arrives
+    protected long ajaxUpdateSeq = 0;
+    // latest update request of each AJAX session that has one parked, guarded by tileDirtyEvent
+    protected Map<Long, Long> ajaxSessionUpdateSeqs = new HashMap<Long, Long>();
     protected TileTracker tracker;
     protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2);
 
@@ -342,19 +348,12 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     }
 
     @Override
-    public String onAjaxClientUpdate() {
+    public String onAjaxClientUpdate(long ajaxSessionId) {
         updateFrontEndActivityTime();
         if (!waitForViewerReady())
             return onAjaxClientDisconnected();
 
-        synchronized (tileDirtyEvent) {
-            if (!dirtyFlag) {
-                try {
-                    tileDirtyEvent.wait(3000);
-                } catch (InterruptedException e) {
-                }
-            }
-        }
+        waitForTileDirty(ajaxSessionId, 3000);
 
         boolean doResize = false;
         synchronized (this) {
@@ -408,6 +407,41 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         return ++s_nextClientId;
     }
 
+    /**
+     * Parks an AJAX update request until tiles get dirty, the timeout expires, or a newer update
+     * request of the same AJAX session arrives. Updates of other sessions viewing the same VM do
+     * not release it.
+     *
+     * @return true if tiles are dirty
+     */
+    protected boolean waitForTileDirty(long ajaxSessionId, long timeoutMs) {
+        synchronized (tileDirtyEvent) {
+            long seq = ++ajaxUpdateSeq;
+            Long sessionKey = Long.valueOf(ajaxSessionId);
+            // release the update request of this session that may still be parked
+            if (ajaxSessionUpdateSeqs.put(sessionKey, seq) != null)
+                tileDirtyEvent.notifyAll();
+
+            try {
+                long deadline = System.currentTimeMillis() + timeoutMs;
+                while (!dirtyFlag && ajaxSessionUpdateSeqs.get(sessionKey).longValue() == seq) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        break;
+                    try {
+                        tileDirtyEvent.wait(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                return dirtyFlag;
+            } finally {
+                if (ajaxSessionUpdateSeqs.get(sessionKey).longValue() == seq)
+                    ajaxSessionUpdateSeqs.remove(sessionKey);
+            }
+        }
+    }
+
     private void signalTileDirtyEvent() {
         synchronized (tileDirtyEvent) {
             dirtyFlag = true;
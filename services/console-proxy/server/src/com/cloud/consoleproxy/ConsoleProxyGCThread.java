@@ -35,6 +35,7 @@ public class ConsoleProxyGCThread extends Thread {
 
     private Hashtable<String, ConsoleProxyClient> connMap;
     private long lastLogScan = 0;
+    private long lastRejectedCount = 0;
 
     public ConsoleProxyGCThread(Hashtable<String, ConsoleProxyClient> connMap) {
         this.connMap = connMap;
@@ -104,6 +105,17 @@ public class ConsoleProxyGCThread extends Thread {
 
                 if (s_logger.isDebugEnabled())
                     s_logger.debug("Report load change : " + loadInfo);
+
+                ConsoleProxyWorkerExecutor executor = ConsoleProxy.getHttpExecutor();
+                if (executor != null) {
+                    if (executor.getQueueSize() > 0 || executor.getRejectedCount() > lastRejectedCount)
+                        s_logger.info(executor.getStats());
+                    else if (s_logger.isDebugEnabled())
+                        s_logger.debug(executor.getStats());
+                    // max queue wait is reported per load report interval
+                    executor.resetMaxQueueWaitMs();
+                    lastRejectedCount = executor.getRejectedCount();
+                }
             }
 
             try {
@@ -0,0 +1,151 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Executor handed to the HTTP servers of the console proxy. Requests run on a bounded
+ * pool of reused threads instead of a new thread each, and the time they spend queued
+ * is tracked so that a saturated pool shows up in the logs.
+ *
+ * AJAX update requests park a worker for up to a few seconds while waiting for screen
+ * changes, so the pool is expected to be sized above the number of concurrent sessions.
+ * When both the pool and its queue are full the request is rejected and runs on the
+ * submitting thread instead. For the HTTP servers that is the accept loop, so a saturated
+ * proxy stops taking new connections until a request completes rather than growing
+ * without bound.
+ */
+public class ConsoleProxyWorkerExecutor implements Executor {
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final String name;
+    private final ThreadPoolExecutor pool;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dequeued = new AtomicLong();
+    private final AtomicLong totalWaitMs = new AtomicLong();
+    private final AtomicLong maxWaitMs = new AtomicLong();
+
+    public ConsoleProxyWorkerExecutor(String name, int workers, int queueSize) {
+        this.name = name;
+        pool = new ThreadPoolExecutor(workers, workers, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize),
+            new NamedThreadFactory(name), new CallerRunsRejectionHandler());
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable r) {
+        submitted.incrementAndGet();
+        pool.execute(new TimedTask(r));
+    }
+
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    public int getQueueSize() {
+        return pool.getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the longest time a request spent queued since the last call to resetMaxQueueWaitMs()
+     */
+    public long getMaxQueueWaitMs() {
+        return maxWaitMs.get();
+    }
+
+    /**
+     * Starts a new window for getMaxQueueWaitMs().
+     */
+    public void resetMaxQueueWaitMs() {
+        maxWaitMs.set(0);
+    }
+
+    /**
+     * @return the average time requests that ran on the pool spent queued, requests run by the
+     *         rejection policy are not included
+     */
+    public long getAvgQueueWaitMs() {
+        long count = dequeued.get();
+        return count > 0 ? totalWaitMs.get() / count : 0;
+    }
+
+    public String getStats() {
+        StringBuilder sb = new StringBuilder(name);
+        sb.append(": workers=").append(pool.getPoolSize()).append("/").append(pool.getMaximumPoolSize());
+        sb.append(", active=").append(pool.getActiveCount());
+        sb.append(", queued=").append(pool.getQueue().size());
+        sb.append(", submitted=").append(submitted.get());
+        sb.append(", completed=").append(pool.getCompletedTaskCount());
+        sb.append(", rejected=").append(rejected.get());
+        sb.append(", avgQueueWaitMs=").append(getAvgQueueWaitMs());
+        sb.append(", maxQueueWaitMs=").append(getMaxQueueWaitMs());
+        return sb.toString();
+    }
+
+    /**
+     * Runs rejected requests on the submitting thread. They were never queued, so they are
+     * run without queue wait accounting.
+     */
+    private class CallerRunsRejectionHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            rejected.incrementAndGet();
+            if (!executor.isShutdown()) {
+                ((TimedTask)r).task.run();
+            }
+        }
+    }
+
+    private class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long queuedAt = System.currentTimeMillis();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long waitMs = System.currentTimeMillis() - queuedAt;
+            dequeued.incrementAndGet();
+            totalWaitMs.addAndGet(waitMs);
+            long max = maxWaitMs.get();
+            while (waitMs > max && !maxWaitMs.compareAndSet(max, waitMs)) {
+                max = maxWaitMs.get();
+            }
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+package com.cloud.consoleproxy;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ConsoleProxyClientBaseTest {
+
+    private Thread parkUpdate(final ConsoleProxyClientBase client, final long ajaxSessionId, final long timeoutMs) throws InterruptedException {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                client.waitForTileDirty(ajaxSessionId, timeoutMs);
+            }
+        });
+        t.start();
+
+        // wait until the update is parked
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (client.tileDirtyEvent) {
+                if (client.ajaxSessionUpdateSeqs.containsKey(ajaxSessionId))
+                    return t;
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("update request was not parked");
+        return t;
+    }
+
+    @Test
+    public void testNewerUpdateOfSameSessionReleasesParkedUpdate() throws Exception {
+        ConsoleProxyClientBase client = new ConsoleProxyRdpClient();
+        Thread parked = parkUpdate(client, 1, 30000);
+
+        Assert.assertFalse(client.waitForTileDirty(1, 10));
+        parked.join(5000);
+        Assert.assertFalse(parked.isAlive());
+        Assert.assertTrue(client.ajaxSessionUpdateSeqs.isEmpty());
+    }
+
+    @Test
+    public void testUpdateOfOtherSessionDoesNotReleaseParkedUpdate() throws Exception {
+        ConsoleProxyClientBase client = new ConsoleProxyRdpClient();
+        Thread parked = parkUpdate(client, 1, 1000);
+
+        Assert.assertFalse(client.waitForTileDirty(2, 10));
+        parked.join(200);
+        Assert.assertTrue(parked.isAlive());
+
+        parked.join(5000);
+        Assert.assertFalse(parked.isAlive());
+        Assert.assertTrue(client.ajaxSessionUpdateSeqs.isEmpty());
+    }
+
+    @Test
+    public void testDirtyTilesReturnImmediately() throws Exception {
+        ConsoleProxyClientBase client = new ConsoleProxyRdpClient();
+        client.dirtyFlag = true;
+
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(client.waitForTileDirty(1, 30000));
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+}
@@ -0,0 +1,107 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+package com.cloud.consoleproxy;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ConsoleProxyWorkerExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    private Runnable blockingTask(final CountDownLatch started) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testRequestsQueueOnceAllWorkersAreBusy() throws Exception {
+        ConsoleProxyWorkerExecutor executor = new ConsoleProxyWorkerExecutor("test", 2, 10);
+        CountDownLatch started = new CountDownLatch(2);
+        executor.execute(blockingTask(started));
+        executor.execute(blockingTask(started));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        executor.execute(blockingTask(new CountDownLatch(1)));
+        Assert.assertEquals(2, executor.getPoolSize());
+        Assert.assertEquals(2, executor.getActiveCount());
+        Assert.assertEquals(1, executor.getQueueSize());
+        Assert.assertEquals(0, executor.getRejectedCount());
+    }
+
+    @Test
+    public void testRejectedRequestRunsOnCaller() throws Exception {
+        ConsoleProxyWorkerExecutor executor = new ConsoleProxyWorkerExecutor("test", 1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute(blockingTask(started));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.execute(blockingTask(new CountDownLatch(1)));
+
+        final Thread[] ranOn = new Thread[1];
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+            }
+        });
+        Assert.assertSame(Thread.currentThread(), ranOn[0]);
+        Assert.assertEquals(1, executor.getRejectedCount());
+        Assert.assertEquals(1, executor.getQueueSize());
+    }
+
+    @Test
+    public void testQueueWaitIsTrackedUntilReset() throws Exception {
+        ConsoleProxyWorkerExecutor executor = new ConsoleProxyWorkerExecutor("test", 1, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute(blockingTask(started));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch queuedStarted = new CountDownLatch(1);
+        executor.execute(blockingTask(queuedStarted));
+        Thread.sleep(100);
+        release.countDown();
+        Assert.assertTrue(queuedStarted.await(5, TimeUnit.SECONDS));
+
+        long maxWaitMs = executor.getMaxQueueWaitMs();
+        Assert.assertTrue(maxWaitMs >= 100);
+        executor.getStats();
+        Assert.assertEquals(maxWaitMs, executor.getMaxQueueWaitMs());
+        Assert.assertTrue(executor.getAvgQueueWaitMs() >= 50);
+
+        executor.resetMaxQueueWaitMs();
+        Assert.assertEquals(0, executor.getMaxQueueWaitMs());
+    }
+}
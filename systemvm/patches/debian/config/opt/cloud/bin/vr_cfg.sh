@@ -20,6 +20,8 @@
 
 cfg=
 version=
+report=
+index=0
 log=/var/log/cloud.log
 
 log_it() {
@@ -27,11 +29,13 @@ log_it() {
     echo "$(date) : $*" >> $log
 }
 
-while getopts 'c:' OPTION
+while getopts 'c:r' OPTION
 do
   case $OPTION in
       c) cfg="$OPTARG"
           ;;
+      r) report=1
+          ;;
   esac
 done
 
@@ -58,12 +62,25 @@ do
         read line
         log_it "VR config: executing: $line"
         eval $line >> $log 2>&1
-        if [ $? -ne 0 ]
+        rc=$?
+        if [ -n "$report" ]
+        then
+            # report the exit code of every script and go on with the next one
+            echo "result:$index:$rc"
+        fi
+        index=$((index+1))
+        if [ $rc -ne 0 ]
         then
             log_it "VR config: executing failed: $line"
-            # expose error info to mgmt server
-            echo "VR config: execution failed: \"$line\", check $log in VR for details " 1>&2
-            exit 1
+            if [ -z "$report" ]
+            then
+                # expose error info to mgmt server
+                echo "VR config: execution failed: \"$line\", check $log in VR for details " 1>&2
+                exit 1
+            fi
+            #skip </script>
+            read line
+            continue
         fi
         #skip </script>
         read line
@@ -0,0 +1,50 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in exponential buckets, from 1ms to 1 minute.
+ */
+public class LatencyHistogram {
+    private static final long[] BOUNDS = {1, 10, 100, 1000, 10000, 60000};
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(BOUNDS.length + 1);
+
+    public void record(long ms) {
+        int i = 0;
+        while (i < BOUNDS.length && ms > BOUNDS[i]) {
+            i++;
+        }
+        _buckets.incrementAndGet(i);
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < BOUNDS.length; i++) {
+            snapshot.put("<=" + BOUNDS[i] + "ms", _buckets.get(i));
+        }
+        snapshot.put(">" + BOUNDS[BOUNDS.length - 1] + "ms", _buckets.get(BOUNDS.length));
+        return snapshot;
+    }
+}
@@ -0,0 +1,402 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed size history of the metrics of one host or vm.
+ *
+ * The whole history lives in a single byte array: the state of every tier
+ * followed by the tiers' rings. A ring holds the points as varint encoded
+ * deltas from the point before, the seconds elapsed and then the change of
+ * every metric in units of its scale. The first tier keeps every sample, the
+ * following ones keep the average of every n samples, so the history gets
+ * coarser but longer as it goes back. When a ring is full its oldest points
+ * are dropped.
+ */
+public class TimeSeries {
+    private static final double DEFAULT_SCALE = 100;
+
+    // tier state: ring head, bytes used, points, samples pending for the next average, first and last time (s),
+    // then for each metric its first and last value, and the running sum for averaging tiers
+    private static final int HEAD = 0;
+    private static final int USED = 4;
+    private static final int COUNT = 8;
+    private static final int PENDING = 12;
+    private static final int FIRST_TIME = 16;
+    private static final int LAST_TIME = 24;
+    private static final int VALUES = 32;
+
+    private final Layout _layout;
+    private final byte[] _data;
+
+    /**
+     * Shape of a history, shared by all the series keeping the same metrics.
+     */
+    public static class Layout {
+        final double[] _scales;
+        final int[] _samplesPerPoint;
+        final int[] _state;
+        final int[] _ring;
+        final int[] _ringSize;
+        final int _size;
+
+        /**
+         * @param scales units per value of each metric; values are rounded to a unit and must fit in an int
+         * @param bytesPerTier ring size of each tier
+         * @param samplesPerPoint number of samples averaged into one point, for each tier
+         */
+        public Layout(double[] scales, int[] bytesPerTier, int[] samplesPerPoint) {
+            if (scales.length == 0) {
+                throw new IllegalArgumentException("At least one metric is needed");
+            }
+            if (samplesPerPoint.length == 0) {
+                throw new IllegalArgumentException("At least one tier is needed");
+            }
+            if (bytesPerTier.length != samplesPerPoint.length) {
+                throw new IllegalArgumentException("A size is needed for every tier");
+            }
+            _scales = scales.clone();
+            _samplesPerPoint = new int[samplesPerPoint.length];
+            _state = new int[samplesPerPoint.length];
+            _ring = new int[samplesPerPoint.length];
+            _ringSize = bytesPerTier.clone();
+
+            int offset = 0;
+            for (int i = 0; i < samplesPerPoint.length; i++) {
+                _samplesPerPoint[i] = Math.max(1, samplesPerPoint[i]);
+                _state[i] = offset;
+                offset += VALUES + scales.length * (_samplesPerPoint[i] > 1 ? 16 : 8);
+            }
+            for (int i = 0; i < samplesPerPoint.length; i++) {
+                _ring[i] = offset;
+                offset += bytesPerTier[i];
+            }
+            _size = offset;
+        }
+
+        public int getMetrics() {
+            return _scales.length;
+        }
+
+        /**
+         * @return bytes taken by the history of one entity
+         */
+        public int getSize() {
+            return _size;
+        }
+    }
+
+    /**
+     * History of a single metric, in hundredths.
+     *
+     * @param bytesPerTier ring size of every tier
+     * @param samplesPerPoint number of samples averaged into one point, for each tier
+     */
+    public TimeSeries(int bytesPerTier, int... samplesPerPoint) {
+        this(sameSize(bytesPerTier, samplesPerPoint.length), samplesPerPoint);
+    }
+
+    /**
+     * History of a single metric, in hundredths.
+     *
+     * @param bytesPerTier ring size of each tier
+     * @param samplesPerPoint number of samples averaged into one point, for each tier
+     */
+    public TimeSeries(int[] bytesPerTier, int[] samplesPerPoint) {
+        this(new Layout(new double[] {DEFAULT_SCALE}, bytesPerTier, samplesPerPoint));
+    }
+
+    public TimeSeries(Layout layout) {
+        _layout = layout;
+        _data = new byte[layout._size];
+    }
+
+    private static int[] sameSize(int bytesPerTier, int tiers) {
+        int[] sizes = new int[tiers];
+        for (int i = 0; i < tiers; i++) {
+            sizes[i] = bytesPerTier;
+        }
+        return sizes;
+    }
+
+    /**
+     * Adds a sample of every metric. Samples older than the last one are ignored.
+     *
+     * @param timestamp time of the sample, in ms
+     * @param values value of each metric, in the order of the layout
+     */
+    public synchronized void add(long timestamp, double... values) {
+        if (values.length != _layout._scales.length) {
+            throw new IllegalArgumentException("Expected " + _layout._scales.length + " values, got " + values.length);
+        }
+        long time = timestamp / 1000;
+        long[] scaled = new long[values.length];
+        for (int tier = 0; tier < _layout._state.length; tier++) {
+            for (int m = 0; m < values.length; m++) {
+                scaled[m] = toUnits(values[m], _layout._scales[m]);
+            }
+            add(tier, time, scaled);
+        }
+    }
+
+    private static long toUnits(double value, double scale) {
+        long units = Math.round(value * scale);
+        return Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, units));
+    }
+
+    /**
+     * @return the points of the first metric at or after since (in ms), see {@link #getPoints(int, long)}
+     */
+    public List<Pair<Long, Double>> getPoints(long since) {
+        return getPoints(0, since);
+    }
+
+    /**
+     * @return the points of the metric at or after since (in ms) as (timestamp in ms, value) pairs,
+     *         oldest first, using the finest tier available for every period
+     */
+    public synchronized List<Pair<Long, Double>> getPoints(int metric, long since) {
+        int tiers = _layout._state.length;
+        List<List<Pair<Long, Double>>> perTier = new ArrayList<List<Pair<Long, Double>>>(tiers);
+        long until = Long.MAX_VALUE;
+        for (int tier = 0; tier < tiers; tier++) {
+            List<Pair<Long, Double>> points = new ArrayList<Pair<Long, Double>>();
+            collect(tier, metric, since / 1000, until, points);
+            perTier.add(points);
+            int state = _layout._state[tier];
+            if (getInt(state + COUNT) > 0) {
+                until = Math.min(until, getLong(state + FIRST_TIME));
+            }
+        }
+
+        List<Pair<Long, Double>> result = new ArrayList<Pair<Long, Double>>();
+        for (int i = perTier.size() - 1; i >= 0; i--) {
+            result.addAll(perTier.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * @return time of the last sample in ms, 0 if there is none
+     */
+    public synchronized long getLastTimestamp() {
+        int state = _layout._state[0];
+        return getInt(state + COUNT) > 0 ? getLong(state + LAST_TIME) * 1000 : 0;
+    }
+
+    /**
+     * @return bytes taken by the history
+     */
+    public int getCapacity() {
+        return _data.length;
+    }
+
+    private void add(int tier, long time, long[] values) {
+        int state = _layout._state[tier];
+        int metrics = values.length;
+        if (getInt(state + COUNT) > 0 && time < getLong(state + LAST_TIME)) {
+            return;
+        }
+        int samplesPerPoint = _layout._samplesPerPoint[tier];
+        if (samplesPerPoint > 1) {
+            int sums = state + VALUES + metrics * 8;
+            int pending = getInt(state + PENDING) + 1;
+            for (int m = 0; m < metrics; m++) {
+                putLong(sums + m * 8, getLong(sums + m * 8) + values[m]);
+            }
+            if (pending < samplesPerPoint) {
+                putInt(state + PENDING, pending);
+                return;
+            }
+            for (int m = 0; m < metrics; m++) {
+                values[m] = getLong(sums + m * 8) / pending;
+                putLong(sums + m * 8, 0);
+            }
+            putInt(state + PENDING, 0);
+        }
+        append(tier, time, values);
+    }
+
+    private void append(int tier, long time, long[] values) {
+        int state = _layout._state[tier];
+        int ringSize = _layout._ringSize[tier];
+        int metrics = values.length;
+        if (getInt(state + COUNT) == 0) {
+            putInt(state + HEAD, 0);
+            putInt(state + USED, 0);
+            putInt(state + COUNT, 1);
+            putLong(state + FIRST_TIME, time);
+            putLong(state + LAST_TIME, time);
+            for (int m = 0; m < metrics; m++) {
+                putInt(state + VALUES + m * 8, (int)values[m]);
+                putInt(state + VALUES + m * 8 + 4, (int)values[m]);
+            }
+            return;
+        }
+
+        long dt = time - getLong(state + LAST_TIME);
+        int needed = varintSize(dt);
+        for (int m = 0; m < metrics; m++) {
+            needed += varintSize(zigzag(values[m] - getInt(state + VALUES + m * 8 + 4)));
+        }
+        if (needed > ringSize) {
+            putInt(state + COUNT, 0);
+            append(tier, time, values);
+            return;
+        }
+        while (ringSize - getInt(state + USED) < needed) {
+            evict(tier);
+        }
+
+        int ring = _layout._ring[tier];
+        int pos = (getInt(state + HEAD) + getInt(state + USED)) % ringSize;
+        pos = writeVarint(ring, ringSize, pos, dt);
+        for (int m = 0; m < metrics; m++) {
+            int last = state + VALUES + m * 8 + 4;
+            pos = writeVarint(ring, ringSize, pos, zigzag(values[m] - getInt(last)));
+            putInt(last, (int)values[m]);
+        }
+        putInt(state + USED, getInt(state + USED) + needed);
+        putInt(state + COUNT, getInt(state + COUNT) + 1);
+        putLong(state + LAST_TIME, time);
+    }
+
+    private void evict(int tier) {
+        int state = _layout._state[tier];
+        int ring = _layout._ring[tier];
+        int ringSize = _layout._ringSize[tier];
+        int head = getInt(state + HEAD);
+
+        int pos = head;
+        long dt = readVarint(ring, ringSize, pos);
+        pos = (pos + varintSize(dt)) % ringSize;
+        putLong(state + FIRST_TIME, getLong(state + FIRST_TIME) + dt);
+        for (int m = 0; m < _layout._scales.length; m++) {
+            long dv = readVarint(ring, ringSize, pos);
+            pos = (pos + varintSize(dv)) % ringSize;
+            int first = state + VALUES + m * 8;
+            putInt(first, (int)(getInt(first) + unzigzag(dv)));
+        }
+
+        int size = (pos - head + ringSize) % ringSize;
+        putInt(state + HEAD, pos);
+        putInt(state + USED, getInt(state + USED) - size);
+        putInt(state + COUNT, getInt(state + COUNT) - 1);
+    }
+
+    private void collect(int tier, int metric, long since, long until, List<Pair<Long, Double>> points) {
+        int state = _layout._state[tier];
+        int count = getInt(state + COUNT);
+        if (count == 0) {
+            return;
+        }
+        int ring = _layout._ring[tier];
+        int ringSize = _layout._ringSize[tier];
+        int metrics = _layout._scales.length;
+        double scale = _layout._scales[metric];
+
+        long time = getLong(state + FIRST_TIME);
+        long value = getInt(state + VALUES + metric * 8);
+        int pos = getInt(state + HEAD);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                long dt = readVarint(ring, ringSize, pos);
+                pos = (pos + varintSize(dt)) % ringSize;
+                time += dt;
+                for (int m = 0; m < metrics; m++) {
+                    long dv = readVarint(ring, ringSize, pos);
+                    pos = (pos + varintSize(dv)) % ringSize;
+                    if (m == metric) {
+                        value += unzigzag(dv);
+                    }
+                }
+            }
+            if (time >= until) {
+                break;
+            }
+            if (time >= since) {
+                points.add(new Pair<Long, Double>(time * 1000, value / scale));
+            }
+        }
+    }
+
+    private int writeVarint(int ring, int ringSize, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            _data[ring + pos] = (byte)((value & 0x7F) | 0x80);
+            pos = (pos + 1) % ringSize;
+            value >>>= 7;
+        }
+        _data[ring + pos] = (byte)value;
+        return (pos + 1) % ringSize;
+    }
+
+    private long readVarint(int ring, int ringSize, int pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = _data[ring + pos];
+            value |= (long)(b & 0x7F) << shift;
+            shift += 7;
+            pos = (pos + 1) % ringSize;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private int getInt(int offset) {
+        return (_data[offset] & 0xFF) << 24 | (_data[offset + 1] & 0xFF) << 16 | (_data[offset + 2] & 0xFF) << 8 | (_data[offset + 3] & 0xFF);
+    }
+
+    private void putInt(int offset, int value) {
+        _data[offset] = (byte)(value >>> 24);
+        _data[offset + 1] = (byte)(value >>> 16);
+        _data[offset + 2] = (byte)(value >>> 8);
+        _data[offset + 3] = (byte)value;
+    }
+
+    private long getLong(int offset) {
+        return (long)getInt(offset) << 32 | getInt(offset + 4) & 0xFFFFFFFFL;
+    }
+
+    private void putLong(int offset, long value) {
+        putInt(offset, (int)(value >>> 32));
+        putInt(offset + 4, (int)value);
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
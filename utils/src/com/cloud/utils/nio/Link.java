@@ -33,6 +33,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.security.KeyStore;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -64,10 +65,32 @@ public class Link {
 
     private SSLEngine _sslEngine;
 
+    // bytes allocated for the read buffers of this link, to keep an eye on garbage generated by connections
+    private final AtomicLong _readBufferAllocatedBytes = new AtomicLong();
+
+    // bytes allocated for the per-thread ssl buffers, shared by all links
+    private static final AtomicLong s_sslBufferAllocatedBytes = new AtomicLong();
+
+    /**
+     * Write buffers are kept per thread and reused for every packet; they are direct
+     * so that the socket write does not go through another temporary direct buffer.
+     */
+    private static final ThreadLocal<ByteBuffer[]> s_writeBuffers = new ThreadLocal<ByteBuffer[]>();
+
+    /**
+     * SSL records are unwrapped into a per thread buffer as well, only the plaintext
+     * is copied into the link.
+     */
+    private static final ThreadLocal<ByteBuffer> s_unwrapBuffers = new ThreadLocal<ByteBuffer>();
+
+    /* The plaintext buffer is kept across packets unless a large message made it grow beyond this. */
+    protected static final int PLAINTEXT_BUFFER_SIZE = 2048;
+    protected static final int MAX_RETAINED_PLAINTEXT_BUFFER_SIZE = 4096;
+
     public Link(InetSocketAddress addr, NioConnection connection) {
         _addr = addr;
         _connection = connection;
-        _readBuffer = ByteBuffer.allocate(2048);
+        _readBuffer = allocate(2048);
         _attach = null;
         _key = null;
         _writeQueue = new ConcurrentLinkedQueue<ByteBuffer[]>();
@@ -95,6 +118,47 @@ public class Link {
         _sslEngine = sslEngine;
     }
 
+    /**
+     * @return bytes allocated for the read buffers of this link.
+     */
+    public long getReadBufferAllocatedBytes() {
+        return _readBufferAllocatedBytes.get();
+    }
+
+    /**
+     * @return bytes allocated for the per-thread ssl buffers, across all links.
+     */
+    public static long getSslBufferAllocatedBytes() {
+        return s_sslBufferAllocatedBytes.get();
+    }
+
+    private ByteBuffer allocate(int size) {
+        _readBufferAllocatedBytes.addAndGet(size);
+        _connection.addReadBufferAllocatedBytes(size);
+        return ByteBuffer.allocate(size);
+    }
+
+    private static ByteBuffer getUnwrapBuffer(int appBufferSize) {
+        ByteBuffer buffer = s_unwrapBuffers.get();
+        if (buffer == null || buffer.capacity() < appBufferSize) {
+            buffer = ByteBuffer.allocate(appBufferSize);
+            s_sslBufferAllocatedBytes.addAndGet(appBufferSize);
+            s_unwrapBuffers.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static ByteBuffer[] getWriteBuffers(int packetBufferSize) {
+        ByteBuffer[] buffers = s_writeBuffers.get();
+        if (buffers == null || buffers[1].capacity() < packetBufferSize) {
+            buffers = new ByteBuffer[] {ByteBuffer.allocateDirect(4), ByteBuffer.allocateDirect(packetBufferSize)};
+            s_sslBufferAllocatedBytes.addAndGet(4 + packetBufferSize);
+            s_writeBuffers.set(buffers);
+        }
+        return buffers;
+    }
+
     /**
      * No user, so comment it out.
      *
@@ -140,11 +204,11 @@ public class Link {
 
     private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer[] outBufs = getWriteBuffers(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer headBuf = outBufs[0];
+        ByteBuffer pkgBuf = outBufs[1];
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-
         int totalLen = 0;
         for (ByteBuffer buffer : buffers) {
             totalLen += buffer.limit();
@@ -165,9 +229,8 @@ public class Link {
                 processedLen += buffer.position();
             }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
+            int header = pkgBuf.position();
+            long remaining = 4 + header;
             pkgBuf.flip();
             if (processedLen < totalLen) {
                 header = header | HEADER_FLAG_FOLLOWING;
@@ -175,19 +238,13 @@ public class Link {
             headBuf.putInt(header);
             headBuf.flip();
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
-                }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
-            }
-            while (dataRemaining > 0) {
+            // header and packet go out in one gathering write
+            while (remaining > 0) {
                 if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
+                    s_logger.trace("Writing Data " + remaining);
                 }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
+                long count = ch.write(outBufs);
+                remaining -= count;
             }
         }
     }
@@ -237,7 +294,11 @@ public class Link {
             }
 
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                if (_plaintextBuffer == null || _plaintextBuffer.capacity() > MAX_RETAINED_PLAINTEXT_BUFFER_SIZE) {
+                    _plaintextBuffer = allocate(PLAINTEXT_BUFFER_SIZE);
+                } else {
+                    _plaintextBuffer.clear();
+                }
             }
 
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -253,7 +314,7 @@ public class Link {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Resizing the byte buffer from " + _readBuffer.capacity());
                 }
-                _readBuffer = ByteBuffer.allocate(readSize);
+                _readBuffer = allocate(readSize);
             }
             _readBuffer.limit(readSize);
         }
@@ -279,7 +340,7 @@ public class Link {
 
         while (_readBuffer.hasRemaining()) {
             remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
+            appBuf = getUnwrapBuffer(sslSession.getApplicationBufferSize() + 40);
             engResult = _sslEngine.unwrap(_readBuffer, appBuf);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                 engResult.getStatus() != SSLEngineResult.Status.OK) {
@@ -291,8 +352,8 @@ public class Link {
 
             appBuf.flip();
             if (_plaintextBuffer.remaining() < appBuf.limit()) {
-                // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
+                // We need to expand _plaintextBuffer for more data, doubling keeps the number of copies logarithmic
+                ByteBuffer newBuffer = allocate(Math.max(_plaintextBuffer.capacity() * 2, _plaintextBuffer.position() + appBuf.limit()));
                 _plaintextBuffer.flip();
                 newBuffer.put(_plaintextBuffer);
                 _plaintextBuffer = newBuffer;
@@ -328,22 +389,18 @@ public class Link {
     }
 
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
 
-        _writeQueue.add(item);
+        // the packet framing is added by doWrite(), the buffers are queued as they are
+        if (data.length > 0) {
+            _writeQueue.add(data);
+        }
         if (close) {
             _writeQueue.add(new ByteBuffer[0]);
         }
@@ -375,10 +432,7 @@ public class Link {
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, _sslEngine);
         }
         return false;
     }
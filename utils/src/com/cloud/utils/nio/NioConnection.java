@@ -33,10 +33,15 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -44,12 +49,13 @@ import javax.net.ssl.SSLEngine;
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.mgmt.JmxUtil;
 
 /**
  * NioConnection abstracts the NIO socket operations.  The Java implementation
  * provides that.
  */
-public abstract class NioConnection implements Runnable {
+public abstract class NioConnection implements Runnable, NioConnectionMBean {
     private static final Logger s_logger = Logger.getLogger(NioConnection.class);;
 
     protected Selector _selector;
@@ -61,6 +67,22 @@ public abstract class NioConnection implements Runnable {
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    // SSL handshakes of accepted connections, only set up by servers
+    protected ThreadPoolExecutor _sslHandshakeExecutor;
+    protected ScheduledThreadPoolExecutor _sslHandshakeTimeoutExecutor;
+
+    // selector loop statistics, written by the selector thread only
+    protected volatile long _selectorLoops;
+    protected volatile long _selectorLoopTotalNanos;
+    protected volatile long _selectorLoopMaxNanos;
+    // bytes allocated for the read buffers of the links of this connection, each link counts its own as well
+    private final AtomicLong _readBufferAllocatedBytes = new AtomicLong();
+
+    /* A selector loop taking longer than this delays every connection, so it gets logged. */
+    protected static final long SLOW_SELECTOR_LOOP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /* Connections that don't complete the SSL handshake in this time are closed, so they can't hold a handshake thread. */
+    protected static final long SSL_HANDSHAKE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
 
     public NioConnection(String name, int port, int workers, HandlerFactory factory) {
         _name = name;
@@ -72,9 +94,27 @@ public abstract class NioConnection implements Runnable {
         _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
     }
 
+    /**
+     * Sets up the pool the SSL handshakes of accepted connections run on, so that a mass reconnect does not stall
+     * the selector. The queue is bounded, connections beyond it are closed and the peers retry.
+     */
+    protected void initSslHandshakeExecutor(int workers) {
+        _sslHandshakeExecutor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(10 * workers),
+            new NamedThreadFactory(_name + "-Handshake"));
+        _sslHandshakeExecutor.allowCoreThreadTimeOut(true);
+        _sslHandshakeTimeoutExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(_name + "-HandshakeTimeout"));
+        _sslHandshakeTimeoutExecutor.setRemoveOnCancelPolicy(true);
+    }
+
     public void start() {
         _todos = new ArrayList<ChangeRequest>();
 
+        try {
+            JmxUtil.registerMBean("NioConnection", getMBeanName(), this);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the statistics of " + _name + " with JMX", e);
+        }
+
         _thread = new Thread(this, _name + "-Selector");
         _isRunning = true;
         _thread.start();
@@ -89,7 +129,16 @@ public abstract class NioConnection implements Runnable {
     }
 
     public void stop() {
+        try {
+            JmxUtil.unregisterMBean("NioConnection", getMBeanName());
+        } catch (Exception e) {
+            s_logger.debug("Unable to unregister the statistics of " + _name + " from JMX", e);
+        }
         _executor.shutdown();
+        if (_sslHandshakeExecutor != null) {
+            _sslHandshakeExecutor.shutdownNow();
+            _sslHandshakeTimeoutExecutor.shutdownNow();
+        }
         _isRunning = false;
         if (_thread != null) {
             _thread.interrupt();
@@ -104,6 +153,48 @@ public abstract class NioConnection implements Runnable {
         return _isStartup;
     }
 
+    protected String getMBeanName() {
+        return getClass().getSimpleName() + "-" + _name;
+    }
+
+    @Override
+    public long getSelectorLoopCount() {
+        return _selectorLoops;
+    }
+
+    @Override
+    public double getSelectorLoopAverageMs() {
+        long loops = _selectorLoops;
+        return loops == 0 ? 0 : (double)_selectorLoopTotalNanos / loops / 1000000;
+    }
+
+    @Override
+    public double getSelectorLoopMaxMs() {
+        return (double)_selectorLoopMaxNanos / 1000000;
+    }
+
+    @Override
+    public int getPendingSslHandshakes() {
+        if (_sslHandshakeExecutor == null) {
+            return 0;
+        }
+        return _sslHandshakeExecutor.getQueue().size() + _sslHandshakeExecutor.getActiveCount();
+    }
+
+    @Override
+    public long getSslBufferAllocatedBytes() {
+        return Link.getSslBufferAllocatedBytes();
+    }
+
+    @Override
+    public long getReadBufferAllocatedBytes() {
+        return _readBufferAllocatedBytes.get();
+    }
+
+    void addReadBufferAllocatedBytes(long bytes) {
+        _readBufferAllocatedBytes.addAndGet(bytes);
+    }
+
     @Override
     public void run() {
         synchronized (_thread) {
@@ -126,6 +217,7 @@ public abstract class NioConnection implements Runnable {
         while (_isRunning) {
             try {
                 _selector.select();
+                long loopStart = System.nanoTime();
 
                 // Someone is ready for I/O, get the ready keys
                 Set<SelectionKey> readyKeys = _selector.selectedKeys();
@@ -163,6 +255,7 @@ public abstract class NioConnection implements Runnable {
                 s_logger.trace("Keys Done Processing.");
 
                 processTodos();
+                recordSelectorLoop(System.nanoTime() - loopStart);
             } catch (Throwable e) {
                 s_logger.warn("Caught an exception but continuing on.", e);
             }
@@ -172,6 +265,17 @@ public abstract class NioConnection implements Runnable {
         }
     }
 
+    protected void recordSelectorLoop(long nanos) {
+        _selectorLoops++;
+        _selectorLoopTotalNanos += nanos;
+        if (nanos > _selectorLoopMaxNanos) {
+            _selectorLoopMaxNanos = nanos;
+        }
+        if (nanos > SLOW_SELECTOR_LOOP_NANOS) {
+            s_logger.warn(_name + " selector loop took " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms");
+        }
+    }
+
     abstract void init() throws IOException;
 
     abstract void registerLink(InetSocketAddress saddr, Link link);
@@ -181,27 +285,69 @@ public abstract class NioConnection implements Runnable {
     protected void accept(SelectionKey key) throws IOException {
         ServerSocketChannel serverSocketChannel = (ServerSocketChannel)key.channel();
 
-        SocketChannel socketChannel = serverSocketChannel.accept();
-        Socket socket = socketChannel.socket();
+        final SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel == null) {
+            return;
+        }
+        final Socket socket = socketChannel.socket();
         socket.setKeepAlive(true);
 
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Connection accepted for " + socket);
         }
 
-        // Begin SSL handshake in BLOCKING mode
-        socketChannel.configureBlocking(true);
+        try {
+            _sslHandshakeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handshake(socketChannel);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            s_logger.warn("Too many pending SSL handshakes, closing connection from " + socket.getRemoteSocketAddress());
+            try {
+                socketChannel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
 
+    /**
+     * Runs the SSL handshake of an accepted connection in blocking mode and
+     * hands the channel back to the selector once it is done. The connection
+     * is closed if the handshake takes longer than SSL_HANDSHAKE_TIMEOUT_MS,
+     * which also unblocks the handshake thread.
+     */
+    protected void handshake(final SocketChannel socketChannel) {
+        final Socket socket = socketChannel.socket();
+        ScheduledFuture<?> timeout = _sslHandshakeTimeoutExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                s_logger.warn("SSL handshake with " + socket.getRemoteSocketAddress() + " did not complete in " + SSL_HANDSHAKE_TIMEOUT_MS + "ms, closing the connection");
+                try {
+                    socketChannel.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }, SSL_HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
         SSLEngine sslEngine = null;
         try {
+            // Begin SSL handshake in BLOCKING mode
+            socketChannel.configureBlocking(true);
+
             SSLContext sslContext = Link.initSSLContext(false);
             sslEngine = sslContext.createSSLEngine();
             sslEngine.setUseClientMode(false);
             sslEngine.setNeedClientAuth(false);
 
             Link.doHandshake(socketChannel, sslEngine, false);
+            if (!timeout.cancel(false)) {
+                throw new IOException("SSL handshake timed out");
+            }
 
+            socketChannel.configureBlocking(false);
         } catch (Exception e) {
+            timeout.cancel(false);
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Socket " + socket + " closed on read.  Probably -1 returned: " + e.getMessage());
             }
@@ -216,14 +362,14 @@ public abstract class NioConnection implements Runnable {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("SSL: Handshake done");
         }
-        socketChannel.configureBlocking(false);
         InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
         Link link = new Link(saddr, this);
         link.setSSLEngine(sslEngine);
-        link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
-        Task task = _factory.create(Task.Type.CONNECT, link, null);
-        registerLink(saddr, link);
-        _executor.execute(task);
+        ChangeRequest todo = new ChangeRequest(socketChannel, ChangeRequest.ACCEPT, SelectionKey.OP_READ, link);
+        synchronized (this) {
+            _todos.add(todo);
+        }
+        _selector.wakeup();
     }
 
     protected void terminate(SelectionKey key) {
@@ -337,6 +483,18 @@ public abstract class NioConnection implements Runnable {
                         }
                     }
                     break;
+                case ChangeRequest.ACCEPT:
+                    Link acceptedLink = (Link)todo.att;
+                    try {
+                        key = ((SocketChannel)(todo.key)).register(_selector, todo.ops, acceptedLink);
+                        acceptedLink.setKey(key);
+                        registerLink(acceptedLink.getSocketAddress(), acceptedLink);
+                        _executor.execute(_factory.create(Task.Type.CONNECT, acceptedLink, null));
+                    } catch (ClosedChannelException e) {
+                        s_logger.warn("Couldn't register accepted socket: " + todo.key);
+                        acceptedLink.terminated();
+                    }
+                    break;
                 case ChangeRequest.CLOSE:
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Trying to close " + todo.key);
@@ -412,7 +570,9 @@ public abstract class NioConnection implements Runnable {
             try {
                 if (channel != null) {
                     if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Closing socket " + channel.socket());
+                        Object link = key.attachment();
+                        s_logger.debug("Closing socket " + channel.socket() +
+                            (link instanceof Link ? ", " + ((Link)link).getReadBufferAllocatedBytes() + " bytes allocated for its read buffers" : ""));
                     }
                     channel.close();
                 }
@@ -456,6 +616,7 @@ public abstract class NioConnection implements Runnable {
         public static final int REGISTER = 1;
         public static final int CHANGEOPS = 2;
         public static final int CLOSE = 3;
+        public static final int ACCEPT = 4;
 
         public Object key;
         public int type;
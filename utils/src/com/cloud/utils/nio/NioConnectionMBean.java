@@ -0,0 +1,49 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+/**
+ * Allows JMX access to the selector and SSL statistics of a nio connection.
+ */
+public interface NioConnectionMBean {
+    long getSelectorLoopCount();
+
+    /**
+     * @return average time, in milliseconds, spent handling the ready keys and pending changes per selector loop.
+     */
+    double getSelectorLoopAverageMs();
+
+    double getSelectorLoopMaxMs();
+
+    /**
+     * @return number of accepted connections waiting for or going through the SSL handshake.
+     */
+    int getPendingSslHandshakes();
+
+    /**
+     * @return bytes allocated for the per-thread SSL buffers, across all links of this process.
+     */
+    long getSslBufferAllocatedBytes();
+
+    /**
+     * @return bytes allocated for the read buffers, across the links of this connection.
+     */
+    long getReadBufferAllocatedBytes();
+}
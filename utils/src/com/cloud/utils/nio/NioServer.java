@@ -40,6 +40,7 @@ public class NioServer extends NioConnection {
         super(name, port, workers, factory);
         _localAddr = null;
         _links = new WeakHashMap<InetSocketAddress, Link>(1024);
+        initSslHandshakeExecutor(workers);
     }
 
     @Override
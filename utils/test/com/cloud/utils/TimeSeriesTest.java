@@ -0,0 +1,133 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimeSeriesTest {
+    @Test
+    public void testPointsAreKept() {
+        TimeSeries series = new TimeSeries(64, 1);
+        series.add(60000, 1.5);
+        series.add(120000, -2.25);
+        series.add(180000, 1000000.01);
+
+        List<Pair<Long, Double>> points = series.getPoints(0);
+        Assert.assertEquals(3, points.size());
+        Assert.assertEquals(60000L, points.get(0).first().longValue());
+        Assert.assertEquals(1.5, points.get(0).second(), 0.001);
+        Assert.assertEquals(-2.25, points.get(1).second(), 0.001);
+        Assert.assertEquals(1000000.01, points.get(2).second(), 0.001);
+        Assert.assertEquals(180000L, series.getLastTimestamp());
+
+        Assert.assertEquals(2, series.getPoints(120000).size());
+    }
+
+    @Test
+    public void testOldestPointsAreDropped() {
+        TimeSeries series = new TimeSeries(16, 1);
+        for (int i = 1; i <= 100; i++) {
+            series.add(i * 60000L, i);
+        }
+
+        List<Pair<Long, Double>> points = series.getPoints(0);
+        Assert.assertTrue(points.size() < 100);
+        Pair<Long, Double> last = points.get(points.size() - 1);
+        Assert.assertEquals(100 * 60000L, last.first().longValue());
+        Assert.assertEquals(100, last.second(), 0.001);
+        Pair<Long, Double> first = points.get(0);
+        Assert.assertEquals(first.first() / 60000, first.second(), 0.001);
+    }
+
+    @Test
+    public void testCoarseTierFillsOlderHistory() {
+        TimeSeries series = new TimeSeries(64, 1, 10);
+        for (int i = 1; i <= 100; i++) {
+            series.add(i * 60000L, i);
+        }
+
+        List<Pair<Long, Double>> points = series.getPoints(0);
+        // averaged points first, then the raw samples
+        Assert.assertEquals(5.5, points.get(0).second(), 0.001);
+        Assert.assertEquals(100, points.get(points.size() - 1).second(), 0.001);
+        for (int i = 1; i < points.size(); i++) {
+            Assert.assertTrue(points.get(i - 1).first() < points.get(i).first());
+        }
+    }
+
+    @Test
+    public void testMetricsShareThePoints() {
+        TimeSeries series = new TimeSeries(new TimeSeries.Layout(new double[] {100, 1}, new int[] {32}, new int[] {1}));
+        for (int i = 1; i <= 20; i++) {
+            series.add(i * 60000L, i / 4.0, i * 1000);
+        }
+
+        List<Pair<Long, Double>> cpu = series.getPoints(0, 0);
+        List<Pair<Long, Double>> kbs = series.getPoints(1, 0);
+        Assert.assertEquals(cpu.size(), kbs.size());
+        Assert.assertTrue(cpu.size() < 20);
+        for (int i = 0; i < cpu.size(); i++) {
+            long minute = cpu.get(i).first() / 60000;
+            Assert.assertEquals(cpu.get(i).first(), kbs.get(i).first());
+            Assert.assertEquals(minute / 4.0, cpu.get(i).second(), 0.001);
+            Assert.assertEquals(minute * 1000, kbs.get(i).second(), 0.001);
+        }
+        Assert.assertEquals(20 * 60000L, series.getLastTimestamp());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEveryMetricNeedsAValue() {
+        new TimeSeries(new TimeSeries.Layout(new double[] {100, 1}, new int[] {32}, new int[] {1})).add(60000, 1.0);
+    }
+
+    @Test
+    public void testFullDayIsRetained() {
+        // layout of the vm history of StatsCollector with a sample every minute: raw, 10 minute and hourly averages of
+        // the cpu in hundredths and 6 rates in KB
+        TimeSeries.Layout layout = new TimeSeries.Layout(new double[] {100, 1, 1, 1, 1, 1, 1}, new int[] {64, 128, 560}, new int[] {1, 10, 60});
+        Assert.assertTrue(layout.getSize() <= 1152);
+        TimeSeries series = new TimeSeries(layout);
+        long day = 24 * 60 * 60 * 1000L;
+        long end = 2 * day;
+        // a busy vm, swinging between idle and close to 1GB/s
+        Random random = new Random(42);
+        double[] values = new double[7];
+        for (long time = 0; time <= end; time += 60000) {
+            boolean busy = (time / (60 * 60 * 1000L)) % 2 == 0;
+            values[0] = busy ? 90 + random.nextInt(1000) / 100.0 : random.nextInt(100) / 100.0;
+            for (int m = 1; m < values.length; m++) {
+                values[m] = busy ? 900000 + random.nextInt(100000) : random.nextInt(10);
+            }
+            series.add(time, values);
+        }
+
+        for (int m = 0; m < values.length; m++) {
+            List<Pair<Long, Double>> points = series.getPoints(m, 0);
+            Assert.assertTrue(points.get(0).first() <= end - day);
+            Assert.assertEquals(end, points.get(points.size() - 1).first().longValue());
+            Assert.assertEquals(values[m], points.get(points.size() - 1).second(), 0.01);
+        }
+        Assert.assertFalse(series.getPoints(end - day).isEmpty());
+    }
+}